@@ -332,14 +332,9 @@ public class EditRuleDialog extends DialogFragment {
 
     private Packages.IpPortPair extractIpPortPairFromGui(TextView textViewIp, TextView textViewPort) {
         String ip = textViewIp.getText() + "";
-        int port;
+        String ports = textViewPort.getText() + ""; // single port, port-ranges like "6881-6999,7000" or empty/"0" for any port
 
-        if (textViewPort.getText().length() > 0)
-            port = Integer.parseInt(textViewPort.getText() + "");
-        else
-            port = 0; // i.e. any port
-
-        return new Packages.IpPortPair(ip, port);
+        return new Packages.IpPortPair(ip, ports);
     }
 
     private void saveRuleDataFromGui() {
@@ -384,10 +379,7 @@ public class EditRuleDialog extends DialogFragment {
             targetViewIp.setText(ipPortInfo.getIp());
 
         // Port
-        if (ipPortInfo.getPort() > 0)
-            targetViewPort.setText(ipPortInfo.getPort() + "");
-        else
-            targetViewPort.setText("0"); // no negative numbers - "any port" is simply the port 0
+        targetViewPort.setText(ipPortInfo.getPorts()); // "any port" is simply the port 0
     }
 
     @Override
@@ -306,9 +306,9 @@ public class ShowAppRulesActivity extends AppCompatActivity {
                 public void onConnectionDecided(AppUidGroup appUidGroup, Connections.IConnection connection, final DecideConnectionDialog.AppConnectionDecision decision) {
                     // The package has to be accepted/blocked - independent of the creation of a rule
                     if (decision.allowConnection)
-                        firewall.subsystem.pendingActionsManager.acceptPendingPackage();
+                        firewall.subsystem.pendingActionsManager.acceptPendingPackage(connection);
                     else
-                        firewall.subsystem.pendingActionsManager.blockPendingPackage();
+                        firewall.subsystem.pendingActionsManager.blockPendingPackage(connection);
 
                     // show toast about decision:
                     showPackageDecidedToast(connection, decision.allowConnection);
@@ -362,17 +362,17 @@ public class ShowAppRulesActivity extends AppCompatActivity {
             DecideConnectionDialog.show(this, dialogResultListener, appUidGroup, connection, protocol);
         } else if (INTENT_ACTION__PENDING_CONNECTION__ACCEPT.equals(action) || INTENT_ACTION__PENDING_CONNECTION__BLOCK.equals(action)) { // ACCEPT/BLOCK actions within Connection-Notification
             final boolean accept = INTENT_ACTION__PENDING_CONNECTION__ACCEPT.equals(action);
+            Connections.IConnection connection = IntentDataSerializer.readConnection(intent, "connection");
 
             if (accept) {
                 Log.d(LOG_TAG, "Action.PendingConnection: accept package");
-                firewall.subsystem.pendingActionsManager.acceptPendingPackage();
+                firewall.subsystem.pendingActionsManager.acceptPendingPackage(connection);
             } else {
                 Log.d(LOG_TAG, "Action.PendingConnection: block package");
-                firewall.subsystem.pendingActionsManager.blockPendingPackage();
+                firewall.subsystem.pendingActionsManager.blockPendingPackage(connection);
             }
 
             // show toast about decision:
-            Connections.IConnection connection = IntentDataSerializer.readConnection(intent, "connection");
             showPackageDecidedToast(connection, accept);
 
             finish();
@@ -3,6 +3,8 @@ package de.uni_kl.informatik.disco.discowall.firewall;
 import android.content.Context;
 import android.util.Log;
 
+import java.io.File;
+import java.io.IOException;
 import java.util.LinkedList;
 import java.util.List;
 
@@ -17,21 +19,31 @@ import de.uni_kl.informatik.disco.discowall.firewall.subsystems.SubsystemPending
 import de.uni_kl.informatik.disco.discowall.firewall.subsystems.SubsystemRulesManager;
 import de.uni_kl.informatik.disco.discowall.firewall.subsystems.SubsystemWatchedApps;
 import de.uni_kl.informatik.disco.discowall.firewall.util.FirewallRuledApp;
+import de.uni_kl.informatik.disco.discowall.firewall.util.FirewallStatistics;
 import de.uni_kl.informatik.disco.discowall.gui.dialogs.ErrorDialog;
 import de.uni_kl.informatik.disco.discowall.netfilter.bridge.NetfilterBridgeCommunicator;
 import de.uni_kl.informatik.disco.discowall.netfilter.bridge.NetfilterBridgeControl;
 import de.uni_kl.informatik.disco.discowall.netfilter.bridge.NetfilterBridgeIptablesHandler;
+import de.uni_kl.informatik.disco.discowall.netfilter.bridge.NetfilterBridgeOverloadPolicy;
+import de.uni_kl.informatik.disco.discowall.netfilter.bridge.NetfilterBridgeStatistics;
+import de.uni_kl.informatik.disco.discowall.netfilter.bridge.NetfilterBridgeTcpTransport;
+import de.uni_kl.informatik.disco.discowall.netfilter.bridge.NetfilterBridgeTransport;
+import de.uni_kl.informatik.disco.discowall.netfilter.bridge.NetfilterBridgeUnixSocketTransport;
 import de.uni_kl.informatik.disco.discowall.netfilter.bridge.NetfilterFirewallRulesHandler;
 import de.uni_kl.informatik.disco.discowall.netfilter.iptables.IptablesControl;
+import de.uni_kl.informatik.disco.discowall.packages.ConnectionEvents;
 import de.uni_kl.informatik.disco.discowall.packages.ConnectionManager;
 import de.uni_kl.informatik.disco.discowall.packages.Connections;
 import de.uni_kl.informatik.disco.discowall.packages.Packages;
+import de.uni_kl.informatik.disco.discowall.utils.FileUtils;
+import de.uni_kl.informatik.disco.discowall.utils.HotPathLog;
 import de.uni_kl.informatik.disco.discowall.utils.NetworkInterfaceHelper;
 import de.uni_kl.informatik.disco.discowall.utils.apps.AppUidGroup;
+import de.uni_kl.informatik.disco.discowall.utils.ressources.DiscoWallConstants;
 import de.uni_kl.informatik.disco.discowall.utils.ressources.DiscoWallSettings;
 import de.uni_kl.informatik.disco.discowall.utils.shell.ShellExecuteExceptions;
 
-public class Firewall implements NetfilterBridgeCommunicator.BridgeEventsHandler, NetfilterBridgeCommunicator.PackageReceivedHandler {
+public class Firewall implements NetfilterBridgeCommunicator.BridgeEventsHandler, NetfilterBridgeCommunicator.PackageReceivedHandler, NetfilterBridgeCommunicator.ConntrackEventHandler, NetfilterBridgeOverloadPolicy.FallbackVerdictHandler {
     private static final String LOG_TAG = Firewall.class.getSimpleName();
 
     // ---------------------------------------------------------------------------------------------------------------------------------------------------------------------------------------
@@ -94,6 +106,7 @@ public class Firewall implements NetfilterBridgeCommunicator.BridgeEventsHandler
     private FirewallStateListener firewallStateListener;
 
     private NetfilterBridgeControl control;
+    private volatile boolean rememberUdpVerdicts = false; // only UDP packages in state NEW are queued: the remaining ones of a flow are answered with its first verdict
 //    private DnsCacheControl dnsCacheControl;
 
     // Firewall Subsytems:
@@ -164,7 +177,26 @@ public class Firewall implements NetfilterBridgeCommunicator.BridgeEventsHandler
             // starting netfilter bridge - i.e. the "firewall core"
             try {
                 boolean startNetfilterBridgeInstance = DiscoWallSettings.getInstance().isNfqueueBridgeAutomaticallyStartLocalInstance(firewallServiceContext);
-                control = new NetfilterBridgeControl(startNetfilterBridgeInstance, this, this, firewallServiceContext, port);
+
+                boolean useUnixSocket = DiscoWallSettings.getInstance().isNfqueueBridgeUseUnixSocket(firewallServiceContext);
+                int queueCount = DiscoWallSettings.getInstance().getNfqueueBridgeQueueCount(firewallServiceContext);
+                boolean queueCpuFanout = DiscoWallSettings.getInstance().isNfqueueBridgeQueueCpuFanout(firewallServiceContext);
+                boolean connmarkOffload = DiscoWallSettings.getInstance().isNfqueueBridgeConnmarkOffload(firewallServiceContext);
+                boolean udpNewOnly = DiscoWallSettings.getInstance().isNfqueueBridgeUdpNewOnly(firewallServiceContext);
+                rememberUdpVerdicts = udpNewOnly;
+                boolean conntrackEvents = DiscoWallSettings.getInstance().isNfqueueBridgeConntrackEvents(firewallServiceContext);
+                NetfilterBridgeOverloadPolicy overloadPolicy = createOverloadPolicy();
+
+                // one transport per queue: queue 0 uses the configured port/socket, further queues the following ones
+                List<NetfilterBridgeTransport> bridgeTransports = new LinkedList<>();
+                for(int queue = 0; queue < queueCount; queue++) {
+                    if (useUnixSocket)
+                        bridgeTransports.add(new NetfilterBridgeUnixSocketTransport(DiscoWallConstants.Firewall.unixSocketName + (queue == 0 ? "" : "." + queue)));
+                    else
+                        bridgeTransports.add(new NetfilterBridgeTcpTransport(port + queue));
+                }
+
+                control = new NetfilterBridgeControl(startNetfilterBridgeInstance, this, this, firewallServiceContext, bridgeTransports, queueCpuFanout, connmarkOffload, udpNewOnly, conntrackEvents ? this : null, overloadPolicy);
             } catch(Exception e) {
                 IptablesControl.setCommandListener(null); // removing command-listener
                 throw new FirewallExceptions.FirewallException("Error initializing firewall: " + e.getMessage(), e);
@@ -176,6 +208,8 @@ public class Firewall implements NetfilterBridgeCommunicator.BridgeEventsHandler
             // starting the dns cache for sniffing the dns-resolutions
 //            dnsCacheControl = new DnsCacheControl(DiscoWallConstants.DnsCache.dnsCachePort);
 
+            connectionManager.startExpirySweeper();
+
             Log.d(LOG_TAG, "firewall engine running.");
             onFirewallStateChanged(FirewallState.RUNNING); // has to be called here, so that all following algorithms get the correct firewall-running-state
 
@@ -252,6 +286,7 @@ public class Firewall implements NetfilterBridgeCommunicator.BridgeEventsHandler
     public void loadStoredRulesFromStorage() {
         Log.i(LOG_TAG, "loading all stored rules from app storage...");
 
+        firewallRulesManager.beginBatch(); // the package-path sees all loaded rules at once
         try {
             for(FirewallRuledApp ruledAppWithLoadedRules : subsystemRulesManager.loadAllRulesFromAppStorage()) {
                 for(FirewallRules.IFirewallRule rule : ruledAppWithLoadedRules.getRules()) {
@@ -264,6 +299,8 @@ public class Firewall implements NetfilterBridgeCommunicator.BridgeEventsHandler
             }
         } catch (Exception e) {
             Log.e(LOG_TAG, "Error while loading stored rules from XML: " + e.getMessage(), e);
+        } finally {
+            firewallRulesManager.endBatch();
         }
     }
 
@@ -297,6 +334,7 @@ public class Firewall implements NetfilterBridgeCommunicator.BridgeEventsHandler
         }
 
         control = null;
+        connectionManager.stopExpirySweeper();
         IptablesControl.setCommandListener(null); // remove temporary listener
 
         Log.i(LOG_TAG, "firewall disabled.");
@@ -374,6 +412,10 @@ public class Firewall implements NetfilterBridgeCommunicator.BridgeEventsHandler
             firewallStateListener.onFirewallPolicyChanged(newRulesPolicy);
     }
 
+    /**
+     * Called from the I/O-thread of each nfqueue-channel. Not synchronized, as the connection-tracking is thread-safe:
+     * the channels decide their packages in parallel.
+     */
     @Override
     public void onPackageReceived(Packages.TransportLayerPackage tlPackage, NetfilterBridgeCommunicator.PackageActionCallback actionCallback) {
         // Find device-name for package:
@@ -400,11 +442,153 @@ public class Firewall implements NetfilterBridgeCommunicator.BridgeEventsHandler
         }
 
         connection.update(tlPackage);
-        Log.v(LOG_TAG, "Connection: " + connection);
+        HotPathLog.v(LOG_TAG, "Connection: {}", connection);
+
+        if (rememberUdpVerdicts && connection instanceof Connections.UdpConnection) {
+            Connections.UdpConnection udpConnection = (Connections.UdpConnection) connection;
+            int rulesRevision = getRulesRevision();
+
+            switch(udpConnection.getVerdict(rulesRevision)) {
+                case ACCEPTED:
+                    actionCallback.acceptPendingPackage();
+                    return;
+                case BLOCKED:
+                    actionCallback.blockPendingPackage();
+                    return;
+            }
+
+            actionCallback = new UdpVerdictRememberingCallback(udpConnection, rulesRevision, actionCallback);
+        }
 
         packageFilter.decidePackageAccepted(tlPackage, connection, actionCallback);
     }
 
+    /**
+     * Called from the I/O-thread of the queue-0 channel, concurrently to {@link #onPackageReceived}.
+     */
+    @Override
+    public void onConntrackEvent(ConnectionEvents.ConnectionEvent event) {
+        connectionManager.onConnectionEvent(event);
+    }
+
+    /**
+     * Called on overload, possibly from the {@link de.uni_kl.informatik.disco.discowall.utils.TimerService} thread. Not synchronized,
+     * as it only reads the rules.
+     */
+    @Override
+    public boolean isFallbackVerdictAccept(Packages.TransportLayerPackage tlPackage) {
+        tlPackage.setUserId(tlPackage.getMark() - NetfilterBridgeIptablesHandler.PACKAGE_UID_MARK_OFFSET); // not yet set if the backlog is full
+        return packageFilter.isFallbackVerdictAccept(tlPackage);
+    }
+
+    private NetfilterBridgeOverloadPolicy createOverloadPolicy() {
+        DiscoWallSettings settings = DiscoWallSettings.getInstance();
+        int deadlineSeconds = settings.getNfqueueBridgeDecisionDeadlineSeconds(firewallServiceContext);
+
+        // Packages waiting for the user must not be cut off before the decision-timeout has passed
+        if (deadlineSeconds > 0)
+            deadlineSeconds = Math.max(deadlineSeconds, settings.getNewConnectionDecisionTimeoutSeconds(firewallServiceContext) + DiscoWallConstants.Firewall.decisionDeadlineGraceSeconds);
+
+        return new NetfilterBridgeOverloadPolicy(
+                settings.getNfqueueBridgeQueueMaxLength(firewallServiceContext),
+                settings.isNfqueueBridgeFailOpen(firewallServiceContext),
+                settings.getNfqueueBridgeDecisionBacklog(firewallServiceContext),
+                deadlineSeconds * 1000,
+                this);
+    }
+
+    /**
+     * @return the overload-metrics of all queues, or null if the firewall is not running
+     */
+    public NetfilterBridgeOverloadPolicy.Metrics getOverloadMetrics() {
+        NetfilterBridgeControl control = this.control;
+        return control != null ? control.getOverloadMetrics() : null;
+    }
+
+    /**
+     * @return latencies and counters of the decision-path, summed up over all queues. The bridge-values are only available while the firewall is running.
+     */
+    public FirewallStatistics getStatistics() {
+        NetfilterBridgeControl control = this.control;
+
+        return new FirewallStatistics(
+                control != null ? control.getStatistics() : new NetfilterBridgeStatistics(),
+                packageFilter.getRuleEvaluationLatency(),
+                control != null ? control.getOverloadMetrics() : new NetfilterBridgeOverloadPolicy.Metrics(),
+                connectionManager.getTcpConnectionCount(),
+                connectionManager.getUdpConnectionCount(),
+                connectionManager.getEvictionCounters(),
+                packageFilter.getVerdictCache());
+    }
+
+    /**
+     * Writes the current statistics into a new file within the public DiscoWall-directory.
+     * @return the written file
+     */
+    public File dumpStatistics() throws IOException {
+        File directory = DiscoWallConstants.Directories.discowallPublicDirectory;
+        if (!directory.isDirectory() && !directory.mkdirs())
+            throw new IOException("Unable to create directory: " + directory.getAbsolutePath());
+
+        File dumpFile = FileUtils.createUniqueFilename(directory, DiscoWallConstants.Files.statisticsDumpFilePrefix, ".txt");
+        getStatistics().writeTo(dumpFile);
+
+        Log.i(LOG_TAG, "Statistics written to: " + dumpFile.getAbsolutePath());
+        return dumpFile;
+    }
+
+    /**
+     * Records the package-queries and verdicts of all queues into the directory (one trace-file per queue),
+     * so that they can be replayed against the firewall using the NetfilterBridgeTraceReplayer.
+     */
+    public List<File> startTraceRecording(File directory) throws IOException, FirewallExceptions.FirewallInvalidStateException {
+        NetfilterBridgeControl control = this.control;
+        if (control == null)
+            throw new FirewallExceptions.FirewallInvalidStateException("Firewall needs to be running in order to record bridge-traffic.", FirewallState.STOPPED);
+
+        return control.startTraceRecording(directory);
+    }
+
+    public void stopTraceRecording() {
+        NetfilterBridgeControl control = this.control;
+        if (control != null)
+            control.stopTraceRecording();
+    }
+
+    /**
+     * Both revisions only ever increase, so their sum changes with any change of rules or policy.
+     */
+    private int getRulesRevision() {
+        return firewallRulesManager.getRevision() + policyManager.getRevision();
+    }
+
+    /**
+     * Remembers the verdict within the UDP-flow, as its following packages (still in conntrack-state NEW until the peer replied) are queued too.
+     */
+    private static class UdpVerdictRememberingCallback implements NetfilterBridgeCommunicator.PackageActionCallback {
+        private final Connections.UdpConnection connection;
+        private final int rulesRevision;
+        private final NetfilterBridgeCommunicator.PackageActionCallback actionCallback;
+
+        private UdpVerdictRememberingCallback(Connections.UdpConnection connection, int rulesRevision, NetfilterBridgeCommunicator.PackageActionCallback actionCallback) {
+            this.connection = connection;
+            this.rulesRevision = rulesRevision;
+            this.actionCallback = actionCallback;
+        }
+
+        @Override
+        public void acceptPendingPackage() {
+            connection.setVerdict(true, rulesRevision);
+            actionCallback.acceptPendingPackage();
+        }
+
+        @Override
+        public void blockPendingPackage() {
+            connection.setVerdict(false, rulesRevision);
+            actionCallback.blockPendingPackage();
+        }
+    }
+
     public FirewallRuledApp getRuledApp(AppUidGroup group) {
         boolean isMonitored = subsystemWatchedApps.isAppWatched(group);
         LinkedList<FirewallRules.IFirewallRule> rules = subsystemRulesManager.getRules(group);
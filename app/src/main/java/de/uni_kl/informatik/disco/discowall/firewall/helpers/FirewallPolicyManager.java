@@ -13,6 +13,7 @@ public class FirewallPolicyManager {
 
     private final FirewallIptableRulesHandler firewallIptableRulesHandler;
     private FirewallPolicyManager.FirewallPolicy firewallUnknownConnectionPolicy;
+    private volatile int revision = 0; // incremented on each change, so that remembered decisions can be invalidated
 
     public FirewallPolicyManager(FirewallIptableRulesHandler firewallIptableRulesHandler) {
         this.firewallIptableRulesHandler = NetfilterFirewallRulesHandler.instance;
@@ -63,5 +64,10 @@ public class FirewallPolicyManager {
         }
 
         firewallUnknownConnectionPolicy = policy;
+        revision++;
+    }
+
+    public int getRevision() {
+        return revision;
     }
 }
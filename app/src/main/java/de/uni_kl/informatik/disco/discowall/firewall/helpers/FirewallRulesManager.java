@@ -1,9 +1,15 @@
 package de.uni_kl.informatik.disco.discowall.firewall.helpers;
 
+import java.util.ArrayList;
+import java.util.Collections;
 import java.util.HashMap;
 import java.util.LinkedList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
 
 import de.uni_kl.informatik.disco.discowall.firewall.rules.FirewallIptableRulesHandler;
+import de.uni_kl.informatik.disco.discowall.firewall.rules.FirewallPolicyRuleIndex;
 import de.uni_kl.informatik.disco.discowall.firewall.rules.FirewallRuleExceptions;
 import de.uni_kl.informatik.disco.discowall.firewall.rules.FirewallRules;
 import de.uni_kl.informatik.disco.discowall.netfilter.bridge.NetfilterFirewallRulesHandler;
@@ -11,27 +17,170 @@ import de.uni_kl.informatik.disco.discowall.packages.Connections;
 import de.uni_kl.informatik.disco.discowall.packages.Packages;
 import de.uni_kl.informatik.disco.discowall.utils.shell.ShellExecuteExceptions;
 
+/**
+ * The rules of all users, published as immutable {@link RulesSnapshot}: readers (i.e. the package-path) take the current snapshot
+ * with a single volatile read and neither lock nor copy. Edits are synchronized, copy the rules-list of the edited user only
+ * and publish a new snapshot - or a single one for all edits between {@link #beginBatch()} and {@link #endBatch()}.
+ */
 public class FirewallRulesManager {
-    private final HashMap<Integer, LinkedList<FirewallRules.IFirewallRule>> userIdToRulesListHash = new HashMap<>();
+    /**
+     * Immutable rules of all users at one version. Only the rules themselves may still be edited in place,
+     * see {@link FirewallRules#getModificationCount()}.
+     */
+    public static class RulesSnapshot {
+        private static final RulesSnapshot EMPTY = new RulesSnapshot(new HashMap<Integer, List<FirewallRules.IFirewallRule>>(), 0, null);
+
+        private final Map<Integer, List<FirewallRules.IFirewallRule>> userIdToRules; // unmodifiable lists
+        private final int version;
+        private final ConcurrentHashMap<Integer, FirewallPolicyRuleIndex> userIdToPolicyRuleIndex = new ConcurrentHashMap<>(); // compiled on demand
+
+        private RulesSnapshot(Map<Integer, List<FirewallRules.IFirewallRule>> userIdToRules, int version, RulesSnapshot previous) {
+            this.userIdToRules = Collections.unmodifiableMap(userIdToRules);
+            this.version = version;
+
+            // The compiled rules of users whose rules have not been changed are still valid:
+            if (previous != null) {
+                for(Map.Entry<Integer, FirewallPolicyRuleIndex> entry : previous.userIdToPolicyRuleIndex.entrySet()) {
+                    if (userIdToRules.get(entry.getKey()) == previous.userIdToRules.get(entry.getKey()))
+                        userIdToPolicyRuleIndex.put(entry.getKey(), entry.getValue());
+                }
+            }
+        }
+
+        /**
+         * @return incremented with each published change
+         */
+        public int getVersion() {
+            return version;
+        }
+
+        /**
+         * @return the unmodifiable rules of the user, in their order
+         */
+        public List<FirewallRules.IFirewallRule> getRules(int userId) {
+            List<FirewallRules.IFirewallRule> rules = userIdToRules.get(userId);
+            return rules != null ? rules : Collections.<FirewallRules.IFirewallRule>emptyList();
+        }
+
+        public Map<Integer, List<FirewallRules.IFirewallRule>> getRulesByUserId() {
+            return userIdToRules;
+        }
+
+        /**
+         * Compiles the rules of the user on the first call, and again if a rule has been edited in place.
+         */
+        public FirewallPolicyRuleIndex getPolicyRuleIndex(int userId) {
+            int modificationCount = FirewallRules.getModificationCount(); // before compiling, so that edits in the meantime cause another compilation
+            FirewallPolicyRuleIndex index = userIdToPolicyRuleIndex.get(userId);
+
+            if (index == null || index.getRevision() != modificationCount) {
+                index = new FirewallPolicyRuleIndex(getRules(userId), modificationCount);
+                userIdToPolicyRuleIndex.put(userId, index);
+            }
+
+            return index;
+        }
+    }
+
+    private volatile RulesSnapshot snapshot = RulesSnapshot.EMPTY;
+
+    // Guarded by this: the edited rules-lists (copies), until they are published
+    private final HashMap<Integer, ArrayList<FirewallRules.IFirewallRule>> editedUserRules = new HashMap<>();
+    private boolean editedDeleteAll = false;
+    private int batchDepth = 0;
 
     public FirewallRulesManager() {
     }
 
     //region direct data access
 
-    private LinkedList<FirewallRules.IFirewallRule> getRulesOrCreate(int userId) {
-        if (userIdToRulesListHash.get(userId) == null)
-            userIdToRulesListHash.put(userId, new LinkedList<FirewallRules.IFirewallRule>());
+    /**
+     * @return the current rules - a single volatile read
+     */
+    public RulesSnapshot getSnapshot() {
+        return snapshot;
+    }
+
+    /**
+     * Called with the lock held: the rules-list of the user including the unpublished edits.
+     */
+    private List<FirewallRules.IFirewallRule> getEditedRules(int userId) {
+        ArrayList<FirewallRules.IFirewallRule> rules = editedUserRules.get(userId);
+        if (rules != null)
+            return rules;
+
+        return editedDeleteAll ? Collections.<FirewallRules.IFirewallRule>emptyList() : snapshot.getRules(userId);
+    }
+
+    /**
+     * Called with the lock held: copy-on-write of the rules-list of the user, once per publish.
+     */
+    private ArrayList<FirewallRules.IFirewallRule> editRules(int userId) {
+        ArrayList<FirewallRules.IFirewallRule> rules = editedUserRules.get(userId);
+
+        if (rules == null) {
+            rules = new ArrayList<>(getEditedRules(userId));
+            editedUserRules.put(userId, rules);
+        }
+
+        return rules;
+    }
 
-        return userIdToRulesListHash.get(userId);
+    /**
+     * Called with the lock held: publishes the edits as new snapshot, unless a batch is running.
+     */
+    private void publish() {
+        if (batchDepth > 0 || (editedUserRules.isEmpty() && !editedDeleteAll))
+            return;
+
+        RulesSnapshot current = snapshot;
+        HashMap<Integer, List<FirewallRules.IFirewallRule>> userIdToRules = editedDeleteAll
+                ? new HashMap<Integer, List<FirewallRules.IFirewallRule>>()
+                : new HashMap<>(current.userIdToRules);
+
+        for(Map.Entry<Integer, ArrayList<FirewallRules.IFirewallRule>> entry : editedUserRules.entrySet()) {
+            if (entry.getValue().isEmpty())
+                userIdToRules.remove(entry.getKey());
+            else
+                userIdToRules.put(entry.getKey(), Collections.unmodifiableList(entry.getValue())); // not edited anymore, as it is removed from editedUserRules below
+        }
+
+        editedUserRules.clear();
+        editedDeleteAll = false;
+        snapshot = new RulesSnapshot(userIdToRules, current.version + 1, current);
     }
 
     private void addRuleEx(FirewallRules.IFirewallRule rule, int index) {
-        getRulesOrCreate(rule.getUserId()).add(index, rule);
+        editRules(rule.getUserId()).add(index, rule);
+        publish();
     }
 
     private void addRuleEx(FirewallRules.IFirewallRule rule) {
-        getRulesOrCreate(rule.getUserId()).add(rule);
+        editRules(rule.getUserId()).add(rule);
+        publish();
+    }
+
+    /**
+     * Edits until the matching {@link #endBatch()} are published at once. Batches may be nested.
+     * Readers (including the getters of this class) do not see the edits until then.
+     */
+    public synchronized void beginBatch() {
+        batchDepth++;
+    }
+
+    public synchronized void endBatch() {
+        if (batchDepth == 0)
+            throw new IllegalStateException("No batch running.");
+
+        batchDepth--;
+        publish();
+    }
+
+    /**
+     * @return changes to the rules-lists plus changes to the rules themselves
+     */
+    public int getRevision() {
+        return snapshot.getVersion() + FirewallRules.getModificationCount();
     }
 
     //endregion
@@ -41,30 +190,39 @@ public class FirewallRulesManager {
     public LinkedList<FirewallRules.IFirewallRule> getRules() {
         LinkedList<FirewallRules.IFirewallRule> rules = new LinkedList<>();
 
-        for(LinkedList<FirewallRules.IFirewallRule> userRules : userIdToRulesListHash.values())
+        for(List<FirewallRules.IFirewallRule> userRules : snapshot.getRulesByUserId().values())
             rules.addAll(userRules);
 
         return rules;
     }
 
     public LinkedList<FirewallRules.IFirewallRule> getRules(int userId) {
-        return new LinkedList<>(getRulesOrCreate(userId));
+        return new LinkedList<>(snapshot.getRules(userId));
     }
 
     public LinkedList<FirewallRules.IFirewallPolicyRule> getPolicyRules(int userId) {
         LinkedList<FirewallRules.IFirewallPolicyRule> policyRules = new LinkedList<>();
 
-        for(FirewallRules.IFirewallRule rule : getRulesOrCreate(userId))
+        for(FirewallRules.IFirewallRule rule : snapshot.getRules(userId))
             if (rule instanceof FirewallRules.IFirewallPolicyRule)
                 policyRules.add((FirewallRules.IFirewallPolicyRule) rule);
 
         return policyRules;
     }
 
+    /**
+     * Called on the package-path for each package: looks the rule up in the compiled index of the user within the current snapshot.
+     * Neither locks nor allocates, unless the rules have changed since the last package of the user.
+     * @return the first policy-rule of the package's user which applies to the package, or null
+     */
+    public FirewallRules.IFirewallPolicyRule findPolicyRule(Packages.TransportLayerPackage tlPackage) {
+        return snapshot.getPolicyRuleIndex(tlPackage.getUserId()).findFirstMatch(tlPackage);
+    }
+
     public LinkedList<FirewallRules.IFirewallRedirectRule> getRedirectionRules(int userId) {
         LinkedList<FirewallRules.IFirewallRedirectRule> redirectRules = new LinkedList<>();
 
-        for(FirewallRules.IFirewallRule rule : getRulesOrCreate(userId))
+        for(FirewallRules.IFirewallRule rule : snapshot.getRules(userId))
             if (rule instanceof FirewallRules.IFirewallRedirectRule)
                 redirectRules.add((FirewallRules.IFirewallRedirectRule) rule);
 
@@ -72,11 +230,11 @@ public class FirewallRulesManager {
     }
 
     public boolean containsRule(FirewallRules.IFirewallRule rule) {
-        return getRuleByUUID(rule.getUUID(), rule.getUserId()) != null;
+        return getRuleByUUID(snapshot.getRules(rule.getUserId()), rule.getUUID()) != null;
     }
 
-    private FirewallRules.IFirewallRule getRuleByUUID(String ruleUUID, int userID) {
-        for(FirewallRules.IFirewallRule rule : getRules(userID))
+    private static FirewallRules.IFirewallRule getRuleByUUID(List<FirewallRules.IFirewallRule> rules, String ruleUUID) {
+        for(FirewallRules.IFirewallRule rule : rules)
             if (rule.getUUID().equals(ruleUUID))
                 return rule;
 
@@ -84,32 +242,32 @@ public class FirewallRulesManager {
     }
 
     public int getRuleIndex(FirewallRules.IFirewallRule rule) {
-        return getRulesOrCreate(rule.getUserId()).indexOf(rule);
+        return snapshot.getRules(rule.getUserId()).indexOf(rule);
     }
 
     //endregion
 
     //region public: create rules
 
-    public FirewallRules.FirewallTransportRule createTransportLayerRule(int userId, Packages.IpPortPair sourceFilter, Packages.IpPortPair destinationFilter, FirewallRules.DeviceFilter deviceFilter, FirewallRules.ProtocolFilter protocolFilter, FirewallRules.RulePolicy rulePolicy) {
+    public synchronized FirewallRules.FirewallTransportRule createTransportLayerRule(int userId, Packages.IpPortPair sourceFilter, Packages.IpPortPair destinationFilter, FirewallRules.DeviceFilter deviceFilter, FirewallRules.ProtocolFilter protocolFilter, FirewallRules.RulePolicy rulePolicy) {
         FirewallRules.FirewallTransportRule rule = new FirewallRules.FirewallTransportRule(userId, sourceFilter, destinationFilter, deviceFilter, protocolFilter, rulePolicy);
         addRuleEx(rule);
         return rule;
     }
 
-    public FirewallRules.FirewallTransportRule createTransportLayerRule(int userId, FirewallRules.RulePolicy rulePolicy) {
+    public synchronized FirewallRules.FirewallTransportRule createTransportLayerRule(int userId, FirewallRules.RulePolicy rulePolicy) {
         FirewallRules.FirewallTransportRule rule = new FirewallRules.FirewallTransportRule(userId, rulePolicy);
         addRuleEx(rule);
         return rule;
     }
 
-    public FirewallRules.FirewallTransportRedirectRule createTransportLayerRedirectionRule(int userId, Packages.IpPortPair redirectTo) throws FirewallRuleExceptions.InvalidRuleDefinitionException {
+    public synchronized FirewallRules.FirewallTransportRedirectRule createTransportLayerRedirectionRule(int userId, Packages.IpPortPair redirectTo) throws FirewallRuleExceptions.InvalidRuleDefinitionException {
         FirewallRules.FirewallTransportRedirectRule rule = new FirewallRules.FirewallTransportRedirectRule(userId, redirectTo);
         addRuleEx(rule);
         return rule;
     }
 
-    public FirewallRules.FirewallTransportRedirectRule createTransportLayerRedirectionRule(int userId, Packages.IpPortPair sourceFilter, Packages.IpPortPair destinationFilter, FirewallRules.DeviceFilter deviceFilter, FirewallRules.ProtocolFilter protocolFilter, Packages.IpPortPair redirectTo) throws FirewallRuleExceptions.InvalidRuleDefinitionException {
+    public synchronized FirewallRules.FirewallTransportRedirectRule createTransportLayerRedirectionRule(int userId, Packages.IpPortPair sourceFilter, Packages.IpPortPair destinationFilter, FirewallRules.DeviceFilter deviceFilter, FirewallRules.ProtocolFilter protocolFilter, Packages.IpPortPair redirectTo) throws FirewallRuleExceptions.InvalidRuleDefinitionException {
         FirewallRules.FirewallTransportRedirectRule rule = new FirewallRules.FirewallTransportRedirectRule(userId, sourceFilter, destinationFilter, deviceFilter, protocolFilter, redirectTo);
         addRuleEx(rule);
         return rule;
@@ -119,20 +277,20 @@ public class FirewallRulesManager {
 
     //region public: add rules
 
-    public void addRule(FirewallRules.IFirewallRule ruleToAdd) throws FirewallRuleExceptions.DuplicateRuleException {
-        // throw exception if rule is already listed:
-        if (containsRule(ruleToAdd))
+    public synchronized void addRule(FirewallRules.IFirewallRule ruleToAdd) throws FirewallRuleExceptions.DuplicateRuleException {
+        // throw exception if rule is already listed (including the unpublished edits of a batch):
+        if (getRuleByUUID(getEditedRules(ruleToAdd.getUserId()), ruleToAdd.getUUID()) != null)
             throw new FirewallRuleExceptions.DuplicateRuleException(ruleToAdd);
 
         addRuleEx(ruleToAdd);
     }
 
-    public void addRule(FirewallRules.IFirewallRule ruleToAdd, FirewallRules.IFirewallRule existingRuleBelowNewOne) throws FirewallRuleExceptions.DuplicateRuleException, FirewallRuleExceptions.RuleNotFoundException {
+    public synchronized void addRule(FirewallRules.IFirewallRule ruleToAdd, FirewallRules.IFirewallRule existingRuleBelowNewOne) throws FirewallRuleExceptions.DuplicateRuleException, FirewallRuleExceptions.RuleNotFoundException {
         // throw exception if rule is already listed:
-        if (containsRule(ruleToAdd))
+        if (getRuleByUUID(getEditedRules(ruleToAdd.getUserId()), ruleToAdd.getUUID()) != null)
             throw new FirewallRuleExceptions.DuplicateRuleException(ruleToAdd);
 
-        int newRuleIndex = getRuleIndex(existingRuleBelowNewOne);
+        int newRuleIndex = getEditedRules(existingRuleBelowNewOne.getUserId()).indexOf(existingRuleBelowNewOne);
         if (newRuleIndex < 0)
             throw new FirewallRuleExceptions.RuleNotFoundException(existingRuleBelowNewOne);
 
@@ -142,35 +300,42 @@ public class FirewallRulesManager {
     //endregion
 
     //region public: move/delete rules
-    public void deleteUserRules(int uid) {
-        getRulesOrCreate(uid).clear();
+    public synchronized void deleteUserRules(int uid) {
+        editRules(uid).clear();
+        publish();
     }
 
-    public void deleteRule(FirewallRules.IFirewallRule rule) {
-        getRulesOrCreate(rule.getUserId()).remove(rule);
+    public synchronized void deleteRule(FirewallRules.IFirewallRule rule) {
+        if (editRules(rule.getUserId()).remove(rule))
+            publish();
     }
 
-    public void deleteAllRules() {
-        userIdToRulesListHash.clear();
+    public synchronized void deleteAllRules() {
+        editedUserRules.clear();
+        editedDeleteAll = true;
+        publish();
     }
 
-    public boolean moveRuleUp(FirewallRules.IFirewallRule rule) {
-        int ruleIndex = getRuleIndex(rule);
-        if (ruleIndex == 0)
+    public synchronized boolean moveRuleUp(FirewallRules.IFirewallRule rule) {
+        int ruleIndex = getEditedRules(rule.getUserId()).indexOf(rule);
+        if (ruleIndex <= 0)
             return false;
 
-        getRulesOrCreate(rule.getUserId()).remove(rule);
+        ArrayList<FirewallRules.IFirewallRule> rules = editRules(rule.getUserId());
+        rules.remove(ruleIndex);
         addRuleEx(rule, ruleIndex - 1);
 
         return true;
     }
 
-    public boolean moveRuleDown(FirewallRules.IFirewallRule rule) {
-        int ruleIndex = getRuleIndex(rule);
-        if (ruleIndex == getRulesOrCreate(rule.getUserId()).size()-1)
+    public synchronized boolean moveRuleDown(FirewallRules.IFirewallRule rule) {
+        List<FirewallRules.IFirewallRule> currentRules = getEditedRules(rule.getUserId());
+        int ruleIndex = currentRules.indexOf(rule);
+        if (ruleIndex < 0 || ruleIndex == currentRules.size()-1)
             return false;
 
-        getRulesOrCreate(rule.getUserId()).remove(rule);
+        ArrayList<FirewallRules.IFirewallRule> rules = editRules(rule.getUserId());
+        rules.remove(ruleIndex);
         addRuleEx(rule, ruleIndex + 1);
 
         return true;
@@ -20,6 +20,7 @@ public class WatchedAppsManager {
     private final Context firewallServiceContext;
     private final HashMap<Integer, AppUidGroup> uidToInstalledAppGroupsMap = new HashMap<>();
     private final HashMap<Integer, AppUidGroup> uidToWatchedAppGroupMap = new HashMap<>();
+    private volatile int revision = 0; // incremented on each change, so that remembered decisions can be invalidated
 
     public static final int UID_ROOT = 0;
 
@@ -46,6 +47,7 @@ public class WatchedAppsManager {
 
         uidToInstalledAppGroupsMap.clear();
         uidToInstalledAppGroupsMap.putAll(updatedMapOfInstalledApps);
+        revision++;
     }
 
     private void storeWatchedAppsUIDs(Set<Integer> uidSet) {
@@ -66,6 +68,7 @@ public class WatchedAppsManager {
 
         uidToWatchedAppGroupMap.clear();
         uidToWatchedAppGroupMap.putAll(AppUidGroup.createUidToGroupMap(groups));
+        revision++;
     }
 
     public LinkedList<AppUidGroup> getInstalledAppGroups() {
@@ -103,6 +106,11 @@ public class WatchedAppsManager {
         }
 
         storeWatchedAppsUIDs(uidSet);
+        revision++;
+    }
+
+    public int getRevision() {
+        return revision;
     }
 
     public boolean isAppGroupWatched(int appUID) {
@@ -8,11 +8,15 @@ import android.content.Context;
 import android.content.Intent;
 import android.util.Log;
 
+import java.util.Iterator;
+import java.util.LinkedList;
+
 import de.uni_kl.informatik.disco.discowall.R;
 import de.uni_kl.informatik.disco.discowall.ShowAppRulesActivity;
 import de.uni_kl.informatik.disco.discowall.packages.Connections;
 import de.uni_kl.informatik.disco.discowall.utils.AppUtils;
 import de.uni_kl.informatik.disco.discowall.utils.GuiUtils;
+import de.uni_kl.informatik.disco.discowall.utils.TimerService;
 import de.uni_kl.informatik.disco.discowall.utils.apps.AppUidGroup;
 import de.uni_kl.informatik.disco.discowall.utils.ressources.DiscoWallConstants;
 import de.uni_kl.informatik.disco.discowall.utils.ressources.DiscoWallSettings;
@@ -23,97 +27,162 @@ class DecisionNotificationHelper {
     private final Context context;
     private final FirewallPackageFilter packageFilter;
     private final PendingConnectionsManager pendingConnectionsManager;
+    private final NotificationManager notificationManager;
+
+    // Period in which the remaining seconds of all pending decisions are refreshed - all notifications are updated by the same timer-task
+    private static final int NOTIFICATION_REFRESH_INTERVAL_MS = 1000;
+
+    private final LinkedList<ConnectionDecisionTimeout> runningTimeouts = new LinkedList<>();
+    private TimerService.Timeout notificationRefreshTimeout;
 
-    private class ConnectionDecisionTimeoutThread implements Runnable, PendingConnectionsManager.PendingConnectionTimeoutThread {
+    private class ConnectionDecisionTimeout implements PendingConnectionsManager.PendingConnectionTimeoutThread {
         private final Connections.Connection connection;
+        private final int notificationID;
         private final int decisionTimeoutInSeconds;
         private final boolean defaultActionAccept;
         private final PendingIntent pendingClickIntent, pendingActionIntentAccept, pendingActionIntentBlock;
-        private final NotificationManager notificationManager;
 
-        private Thread thread;
-        private boolean runTimeout = false;
+        private TimerService.Timeout expiryTimeout;
+        private long deadlineMillis;
+        private int displayedSecondsRemain;
 
-        public ConnectionDecisionTimeoutThread(Connections.Connection connection, int decisionTimeoutInSeconds, boolean defaultActionAccept, PendingIntent pendingClickIntent, PendingIntent pendingActionIntentAccept, PendingIntent pendingActionIntentBlock) {
+        public ConnectionDecisionTimeout(Connections.Connection connection, int notificationID, int decisionTimeoutInSeconds, boolean defaultActionAccept, PendingIntent pendingClickIntent, PendingIntent pendingActionIntentAccept, PendingIntent pendingActionIntentBlock) {
             this.connection = connection;
+            this.notificationID = notificationID;
             this.decisionTimeoutInSeconds = decisionTimeoutInSeconds;
             this.defaultActionAccept = defaultActionAccept;
             this.pendingClickIntent = pendingClickIntent;
             this.pendingActionIntentAccept = pendingActionIntentAccept;
             this.pendingActionIntentBlock = pendingActionIntentBlock;
-
-            this.notificationManager = (NotificationManager) context.getSystemService(Activity.NOTIFICATION_SERVICE);
+            this.displayedSecondsRemain = decisionTimeoutInSeconds;
         }
 
-        @Override
-        public void run() {
-            int decisionTimeout = decisionTimeoutInSeconds;
-            Log.v(LOG_TAG, "Decision Timeout: thread created. timeout = " + decisionTimeout + " seconds.");
-
-            while (pendingConnectionsManager.isPending(connection) && runTimeout) {
-                if (decisionTimeout <= 0) {
-                    Log.d(LOG_TAG, "Decision Timeout: time is up. Default-Action = " + (defaultActionAccept ? "ACCEPT" : "BLOCK"));
+        private void onTimeUp() {
+            synchronized (DecisionNotificationHelper.this) {
+                if (!runningTimeouts.remove(this))
+                    return; // stopped in the meantime
+                stopNotificationRefreshIfIdle();
+            }
 
-                    // Canceling the notification here, so that the user cannot click AFTER the time is up.
-                    notificationManager.cancel(DiscoWallConstants.NotificationIDs.pendingPackage);
+            if (!pendingConnectionsManager.isPending(connection))
+                return;
 
-                    // Perform default-action
-                    if (defaultActionAccept)
-                        packageFilter.acceptPendingPackage();
-                    else
-                        packageFilter.blockPendingPackage();
+            Log.d(LOG_TAG, "Decision Timeout: time is up. Default-Action = " + (defaultActionAccept ? "ACCEPT" : "BLOCK"));
 
-                    break;
-                }
+            // Canceling the notification here, so that the user cannot click AFTER the time is up.
+            notificationManager.cancel(notificationID);
 
-                Notification notification = createUndecidedConnectionNotificationEx(connection, pendingClickIntent, pendingActionIntentAccept, pendingActionIntentBlock, decisionTimeout, defaultActionAccept);
-                notificationManager.notify(DiscoWallConstants.NotificationIDs.pendingPackage, notification);
-
-                // one second per iteration
-                decisionTimeout--;
+            // Perform default-action
+            if (defaultActionAccept)
+                packageFilter.acceptPendingPackage(connection);
+            else
+                packageFilter.blockPendingPackage(connection);
+        }
 
-                try {
-                    Thread.sleep(1000);
-                } catch (InterruptedException e) {
-                    Log.e(LOG_TAG, "Decision Timeout: Thread.sleep(int) was interrupted! Message was: " + e.getMessage(), e);
-                }
+        /**
+         * Called by the shared refresh-task. The notification is only rebuilt if the displayed seconds have changed.
+         * @return false if the connection is no longer pending
+         */
+        private boolean refreshNotification(long nowMillis) {
+            if (!pendingConnectionsManager.isPending(connection))
+                return false;
+
+            int secondsRemain = (int) Math.max(0, (deadlineMillis - nowMillis + 999) / 1000);
+            if (secondsRemain != displayedSecondsRemain && secondsRemain > 0) {
+                displayedSecondsRemain = secondsRemain;
+                notificationManager.notify(notificationID, createUndecidedConnectionNotificationEx(connection, pendingClickIntent, pendingActionIntentAccept, pendingActionIntentBlock, secondsRemain, defaultActionAccept));
             }
 
-            Log.v(LOG_TAG, "Decision Timeout: thread done.");
+            return true;
         }
 
         @Override
         public void stopTimeout() {
-            if (!runTimeout) {
-                Log.d(LOG_TAG, "trying to stop notification-timeout when it is already finished. Connection: " + connection);
-            } else {
-                runTimeout = false;
-                thread = null;
-                Log.d(LOG_TAG, "notification decision-timeout has been stopped for connection: " + connection);
+            synchronized (DecisionNotificationHelper.this) {
+                if (!runningTimeouts.remove(this)) {
+                    Log.d(LOG_TAG, "trying to stop notification-timeout when it is already finished. Connection: " + connection);
+                    return;
+                }
+
+                expiryTimeout.cancel();
+                stopNotificationRefreshIfIdle();
             }
+
+            Log.d(LOG_TAG, "notification decision-timeout has been stopped for connection: " + connection);
         }
 
         @Override
         public void startTimeout() {
-            if (runTimeout) {
-                Log.d(LOG_TAG, "trying to start notification-timeout when it is already running. Connection: " + connection);
-            } else {
-                runTimeout = true;
+            synchronized (DecisionNotificationHelper.this) {
+                if (runningTimeouts.contains(this)) {
+                    Log.d(LOG_TAG, "trying to start notification-timeout when it is already running. Connection: " + connection);
+                    return;
+                }
 
-                thread = new Thread(this, "Connection-Decision Thread for Connection: " + connection);
-                thread.setDaemon(true);
-                thread.start(); // start thread
+                // The full timeout is granted again, i.e. after the decision-dialog has been dismissed
+                deadlineMillis = System.currentTimeMillis() + decisionTimeoutInSeconds * 1000L;
+
+                if (expiryTimeout == null) {
+                    expiryTimeout = TimerService.getInstance().schedule(new Runnable() {
+                        @Override
+                        public void run() {
+                            onTimeUp();
+                        }
+                    }, decisionTimeoutInSeconds * 1000L);
+                } else {
+                    expiryTimeout.reschedule(decisionTimeoutInSeconds * 1000L);
+                    displayedSecondsRemain = -1; // show the restored timeout on the next refresh
+                }
 
-                Log.d(LOG_TAG, "notification decision-timeout started for connection: " + connection);
+                runningTimeouts.add(this);
+                startNotificationRefresh();
             }
+
+            Log.d(LOG_TAG, "notification decision-timeout started for connection: " + connection);
         }
     }
 
+    private synchronized void startNotificationRefresh() {
+        if (notificationRefreshTimeout != null)
+            return;
+
+        notificationRefreshTimeout = TimerService.getInstance().scheduleAtFixedRate(new Runnable() {
+            @Override
+            public void run() {
+                refreshNotifications();
+            }
+        }, NOTIFICATION_REFRESH_INTERVAL_MS);
+    }
+
+    private synchronized void stopNotificationRefreshIfIdle() {
+        if (!runningTimeouts.isEmpty() || notificationRefreshTimeout == null)
+            return;
+
+        notificationRefreshTimeout.cancel();
+        notificationRefreshTimeout = null;
+    }
+
+    private synchronized void refreshNotifications() {
+        long now = System.currentTimeMillis();
+
+        for(Iterator<ConnectionDecisionTimeout> iterator = runningTimeouts.iterator(); iterator.hasNext(); ) {
+            ConnectionDecisionTimeout timeout = iterator.next();
+
+            if (!timeout.refreshNotification(now)) {
+                // decided by the user in the meantime
+                timeout.expiryTimeout.cancel();
+                iterator.remove();
+            }
+        }
+
+        stopNotificationRefreshIfIdle();
+    }
 
     public DecisionNotificationHelper(Context context, FirewallPackageFilter packageFilter, PendingConnectionsManager pendingConnectionsManager) {
         this.context = context;
         this.packageFilter = packageFilter;
         this.pendingConnectionsManager = pendingConnectionsManager;
+        this.notificationManager = (NotificationManager) context.getSystemService(Activity.NOTIFICATION_SERVICE);
     }
 
     public void createUndecidedConnectionNotification(final Connections.Connection connection, final int decisionTimeoutInSeconds, final boolean defaultActionAccept) {
@@ -128,32 +197,35 @@ class DecisionNotificationHelper {
          */
 
         // IMPORTANT: each pending intent has to use its own request-code! Otherwise android might treat them as the same (if they don't differ in their attributes).
+        // As multiple connections can be pending at the same time, the request-codes are derived from the notification-id of the pending connection.
+        PendingConnectionsManager.PendingConnection pendingConnection = pendingConnectionsManager.getPendingConnection(connection);
+        final int notificationID = pendingConnection.notificationID;
+        final int requestCodeBase = notificationID * 3;
 
         // Intent: Notification Click
         final PendingIntent pendingClickIntent;
         {
             Intent clickIntent = ShowAppRulesActivity.createActionIntent_decideConnection(context, connection);
-            pendingClickIntent = PendingIntent.getActivity(context, 0, clickIntent, PendingIntent.FLAG_UPDATE_CURRENT); // request-code (= 0) has to differ from other pending intents of this notification!
+            pendingClickIntent = PendingIntent.getActivity(context, requestCodeBase, clickIntent, PendingIntent.FLAG_UPDATE_CURRENT); // request-code (= base + 0) has to differ from other pending intents of this notification!
         }
 
         // Intent: Action ACCEPT
         final PendingIntent pendingActionIntentAccept;
         {
             Intent actionIntentAccept = ShowAppRulesActivity.createActionIntent_handleConnection(context, connection, true);
-            pendingActionIntentAccept = PendingIntent.getActivity(context.getApplicationContext(), 1, actionIntentAccept, PendingIntent.FLAG_UPDATE_CURRENT);  // request-code (= 1) has to differ from other pending intents of this notification!
+            pendingActionIntentAccept = PendingIntent.getActivity(context.getApplicationContext(), requestCodeBase + 1, actionIntentAccept, PendingIntent.FLAG_UPDATE_CURRENT);  // request-code (= base + 1) has to differ from other pending intents of this notification!
         }
 
         // Intent: Action BLOCK
         final PendingIntent pendingActionIntentBlock;
         {
             Intent actionIntentBlock = ShowAppRulesActivity.createActionIntent_handleConnection(context, connection, false);
-            pendingActionIntentBlock = PendingIntent.getActivity(context.getApplicationContext(), 2, actionIntentBlock, PendingIntent.FLAG_UPDATE_CURRENT); // request-code (= 2) has to differ from other pending intents of this notification!
+            pendingActionIntentBlock = PendingIntent.getActivity(context.getApplicationContext(), requestCodeBase + 2, actionIntentBlock, PendingIntent.FLAG_UPDATE_CURRENT); // request-code (= base + 2) has to differ from other pending intents of this notification!
         }
 
         // Create actual Notification:
         final Notification notification = createUndecidedConnectionNotificationEx(connection, pendingClickIntent, pendingActionIntentAccept, pendingActionIntentBlock, decisionTimeoutInSeconds, defaultActionAccept);
-        final NotificationManager notificationManager = (NotificationManager) context.getSystemService(Activity.NOTIFICATION_SERVICE);
-        notificationManager.notify(DiscoWallConstants.NotificationIDs.pendingPackage, notification); // only one fixed NotificationID required, since there will always be only one pending package (as the NetfilterBridge waits for the response)
+        notificationManager.notify(notificationID, notification); // one notification per pending connection
 
         // Expand Statusbar, so that the user can decide on the connection (if setting enabled)
         if (DiscoWallSettings.getInstance().isConnectionDecisionNotificationExpandStatusbar(context)) {
@@ -172,11 +244,10 @@ class DecisionNotificationHelper {
             }
         }
 
-        // Create & start Auto-Timeout Thread
-        ConnectionDecisionTimeoutThread timeoutThread = new ConnectionDecisionTimeoutThread(connection, decisionTimeoutInSeconds, defaultActionAccept, pendingClickIntent, pendingActionIntentAccept, pendingActionIntentBlock);
+        // Create & start Auto-Timeout
+        ConnectionDecisionTimeout timeoutThread = new ConnectionDecisionTimeout(connection, notificationID, decisionTimeoutInSeconds, defaultActionAccept, pendingClickIntent, pendingActionIntentAccept, pendingActionIntentBlock);
 
         // register timeout-thread, so that it can be stopped when the user starts the policy-decision for this action (i.e. when he opens the decision-dialog)
-        PendingConnectionsManager.PendingConnection pendingConnection = pendingConnectionsManager.getPendingConnection(connection);
         pendingConnection.setTimeoutThread(timeoutThread);
 
         // start decision timeout
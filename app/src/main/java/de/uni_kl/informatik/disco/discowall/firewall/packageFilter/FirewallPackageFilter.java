@@ -20,6 +20,8 @@ import de.uni_kl.informatik.disco.discowall.netfilter.bridge.NetfilterBridgeComm
 import de.uni_kl.informatik.disco.discowall.packages.Connections;
 import de.uni_kl.informatik.disco.discowall.packages.Packages;
 import de.uni_kl.informatik.disco.discowall.utils.GuiUtils;
+import de.uni_kl.informatik.disco.discowall.utils.HotPathLog;
+import de.uni_kl.informatik.disco.discowall.utils.LatencyHistogram;
 import de.uni_kl.informatik.disco.discowall.utils.apps.AppUidGroup;
 import de.uni_kl.informatik.disco.discowall.utils.ressources.DiscoWallConstants;
 import de.uni_kl.informatik.disco.discowall.utils.ressources.DiscoWallSettings;
@@ -34,6 +36,8 @@ public class FirewallPackageFilter implements SubsystemPendingPackagesManager {
 
     private final PendingConnectionsManager pendingConnectionsManager;
     private final TemporaryConnectionRulesManager tempRulesManager;
+    private final LatencyHistogram ruleEvaluationLatency = new LatencyHistogram();
+    private final VerdictCache verdictCache = new VerdictCache();
 
     public FirewallPackageFilter(Context context, FirewallPolicyManager policyManager, FirewallRulesManager rulesManager, WatchedAppsManager watchedAppsManager) {
         this.context = context;
@@ -48,57 +52,73 @@ public class FirewallPackageFilter implements SubsystemPendingPackagesManager {
 
     @Override
     public void acceptPendingPackage() {
-        removePendingConnectionNotification(); // remove notification (if any)
+        decideLatestPendingConnection(true);
+    }
 
-        if (!pendingConnectionsManager.hasPending()) {
-            Log.w(LOG_TAG, "Trying to accept pending package while there is none. Connection has probably already being handled.");
-            return;
-        }
+    @Override
+    public void blockPendingPackage() {
+        decideLatestPendingConnection(false);
+    }
 
-        Log.i(LOG_TAG, "Pending Connection: [User-Decision] ACCEPT   - " + pendingConnectionsManager.getLatestPendingConnection());
+    @Override
+    public void acceptPendingPackage(Connections.IConnection connection) {
+        decidePendingConnection(connection, true);
+    }
+
+    @Override
+    public void blockPendingPackage(Connections.IConnection connection) {
+        decidePendingConnection(connection, false);
+    }
+
+    private void decideLatestPendingConnection(boolean accept) {
         PendingConnectionsManager.PendingConnection pendingConnection = pendingConnectionsManager.removeLatestPendingConnection();
 
-        // rule has to be added BEFORE accepting/blocking connection, as the next package will be handled immediately after the current one is handled.
-        tempRulesManager.putRule(pendingConnection.connection, true); // mark action as "temp accepted" - if the user adds a rule for this action, this temp-value will become irrelevant
-        pendingConnection.accept();
+        if (pendingConnection == null) {
+            Log.w(LOG_TAG, "Trying to " + (accept ? "accept" : "block") + " pending package while there is none. Connection has probably already being handled.");
+            return;
+        }
+
+        decidePendingConnection(pendingConnection, accept);
     }
 
-    @Override
-    public void blockPendingPackage() {
-        removePendingConnectionNotification(); // remove notification (if any)
+    private void decidePendingConnection(Connections.IConnection connection, boolean accept) {
+        PendingConnectionsManager.PendingConnection pendingConnection = pendingConnectionsManager.removePendingConnection(connection);
 
-        if (!pendingConnectionsManager.hasPending()) {
-            Log.w(LOG_TAG, "Trying to block pending package while there is none. Connection has probably already being handled.");
+        if (pendingConnection == null) {
+            Log.w(LOG_TAG, "Trying to " + (accept ? "accept" : "block") + " pending connection which is not pending. Connection has probably already being handled: " + connection);
             return;
         }
 
-        Log.i(LOG_TAG, "Pending Connection: [User-Decision] BLOCK   - " + pendingConnectionsManager.getLatestPendingConnection());
-        PendingConnectionsManager.PendingConnection pendingConnection = pendingConnectionsManager.removeLatestPendingConnection();
+        decidePendingConnection(pendingConnection, accept);
+    }
+
+    private void decidePendingConnection(PendingConnectionsManager.PendingConnection pendingConnection, boolean accept) {
+        removePendingConnectionNotification(pendingConnection); // remove notification (if any)
+
+        Log.i(LOG_TAG, "Pending Connection: [User-Decision] " + (accept ? "ACCEPT" : "BLOCK") + "   - " + pendingConnection);
 
         // rule has to be added BEFORE accepting/blocking connection, as the next package will be handled immediately after the current one is handled.
-        tempRulesManager.putRule(pendingConnection.connection, false); // mark action as "temp accepted" - if the user adds a rule for this action, this temp-value will become irrelevant
-        pendingConnection.block();
+        tempRulesManager.putRule(pendingConnection.connection, accept); // mark action as "temp accepted" - if the user adds a rule for this action, this temp-value will become irrelevant
+
+        if (accept)
+            pendingConnection.accept();
+        else
+            pendingConnection.block();
     }
 
-    private void removePendingConnectionNotification() {
-        final int notificationID = DiscoWallConstants.NotificationIDs.pendingPackage; // There will always be only one pending package (as the NetfilterBridge waits for the response)
+    private void removePendingConnectionNotification(PendingConnectionsManager.PendingConnection pendingConnection) {
         final NotificationManager notificationManager = (NotificationManager) context.getSystemService(Activity.NOTIFICATION_SERVICE);
-        notificationManager.cancel(notificationID);
+        notificationManager.cancel(pendingConnection.notificationID);
     }
 
 
     private FirewallRules.IFirewallPolicyRule getPackageRule(Packages.TransportLayerPackage tlPackage, Connections.Connection connection) {
         // Find first matching rule for package:
-        for(FirewallRules.IFirewallPolicyRule rule : rulesManager.getPolicyRules(tlPackage.getUserId())) {
-            if (rule.appliesTo(tlPackage))
-                return rule;
-        }
-
-        return null;
+        return rulesManager.findPolicyRule(tlPackage);
     }
 
     private void decidePackageAcceptedInteractively(Packages.TransportLayerPackage tlPackage, Connections.Connection connection, NetfilterBridgeCommunicator.PackageActionCallback actionCallback) {
-        Log.i(LOG_TAG, "interactive choice for connection: " + connection);
+        HotPathLog.d(LOG_TAG, "interactive choice for connection: {}", connection); // connections are not pooled, they can be rendered later
 
         final boolean defaultActionAccept = DiscoWallSettings.getInstance().isNewConnectionDefaultDecisionAccept(context); // default-action (ACCEPT/BLOCK)
         final int decisionTimeout = DiscoWallSettings.getInstance().getNewConnectionDecisionTimeoutSeconds(context); // time after which the default-action will be taken
@@ -108,7 +128,7 @@ public class FirewallPackageFilter implements SubsystemPendingPackagesManager {
         if (tempRulesManager.hasRule(connection)) {
             boolean accept = tempRulesManager.isAccepted(connection);
 
-            Log.d(LOG_TAG, "performing temporary connection rule: " + (accept ? "accept" : "block"));
+            HotPathLog.d(LOG_TAG, "performing temporary connection rule: {}", accept ? "accept" : "block");
 
             // Perform temp-action:
             if (accept)
@@ -119,10 +139,16 @@ public class FirewallPackageFilter implements SubsystemPendingPackagesManager {
             return;
         }
 
-        Log.d(LOG_TAG, "no temporary connection rule set. User will decide (or timeout will select defaulta action)...");
+        HotPathLog.d(LOG_TAG, "no temporary connection rule set. User will decide (or timeout will select defaulta action)...");
+
+        // Another package of this connection may already be waiting for the user-decision (i.e. a retransmission): it will be answered along with it
+        if (pendingConnectionsManager.getOrAddPendingConnection(connection, actionCallback) == null) {
+            HotPathLog.d(LOG_TAG, "connection is already pending. Package will be answered with the pending decision.");
+            return;
+        }
 
         /* How the package-decision answering works:
-         * 1) The NetfilterBridge blocks until it receives a response for the pending package: accept or block/reject
+         * 1) The NetfilterBridge keeps the package queued until it receives a response for its packet-id: accept or block/reject
          * 2) The NetfilterBridgeCommunicator calls this method (through the firewall) and provides the "PackageActionCallback" instance, which can either accept or block the package
          * 3) Here (FirewallPackageFilter) a notification is being created, which will do the following
          *    (1) count down the seconds (i.e. refresh notification each second) - if 0 is reached, the package will automatically be accepted/blocked (according to settings)
@@ -131,52 +157,110 @@ public class FirewallPackageFilter implements SubsystemPendingPackagesManager {
 
         Log.v(LOG_TAG, "showing notification for user-decision...");
 
-        pendingConnectionsManager.addPendingConnection(connection, actionCallback);
         decisionNotificationHelper.createUndecidedConnectionNotification(connection, decisionTimeout, defaultActionAccept);
 
         // Cannot directly interact with GUI, as this method here is called by the DiscoWall Service!
 //        Toast.makeText(context, "= DiscoWall =\n" + "caught connection: " + connection, Toast.LENGTH_SHORT).show();
     }
 
+    /**
+     * Increases with any change of rules, firewall-policy or watched apps - i.e. of anything a cached verdict depends on.
+     */
+    private int getVerdictEpoch() {
+        return VerdictCache.epoch(rulesManager.getRevision(), policyManager.getRevision(), watchedAppsManager.getRevision());
+    }
+
+    private static FirewallRules.RulePolicy toRulePolicy(FirewallPolicyManager.FirewallPolicy firewallPolicy) {
+        switch (firewallPolicy) {
+            case ALLOW:
+                return FirewallRules.RulePolicy.ALLOW;
+            case BLOCK:
+                return FirewallRules.RulePolicy.BLOCK;
+            case INTERACTIVE:
+                return FirewallRules.RulePolicy.INTERACTIVE;
+            default:
+                throw new RuntimeException("Firewall-Policy filter-behavior not implemented: " + firewallPolicy);
+        }
+    }
+
     public void decidePackageAccepted(Packages.TransportLayerPackage tlPackage, Connections.Connection connection, NetfilterBridgeCommunicator.PackageActionCallback actionCallback) {
-        FirewallRules.IFirewallPolicyRule packagePolicyRule = getPackageRule(tlPackage, connection);
+        long evaluationStartNanos = System.nanoTime();
+        int epoch = getVerdictEpoch(); // before the evaluation, so that the cached verdict is stale if the rules change in the meantime
+        FirewallRules.IFirewallPolicyRule packagePolicyRule;
+        FirewallRules.RulePolicy policy;
+
+        VerdictCache.Entry cachedVerdict = verdictCache.get(tlPackage, epoch);
+        if (cachedVerdict != null) {
+            packagePolicyRule = cachedVerdict.rule;
+            policy = cachedVerdict.policy;
+        } else {
+            // Apply rule-policy, or firewall-policy if no rule matches:
+            packagePolicyRule = getPackageRule(tlPackage, connection);
+            policy = packagePolicyRule != null ? packagePolicyRule.getRulePolicy() : toRulePolicy(policyManager.getFirewallPolicy());
+            verdictCache.put(tlPackage, epoch, packagePolicyRule, policy);
+        }
+        ruleEvaluationLatency.recordSince(evaluationStartNanos);
 
-        Log.d(LOG_TAG, "Matching Rule: " + packagePolicyRule + " @ package: " + tlPackage);
+        if (HotPathLog.isLoggable(Log.DEBUG))
+            HotPathLog.d(LOG_TAG, "Matching Rule: {} @ package: {}" + (cachedVerdict != null ? " (cached)" : ""), packagePolicyRule, tlPackage.toString()); // package may be reused before the message is written
 
-        if (packagePolicyRule != null) {
-            // Apply rule-policy:
+        switch(policy) {
+            case ALLOW:
+                actionCallback.acceptPendingPackage();
+                break;
+            case BLOCK:
+                actionCallback.blockPendingPackage();
+                break;
+            case INTERACTIVE:
+                decidePackageAcceptedInteractively(tlPackage, connection, actionCallback);
+                break;
+            default:
+                throw new RuntimeException("Rule-Policy filter-behavior not implemented: " + policy);
+        }
+    }
+
+    /**
+     * The verdict for a package, which cannot wait for its regular decision (i.e. on overload):
+     * the policy of the matching rule, or the firewall-policy. Where the user would decide (INTERACTIVE), the temporary decision of the user
+     * for the connection is used - or the default-decision for new connections, if there is none yet.
+     */
+    public boolean isFallbackVerdictAccept(Packages.TransportLayerPackage tlPackage) {
+        FirewallRules.IFirewallPolicyRule packagePolicyRule = getPackageRule(tlPackage, null);
 
+        if (packagePolicyRule != null) {
             switch(packagePolicyRule.getRulePolicy()) {
                 case ALLOW:
-                    actionCallback.acceptPendingPackage();
-                    break;
+                    return true;
                 case BLOCK:
-                    actionCallback.blockPendingPackage();
-                    break;
-                case INTERACTIVE:
-                    decidePackageAcceptedInteractively(tlPackage, connection, actionCallback);
-                    break;
-                default:
-                    throw new RuntimeException("Rule-Policy filter-behavior not implemented: " + packagePolicyRule.getRulePolicy());
+                    return false;
             }
-
         } else {
-            // Apply firewall-policy:
             switch (policyManager.getFirewallPolicy()) {
                 case ALLOW:
-                    actionCallback.acceptPendingPackage();
-                    break;
+                    return true;
                 case BLOCK:
-                    actionCallback.blockPendingPackage();
-                    break;
-                case INTERACTIVE:
-                    decidePackageAcceptedInteractively(tlPackage, connection, actionCallback);
-                    break;
-                default:
-                    throw new RuntimeException("Firewall-Policy filter-behavior not implemented: " + policyManager.getFirewallPolicy());
+                    return false;
             }
-
         }
+
+        if (tempRulesManager.hasRule(tlPackage))
+            return tempRulesManager.isAccepted(tlPackage);
+
+        return DiscoWallSettings.getInstance().isNewConnectionDefaultDecisionAccept(context);
+    }
+
+    /**
+     * @return time spent finding the matching rule of each package within {@link #decidePackageAccepted}
+     */
+    public LatencyHistogram getRuleEvaluationLatency() {
+        return ruleEvaluationLatency;
+    }
+
+    /**
+     * @return the cache of resolved verdicts in front of the rule-evaluation, including its hit/miss counters
+     */
+    public VerdictCache getVerdictCache() {
+        return verdictCache;
     }
 
     @Override
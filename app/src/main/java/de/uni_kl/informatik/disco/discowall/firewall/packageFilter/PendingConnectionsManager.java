@@ -8,27 +8,55 @@ import java.util.LinkedList;
 
 import de.uni_kl.informatik.disco.discowall.netfilter.bridge.NetfilterBridgeCommunicator;
 import de.uni_kl.informatik.disco.discowall.packages.Connections;
+import de.uni_kl.informatik.disco.discowall.utils.ressources.DiscoWallConstants;
 import de.uni_kl.informatik.disco.discowall.utils.ressources.DiscoWallSettings;
 
 class PendingConnectionsManager {
     private static final String LOG_TAG = PendingConnectionsManager.class.getSimpleName();
 
+    /**
+     * As the netfilter-bridge can have multiple packages pending, there may be several pending packages for the same connection
+     * (i.e. retransmitted SYN-packages). They will all be answered by the same user-decision.
+     */
     public static class PendingConnection {
-        public final NetfilterBridgeCommunicator.PackageActionCallback pendingActionCallback;
+        private final LinkedList<NetfilterBridgeCommunicator.PackageActionCallback> pendingActionCallbacks = new LinkedList<>();
         public final Connections.Connection connection;
+        public final int notificationID;
         private PendingConnectionTimeoutThread timeoutThread;
+        private Boolean decisionAccept = null; // null as long as no decision has been made
 
-        private PendingConnection(Connections.Connection connection, NetfilterBridgeCommunicator.PackageActionCallback pendingActionCallback) {
-            this.pendingActionCallback = pendingActionCallback;
+        private PendingConnection(Connections.Connection connection, NetfilterBridgeCommunicator.PackageActionCallback pendingActionCallback, int notificationID) {
+            this.pendingActionCallbacks.add(pendingActionCallback);
             this.connection = connection;
+            this.notificationID = notificationID;
         }
 
-        public void accept() {
-            pendingActionCallback.acceptPendingPackage();
+        /**
+         * Packages arriving after the decision has been made (but before the pending connection has been removed) are answered directly.
+         */
+        public synchronized void addActionCallback(NetfilterBridgeCommunicator.PackageActionCallback pendingActionCallback) {
+            if (decisionAccept == null)
+                pendingActionCallbacks.add(pendingActionCallback);
+            else if (decisionAccept)
+                pendingActionCallback.acceptPendingPackage();
+            else
+                pendingActionCallback.blockPendingPackage();
         }
 
-        public void block() {
-            pendingActionCallback.blockPendingPackage();
+        public synchronized void accept() {
+            decisionAccept = true;
+
+            for(NetfilterBridgeCommunicator.PackageActionCallback pendingActionCallback : pendingActionCallbacks)
+                pendingActionCallback.acceptPendingPackage();
+            pendingActionCallbacks.clear();
+        }
+
+        public synchronized void block() {
+            decisionAccept = false;
+
+            for(NetfilterBridgeCommunicator.PackageActionCallback pendingActionCallback : pendingActionCallbacks)
+                pendingActionCallback.blockPendingPackage();
+            pendingActionCallbacks.clear();
         }
 
         public PendingConnectionTimeoutThread getTimeoutThread() {
@@ -52,9 +80,13 @@ class PendingConnectionsManager {
 
     //================================================================================================================================================
 
+    // Each pending connection has its own notification. The IDs are being reused round-robin.
+    private static final int NOTIFICATION_IDS_COUNT = 100;
+
     private final LinkedList<PendingConnection> pendingConnectionsStack = new LinkedList<>();
     private final HashMap<Connections.Connection, Boolean> connectionToInteractiveTempActionMap = new HashMap<>();
     private final Context context;
+    private int nextNotificationIdOffset = 0;
 
     PendingConnectionsManager(Context context) {
         this.context = context;
@@ -64,7 +96,7 @@ class PendingConnectionsManager {
      * Removes latest pending connection (if any) and returns the removed instance.
      * @return
      */
-    public PendingConnection removeLatestPendingConnection() {
+    public synchronized PendingConnection removeLatestPendingConnection() {
         if (pendingConnectionsStack.isEmpty())
             return null;
 
@@ -76,8 +108,45 @@ class PendingConnectionsManager {
         return pendingConnection;
     }
 
-    public PendingConnection addPendingConnection(Connections.Connection connection, NetfilterBridgeCommunicator.PackageActionCallback pendingActionCallback) {
-        PendingConnection pendingConnection = new PendingConnection(connection, pendingActionCallback);
+    /**
+     * Removes the pending connection matching the specified connection (if any) and returns the removed instance.
+     * @return
+     */
+    public synchronized PendingConnection removePendingConnection(Connections.IConnection connection) {
+        PendingConnection pendingConnection = getPendingConnection(connection);
+        if (pendingConnection == null)
+            return null;
+
+        pendingConnectionsStack.remove(pendingConnection);
+        Log.v(LOG_TAG, "pending connection removed: " + pendingConnection);
+
+        return pendingConnection;
+    }
+
+    /**
+     * Atomically looks up the pending connection and adds it, if there is none - so that packages of the same connection,
+     * which are being filtered concurrently, cannot create two pending connections (and notifications).
+     * @return the new pending connection, or null if the connection was already pending: the callback has been added to the existing one then
+     */
+    public PendingConnection getOrAddPendingConnection(Connections.Connection connection, NetfilterBridgeCommunicator.PackageActionCallback pendingActionCallback) {
+        PendingConnection pendingConnection;
+
+        synchronized (this) {
+            pendingConnection = getPendingConnection(connection);
+            if (pendingConnection == null)
+                return addPendingConnection(connection, pendingActionCallback);
+        }
+
+        // outside of the lock, as the package is answered directly if the decision has been made in the meantime
+        pendingConnection.addActionCallback(pendingActionCallback);
+        return null;
+    }
+
+    private synchronized PendingConnection addPendingConnection(Connections.Connection connection, NetfilterBridgeCommunicator.PackageActionCallback pendingActionCallback) {
+        int notificationID = DiscoWallConstants.NotificationIDs.pendingPackage + nextNotificationIdOffset;
+        nextNotificationIdOffset = (nextNotificationIdOffset + 1) % NOTIFICATION_IDS_COUNT;
+
+        PendingConnection pendingConnection = new PendingConnection(connection, pendingActionCallback, notificationID);
         pendingConnectionsStack.addFirst(pendingConnection); // List used as stack ==> add as first
 
         Log.v(LOG_TAG, "pending connection added: " + pendingConnection);
@@ -85,14 +154,14 @@ class PendingConnectionsManager {
         return pendingConnection;
     }
 
-    public PendingConnection getLatestPendingConnection() {
+    public synchronized PendingConnection getLatestPendingConnection() {
         if (pendingConnectionsStack.isEmpty())
             return null;
 
         return pendingConnectionsStack.get(0); // adding always from top ==> first element is last one added
     }
 
-    public boolean hasPending() {
+    public synchronized boolean hasPending() {
         return !pendingConnectionsStack.isEmpty();
     }
 
@@ -100,18 +169,16 @@ class PendingConnectionsManager {
         return getPendingConnection(connection) != null;
     }
 
-    private String getConnectionID(Connections.IConnection connection) {
-        boolean includePortInfo = DiscoWallSettings.getInstance().isInteractiveTemporaryRulesDistinguishByPorts(context);
-        return Connections.Connection.getID(connection, includePortInfo);
+    private Connections.ConnectionKey getConnectionKey(Connections.IConnection connection, boolean includePortInfo) {
+        return new Connections.ConnectionKey(connection, includePortInfo);
     }
 
-    public PendingConnection getPendingConnection(Connections.IConnection connection) {
-        final String searchedID = getConnectionID(connection);
-
-        for(PendingConnection pendingConnection : new LinkedList<>(pendingConnectionsStack)) { // copy list to secure it against modification during iteration
-            String currentID = getConnectionID(pendingConnection.connection);
+    public synchronized PendingConnection getPendingConnection(Connections.IConnection connection) {
+        final boolean includePortInfo = DiscoWallSettings.getInstance().isInteractiveTemporaryRulesDistinguishByPorts(context);
+        final Connections.ConnectionKey searchedKey = getConnectionKey(connection, includePortInfo);
 
-            if (currentID.equals(searchedID))
+        for(PendingConnection pendingConnection : pendingConnectionsStack) {
+            if (getConnectionKey(pendingConnection.connection, includePortInfo).equals(searchedKey))
                 return pendingConnection;
         }
 
@@ -3,7 +3,7 @@ package de.uni_kl.informatik.disco.discowall.firewall.packageFilter;
 import android.content.Context;
 import android.util.Log;
 
-import java.util.HashMap;
+import java.util.concurrent.ConcurrentHashMap;
 
 import de.uni_kl.informatik.disco.discowall.packages.Connections;
 import de.uni_kl.informatik.disco.discowall.utils.ressources.DiscoWallSettings;
@@ -33,30 +33,32 @@ class TemporaryConnectionRulesManager {
 
     //================================================================================================================================================
 
-    private final HashMap<String, TempRule> connectionToInteractiveTempActionMap = new HashMap<>();
+    // written by the GUI, read by the I/O-threads of the nfqueue-channels
+    private final ConcurrentHashMap<Connections.ConnectionKey, TempRule> connectionToInteractiveTempActionMap = new ConcurrentHashMap<>();
     private final Context context;
 
     TemporaryConnectionRulesManager(Context context) {
         this.context = context;
     }
 
-    private String getConnectionID(Connections.IConnection connection) {
+    private Connections.ConnectionKey getConnectionKey(Connections.IConnection connection) {
         boolean includePortInfo = DiscoWallSettings.getInstance().isInteractiveTemporaryRulesDistinguishByPorts(context);
-        return Connections.Connection.getID(connection, includePortInfo);
+        return new Connections.ConnectionKey(connection, includePortInfo);
     }
 
-    public boolean hasRule(Connections.Connection connection) {
-        return connectionToInteractiveTempActionMap.containsKey(getConnectionID(connection));
+    public boolean hasRule(Connections.IConnection connection) {
+        return connectionToInteractiveTempActionMap.containsKey(getConnectionKey(connection));
     }
 
     public void putRule(Connections.Connection connection, boolean accept) {
-        connectionToInteractiveTempActionMap.put(getConnectionID(connection), new TempRule(connection, accept));
+        connectionToInteractiveTempActionMap.put(getConnectionKey(connection), new TempRule(connection, accept));
     }
 
-    public boolean isAccepted(Connections.Connection connection) {
-        if (!hasRule(connection))
+    public boolean isAccepted(Connections.IConnection connection) {
+        TempRule rule = connectionToInteractiveTempActionMap.get(getConnectionKey(connection));
+        if (rule == null)
             throw new RuntimeException("Trying to fetch rule for connection, which has no rule defined yet: " + connection);
 
-        return connectionToInteractiveTempActionMap.get(getConnectionID(connection)).isAccept();
+        return rule.isAccept();
     }
 }
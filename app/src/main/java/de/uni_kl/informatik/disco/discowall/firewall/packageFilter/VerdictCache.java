@@ -0,0 +1,162 @@
+package de.uni_kl.informatik.disco.discowall.firewall.packageFilter;
+
+import java.util.Locale;
+
+import de.uni_kl.informatik.disco.discowall.firewall.rules.FirewallRules;
+import de.uni_kl.informatik.disco.discowall.packages.Packages;
+import de.uni_kl.informatik.disco.discowall.utils.StripedCounter;
+
+/**
+ * Bounded cache of the resolved policy (of the matching rule, or the firewall-policy) for each flow-signature:
+ * uid, protocol, network-interface, local port, remote ip and remote port - which is all a rule can match on.
+ * Retransmitted SYNs, repeated DNS-queries and reconnects therefore skip the rule-evaluation.
+ * <p></p>
+ * Each entry stores the epoch it has been resolved at: entries of older epochs are misses, so that increasing the epoch
+ * invalidates all entries at once. Direct-mapped, i.e. colliding signatures replace each other.
+ * Entries are immutable (final fields), so that they can be read and replaced by several threads without locking.
+ * Only ipv4-packages are cached, as their signature fits into two longs.
+ */
+public class VerdictCache {
+    public static final int DEFAULT_CAPACITY = 4096;
+
+    /**
+     * A resolved verdict: the matching rule (null if the firewall-policy applies) and the resulting policy.
+     */
+    public static final class Entry {
+        private final long flow, owner;
+        private final int epoch;
+        public final FirewallRules.IFirewallPolicyRule rule;
+        public final FirewallRules.RulePolicy policy;
+
+        private Entry(long flow, long owner, int epoch, FirewallRules.IFirewallPolicyRule rule, FirewallRules.RulePolicy policy) {
+            this.flow = flow;
+            this.owner = owner;
+            this.epoch = epoch;
+            this.rule = rule;
+            this.policy = policy;
+        }
+    }
+
+    private final Entry[] entries;
+    private final int mask;
+    private final StripedCounter hits = new StripedCounter();
+    private final StripedCounter misses = new StripedCounter();
+    private final StripedCounter uncacheable = new StripedCounter();
+
+    public VerdictCache() {
+        this(DEFAULT_CAPACITY);
+    }
+
+    /**
+     * @param capacity rounded up to a power of two
+     */
+    public VerdictCache(int capacity) {
+        if (capacity < 1)
+            throw new IllegalArgumentException("Capacity has to be positive: " + capacity);
+
+        int size = Integer.highestOneBit(capacity);
+        if (size < capacity)
+            size <<= 1;
+
+        entries = new Entry[size];
+        mask = size - 1;
+    }
+
+    /**
+     * The revisions only ever increase, so that their sum changes whenever any of them changes.
+     * @return the epoch of the verdicts resolved with these revisions of rules, firewall-policy and watched apps
+     */
+    static int epoch(int rulesRevision, int policyRevision, int watchedAppsRevision) {
+        return rulesRevision + policyRevision + watchedAppsRevision;
+    }
+
+    /**
+     * @return remote ipv4-address, local port and remote port
+     */
+    private static long flow(Packages.TransportLayerPackage tlPackage) {
+        int remoteIpv4 = tlPackage.isInbound() ? tlPackage.getSourceIpv4() : tlPackage.getDestinationIpv4();
+        return ((remoteIpv4 & 0xFFFFFFFFL) << 32) | ((tlPackage.getLocalPort() & 0xFFFFL) << 16) | (tlPackage.getRemotePort() & 0xFFFFL);
+    }
+
+    /**
+     * @return uid, protocol and network-interface (0 if unknown)
+     */
+    private static long owner(Packages.TransportLayerPackage tlPackage) {
+        Packages.NetworkInterface networkInterface = tlPackage.getNetworkInterface();
+        int interfaceId = networkInterface != null ? networkInterface.ordinal() + 1 : 0;
+        return ((long) tlPackage.getUserId() << 32) | (tlPackage.getProtocol().ordinal() << 8) | interfaceId;
+    }
+
+    private int indexOf(long flow, long owner) {
+        long hash = flow * 0x9E3779B97F4A7C15L + owner;
+        hash ^= hash >>> 31;
+        hash *= 0xBF58476D1CE4E5B9L;
+        return (int) (hash ^ (hash >>> 32)) & mask;
+    }
+
+    /**
+     * @param epoch current epoch of rules and policies
+     * @return the cached verdict of the package's flow-signature, or null if there is none for the current epoch
+     */
+    public Entry get(Packages.TransportLayerPackage tlPackage, int epoch) {
+        if (!tlPackage.isIpv4()) {
+            uncacheable.increment();
+            return null;
+        }
+
+        long flow = flow(tlPackage), owner = owner(tlPackage);
+        Entry entry = entries[indexOf(flow, owner)];
+
+        if (entry != null && entry.flow == flow && entry.owner == owner && entry.epoch == epoch) {
+            hits.increment();
+            return entry;
+        }
+
+        misses.increment();
+        return null;
+    }
+
+    /**
+     * @param epoch the epoch read before the verdict has been resolved - so that the entry is stale if the rules have changed in the meantime
+     */
+    public void put(Packages.TransportLayerPackage tlPackage, int epoch, FirewallRules.IFirewallPolicyRule rule, FirewallRules.RulePolicy policy) {
+        if (!tlPackage.isIpv4())
+            return;
+
+        long flow = flow(tlPackage), owner = owner(tlPackage);
+        entries[indexOf(flow, owner)] = new Entry(flow, owner, epoch, rule, policy);
+    }
+
+    public long getHits() {
+        return hits.get();
+    }
+
+    public long getMisses() {
+        return misses.get();
+    }
+
+    /**
+     * @return ipv6-packages, which are not being cached
+     */
+    public long getUncacheable() {
+        return uncacheable.get();
+    }
+
+    /**
+     * @return hits per cacheable lookup, or 0 if there has been none
+     */
+    public double getHitRate() {
+        long hits = getHits(), lookups = hits + getMisses();
+        return lookups == 0 ? 0 : (double) hits / lookups;
+    }
+
+    public int getCapacity() {
+        return entries.length;
+    }
+
+    @Override
+    public String toString() {
+        return "verdict-cache { hits=" + getHits() + ", misses=" + getMisses() + ", uncacheable=" + getUncacheable()
+                + ", hit-rate=" + String.format(Locale.US, "%.1f%%", getHitRate() * 100) + ", capacity=" + getCapacity() + " }";
+    }
+}
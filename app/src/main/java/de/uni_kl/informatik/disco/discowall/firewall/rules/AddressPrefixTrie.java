@@ -0,0 +1,185 @@
+package de.uni_kl.informatik.disco.discowall.firewall.rules;
+
+import java.util.ArrayList;
+
+import de.uni_kl.informatik.disco.discowall.packages.Packages;
+
+/**
+ * Compressed binary radix-tree (Patricia-trie) of address-prefixes of one address-family, each with the indices of the rules
+ * filtering for it. Nodes only exist where prefixes end or branch, so that a lookup visits at most one node per address-bit -
+ * independent of the number of prefixes.
+ * <p></p>
+ * Addresses are handled as 128 bits (high, low): IPv4-addresses are stored in the upper 32 bits of high.
+ * Filled while the rule-index is being compiled, immutable afterwards.
+ */
+class AddressPrefixTrie {
+    private static final int[] NO_RULES = new int[0];
+
+    private static class Node {
+        private final long high, low; // bits after the prefix are cleared
+        private final int prefixLength;
+        private final Node[] children = new Node[2];
+        private ArrayList<Integer> ruleList = new ArrayList<>(); // while being compiled
+        private int[] rules = NO_RULES; // sorted, empty if only branching
+
+        private Node(long high, long low, int prefixLength) {
+            this.prefixLength = prefixLength;
+            this.high = high & mask(prefixLength);
+            this.low = low & mask(prefixLength - 64);
+        }
+    }
+
+    private final int bitLength;
+    private Node root;
+    private int prefixCount;
+
+    AddressPrefixTrie(boolean ipv6) {
+        this.bitLength = ipv6 ? 128 : 32;
+    }
+
+    private static long mask(int bits) {
+        if (bits <= 0)
+            return 0;
+        return bits >= 64 ? -1L : -1L << (64 - bits);
+    }
+
+    private static int bit(long high, long low, int index) {
+        return (int) (index < 64 ? high >>> (63 - index) : low >>> (127 - index)) & 1;
+    }
+
+    private static int commonPrefixLength(long high1, long low1, long high2, long low2) {
+        if (high1 != high2)
+            return Long.numberOfLeadingZeros(high1 ^ high2);
+        if (low1 != low2)
+            return 64 + Long.numberOfLeadingZeros(low1 ^ low2);
+        return 128;
+    }
+
+    static long high(Packages.IpAddress address) {
+        return address.isIpv6() ? address.getHigh() : (address.getLow() << 32);
+    }
+
+    static long low(Packages.IpAddress address) {
+        return address.isIpv6() ? address.getLow() : 0;
+    }
+
+    /**
+     * Rules have to be added in ascending order.
+     */
+    void add(Packages.IpAddress network, int prefixLength, int ruleIndex) {
+        long high = high(network), low = low(network);
+        Node parent = null;
+        int parentBit = 0;
+        Node node = root;
+
+        while (true) {
+            if (node == null) {
+                node = new Node(high, low, prefixLength);
+                attach(parent, parentBit, node);
+                break;
+            }
+
+            int common = Math.min(commonPrefixLength(high & mask(prefixLength), low & mask(prefixLength - 64), node.high, node.low),
+                    Math.min(prefixLength, node.prefixLength));
+
+            if (common == node.prefixLength) {
+                if (prefixLength == node.prefixLength)
+                    break;
+
+                parent = node;
+                parentBit = bit(high, low, node.prefixLength);
+                node = node.children[parentBit];
+                continue;
+            }
+
+            // the prefix diverges within the node (or ends there): split it
+            Node split = new Node(high, low, common);
+            split.children[bit(node.high, node.low, common)] = node;
+            attach(parent, parentBit, split);
+
+            if (prefixLength == common) {
+                node = split;
+            } else {
+                Node leaf = new Node(high, low, prefixLength);
+                split.children[bit(high, low, common)] = leaf;
+                node = leaf;
+            }
+            break;
+        }
+
+        if (node.ruleList.isEmpty())
+            prefixCount++;
+        node.ruleList.add(ruleIndex);
+    }
+
+    private void attach(Node parent, int bit, Node node) {
+        if (parent == null)
+            root = node;
+        else
+            parent.children[bit] = node;
+    }
+
+    /**
+     * Converts the rule-lists into arrays, has to be called once after all rules have been added.
+     */
+    void compile() {
+        compile(root);
+    }
+
+    private static void compile(Node node) {
+        if (node == null)
+            return;
+
+        if (!node.ruleList.isEmpty()) {
+            node.rules = new int[node.ruleList.size()];
+            for(int i = 0; i < node.rules.length; i++)
+                node.rules[i] = node.ruleList.get(i);
+        }
+        node.ruleList = null;
+
+        compile(node.children[0]);
+        compile(node.children[1]);
+    }
+
+    /**
+     * Visits the prefixes containing the address from the shortest to the longest one, and checks their rules in order.
+     * @param high upper 64 bits of the IPv6-address, or the IPv4-address in the upper 32 bits
+     * @param low lower 64 bits of the IPv6-address, 0 for IPv4
+     * @param limit rule-index up to which (exclusive) rules are being checked
+     * @return the lowest index of a rule which applies to the package, or -1
+     */
+    int findFirstMatch(long high, long low, FirewallRules.IFirewallPolicyRule[] rules, Packages.TransportLayerPackage tlPackage, int limit) {
+        int match = -1;
+
+        for(Node node = root; node != null; ) {
+            if (commonPrefixLength(high, low, node.high, node.low) < node.prefixLength)
+                break;
+
+            for(int ruleIndex : node.rules) {
+                if (ruleIndex >= limit)
+                    break;
+                if (rules[ruleIndex].appliesTo(tlPackage)) {
+                    match = limit = ruleIndex;
+                    break;
+                }
+            }
+
+            if (node.prefixLength >= bitLength)
+                break;
+            node = node.children[bit(high, low, node.prefixLength)];
+        }
+
+        return match;
+    }
+
+    boolean isEmpty() {
+        return root == null;
+    }
+
+    /**
+     * @return number of distinct prefixes
+     */
+    int getPrefixCount() {
+        return prefixCount;
+    }
+}
@@ -0,0 +1,264 @@
+package de.uni_kl.informatik.disco.discowall.firewall.rules;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+import java.util.TreeMap;
+import java.util.TreeSet;
+
+import de.uni_kl.informatik.disco.discowall.packages.Packages;
+
+/**
+ * The policy-rules of one user, compiled for first-match lookups: the rules are bucketed by protocol and network-interface ("lanes"),
+ * and within each lane by their remote port or port-ranges: the boundaries of all ranges split the port-space into segments,
+ * each with the rules covering it. Rules without remote port are kept in a wildcard-bucket of the lane.
+ * A lookup merges the segment-bucket of the package with the wildcard-bucket by rule-index, so that the rules are still checked
+ * in their order - but only those which can match protocol, interface and remote port.
+ * <p></p>
+ * Rules with a numeric remote address or network (CIDR) are kept in an {@link AddressPrefixTrie} per address-family instead,
+ * so that large block-lists only cost one trie-walk per package. The first match is the lower rule-index of both.
+ * <p></p>
+ * Immutable and therefore thread-safe. Has to be compiled again whenever the rules change, see {@link #getRevision()}.
+ * Lookups do not allocate.
+ */
+public class FirewallPolicyRuleIndex {
+    private static final int[] NO_RULES = new int[0];
+
+    // Interface-classes: a rule with DeviceFilter.WiFi_UMTS also matches packages of other (or unknown) interfaces
+    private static final int INTERFACE_WIFI = 0, INTERFACE_UMTS = 1, INTERFACE_OTHER = 2;
+    private static final int INTERFACE_CLASSES = 3;
+
+    private static class Lane {
+        private final int[] boundaries; // sorted first ports of the segments, each segment ends before the next boundary
+        private final int[][] segmentRules; // rule-indices of each segment, sorted
+        private final int[] anyPortRules;
+
+        private Lane(int[] boundaries, int[][] segmentRules, int[] anyPortRules) {
+            this.boundaries = boundaries;
+            this.segmentRules = segmentRules;
+            this.anyPortRules = anyPortRules;
+        }
+
+        private int[] getPortRules(int port) {
+            // binary search for the last segment starting at or before the port
+            int low = 0, high = boundaries.length - 1;
+
+            while (low <= high) {
+                int middle = (low + high) >>> 1;
+                if (boundaries[middle] <= port)
+                    low = middle + 1;
+                else
+                    high = middle - 1;
+            }
+
+            return high >= 0 ? segmentRules[high] : NO_RULES;
+        }
+    }
+
+    private final FirewallRules.IFirewallPolicyRule[] rules;
+    private final Lane[] lanes = new Lane[2 * INTERFACE_CLASSES];
+    private final AddressPrefixTrie ipv4Trie = new AddressPrefixTrie(false);
+    private final AddressPrefixTrie ipv6Trie = new AddressPrefixTrie(true);
+    private final int revision;
+
+    /**
+     * @param rules rules of a single user, in their order. Other rules than policy-rules are ignored.
+     * @param revision revision of the rules, from which the index has been compiled
+     */
+    public FirewallPolicyRuleIndex(List<? extends FirewallRules.IFirewallRule> rules, int revision) {
+        ArrayList<FirewallRules.IFirewallPolicyRule> policyRules = new ArrayList<>();
+        for(FirewallRules.IFirewallRule rule : rules) {
+            if (rule instanceof FirewallRules.IFirewallPolicyRule)
+                policyRules.add((FirewallRules.IFirewallPolicyRule) rule);
+        }
+
+        this.rules = policyRules.toArray(new FirewallRules.IFirewallPolicyRule[policyRules.size()]);
+        this.revision = revision;
+
+        for(int i = 0; i < this.rules.length; i++) {
+            Packages.IpAddress remoteAddress = this.rules[i].getRemoteFilter().getAddress();
+            if (remoteAddress != null)
+                (remoteAddress.isIpv6() ? ipv6Trie : ipv4Trie).add(remoteAddress, this.rules[i].getRemoteFilter().getPrefixLength(), i);
+        }
+        ipv4Trie.compile();
+        ipv6Trie.compile();
+
+        for(Packages.TransportLayerProtocol protocol : Packages.TransportLayerProtocol.values()) {
+            for(int interfaceClass = 0; interfaceClass < INTERFACE_CLASSES; interfaceClass++)
+                lanes[laneIndex(protocol, interfaceClass)] = compileLane(protocol, interfaceClass);
+        }
+    }
+
+    private Lane compileLane(Packages.TransportLayerProtocol protocol, int interfaceClass) {
+        // rules starting, and rules ending (before) at each boundary
+        TreeMap<Integer, ArrayList<Integer>> startingRules = new TreeMap<>(), endingRules = new TreeMap<>();
+        ArrayList<Integer> anyPortRules = new ArrayList<>();
+
+        for(int i = 0; i < rules.length; i++) {
+            FirewallRules.IFirewallPolicyRule rule = rules[i];
+            Packages.IpPortPair remoteFilter = rule.getRemoteFilter();
+            if (remoteFilter.getAddress() != null)
+                continue; // within the address-tries
+            if (!allowsProtocol(rule.getProtocolFilter(), protocol) || !allowsInterface(rule.getDeviceFilter(), interfaceClass))
+                continue;
+
+            if (remoteFilter.hasPortRanges()) {
+                int[] portRanges = remoteFilter.getPortRanges();
+                for(int range = 0; range < portRanges.length; range += 2) {
+                    addTo(startingRules, portRanges[range], i);
+                    addTo(endingRules, portRanges[range + 1] + 1, i);
+                }
+            } else if (remoteFilter.hasPort()) {
+                addTo(startingRules, remoteFilter.getPort(), i);
+                addTo(endingRules, remoteFilter.getPort() + 1, i);
+            } else {
+                anyPortRules.add(i);
+            }
+        }
+
+        TreeSet<Integer> boundaries = new TreeSet<>(startingRules.keySet());
+        boundaries.addAll(endingRules.keySet());
+
+        // sweep over the boundaries, keeping track of the rules covering the current segment
+        int[] segmentBoundaries = new int[boundaries.size()];
+        int[][] segmentRules = new int[boundaries.size()][];
+        TreeSet<Integer> coveringRules = new TreeSet<>();
+        int segment = 0;
+        for(int boundary : boundaries) {
+            removeAll(coveringRules, endingRules.get(boundary));
+            addAll(coveringRules, startingRules.get(boundary));
+
+            segmentBoundaries[segment] = boundary;
+            segmentRules[segment++] = toArray(coveringRules);
+        }
+
+        return new Lane(segmentBoundaries, segmentRules, toArray(anyPortRules));
+    }
+
+    private static void addTo(TreeMap<Integer, ArrayList<Integer>> rulesByBoundary, int boundary, int ruleIndex) {
+        ArrayList<Integer> ruleIndices = rulesByBoundary.get(boundary);
+        if (ruleIndices == null)
+            rulesByBoundary.put(boundary, ruleIndices = new ArrayList<>());
+        ruleIndices.add(ruleIndex);
+    }
+
+    private static void addAll(TreeSet<Integer> ruleIndices, List<Integer> values) {
+        if (values != null)
+            ruleIndices.addAll(values);
+    }
+
+    private static void removeAll(TreeSet<Integer> ruleIndices, List<Integer> values) {
+        if (values != null)
+            ruleIndices.removeAll(values);
+    }
+
+    private static int[] toArray(Collection<Integer> values) {
+        if (values.isEmpty())
+            return NO_RULES;
+
+        int[] array = new int[values.size()];
+        int i = 0;
+        for(int value : values)
+            array[i++] = value;
+        return array;
+    }
+
+    private static boolean allowsProtocol(FirewallRules.ProtocolFilter filter, Packages.TransportLayerProtocol protocol) {
+        return protocol == Packages.TransportLayerProtocol.TCP ? filter.isTcp() : filter.isUdp();
+    }
+
+    private static boolean allowsInterface(FirewallRules.DeviceFilter filter, int interfaceClass) {
+        switch(interfaceClass) {
+            case INTERFACE_WIFI:
+                return filter.allowsWifi();
+            case INTERFACE_UMTS:
+                return filter.allowsUmts();
+            default:
+                return filter.allowsAny();
+        }
+    }
+
+    private static int laneIndex(Packages.TransportLayerProtocol protocol, int interfaceClass) {
+        return protocol.ordinal() * INTERFACE_CLASSES + interfaceClass;
+    }
+
+    private static int interfaceClass(Packages.NetworkInterface networkInterface) {
+        if (networkInterface == Packages.NetworkInterface.WiFi)
+            return INTERFACE_WIFI;
+        if (networkInterface == Packages.NetworkInterface.Umts)
+            return INTERFACE_UMTS;
+        return INTERFACE_OTHER;
+    }
+
+    /**
+     * @return the first rule (in rule-order) which applies to the package, or null
+     */
+    public FirewallRules.IFirewallPolicyRule findFirstMatch(Packages.TransportLayerPackage tlPackage) {
+        int laneMatch = findFirstLaneMatch(tlPackage);
+        int addressMatch = findFirstAddressMatch(tlPackage, laneMatch >= 0 ? laneMatch : rules.length);
+
+        int match = addressMatch >= 0 ? addressMatch : laneMatch;
+        return match >= 0 ? rules[match] : null;
+    }
+
+    /**
+     * Does not allocate for ipv4-packages.
+     * @param limit rule-index up to which (exclusive) rules are being checked
+     * @return index of the first rule with remote address or network, which applies to the package - or -1
+     */
+    private int findFirstAddressMatch(Packages.TransportLayerPackage tlPackage, int limit) {
+        if (tlPackage.isIpv4()) {
+            if (ipv4Trie.isEmpty())
+                return -1;
+            int remoteIpv4 = tlPackage.isInbound() ? tlPackage.getSourceIpv4() : tlPackage.getDestinationIpv4();
+            return ipv4Trie.findFirstMatch((long) remoteIpv4 << 32, 0, rules, tlPackage, limit);
+        }
+
+        if (ipv4Trie.isEmpty() && ipv6Trie.isEmpty())
+            return -1;
+        Packages.IpAddress remoteAddress = tlPackage.getRemoteAddress().getAddress();
+        if (remoteAddress == null)
+            return -1;
+        return (remoteAddress.isIpv6() ? ipv6Trie : ipv4Trie).findFirstMatch(AddressPrefixTrie.high(remoteAddress), AddressPrefixTrie.low(remoteAddress), rules, tlPackage, limit);
+    }
+
+    /**
+     * @return index of the first rule without remote address (any-ip or hostname), which applies to the package - or -1
+     */
+    private int findFirstLaneMatch(Packages.TransportLayerPackage tlPackage) {
+        Lane lane = lanes[laneIndex(tlPackage.getProtocol(), interfaceClass(tlPackage.getNetworkInterface()))];
+        int[] portRules = lane.getPortRules(tlPackage.getRemotePort());
+        int[] anyPortRules = lane.anyPortRules;
+
+        // merge both buckets by rule-index, so that the first match is the first one within the rules-list
+        int portIndex = 0, anyPortIndex = 0;
+        while (portIndex < portRules.length || anyPortIndex < anyPortRules.length) {
+            int ruleIndex;
+            if (anyPortIndex == anyPortRules.length || (portIndex < portRules.length && portRules[portIndex] < anyPortRules[anyPortIndex]))
+                ruleIndex = portRules[portIndex++];
+            else
+                ruleIndex = anyPortRules[anyPortIndex++];
+
+            // the remaining criteria (local port, remote ip) are checked by the rule itself
+            if (rules[ruleIndex].appliesTo(tlPackage))
+                return ruleIndex;
+        }
+
+        return -1;
+    }
+
+    public int getRevision() {
+        return revision;
+    }
+
+    public int getRuleCount() {
+        return rules.length;
+    }
+
+    /**
+     * @return number of distinct remote addresses and networks within the address-tries
+     */
+    public int getAddressPrefixCount() {
+        return ipv4Trie.getPrefixCount() + ipv6Trie.getPrefixCount();
+    }
+}
@@ -1,6 +1,7 @@
 package de.uni_kl.informatik.disco.discowall.firewall.rules;
 
 import java.util.UUID;
+import java.util.concurrent.atomic.AtomicInteger;
 
 import de.uni_kl.informatik.disco.discowall.netfilter.bridge.NetfilterFirewallRulesHandler;
 import de.uni_kl.informatik.disco.discowall.packages.Connections;
@@ -8,6 +9,16 @@ import de.uni_kl.informatik.disco.discowall.packages.Packages;
 import de.uni_kl.informatik.disco.discowall.utils.shell.ShellExecuteExceptions;
 
 public class FirewallRules {
+    private static final AtomicInteger modificationCount = new AtomicInteger();
+
+    /**
+     * @return number of changes to any rule's filters, policy or redirection-target. Rules are edited in place by the GUI,
+     * so that compiled rules and remembered decisions have to check this in addition to the rules-list.
+     */
+    public static int getModificationCount() {
+        return modificationCount.get();
+    }
+
     /************************* Rule Data ***********************************************************/
 
     public enum RulePolicy { ALLOW, BLOCK, INTERACTIVE }
@@ -164,6 +175,7 @@ public class FirewallRules {
         @Override
         public void setDeviceFilter(DeviceFilter deviceFilter) {
             this.deviceFilter = deviceFilter;
+            modificationCount.incrementAndGet();
         }
 
         @Override
@@ -174,6 +186,7 @@ public class FirewallRules {
         @Override
         public void setProtocolFilter(ProtocolFilter protocolFilter) {
             this.protocolFilter = protocolFilter;
+            modificationCount.incrementAndGet();
         }
 
         @Override
@@ -192,6 +205,7 @@ public class FirewallRules {
                 throw new IllegalArgumentException("Source-Filter cannot be null!");
 
             this.localFilter = localFilter;
+            modificationCount.incrementAndGet();
         }
 
         @Override
@@ -200,18 +214,23 @@ public class FirewallRules {
                 throw new IllegalArgumentException("Remote-Filter cannot be null!");
 
             this.remoteFilter = remoteFilter;
+            modificationCount.incrementAndGet();
         }
 
-        private boolean filterMatches(Packages.IpPortPair filter, Packages.IpPortPair packageInfo, boolean ignoreIP) {
-            // check ip
-            if (!ignoreIP && filter.hasIp()) {
-                if (!packageInfo.getIp().equals(filter.getIp()))
+        /**
+         * The port is checked first, so that the address-pair of the package is only requested if the filter has an ip.
+         */
+        private boolean filterMatches(Packages.IpPortPair filter, Packages.TransportLayerPackage tlPackage, boolean local, boolean ignoreIP) {
+            // check port (or port-ranges)
+            if (filter.hasPort()) {
+                if (!filter.matchesPort(local ? tlPackage.getLocalPort() : tlPackage.getRemotePort()))
                     return false;
             }
 
-            // check port
-            if (filter.hasPort()) {
-                if (packageInfo.getPort() != filter.getPort())
+            // check ip
+            if (!ignoreIP && filter.hasIp()) {
+                Packages.IpPortPair packageInfo = local ? tlPackage.getLocalAddress() : tlPackage.getRemoteAddress();
+                if (!filter.matchesIp(packageInfo)) // numeric (prefix-)comparison, unless the filter is a hostname
                     return false;
             }
 
@@ -258,7 +277,7 @@ public class FirewallRules {
             // Source- & Destination-Filter:
             // The local-address has a irrelevant host-ip, which is sometimes "localhost" or "127.0.0.1" or even the hostname.
             // But as it specifies the localhost, only the port is relevant anyway.
-            boolean packageMatches = filterMatches(localFilter, tlPackage.getLocalAddress(), true) && filterMatches(remoteFilter, tlPackage.getRemoteAddress(), false);
+            boolean packageMatches = filterMatches(localFilter, tlPackage, true, true) && filterMatches(remoteFilter, tlPackage, false, false);
             if (!packageMatches)
                 return false;
 
@@ -320,6 +339,7 @@ public class FirewallRules {
         @Override
         public void setRulePolicy(RulePolicy rulePolicy) {
             this.rulePolicy = rulePolicy;
+            modificationCount.incrementAndGet();
         }
 
         @Override
@@ -396,6 +416,8 @@ public class FirewallRules {
                 throw new FirewallRuleExceptions.InvalidRuleDefinitionException(this, "No redirection target specified for redirection rule.");
             if (!redirectTo.hasIp() || !redirectTo.hasPort())
                 throw new FirewallRuleExceptions.InvalidRuleDefinitionException(this, "IP or Port missing for redirection target: " + redirectTo);
+            if (redirectTo.isNetwork())
+                throw new FirewallRuleExceptions.InvalidRuleDefinitionException(this, "Redirection target has to be a single host: " + redirectTo);
 
             // It will be allowed to redirect multiple connections to the same host
 //            if (!sourceFilter.hasIp() || !sourceFilter.hasPort())
@@ -404,6 +426,7 @@ public class FirewallRules {
 //                throw new FirewallRuleExceptions.InvalidRuleDefinitionException(this, "IP or Port missing for connection-destination: " + destinationFilter);
 
             this.redirectTo = redirectTo;
+            modificationCount.incrementAndGet();
         }
 
         @Override
@@ -424,6 +447,9 @@ public class FirewallRules {
 
         @Override
         public void addToIptables() throws Exception {
+            if (getLocalFilter().hasPortRanges() || getRemoteFilter().hasPortRanges())
+                throw new FirewallRuleExceptions.InvalidRuleDefinitionException(this, "Port-ranges are not supported by redirection rules: " + this);
+
             try {
                 // If TCP should be redirected:
                 if (getProtocolFilter().isTcp())
@@ -31,7 +31,7 @@ public class FirewallRulesExporter {
         Element pairElement = doc.createElement(tag);
 
         pairElement.setAttribute(XMLConstants.IpPortPair.ATTR_Ip, ipPortPair.getIp());
-        pairElement.setAttribute(XMLConstants.IpPortPair.ATTR_Port, ipPortPair.getPort() + "");
+        pairElement.setAttribute(XMLConstants.IpPortPair.ATTR_Port, ipPortPair.getPorts()); // single port, or port-ranges
 
         return pairElement;
     }
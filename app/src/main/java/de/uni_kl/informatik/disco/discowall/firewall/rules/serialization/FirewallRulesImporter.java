@@ -84,10 +84,10 @@ public class FirewallRulesImporter {
     private Packages.IpPortPair importIpPortPair(Element ipPortPairElement) throws XmlTagMissingException {
         Log.v(LOG_TAG, "importing ip-port-pair...");
 
-        String ipStr = ipPortPairElement.getAttribute(XMLConstants.IpPortPair.ATTR_Ip);
-        String portStr = ipPortPairElement.getAttribute(XMLConstants.IpPortPair.ATTR_Port);
+        String ipStr = ipPortPairElement.getAttribute(XMLConstants.IpPortPair.ATTR_Ip); // address, network in CIDR-notation or hostname
+        String portStr = ipPortPairElement.getAttribute(XMLConstants.IpPortPair.ATTR_Port); // single port or port-ranges
 
-        Packages.IpPortPair ipPortPair = new Packages.IpPortPair(ipStr, Integer.parseInt(portStr));
+        Packages.IpPortPair ipPortPair = new Packages.IpPortPair(ipStr, portStr);
         Log.v(LOG_TAG, "ip-port-pair: " + ipPortPair);
 
         return ipPortPair;
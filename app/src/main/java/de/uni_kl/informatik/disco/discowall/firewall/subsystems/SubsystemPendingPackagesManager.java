@@ -5,6 +5,16 @@ import de.uni_kl.informatik.disco.discowall.packages.Connections;
 import de.uni_kl.informatik.disco.discowall.utils.apps.AppUidGroup;
 
 public interface SubsystemPendingPackagesManager extends NetfilterBridgeCommunicator.PackageActionCallback {
+    /**
+     * Accepts the pending packages of the specified connection. Multiple connections can be pending at the same time.
+     */
+    void acceptPendingPackage(Connections.IConnection connection);
+
+    /**
+     * Blocks the pending packages of the specified connection. Multiple connections can be pending at the same time.
+     */
+    void blockPendingPackage(Connections.IConnection connection);
+
     /**
      * When the user opens the connection-decision dialog.
      */
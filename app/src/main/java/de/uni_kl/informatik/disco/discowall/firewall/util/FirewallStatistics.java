@@ -0,0 +1,127 @@
+package de.uni_kl.informatik.disco.discowall.firewall.util;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.PrintWriter;
+import java.text.SimpleDateFormat;
+import java.util.Date;
+import java.util.Locale;
+import java.util.Map;
+
+import de.uni_kl.informatik.disco.discowall.firewall.packageFilter.VerdictCache;
+import de.uni_kl.informatik.disco.discowall.netfilter.bridge.NetfilterBridgeOverloadPolicy;
+import de.uni_kl.informatik.disco.discowall.netfilter.bridge.NetfilterBridgeStatistics;
+import de.uni_kl.informatik.disco.discowall.packages.ConnectionManager;
+import de.uni_kl.informatik.disco.discowall.utils.LatencyHistogram;
+
+/**
+ * Latencies and counters of the decision-path, summed up over all queues. All latencies are measured from the complete query
+ * within the receive-buffer, except for the rule-evaluation.
+ */
+public class FirewallStatistics {
+    private final long timestamp = System.currentTimeMillis();
+    private final NetfilterBridgeStatistics bridgeStatistics;
+    private final LatencyHistogram ruleEvaluationLatency;
+    private final NetfilterBridgeOverloadPolicy.Metrics overloadMetrics;
+    private final int tcpConnections, udpConnections;
+    private final ConnectionManager.EvictionCounters evictionCounters;
+    private final VerdictCache verdictCache;
+
+    public FirewallStatistics(NetfilterBridgeStatistics bridgeStatistics, LatencyHistogram ruleEvaluationLatency, NetfilterBridgeOverloadPolicy.Metrics overloadMetrics,
+                              int tcpConnections, int udpConnections, ConnectionManager.EvictionCounters evictionCounters, VerdictCache verdictCache) {
+        this.bridgeStatistics = bridgeStatistics;
+        this.ruleEvaluationLatency = ruleEvaluationLatency;
+        this.overloadMetrics = overloadMetrics;
+        this.tcpConnections = tcpConnections;
+        this.udpConnections = udpConnections;
+        this.evictionCounters = evictionCounters;
+        this.verdictCache = verdictCache;
+    }
+
+    public long getTimestamp() {
+        return timestamp;
+    }
+
+    public NetfilterBridgeStatistics getBridgeStatistics() {
+        return bridgeStatistics;
+    }
+
+    public LatencyHistogram getDecodeLatency() {
+        return bridgeStatistics.getDecodeLatency();
+    }
+
+    public LatencyHistogram getRuleEvaluationLatency() {
+        return ruleEvaluationLatency;
+    }
+
+    public LatencyHistogram getVerdictLatency() {
+        return bridgeStatistics.getVerdictLatency();
+    }
+
+    public NetfilterBridgeOverloadPolicy.Metrics getOverloadMetrics() {
+        return overloadMetrics;
+    }
+
+    /**
+     * @return number of tracked TCP connections, at the time the statistics have been created
+     */
+    public int getTcpConnections() {
+        return tcpConnections;
+    }
+
+    public int getUdpConnections() {
+        return udpConnections;
+    }
+
+    public ConnectionManager.EvictionCounters getEvictionCounters() {
+        return evictionCounters;
+    }
+
+    public VerdictCache getVerdictCache() {
+        return verdictCache;
+    }
+
+    public void writeTo(PrintWriter writer) {
+        writer.println("DiscoWall firewall statistics, " + new SimpleDateFormat("yyyy-MM-dd HH:mm:ss", Locale.US).format(new Date(timestamp)));
+        writer.println();
+        writer.println("latency decode:          " + getDecodeLatency());
+        writer.println("latency rule-evaluation: " + ruleEvaluationLatency);
+        writer.println("latency verdict:         " + getVerdictLatency());
+        writer.println();
+        writer.println("packages tcp:            " + bridgeStatistics.getTcpPackages());
+        writer.println("packages udp:            " + bridgeStatistics.getUdpPackages());
+        writer.println("protocol-errors:         " + bridgeStatistics.getProtocolErrors());
+        writer.println("verdicts accepted:       " + bridgeStatistics.getAcceptedVerdicts());
+        writer.println("verdicts dropped:        " + bridgeStatistics.getDroppedVerdicts());
+        writer.println("overload:                " + overloadMetrics);
+        writer.println("connections tcp:         " + tcpConnections);
+        writer.println("connections udp:         " + udpConnections);
+        writer.println("connections evicted:     " + evictionCounters);
+        writer.println("verdict-cache:           " + verdictCache);
+        writer.println();
+        writer.println("verdicts per uid:");
+        for(Map.Entry<Integer, NetfilterBridgeStatistics.UidCounters> entry : bridgeStatistics.getUidCounters().entrySet())
+            writer.println("  " + (entry.getKey() == NetfilterBridgeStatistics.UID_UNKNOWN ? "unknown" : entry.getKey() + "") + ": " + entry.getValue());
+        writer.flush();
+    }
+
+    public void writeTo(File file) throws IOException {
+        PrintWriter writer = new PrintWriter(new OutputStreamWriter(new FileOutputStream(file), "UTF-8"));
+        try {
+            writeTo(writer);
+        } finally {
+            writer.close();
+        }
+    }
+
+    @Override
+    public String toString() {
+        return bridgeStatistics
+                + ", rule-evaluation { " + ruleEvaluationLatency + " }"
+                + ", " + overloadMetrics
+                + ", connections { tcp=" + tcpConnections + ", udp=" + udpConnections + " }, " + evictionCounters
+                + ", " + verdictCache;
+    }
+}
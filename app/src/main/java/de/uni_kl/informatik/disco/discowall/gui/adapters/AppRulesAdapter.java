@@ -238,8 +238,8 @@ public class AppRulesAdapter extends ArrayAdapter<FirewallRules.IFirewallRule> {
             ip = "*";
 
         String port;
-        if (ipPortInfo.getPort() > 0)
-            port = ipPortInfo.getPort() + "";
+        if (ipPortInfo.hasPort())
+            port = ipPortInfo.getPorts();
         else
             port = "*";
 
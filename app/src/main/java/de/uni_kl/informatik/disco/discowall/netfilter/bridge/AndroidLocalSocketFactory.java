@@ -0,0 +1,81 @@
+package de.uni_kl.informatik.disco.discowall.netfilter.bridge;
+
+import android.net.LocalServerSocket;
+import android.net.LocalSocket;
+import android.net.LocalSocketAddress;
+import android.util.Log;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+
+/**
+ * Android local sockets within the abstract namespace, for the {@link NetfilterBridgeUnixSocketTransport}.
+ */
+public class AndroidLocalSocketFactory implements NetfilterBridgeUnixSocketTransport.ServerSocketFactory {
+    private static final String LOG_TAG = AndroidLocalSocketFactory.class.getSimpleName();
+
+    @Override
+    public NetfilterBridgeUnixSocketTransport.ServerSocket bind(final String socketName) throws IOException {
+        final LocalServerSocket serverSocket = new LocalServerSocket(socketName);
+
+        return new NetfilterBridgeUnixSocketTransport.ServerSocket() {
+            @Override
+            public NetfilterBridgeUnixSocketTransport.ClientSocket accept() throws IOException {
+                return new AndroidClientSocket(serverSocket.accept());
+            }
+
+            /**
+             * Closing the server-socket does not unblock accept() on all android versions. Connecting does.
+             */
+            @Override
+            public void wakeup() {
+                try {
+                    LocalSocket wakeupSocket = new LocalSocket();
+                    wakeupSocket.connect(new LocalSocketAddress(socketName));
+                    wakeupSocket.close();
+                } catch (IOException e) {
+                    Log.v(LOG_TAG, "Could not connect to unix-socket for unblocking accept(): " + e.getMessage());
+                }
+            }
+
+            @Override
+            public void close() throws IOException {
+                serverSocket.close();
+            }
+        };
+    }
+
+    private static class AndroidClientSocket implements NetfilterBridgeUnixSocketTransport.ClientSocket {
+        private final LocalSocket socket;
+
+        private AndroidClientSocket(LocalSocket socket) {
+            this.socket = socket;
+        }
+
+        @Override
+        public int getPeerUid() throws IOException {
+            return socket.getPeerCredentials().getUid();
+        }
+
+        @Override
+        public InputStream getInputStream() throws IOException {
+            return socket.getInputStream();
+        }
+
+        @Override
+        public OutputStream getOutputStream() throws IOException {
+            return socket.getOutputStream();
+        }
+
+        @Override
+        public void shutdownInput() throws IOException {
+            socket.shutdownInput();
+        }
+
+        @Override
+        public void close() throws IOException {
+            socket.close();
+        }
+    }
+}
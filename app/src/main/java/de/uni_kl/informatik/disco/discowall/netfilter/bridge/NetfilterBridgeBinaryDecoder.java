@@ -0,0 +1,118 @@
+package de.uni_kl.informatik.disco.discowall.netfilter.bridge;
+
+import java.nio.ByteBuffer;
+
+import de.uni_kl.informatik.disco.discowall.packages.Packages;
+
+/**
+ * Decodes frames of the {@link NetfilterBridgeProtocol.BinaryFormat} directly into the {@link Packages} model.
+ * All values are read at their fixed offsets into reusable packages, so that neither intermediate strings nor packages are being created.
+ */
+class NetfilterBridgeBinaryDecoder {
+    private NetfilterBridgeBinaryDecoder() {
+    }
+
+    /**
+     * Decodes the frame in place, so that it can be read directly from the receive-buffer.
+     * @param buffer buffer containing the frame. Its position and limit are not being changed.
+     * @param offset index of the first frame-byte (after the length prefix)
+     * @param length frame length, without the length prefix
+     * @param packagePool the decoded package is taken from this pool, and has to be released to it after its verdict
+     * @param timestamp {@link System#nanoTime()} at which the frame has been received
+     */
+    public static Packages.TransportLayerPackage decodeQueryPackageAction(ByteBuffer buffer, int offset, int length, NetfilterBridgePackagePool packagePool, long timestamp) throws NetfilterBridgeProtocol.ProtocolException {
+        if (length < NetfilterBridgeProtocol.BinaryFormat.QueryPackageAction.FRAME_LENGTH)
+            throw new NetfilterBridgeProtocol.ProtocolFormatException("Binary frame too short: expected " + NetfilterBridgeProtocol.BinaryFormat.QueryPackageAction.FRAME_LENGTH + " bytes but got " + length + ".", toHexString(buffer, offset, length));
+
+        int presenceFlags = u8(buffer, offset + NetfilterBridgeProtocol.BinaryFormat.QueryPackageAction.OFFSET_PRESENCE_FLAGS);
+        boolean hasInputDeviceInfo = (presenceFlags & NetfilterBridgeProtocol.BinaryFormat.QueryPackageAction.FLAG_HAS_INPUT_DEVICE) != 0;
+        boolean hasOutputDeviceInfo = (presenceFlags & NetfilterBridgeProtocol.BinaryFormat.QueryPackageAction.FLAG_HAS_OUTPUT_DEVICE) != 0;
+        boolean hasMark = (presenceFlags & NetfilterBridgeProtocol.BinaryFormat.QueryPackageAction.FLAG_HAS_MARK) != 0;
+
+        // Input or Output-Device has to be specified. If not - the package-direction cannot be determined --> ERROR
+        if (!(hasInputDeviceInfo || hasOutputDeviceInfo))
+            throw new NetfilterBridgeProtocol.ProtocolValueMissingException(NetfilterBridgeProtocol.QueryPackageAction.Physical.OPT_VALUE_INPUT_DEVICE + "/" +  NetfilterBridgeProtocol.QueryPackageAction.Physical.OPT_VALUE_OUTPUT_DEVICE, toHexString(buffer, offset, length));
+
+        if (!hasMark)
+            throw new NetfilterBridgeProtocol.ProtocolValueMissingException(NetfilterBridgeProtocol.QueryPackageAction.Netfilter.VALUE_MARK, toHexString(buffer, offset, length));
+
+        int inputDeviceIndex = hasInputDeviceInfo ? buffer.getInt(offset + NetfilterBridgeProtocol.BinaryFormat.QueryPackageAction.OFFSET_INPUT_DEVICE) : -1;
+        int outputDeviceIndex = hasOutputDeviceInfo ? buffer.getInt(offset + NetfilterBridgeProtocol.BinaryFormat.QueryPackageAction.OFFSET_OUTPUT_DEVICE) : -1;
+
+        // addresses are kept numeric: the package only creates its address-pairs when they are being requested
+        int srcIP = buffer.getInt(offset + NetfilterBridgeProtocol.BinaryFormat.QueryPackageAction.OFFSET_IP_SOURCE);
+        int dstIP = buffer.getInt(offset + NetfilterBridgeProtocol.BinaryFormat.QueryPackageAction.OFFSET_IP_DESTINATION);
+        int srcPort = u16(buffer, offset + NetfilterBridgeProtocol.BinaryFormat.QueryPackageAction.OFFSET_SOURCE_PORT);
+        int dstPort = u16(buffer, offset + NetfilterBridgeProtocol.BinaryFormat.QueryPackageAction.OFFSET_DESTINATION_PORT);
+        int tlLength = u16(buffer, offset + NetfilterBridgeProtocol.BinaryFormat.QueryPackageAction.OFFSET_LENGTH);
+        int checksum = u16(buffer, offset + NetfilterBridgeProtocol.BinaryFormat.QueryPackageAction.OFFSET_CHECKSUM);
+
+        Packages.TransportLayerPackage tlPackage;
+        int ipProtocol = u8(buffer, offset + NetfilterBridgeProtocol.BinaryFormat.QueryPackageAction.OFFSET_IP_PROTOCOL);
+
+        switch(ipProtocol) {
+            case NetfilterBridgeProtocol.BinaryFormat.QueryPackageAction.IP_PROTOCOL_TCP: {
+                int seqNumber = buffer.getInt(offset + NetfilterBridgeProtocol.BinaryFormat.QueryPackageAction.OFFSET_TCP_SEQUENCE_NUMBER);
+                int ackNumber = buffer.getInt(offset + NetfilterBridgeProtocol.BinaryFormat.QueryPackageAction.OFFSET_TCP_ACK_NUMBER);
+                int tcpFlags = u8(buffer, offset + NetfilterBridgeProtocol.BinaryFormat.QueryPackageAction.OFFSET_TCP_FLAGS);
+
+                Packages.TcpPackage tcpPackage = packagePool.acquireTcpPackage();
+                tcpPackage.set(timestamp, inputDeviceIndex, outputDeviceIndex, srcIP, dstIP, srcPort, dstPort, checksum, tlLength,
+                        seqNumber, ackNumber,
+                        (tcpFlags & NetfilterBridgeProtocol.BinaryFormat.QueryPackageAction.TCP_FLAG_ACK) != 0,
+                        (tcpFlags & NetfilterBridgeProtocol.BinaryFormat.QueryPackageAction.TCP_FLAG_FIN) != 0,
+                        (tcpFlags & NetfilterBridgeProtocol.BinaryFormat.QueryPackageAction.TCP_FLAG_SYN) != 0,
+                        (tcpFlags & NetfilterBridgeProtocol.BinaryFormat.QueryPackageAction.TCP_FLAG_PUSH) != 0,
+                        (tcpFlags & NetfilterBridgeProtocol.BinaryFormat.QueryPackageAction.TCP_FLAG_RESET) != 0,
+                        (tcpFlags & NetfilterBridgeProtocol.BinaryFormat.QueryPackageAction.TCP_FLAG_URGENT) != 0
+                    );
+                tlPackage = tcpPackage;
+                break;
+            }
+            case NetfilterBridgeProtocol.BinaryFormat.QueryPackageAction.IP_PROTOCOL_UDP: {
+                Packages.UdpPackage udpPackage = packagePool.acquireUdpPackage();
+                udpPackage.set(timestamp, inputDeviceIndex, outputDeviceIndex, srcIP, dstIP, srcPort, dstPort, checksum, tlLength);
+                tlPackage = udpPackage;
+                break;
+            }
+            default:
+                throw new NetfilterBridgeProtocol.ProtocolValueException("Unknown message format: unsupported ip-protocol " + ipProtocol, ipProtocol + "", toHexString(buffer, offset, length));
+        }
+
+        tlPackage.setMark(buffer.getInt(offset + NetfilterBridgeProtocol.BinaryFormat.QueryPackageAction.OFFSET_MARK));
+        return tlPackage;
+    }
+
+    /**
+     * @return the nfqueue packet-id (unsigned 32 bit) or the default value, if the frame is too short to contain it.
+     */
+    public static long decodePacketId(ByteBuffer buffer, int offset, int length, long defaultValue) {
+        if (length < NetfilterBridgeProtocol.BinaryFormat.QueryPackageAction.OFFSET_PACKET_ID + 4)
+            return defaultValue;
+
+        return buffer.getInt(offset + NetfilterBridgeProtocol.BinaryFormat.QueryPackageAction.OFFSET_PACKET_ID) & 0xFFFFFFFFL;
+    }
+
+    private static int u8(ByteBuffer buffer, int index) {
+        return buffer.get(index) & 0xFF;
+    }
+
+    private static int u16(ByteBuffer buffer, int index) {
+        return buffer.getShort(index) & 0xFFFF;
+    }
+
+    /**
+     * Used for error-reporting, as the protocol-exceptions expect the received message as string.
+     */
+    public static String toHexString(ByteBuffer buffer, int offset, int length) {
+        StringBuilder builder = new StringBuilder(length * 3);
+
+        for(int i = 0; i < length; i++) {
+            if (i > 0)
+                builder.append(' ');
+            builder.append(String.format("%02X", buffer.get(offset + i)));
+        }
+
+        return builder.toString();
+    }
+}
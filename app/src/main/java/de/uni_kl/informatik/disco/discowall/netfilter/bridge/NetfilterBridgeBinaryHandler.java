@@ -7,6 +7,7 @@ import java.io.File;
 import java.io.FileOutputStream;
 import java.io.IOException;
 import java.io.InputStream;
+import java.util.HashMap;
 
 import de.uni_kl.informatik.disco.discowall.netfilter.NetfilterExceptions;
 import de.uni_kl.informatik.disco.discowall.utils.FileUtils;
@@ -19,7 +20,7 @@ import de.uni_kl.informatik.disco.discowall.utils.ressources.DroidWallFiles;
 class NetfilterBridgeBinaryHandler {
     private static final String LOG_TAG = "NfBinaryHandler";
     private final Context persistentContext;
-    private ShellExecute.ShellExecuteResult bridgeBinaryExecuteResult;
+    private final HashMap<Integer, ShellExecute.ShellExecuteResult> bridgeBinaryExecuteResults = new HashMap<>(); // queue-number -> process
 
     public NetfilterBridgeBinaryHandler(Context persistentContext) {
         this.persistentContext = persistentContext;
@@ -29,7 +30,20 @@ class NetfilterBridgeBinaryHandler {
 
     public File getFile() { return DroidWallFiles.NETFILTER_BRIDGE_BINARY__FILE.getFile(persistentContext); }
 
-    public boolean isProcessRunning() { return (bridgeBinaryExecuteResult==null) ? false : bridgeBinaryExecuteResult.isRunning(); }
+    /**
+     * @return true, if the instances for all started queues are running
+     */
+    public boolean isProcessRunning() {
+        if (bridgeBinaryExecuteResults.isEmpty())
+            return false;
+
+        for(ShellExecute.ShellExecuteResult bridgeBinaryExecuteResult : bridgeBinaryExecuteResults.values()) {
+            if (!bridgeBinaryExecuteResult.isRunning())
+                return false;
+        }
+
+        return true;
+    }
 
     public void deploy() throws NetfilterExceptions.NetfilterBridgeDeploymentException {
         Log.d(LOG_TAG, "netfilter bridge: deploying...");
@@ -58,24 +72,26 @@ class NetfilterBridgeBinaryHandler {
 
     /**
      * Kills all running instances (if any) and then starts a new instance.
-     * @param communicationPort
+     * @param bridgeArguments the transport-address, see {@link NetfilterBridgeTransport#getBridgeArguments()}
+     * @param queueNumber the nfqueue the instance will be bound to
      * @throws ShellExecuteExceptions.CallException
      */
-    public void restart(int communicationPort) throws ShellExecuteExceptions.CallException {
+    public void restart(String bridgeArguments, int queueNumber) throws ShellExecuteExceptions.CallException {
         killAllInstances();
-        start(communicationPort);
+        start(bridgeArguments, queueNumber);
     }
 
-    public void start(int communicationPort) throws ShellExecuteExceptions.CallException {
+    public void start(String bridgeArguments, int queueNumber) throws ShellExecuteExceptions.CallException {
         // It will NOT be waited until this method returns!
         // The bridge binary runs as background process continuously.
-        bridgeBinaryExecuteResult = RootShellExecute.build()
+        ShellExecute.ShellExecuteResult bridgeBinaryExecuteResult = RootShellExecute.build()
                 .doNotReadResult()
                 .doNotWaitForTermination()
                 .doRedirectStderrToStdout() // so that the stdout only contains error-data
-                .appendCommand(getFile().getAbsolutePath() + " localhost " + communicationPort + " > /dev/null")
+                .appendCommand(getFile().getAbsolutePath() + " " + bridgeArguments + " " + queueNumber + " > /dev/null")
 //                .appendCommand("/data/data/nfqnltest/netfilter_bridge localhost 1337")
                 .execute(); // non-blocking call, as ShellExecute.doWaitForTermination==false
+        bridgeBinaryExecuteResults.put(queueNumber, bridgeBinaryExecuteResult);
 
         // note that any output is being redirected to /dev/null in order to not create buffer-problems
     }
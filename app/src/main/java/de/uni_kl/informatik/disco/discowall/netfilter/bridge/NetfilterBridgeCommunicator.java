@@ -2,16 +2,21 @@ package de.uni_kl.informatik.disco.discowall.netfilter.bridge;
 
 import android.util.Log;
 
-import java.io.BufferedReader;
+import java.io.File;
 import java.io.IOException;
-import java.io.InputStreamReader;
-import java.io.PrintWriter;
-import java.net.ServerSocket;
-import java.net.Socket;
-
+import java.nio.ByteBuffer;
+import java.util.Iterator;
+import java.util.LinkedHashSet;
+import java.util.LinkedList;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import de.uni_kl.informatik.disco.discowall.packages.ConnectionEvents;
 import de.uni_kl.informatik.disco.discowall.packages.Packages;
+import de.uni_kl.informatik.disco.discowall.utils.HotPathLog;
+import de.uni_kl.informatik.disco.discowall.utils.TimerService;
 
-public class NetfilterBridgeCommunicator implements Runnable {
+public class NetfilterBridgeCommunicator {
     public static interface PackageActionCallback {
 //        void acceptPackage(Packages.TransportLayerPackage tlPackage);
 //        void blockPackage(Packages.TransportLayerPackage tlPackage);
@@ -26,7 +31,10 @@ public class NetfilterBridgeCommunicator implements Runnable {
          * For any action-decision, except INTERACTIVE, the result can be fetched simply by querying the matching rule (if any), or using the firewall-policy.
          * For INTERACTIVE decisions, however, the user must react by use of a dialog. As android-dialogs are inherintly <b>non-modal</b>, a callback must be used for deciding the response.
          * <p>
-         * <b>IMPORTANT: </b> The netfilter-bridge will block until a decision has been reached.
+         * <b>IMPORTANT: </b> Packages are answered by their nfqueue packet-id, so the netfilter-bridge can have many packages pending at the same time.
+         * Legacy bridges without packet-id will block until a decision has been reached.
+         * <p>
+         * The package may be reused for another query once its verdict has been sent: it must not be kept, copy the required values instead.
          * @param tlPackage
          * @param actionCallback the callback which lets the PackageReceivedHandler declare his decision.
          * @return
@@ -34,6 +42,13 @@ public class NetfilterBridgeCommunicator implements Runnable {
         void onPackageReceived(Packages.TransportLayerPackage tlPackage, PackageActionCallback actionCallback);
     }
 
+    public static interface ConntrackEventHandler {
+        /**
+         * Is being called for each conntrack-event the bridge reports. Events do not have to be answered.
+         */
+        void onConntrackEvent(ConnectionEvents.ConnectionEvent event);
+    }
+
     public static interface BridgeEventsHandler {
         /**
          * This method should NEVER be called. It only exists to make debugging simpler, so that errors do not get stuck within LOGCAT only.
@@ -44,104 +59,209 @@ public class NetfilterBridgeCommunicator implements Runnable {
     }
 
     private static final String LOG_TAG = "NfBridgeCommunicator";
-    public final int listeningPort;
+    private static final long NO_PACKET_ID = -1; // legacy bridges do not send the nfqueue packet-id
+    private static final int VERDICT_BATCH_MAX_SIZE = 256; // verdicts are flushed latest when this many are pending
+    private static final int WRITE_BUFFER_SIZE = 64 * 1024;
+    private static final int DEADLINE_CHECK_MIN_INTERVAL_MS = 100;
+    private static final int DEADLINE_CHECK_MAX_INTERVAL_MS = 1000;
+    private static final long OVERLOAD_WARNING_INTERVAL_NANOS = TimeUnit.SECONDS.toNanos(10);
+
+    /**
+     * The communicator is a state-machine, driven by the I/O-thread of its {@link NetfilterBridgeTransport}:
+     * <ul>
+     *     <li>LISTENING: waiting for the netfilter-bridge to connect</li>
+     *     <li>HANDSHAKE: bridge connected, waiting for its hello-message</li>
+     *     <li>CONNECTED: hello exchanged, package-queries are being handled</li>
+     *     <li>CLOSED: communicator has been stopped by {@link #disconnect()}</li>
+     * </ul>
+     * A disconnect of the bridge (i.e. on bridge restart) changes the state from HANDSHAKE/CONNECTED back to LISTENING.
+     */
+    public static enum ConnectionState { LISTENING, HANDSHAKE, CONNECTED, CLOSED }
 
     // Callbacks & Listeners
     private final BridgeEventsHandler eventsHandler;
     private final PackageReceivedHandler packageReceivedHandler;
 
-    private volatile boolean runCommunicationLoop;
-    private volatile boolean connected;
-
-    private ServerSocket serverSocket;
-    private Socket clientSocket;
+    private final NetfilterBridgeTransport transport;
+    private final boolean connmarkOffload;
+    private final ConntrackEventHandler conntrackEventHandler;
+    private final NetfilterBridgeOverloadPolicy overloadPolicy;
+    private final NetfilterBridgeOverloadPolicy.Metrics overloadMetrics = new NetfilterBridgeOverloadPolicy.Metrics();
+    private final AtomicLong lastOverloadWarningNanos = new AtomicLong(System.nanoTime() - OVERLOAD_WARNING_INTERVAL_NANOS);
+    private final NetfilterBridgeStatistics statistics = new NetfilterBridgeStatistics();
+    private final NetfilterBridgePackagePool packagePool = new NetfilterBridgePackagePool();
+    private volatile ConnectionState connectionState = ConnectionState.LISTENING;
+    private final Object connectionStateLock = new Object(); // notified on each state-change, see awaitConnected()
+    private NetfilterBridgeTransport.Connection connection;
+    private volatile int connectionGeneration = 0; // incremented for each client, so that late verdicts for a previous client are being discarded
     private IOException connectionException;
-    private PrintWriter socketOut;
-    private BufferedReader socketIn;
 
-    public NetfilterBridgeCommunicator(PackageReceivedHandler packageReceivedHandler, BridgeEventsHandler eventsHandler, int listeningPort) throws IOException {
+    // Message-format negotiated within the hello-handshake. All buffers are being reused for each message.
+    private volatile String messageFormat = NetfilterBridgeProtocol.Handshake.FORMAT_TEXT;
+    private final ByteBuffer writeBuffer = ByteBuffer.allocateDirect(WRITE_BUFFER_SIZE);
+    private final StringBuilder lineBuffer = new StringBuilder(256);
+
+    // Verdicts decided within the I/O-thread are collected until all received queries have been handled (= flush window).
+    private final NetfilterBridgeVerdictBatch verdictBatch = new NetfilterBridgeVerdictBatch();
+    private final StringBuilder verdictMessageBuilder = new StringBuilder(256);
+    private volatile Thread communicationThread;
+
+    // Undecided packages in order of arrival - only tracked with an overload-policy. Guarded by itself.
+    private final LinkedHashSet<PackageActionCallbackHandler> pendingDecisions = new LinkedHashSet<>();
+    private TimerService.Timeout decisionDeadlineCheck;
+
+    // capture-mode: null while not recording
+    private volatile NetfilterBridgeTrace.Recorder traceRecorder;
+
+    /**
+     * @param connmarkOffload let the bridge answer with the verdict-marks of {@link NetfilterBridgeIptablesHandler#VERDICT_MARK_ACCEPT},
+     *                        so that the decisions are saved as connmark. Requires the according iptables-rules.
+     * @param conntrackEventHandler if not null, the bridge is asked to report the conntrack-events, which are passed to this handler
+     * @param overloadPolicy if not null, the undecided packages are limited by count and time
+     */
+    public NetfilterBridgeCommunicator(PackageReceivedHandler packageReceivedHandler, BridgeEventsHandler eventsHandler, NetfilterBridgeTransport transport, boolean connmarkOffload, ConntrackEventHandler conntrackEventHandler, NetfilterBridgeOverloadPolicy overloadPolicy) throws IOException {
         this.packageReceivedHandler = packageReceivedHandler;
         this.eventsHandler = eventsHandler;
-        this.listeningPort = listeningPort;
+        this.transport = transport;
+        this.connmarkOffload = connmarkOffload;
+        this.conntrackEventHandler = conntrackEventHandler;
+        this.overloadPolicy = overloadPolicy;
+
+        if (overloadPolicy != null && overloadPolicy.getDecisionDeadlineMs() != NetfilterBridgeOverloadPolicy.UNLIMITED) {
+            int checkInterval = Math.max(DEADLINE_CHECK_MIN_INTERVAL_MS, Math.min(DEADLINE_CHECK_MAX_INTERVAL_MS, overloadPolicy.getDecisionDeadlineMs() / 4));
+            decisionDeadlineCheck = TimerService.getInstance().scheduleAtFixedRate(new Runnable() {
+                @Override
+                public void run() {
+                    expireDecisionDeadlines();
+                }
+            }, checkInterval);
+        }
 
-        Log.v(LOG_TAG, "starting listening thread...");
+        Log.v(LOG_TAG, "starting transport " + transport.getClass().getSimpleName() + "...");
+        transport.start(new TransportSession());
+        Log.v(LOG_TAG, "waiting for client...");
+    }
 
-        Log.d(LOG_TAG, "testing availability of listening port: " + listeningPort);
-        serverSocket = new ServerSocket(listeningPort);
-        serverSocket.close();
-        Log.d(LOG_TAG, "Seems to be available. Port will be used: " + listeningPort);
+    public NetfilterBridgeTransport getTransport() {
+        return transport;
+    }
 
-        new Thread(this).start();
+    private void setConnectionState(ConnectionState newState) {
+        Log.d(LOG_TAG, "connection state: " + connectionState + " -> " + newState);
+        synchronized (connectionStateLock) {
+            connectionState = newState;
+            connectionStateLock.notifyAll();
+        }
     }
 
-    @Override
-    public void run() {
-        connected = false;
+    /**
+     * Blocks until the hello-handshake with the bridge has been completed.
+     * @return false, if the timeout elapsed or the communicator has been closed
+     */
+    public boolean awaitConnected(long timeoutMS) throws InterruptedException {
+        long deadline = System.currentTimeMillis() + timeoutMS;
+
+        synchronized (connectionStateLock) {
+            while (connectionState != ConnectionState.CONNECTED) {
+                long remaining = deadline - System.currentTimeMillis();
+                if (remaining <= 0 || connectionState == ConnectionState.CLOSED)
+                    return false;
+                connectionStateLock.wait(remaining);
+            }
+            return true;
+        }
+    }
 
-        try {
-            Log.v(LOG_TAG, "opening listening port: " + listeningPort);
-            serverSocket = new ServerSocket(listeningPort);
+    /**
+     * Receives the callbacks from the I/O-thread of the transport.
+     */
+    private class TransportSession implements NetfilterBridgeTransport.Session {
+        @Override
+        public void onConnected(NetfilterBridgeTransport.Connection newConnection) {
+            Log.v(LOG_TAG, "client (netfilter bridge) connected.");
+            communicationThread = Thread.currentThread();
 
-            Log.v(LOG_TAG, "waiting for client...");
-            clientSocket = serverSocket.accept();
+            synchronized (NetfilterBridgeCommunicator.this) {
+                connection = newConnection;
+                connectionGeneration++;
 
-            Log.v(LOG_TAG, "client (netfilter bridge) connected.");
-            socketOut = new PrintWriter(clientSocket.getOutputStream(), true);
-            socketIn = new BufferedReader(new InputStreamReader(clientSocket.getInputStream()));
-            Log.v(LOG_TAG, "IO streams connected.");
+                writeBuffer.clear();
+                verdictBatch.clear();
+                messageFormat = NetfilterBridgeProtocol.Handshake.FORMAT_TEXT;
+            }
 
-            connected = true;
+            clearPendingDecisions(); // packages of a previous bridge can no longer be answered
 
-            Log.v(LOG_TAG, "starting communication loop...");
-            communicate();
-            Log.v(LOG_TAG, "communication loop terminated.");
+            setConnectionState(ConnectionState.HANDSHAKE);
+        }
 
-            Log.v(LOG_TAG, "closing listening port: " + listeningPort);
-            serverSocket.close();
-        } catch (IOException e) {
-            connectionException = e;
+        @Override
+        public void onReceived(ByteBuffer receiveBuffer) throws IOException {
+            handleReceiveBuffer(receiveBuffer);
 
-            Log.e(LOG_TAG, "netfilter bridge connection closed with exception: " + e.getMessage());
-            e.printStackTrace(); // will print to Log.i()
-        } finally {
-            connected = false;
+            // All queries received within this read have been handled
+            flushPackageQueryResponses();
         }
 
-        if (runCommunicationLoop) {
-            Log.d(LOG_TAG, "client disconnected. Reopening socket...");
-            run();
-        } else {
-            Log.d(LOG_TAG, "communication loop terminated.");
+        @Override
+        public void onDisconnected(IOException cause) {
+            if (cause != null)
+                connectionException = cause;
+
+            synchronized (NetfilterBridgeCommunicator.this) {
+                connection = null;
+                verdictBatch.clear();
+            }
+
+            clearPendingDecisions();
+
+            if (connectionState != ConnectionState.CLOSED) {
+                setConnectionState(ConnectionState.LISTENING);
+                Log.d(LOG_TAG, "client disconnected. Waiting for new client...");
+            }
+        }
+
+        @Override
+        public void onClosed() {
+            setConnectionState(ConnectionState.CLOSED);
         }
     }
 
     /**
-     * Is being called within the thread by {@link #run} and stopy when {@link #runCommunicationLoop} is set to false,
-     * or when an exception occurrs.
+     * Handles all complete messages within the buffer. Incomplete messages stay within the buffer until more data has been received.
      */
-    private void communicate() throws IOException {
-        runCommunicationLoop = true;
-        boolean firstMessage = true;
-
-        while (runCommunicationLoop
-                && clientSocket.isBound()
-                && clientSocket.isConnected()
-                && !clientSocket.isClosed()
-                && !clientSocket.isInputShutdown()
-                && !clientSocket.isOutputShutdown()
-               ) {
-
-            String message = socketIn.readLine();
-            Log.v(LOG_TAG, "raw message received: " + message);
-
-            if (message == null) {
-                Log.d(LOG_TAG, "value 'null' received. Closing connection and waiting for new client.");
-                break;
+    private void handleReceiveBuffer(ByteBuffer receiveBuffer) throws IOException {
+        while (receiveBuffer.hasRemaining()) {
+            if (connectionState == ConnectionState.CONNECTED && NetfilterBridgeProtocol.Handshake.FORMAT_BINARY_V1.equals(messageFormat)) {
+                if (receiveBuffer.remaining() < NetfilterBridgeProtocol.BinaryFormat.LENGTH_PREFIX_SIZE)
+                    return;
+
+                int prefixOffset = receiveBuffer.position();
+                int frameLength = receiveBuffer.getShort(prefixOffset) & 0xFFFF;
+                if (receiveBuffer.remaining() < NetfilterBridgeProtocol.BinaryFormat.LENGTH_PREFIX_SIZE + frameLength)
+                    return; // incomplete frame
+
+                handleReceivedFrame(receiveBuffer, prefixOffset + NetfilterBridgeProtocol.BinaryFormat.LENGTH_PREFIX_SIZE, frameLength);
+                receiveBuffer.position(prefixOffset + NetfilterBridgeProtocol.BinaryFormat.LENGTH_PREFIX_SIZE + frameLength);
+                continue;
             }
 
-            if (firstMessage) {
-                sendMessage(NetfilterBridgeProtocol.Comment.MSG_PREFIX, "DiscoWall App says hello.");
-                firstMessage = false;
+            String message = readLine(receiveBuffer);
+            if (message == null)
+                return; // incomplete line
+
+            HotPathLog.v(LOG_TAG, "raw message received: {}", message);
+
+            if (connectionState == ConnectionState.HANDSHAKE) {
+                messageFormat = selectMessageFormat(message);
+                Log.d(LOG_TAG, "using message-format: " + messageFormat);
+
+                sendMessage(NetfilterBridgeProtocol.Comment.MSG_PREFIX, "DiscoWall App says hello."
+                        + NetfilterBridgeProtocol.VALUE_PREFIX + NetfilterBridgeProtocol.Handshake.VALUE_SELECTED_FORMAT + NetfilterBridgeProtocol.VALUE_KEY_DELIM + messageFormat + NetfilterBridgeProtocol.VALUE_SUFFIX
+                        + (connmarkOffload ? createVerdictMarksHelloValues() : "")
+                        + (conntrackEventHandler != null ? NetfilterBridgeProtocol.VALUE_PREFIX + NetfilterBridgeProtocol.Handshake.VALUE_CONNTRACK_EVENTS + NetfilterBridgeProtocol.VALUE_KEY_DELIM + "1" + NetfilterBridgeProtocol.VALUE_SUFFIX : "")
+                        + (overloadPolicy != null ? createOverloadPolicyHelloValues(overloadPolicy) : ""));
+                setConnectionState(ConnectionState.CONNECTED);
                 continue;
             }
 
@@ -149,17 +269,119 @@ public class NetfilterBridgeCommunicator implements Runnable {
         }
     }
 
-    private synchronized void sendMessage(String prefix, String message) {
-        Log.v(LOG_TAG, "sendMessage(): " + prefix + message);
-        socketOut.println(prefix + message);
-        socketOut.flush();
+    private static String createVerdictMarksHelloValues() {
+        return NetfilterBridgeProtocol.VALUE_PREFIX + NetfilterBridgeProtocol.Handshake.VALUE_VERDICT_MARK_ACCEPT + NetfilterBridgeProtocol.VALUE_KEY_DELIM + (NetfilterBridgeIptablesHandler.VERDICT_MARK_ACCEPT & 0xFFFFFFFFL) + NetfilterBridgeProtocol.VALUE_SUFFIX
+                + NetfilterBridgeProtocol.VALUE_PREFIX + NetfilterBridgeProtocol.Handshake.VALUE_VERDICT_MARK_DROP + NetfilterBridgeProtocol.VALUE_KEY_DELIM + (NetfilterBridgeIptablesHandler.VERDICT_MARK_DROP & 0xFFFFFFFFL) + NetfilterBridgeProtocol.VALUE_SUFFIX;
+    }
+
+    private static String createOverloadPolicyHelloValues(NetfilterBridgeOverloadPolicy overloadPolicy) {
+        String values = "";
+
+        if (overloadPolicy.getQueueMaxLength() != NetfilterBridgeOverloadPolicy.UNLIMITED)
+            values += NetfilterBridgeProtocol.VALUE_PREFIX + NetfilterBridgeProtocol.Handshake.VALUE_QUEUE_MAXLEN + NetfilterBridgeProtocol.VALUE_KEY_DELIM + overloadPolicy.getQueueMaxLength() + NetfilterBridgeProtocol.VALUE_SUFFIX;
+        if (overloadPolicy.isFailOpen())
+            values += NetfilterBridgeProtocol.VALUE_PREFIX + NetfilterBridgeProtocol.Handshake.VALUE_QUEUE_FAIL_OPEN + NetfilterBridgeProtocol.VALUE_KEY_DELIM + "1" + NetfilterBridgeProtocol.VALUE_SUFFIX;
+
+        return values;
+    }
+
+    /**
+     * Picks the binary format, if offered within the hello-message of the bridge. Otherwise the text-format will be used.
+     */
+    private String selectMessageFormat(final String helloMessage) {
+        if (!messageContainsValue(helloMessage, NetfilterBridgeProtocol.Handshake.VALUE_SUPPORTED_FORMATS))
+            return NetfilterBridgeProtocol.Handshake.FORMAT_TEXT;
+
+        try {
+            String formats = extractStringValueFromMessage(helloMessage, NetfilterBridgeProtocol.Handshake.VALUE_SUPPORTED_FORMATS);
+
+            for(String format : formats.split(NetfilterBridgeProtocol.Handshake.FORMATS_DELIM)) {
+                if (format.trim().equals(NetfilterBridgeProtocol.Handshake.FORMAT_BINARY_V1))
+                    return NetfilterBridgeProtocol.Handshake.FORMAT_BINARY_V1;
+            }
+        } catch (NetfilterBridgeProtocol.ProtocolValueMissingException e) {
+            Log.w(LOG_TAG, "Could not read supported message-formats from hello-message: " + helloMessage);
+        }
+
+        return NetfilterBridgeProtocol.Handshake.FORMAT_TEXT;
+    }
+
+    /**
+     * Reads one text-line (ASCII) from the buffer. Line-terminators are not part of the result.
+     * @return the line or null if the buffer does not contain a complete line yet.
+     */
+    private String readLine(ByteBuffer buffer) throws IOException {
+        int lineEnd = -1;
+        for(int i = buffer.position(); i < buffer.limit(); i++) {
+            if (buffer.get(i) == '\n') {
+                lineEnd = i;
+                break;
+            }
+        }
+
+        if (lineEnd < 0) {
+            if (buffer.position() == 0 && buffer.limit() == buffer.capacity())
+                throw new IOException("Received line exceeds receive-buffer size of " + buffer.capacity() + " bytes.");
+            return null;
+        }
+
+        lineBuffer.setLength(0);
+        for(int i = buffer.position(); i < lineEnd; i++) {
+            char c = (char) (buffer.get(i) & 0xFF);
+            if (c != '\r')
+                lineBuffer.append(c);
+        }
+        buffer.position(lineEnd + 1);
+
+        return lineBuffer.toString();
+    }
+
+    private void sendMessage(String prefix, String message) {
+        HotPathLog.v(LOG_TAG, "sendMessage(): {}{}", prefix, message);
+        writeAscii(prefix, message, "\n");
+    }
+
+    /**
+     * Encodes the strings into the write-buffer and passes them to the transport. Can be called from any thread.
+     */
+    private synchronized void writeAscii(CharSequence... parts) {
+        if (connection == null) {
+            Log.w(LOG_TAG, "Trying to send message while no client is connected. Message discarded.");
+            return;
+        }
+
+        int length = 0;
+        for(CharSequence part : parts)
+            length += part.length();
+
+        if (writeBuffer.capacity() < length) {
+            Log.e(LOG_TAG, "Message exceeds write-buffer size of " + writeBuffer.capacity() + " bytes. Message discarded.");
+            return;
+        }
+
+        writeBuffer.clear();
+        for(CharSequence part : parts) {
+            for(int i = 0; i < part.length(); i++)
+                writeBuffer.put((byte) part.charAt(i));
+        }
+        writeBuffer.flip();
+
+        try {
+            connection.write(writeBuffer);
+        } catch (IOException e) {
+            connectionException = e;
+            Log.e(LOG_TAG, "Error while writing to netfilter-bridge: " + e.getMessage(), e);
+            eventsHandler.onInternalERROR("Error while writing to netfilter-bridge: " + e.getMessage(), e);
+        }
     }
 
     private void handleReceivedMessage(final String message) {
         if (message.startsWith(NetfilterBridgeProtocol.QueryPackageAction.MSG_PREFIX)) {
             // Example: #Packet.QueryAction##protocol=tcp##ip.src=192.168.178.28##ip.dst=173.194.116.159##tcp.src.port=35251##tcp.dst.port=80#
 
+            final long receivedAtNanos = System.nanoTime();
             Packages.TransportLayerPackage tlPackage;
+            final long packetId = extractPacketIdFromMessage(message);
 
             try {
                 boolean hasInputDeviceInfo = messageContainsValue(message, NetfilterBridgeProtocol.QueryPackageAction.Physical.OPT_VALUE_INPUT_DEVICE);
@@ -196,7 +418,7 @@ public class NetfilterBridgeCommunicator implements Runnable {
                     boolean hasFlagReset = extractBitValueFromMessage(message, NetfilterBridgeProtocol.QueryPackageAction.TCP.VALUE_FLAG_RESET);
                     boolean hasFlagUrgent = extractBitValueFromMessage(message, NetfilterBridgeProtocol.QueryPackageAction.TCP.VALUE_FLAG_URGENT);
 
-                    tlPackage = new Packages.TcpPackage(inputDeviceIndex, outputDeviceIndex, srcIP, dstIP, srcPort, dstPort, length, checksum,
+                    tlPackage = new Packages.TcpPackage(inputDeviceIndex, outputDeviceIndex, srcIP, dstIP, srcPort, dstPort, checksum, length,
                             seqNumber, ackNumber,
                             hasFlagACK, hasFlagFIN, hasFlagSYN, hasFlagPush, hasFlagReset, hasFlagUrgent
                         );
@@ -207,13 +429,13 @@ public class NetfilterBridgeCommunicator implements Runnable {
                     int length = extractIntValueFromMessage(message, NetfilterBridgeProtocol.QueryPackageAction.UDP.VALUE_LENGTH);
                     int checksum = extractIntValueFromMessage(message, NetfilterBridgeProtocol.QueryPackageAction.UDP.VALUE_CHECKSUM);
 
-                    tlPackage = new Packages.UdpPackage(inputDeviceIndex, outputDeviceIndex, srcIP, dstIP, srcPort, dstPort, length, checksum);
+                    tlPackage = new Packages.UdpPackage(inputDeviceIndex, outputDeviceIndex, srcIP, dstIP, srcPort, dstPort, checksum, length);
                 } else {
                     Log.e(LOG_TAG, "Unknown message format (no transport-layer defined): " + message);
                     NetfilterBridgeProtocol.ProtocolFormatException formatException = new NetfilterBridgeProtocol.ProtocolFormatException("Unknown message format: no transport-layer defined", message);
                     eventsHandler.onInternalERROR(message, formatException);
 
-                    onErroneousPackageReceived();
+                    onErroneousPackageReceived(packetId);
                     return;
                 }
 
@@ -224,14 +446,31 @@ public class NetfilterBridgeCommunicator implements Runnable {
                 Log.e(LOG_TAG, "Error while decoding message: " + message + "\n" + e.getMessage());
                 eventsHandler.onInternalERROR("Error while decoding message: " + message + "\n" + e.getMessage(), e);
 
-                onErroneousPackageReceived();
+                onErroneousPackageReceived(packetId);
                 return;
             }
 
-            Log.v(LOG_TAG, "Decoded package-information: " + tlPackage);
+            HotPathLog.v(LOG_TAG, "Decoded package-information: {}", tlPackage);
 
             // React to received package
-            onPackageReceived(tlPackage);
+            onPackageReceived(tlPackage, packetId, receivedAtNanos);
+        } else if (message.startsWith(NetfilterBridgeProtocol.ConntrackEvent.MSG_PREFIX)) {
+            try {
+                onConntrackEventReceived(NetfilterBridgeConntrackEventParser.parse(message));
+            } catch(NetfilterBridgeProtocol.ProtocolException e) {
+                Log.e(LOG_TAG, "Error while decoding conntrack event: " + message + "\n" + e.getMessage());
+                eventsHandler.onInternalERROR("Error while decoding conntrack event: " + message + "\n" + e.getMessage(), e);
+            }
+        } else if (message.startsWith(NetfilterBridgeProtocol.QueueStats.MSG_PREFIX)) {
+            try {
+                onQueueStatsReceived(
+                        Long.parseLong(extractStringValueFromMessage(message, NetfilterBridgeProtocol.QueueStats.VALUE_QUEUE_LENGTH)),
+                        Long.parseLong(extractStringValueFromMessage(message, NetfilterBridgeProtocol.QueueStats.VALUE_QUEUE_DROPPED)),
+                        Long.parseLong(extractStringValueFromMessage(message, NetfilterBridgeProtocol.QueueStats.VALUE_USER_DROPPED)),
+                        Long.parseLong(extractStringValueFromMessage(message, NetfilterBridgeProtocol.QueueStats.VALUE_RECEIVE_OVERRUNS)));
+            } catch(NetfilterBridgeProtocol.ProtocolException | NumberFormatException e) {
+                Log.e(LOG_TAG, "Error while decoding queue-stats: " + message + "\n" + e.getMessage());
+            }
         } else if (message.startsWith(NetfilterBridgeProtocol.Comment.MSG_PREFIX)) {
             String comment = message.substring(message.indexOf(NetfilterBridgeProtocol.Comment.MSG_PREFIX));
             Log.v(LOG_TAG, "Comment received: " + comment);
@@ -240,6 +479,64 @@ public class NetfilterBridgeCommunicator implements Runnable {
         }
     }
 
+    /**
+     * Decodes the frame directly within the read-buffer.
+     * @param offset index of the first frame-byte (after the length prefix)
+     */
+    private void handleReceivedFrame(final ByteBuffer buffer, final int offset, final int length) {
+        if (length >= NetfilterBridgeProtocol.BinaryFormat.QueueStats.FRAME_LENGTH
+                && (buffer.get(offset + NetfilterBridgeProtocol.BinaryFormat.OFFSET_MESSAGE_TYPE) & 0xFF) == NetfilterBridgeProtocol.BinaryFormat.MESSAGE_TYPE_QUEUE_STATS) {
+            onQueueStatsReceived(
+                    buffer.getInt(offset + NetfilterBridgeProtocol.BinaryFormat.QueueStats.OFFSET_QUEUE_LENGTH) & 0xFFFFFFFFL,
+                    buffer.getInt(offset + NetfilterBridgeProtocol.BinaryFormat.QueueStats.OFFSET_QUEUE_DROPPED) & 0xFFFFFFFFL,
+                    buffer.getInt(offset + NetfilterBridgeProtocol.BinaryFormat.QueueStats.OFFSET_USER_DROPPED) & 0xFFFFFFFFL,
+                    buffer.getInt(offset + NetfilterBridgeProtocol.BinaryFormat.QueueStats.OFFSET_RECEIVE_OVERRUNS) & 0xFFFFFFFFL);
+            return;
+        }
+
+        if (length >= NetfilterBridgeProtocol.BinaryFormat.HEADER_LENGTH
+                && (buffer.get(offset + NetfilterBridgeProtocol.BinaryFormat.OFFSET_MESSAGE_TYPE) & 0xFF) == NetfilterBridgeProtocol.BinaryFormat.MESSAGE_TYPE_CONNTRACK_EVENT) {
+            try {
+                onConntrackEventReceived(NetfilterBridgeConntrackEventParser.decode(buffer, offset, length));
+            } catch(NetfilterBridgeProtocol.ProtocolException e) {
+                Log.e(LOG_TAG, "Error while decoding conntrack event frame: " + e.getMessage());
+                eventsHandler.onInternalERROR("Error while decoding conntrack event frame: " + e.getMessage(), e);
+            }
+            return;
+        }
+
+        final long receivedAtNanos = System.nanoTime();
+        Packages.TransportLayerPackage tlPackage;
+        final long packetId = NetfilterBridgeBinaryDecoder.decodePacketId(buffer, offset, length, NO_PACKET_ID);
+
+        try {
+            if (length < NetfilterBridgeProtocol.BinaryFormat.HEADER_LENGTH)
+                throw new NetfilterBridgeProtocol.ProtocolFormatException("Binary frame too short for header: " + length + " bytes.", NetfilterBridgeBinaryDecoder.toHexString(buffer, offset, length));
+
+            int version = buffer.get(offset + NetfilterBridgeProtocol.BinaryFormat.OFFSET_VERSION) & 0xFF;
+            if (version != NetfilterBridgeProtocol.BinaryFormat.VERSION)
+                throw new NetfilterBridgeProtocol.ProtocolValueException("Unsupported binary format version: " + version, version + "", NetfilterBridgeBinaryDecoder.toHexString(buffer, offset, length));
+
+            int messageType = buffer.get(offset + NetfilterBridgeProtocol.BinaryFormat.OFFSET_MESSAGE_TYPE) & 0xFF;
+            if (messageType != NetfilterBridgeProtocol.BinaryFormat.MESSAGE_TYPE_QUERY_PACKAGE_ACTION)
+                throw new NetfilterBridgeProtocol.ProtocolValueException("Unknown binary message type: " + messageType, messageType + "", NetfilterBridgeBinaryDecoder.toHexString(buffer, offset, length));
+
+            tlPackage = NetfilterBridgeBinaryDecoder.decodeQueryPackageAction(buffer, offset, length, packagePool, receivedAtNanos);
+        } catch(NetfilterBridgeProtocol.ProtocolException e) {
+            Log.e(LOG_TAG, "Error while decoding binary frame: " + e.getMessage());
+            eventsHandler.onInternalERROR("Error while decoding binary frame: " + e.getMessage(), e);
+
+            onErroneousPackageReceived(packetId);
+            return;
+        }
+
+        if (HotPathLog.isLoggable(Log.VERBOSE))
+            HotPathLog.v(LOG_TAG, "Decoded package-information: {}", tlPackage.toString()); // reusable: must not be rendered later
+
+        // React to received package
+        onPackageReceived(tlPackage, packetId, receivedAtNanos);
+    }
+
     private boolean extractBitValueFromMessage(final String message, final String valueName) throws NetfilterBridgeProtocol.ProtocolValueException {
         int value = extractIntValueFromMessage(message, valueName);
         if (value != 0 && value != 1)
@@ -248,7 +545,7 @@ public class NetfilterBridgeCommunicator implements Runnable {
         return value == 1;
     }
 
-    private int extractIntValueFromMessage(final String message, final String valueName) throws NetfilterBridgeProtocol.ProtocolValueMissingException, NetfilterBridgeProtocol.ProtocolValueTypeException {
+    static int extractIntValueFromMessage(final String message, final String valueName) throws NetfilterBridgeProtocol.ProtocolValueMissingException, NetfilterBridgeProtocol.ProtocolValueTypeException {
         String intValueStr = extractStringValueFromMessage(message, valueName);
 
         try {
@@ -258,7 +555,23 @@ public class NetfilterBridgeCommunicator implements Runnable {
         }
     }
 
-    private boolean messageContainsValue(final String message, final String valueName) {
+    /**
+     * The packet-id is optional, as older bridges only have one package pending at a time.
+     * @return the packet-id or {@link #NO_PACKET_ID}, if the message does not contain a (valid) packet-id.
+     */
+    private long extractPacketIdFromMessage(final String message) {
+        if (!messageContainsValue(message, NetfilterBridgeProtocol.QueryPackageAction.Netfilter.VALUE_PACKET_ID))
+            return NO_PACKET_ID;
+
+        try {
+            return Long.parseLong(extractStringValueFromMessage(message, NetfilterBridgeProtocol.QueryPackageAction.Netfilter.VALUE_PACKET_ID));
+        } catch(Exception e) {
+            Log.e(LOG_TAG, "Invalid packet-id within message: " + message);
+            return NO_PACKET_ID;
+        }
+    }
+
+    static boolean messageContainsValue(final String message, final String valueName) {
         String valuePrefix = NetfilterBridgeProtocol.VALUE_PREFIX + valueName + NetfilterBridgeProtocol.VALUE_KEY_DELIM;
         String valueSuffix = NetfilterBridgeProtocol.VALUE_SUFFIX;
 
@@ -269,7 +582,7 @@ public class NetfilterBridgeCommunicator implements Runnable {
         return messageStartingWithValue.contains(valueSuffix); // checking again, in case the suffix is a substring of the prefix
     }
 
-    private String extractStringValueFromMessage(final String message, final String valueName) throws NetfilterBridgeProtocol.ProtocolValueMissingException {
+    static String extractStringValueFromMessage(final String message, final String valueName) throws NetfilterBridgeProtocol.ProtocolValueMissingException {
         String valuePrefix = NetfilterBridgeProtocol.VALUE_PREFIX + valueName + NetfilterBridgeProtocol.VALUE_KEY_DELIM;
         String valueSuffix = NetfilterBridgeProtocol.VALUE_SUFFIX;
 
@@ -283,97 +596,356 @@ public class NetfilterBridgeCommunicator implements Runnable {
         return messageStartingWithValue.substring(0, messageStartingWithValue.indexOf(valueSuffix));
     }
 
-    private void onPackageReceived(Packages.TransportLayerPackage tlPackage) {
-        PackageActionCallbackHandler callbackHandler = new PackageActionCallbackHandler(tlPackage);
+    /**
+     * @param receivedAtNanos {@link System#nanoTime()} at which the complete query had been received
+     */
+    private void onPackageReceived(Packages.TransportLayerPackage tlPackage, long packetId, long receivedAtNanos) {
+        statistics.onPackageDecoded(tlPackage, receivedAtNanos);
+
+        NetfilterBridgeTrace.Recorder recorder = traceRecorder;
+        if (recorder != null) {
+            try {
+                recorder.recordQuery(tlPackage, packetId);
+            } catch (IOException e) {
+                onTraceRecordingFailed(recorder, e);
+            }
+        }
+
+        PackageActionCallbackHandler callbackHandler = new PackageActionCallbackHandler(tlPackage, packetId, connectionGeneration, receivedAtNanos);
+
+        if (overloadPolicy != null && !addPendingDecision(callbackHandler)) {
+            overloadMetrics.backlogFallbacks.incrementAndGet();
+            if (isOverloadWarningDue())
+                Log.w(LOG_TAG, "Decision-backlog full (" + overloadPolicy.getDecisionBacklogMaxSize() + " packages). Applying fallback-verdicts, " + overloadMetrics);
+            callbackHandler.answerWithFallbackVerdict("Decision-backlog full");
+            return;
+        }
+
         packageReceivedHandler.onPackageReceived(tlPackage, callbackHandler);
     }
 
-    private void onErroneousPackageReceived() {
+    /**
+     * @return false, if the decision-backlog is full
+     */
+    private boolean addPendingDecision(PackageActionCallbackHandler callbackHandler) {
+        synchronized (pendingDecisions) {
+            int maxSize = overloadPolicy.getDecisionBacklogMaxSize();
+            if (maxSize != NetfilterBridgeOverloadPolicy.UNLIMITED && pendingDecisions.size() >= maxSize)
+                return false;
+
+            pendingDecisions.add(callbackHandler);
+            overloadMetrics.decisionBacklog = pendingDecisions.size();
+            return true;
+        }
+    }
+
+    private void removePendingDecision(PackageActionCallbackHandler callbackHandler) {
+        if (overloadPolicy == null)
+            return;
+
+        synchronized (pendingDecisions) {
+            pendingDecisions.remove(callbackHandler);
+            overloadMetrics.decisionBacklog = pendingDecisions.size();
+        }
+    }
+
+    private void clearPendingDecisions() {
+        synchronized (pendingDecisions) {
+            pendingDecisions.clear();
+            overloadMetrics.decisionBacklog = 0;
+        }
+    }
+
+    /**
+     * Called periodically by the {@link TimerService}. As all packages share the same deadline, only the oldest ones have to be checked.
+     */
+    private void expireDecisionDeadlines() {
+        final long deadlineNanos = TimeUnit.MILLISECONDS.toNanos(overloadPolicy.getDecisionDeadlineMs());
+        final long now = System.nanoTime();
+        LinkedList<PackageActionCallbackHandler> expired = null;
+
+        synchronized (pendingDecisions) {
+            for(Iterator<PackageActionCallbackHandler> iterator = pendingDecisions.iterator(); iterator.hasNext(); ) {
+                PackageActionCallbackHandler callbackHandler = iterator.next();
+                if (now - callbackHandler.receivedAtNanos < deadlineNanos)
+                    break;
+
+                iterator.remove();
+                if (expired == null)
+                    expired = new LinkedList<>();
+                expired.add(callbackHandler);
+            }
+            overloadMetrics.decisionBacklog = pendingDecisions.size();
+        }
+
+        if (expired == null)
+            return;
+
+        for(PackageActionCallbackHandler callbackHandler : expired) {
+            if (callbackHandler.answerWithFallbackVerdict("Decision-deadline passed"))
+                overloadMetrics.deadlineFallbacks.incrementAndGet();
+        }
+
+        if (isOverloadWarningDue())
+            Log.w(LOG_TAG, "Decision-deadline of " + overloadPolicy.getDecisionDeadlineMs() + "ms passed for " + expired.size() + " packages. Applying fallback-verdicts, " + overloadMetrics);
+    }
+
+    /**
+     * Overload is being signaled per package: warns at most once per {@link #OVERLOAD_WARNING_INTERVAL_NANOS}, the fallbacks are counted by the metrics.
+     */
+    private boolean isOverloadWarningDue() {
+        long now = System.nanoTime();
+        long lastWarning = lastOverloadWarningNanos.get();
+        return now - lastWarning >= OVERLOAD_WARNING_INTERVAL_NANOS && lastOverloadWarningNanos.compareAndSet(lastWarning, now);
+    }
+
+    private void onQueueStatsReceived(long queueLength, long queueDropped, long userDropped, long receiveOverruns) {
+        if (queueDropped > overloadMetrics.kernelQueueDropped || userDropped > overloadMetrics.kernelUserDropped || receiveOverruns > overloadMetrics.bridgeReceiveOverruns)
+            Log.w(LOG_TAG, "netfilter-bridge is losing packages: queue-dropped=" + queueDropped + ", user-dropped=" + userDropped + ", receive-overruns=" + receiveOverruns);
+
+        overloadMetrics.kernelQueueLength = queueLength;
+        overloadMetrics.kernelQueueDropped = queueDropped;
+        overloadMetrics.kernelUserDropped = userDropped;
+        overloadMetrics.bridgeReceiveOverruns = receiveOverruns;
+    }
+
+    /**
+     * @return the live metrics of the overload-policy. The fallbacks are only counted with an overload-policy, the kernel counters always.
+     */
+    public NetfilterBridgeOverloadPolicy.Metrics getOverloadMetrics() {
+        return overloadMetrics;
+    }
+
+    /**
+     * @return the live statistics of this bridge-connection, counted since the communicator has been created
+     */
+    public NetfilterBridgeStatistics getStatistics() {
+        return statistics;
+    }
+
+    private void onConntrackEventReceived(ConnectionEvents.ConnectionEvent event) {
+        HotPathLog.v(LOG_TAG, "Conntrack event: {}", event);
+
+        if (conntrackEventHandler != null)
+            conntrackEventHandler.onConntrackEvent(event);
+    }
+
+    private void onErroneousPackageReceived(long packetId) {
+        statistics.protocolErrors.incrementAndGet();
         Log.e(LOG_TAG, "Accepting erroneous package, so that the netfilter-bridge will not stay blocked while waiting for response.");
-        sendPackageQueryResponse(true);
+        sendPackageQueryResponse(packetId, true, connectionGeneration);
+    }
+
+    /**
+     * Verdicts decided within the I/O-thread are being batched until all queries of the current read have been handled.
+     * Verdicts from any other thread (i.e. user-decisions) are flushed immediately.
+     * @param packetId the nfqueue packet-id of the query, or {@link #NO_PACKET_ID} for bridges which only have one package pending at a time.
+     * @param generation the connection the query has been received on. Verdicts for a previous connection are discarded,
+     *                   as a restarted bridge starts with new packet-ids.
+     */
+    private synchronized void sendPackageQueryResponse(long packetId, boolean accept, int generation) {
+        if (generation != connectionGeneration || connection == null) {
+            Log.w(LOG_TAG, "Discarding verdict for packet-id " + packetId + ": the connection to the netfilter-bridge has been closed meanwhile.");
+            return;
+        }
+
+        NetfilterBridgeTrace.Recorder recorder = traceRecorder;
+        if (recorder != null && packetId != NO_PACKET_ID) {
+            try {
+                recorder.recordVerdict(packetId, accept);
+            } catch (IOException e) {
+                onTraceRecordingFailed(recorder, e);
+            }
+        }
+
+        if (packetId == NO_PACKET_ID) {
+            if (accept)
+                sendMessage(NetfilterBridgeProtocol.QueryPackageActionResponse.MSG_PREFIX, NetfilterBridgeProtocol.QueryPackageActionResponse.FLAG_ACCEPT_PACKAGE);
+            else
+                sendMessage(NetfilterBridgeProtocol.QueryPackageActionResponse.MSG_PREFIX, NetfilterBridgeProtocol.QueryPackageActionResponse.FLAG_DROP_PACKAGE);
+            return;
+        }
+
+        verdictBatch.add(packetId, accept);
+
+        if (Thread.currentThread() != communicationThread || verdictBatch.size() >= VERDICT_BATCH_MAX_SIZE)
+            flushPackageQueryResponses();
     }
 
-    private synchronized void sendPackageQueryResponse(boolean accept) {
-        if (accept)
-            sendMessage(NetfilterBridgeProtocol.QueryPackageActionResponse.MSG_PREFIX, NetfilterBridgeProtocol.QueryPackageActionResponse.FLAG_ACCEPT_PACKAGE);
-        else
-            sendMessage(NetfilterBridgeProtocol.QueryPackageActionResponse.MSG_PREFIX, NetfilterBridgeProtocol.QueryPackageActionResponse.FLAG_DROP_PACKAGE);
+    /**
+     * Sends all batched verdicts using a single write.
+     */
+    private synchronized void flushPackageQueryResponses() {
+        if (verdictBatch.isEmpty())
+            return;
+
+        verdictMessageBuilder.setLength(0);
+        verdictBatch.encodeAndClear(verdictMessageBuilder);
+
+        if (HotPathLog.isLoggable(Log.VERBOSE)) // the builder is being reused
+            HotPathLog.v(LOG_TAG, "flushing verdicts: {}", verdictMessageBuilder.toString());
+        writeAscii(verdictMessageBuilder);
     }
 
+    /**
+     * @return true as long as a netfilter-bridge is connected (including the hello-handshake)
+     */
     public boolean isConnected() {
-        return connected;
+        ConnectionState state = connectionState;
+        return state == ConnectionState.HANDSHAKE || state == ConnectionState.CONNECTED;
+    }
+
+    public ConnectionState getConnectionState() {
+        return connectionState;
     }
 
     public IOException getConnectionException() {
         return connectionException;
     }
 
+    /**
+     * Capture-mode: appends each received package-query and its verdict to the trace-file, until {@link #stopTraceRecording()} is called.
+     * The trace can be replayed using {@link NetfilterBridgeTraceReplayer}. A running recording is being replaced.
+     */
+    public void startTraceRecording(File traceFile) throws IOException {
+        NetfilterBridgeTrace.Recorder recorder = new NetfilterBridgeTrace.Recorder(traceFile);
+        stopTraceRecording();
+        traceRecorder = recorder;
+        Log.i(LOG_TAG, "Recording bridge-traffic to: " + traceFile.getAbsolutePath());
+    }
+
+    public void stopTraceRecording() {
+        NetfilterBridgeTrace.Recorder recorder = traceRecorder;
+        if (recorder == null)
+            return;
+
+        traceRecorder = null;
+        try {
+            recorder.close(); // concurrent record-calls are being ignored from now on
+        } catch (IOException e) {
+            Log.e(LOG_TAG, "Error while closing trace-file: " + e.getMessage(), e);
+        }
+
+        if (recorder.getDroppedRecordCount() > 0)
+            Log.w(LOG_TAG, "Trace-writer did not keep up: " + recorder.getDroppedRecordCount() + " records have been dropped.");
+    }
+
+    public boolean isTraceRecording() {
+        return traceRecorder != null;
+    }
+
+    private void onTraceRecordingFailed(NetfilterBridgeTrace.Recorder recorder, IOException e) {
+        Log.e(LOG_TAG, "Error while recording bridge-traffic. Recording stopped: " + e.getMessage(), e);
+        if (traceRecorder == recorder)
+            stopTraceRecording();
+    }
+
     public void disconnect() {
-        runCommunicationLoop = false;
+        if (decisionDeadlineCheck != null)
+            decisionDeadlineCheck.cancel();
+        stopTraceRecording();
+
+        setConnectionState(ConnectionState.CLOSED);
+        transport.stop();
     }
 
     /**
      * Is being called from within the firewall, as a package-decision is made.
-     * For each package, there is one instance.
+     * For each package, there is one instance. As the packet-id is being sent along with the response,
+     * the instances may be answered in any order. Once answered, the package is being released to the package-pool.
      */
     private class PackageActionCallbackHandler implements PackageActionCallback {
         private final String LOG_TAG = PackageActionCallbackHandler.class.getSimpleName();
         private final Packages.TransportLayerPackage tlPackage;
+        private final long packetId;
+        private final int connectionGeneration;
+        private final long receivedAtNanos;
 
         private volatile boolean isAnswered = false;
+        private TimerService.Timeout autoAnswerTimeout;
 
         public boolean isAnswered() {
             return isAnswered;
         }
 
-        public PackageActionCallbackHandler(Packages.TransportLayerPackage tlPackage) {
+        public PackageActionCallbackHandler(Packages.TransportLayerPackage tlPackage, long packetId, int connectionGeneration, long receivedAtNanos) {
+            this.receivedAtNanos = receivedAtNanos;
             this.tlPackage = tlPackage;
+            this.packetId = packetId;
+            this.connectionGeneration = connectionGeneration;
         }
 
         /**
-         * Will start a thread which automatically answers the package with ACCEPT or BLOCK
-         * after a certain amount of time.
+         * Will schedule a task on the shared {@link TimerService}, which automatically answers the package with ACCEPT or BLOCK
+         * after a certain amount of time. The task is cancelled as soon as the package is being answered.
          */
-        public void startAutoAnswerCountdown(final boolean accept, final int timeoutInMilliseconds) {
-            Thread answerThread = new Thread() {
+        public synchronized void startAutoAnswerCountdown(final boolean accept, final int timeoutInMilliseconds) {
+            if (isAnswered)
+                return;
+
+            if (autoAnswerTimeout != null)
+                autoAnswerTimeout.cancel();
+
+            autoAnswerTimeout = TimerService.getInstance().schedule(new Runnable() {
                 @Override
                 public void run() {
-                    try {
-                        Thread.sleep(timeoutInMilliseconds);
-                    } catch(Exception e) {
-                        Log.e(LOG_TAG, "Auto-Answer-Thread has been stopped due to exception: " + e.getMessage(), e);
-                    }
-
                     if (isAnswered)
                         return;
 
-                    Log.v(LOG_TAG, "Auto-Answer: " + accept);
+                    HotPathLog.v(LOG_TAG, "Auto-Answer: {}", accept);
 
                     if (accept)
                         acceptPendingPackage();
                     else
                         blockPendingPackage();
                 }
-            };
+            }, timeoutInMilliseconds);
+        }
 
-            answerThread.setDaemon(true);
-            answerThread.start();
+        /**
+         * The package is only being read while holding the lock, as it returns to the pool as soon as it has been answered.
+         * @return false, if the package has already been answered
+         */
+        public synchronized boolean answerWithFallbackVerdict(String reason) {
+            if (isAnswered)
+                return false;
+
+            if (HotPathLog.isLoggable(Log.DEBUG))
+                HotPathLog.d(LOG_TAG, "{}. Applying fallback-verdict to: {}", reason, tlPackage.toString()); // reusable: must not be rendered later
+            NetfilterBridgeOverloadPolicy.FallbackVerdictHandler fallbackVerdictHandler = overloadPolicy.getFallbackVerdictHandler();
+            answer(fallbackVerdictHandler != null ? fallbackVerdictHandler.isFallbackVerdictAccept(tlPackage) : overloadPolicy.isFailOpen());
+            return true;
         }
 
         @Override
         public void acceptPendingPackage() {
-            Log.v(LOG_TAG, "Accepting package: " + tlPackage);
-            isAnswered = true;
-
-            sendPackageQueryResponse(true);
+            answer(true);
         }
 
         @Override
         public void blockPendingPackage() {
-            Log.v(LOG_TAG, "Dropping package: " + tlPackage);
+            answer(false);
+        }
+
+        private synchronized void answer(boolean accept) {
+            if (isAnswered) {
+                Log.w(LOG_TAG, "Package #" + packetId + " has already been answered."); // package may already be reused
+                return;
+            }
+
+            if (HotPathLog.isLoggable(Log.VERBOSE))
+                HotPathLog.v(LOG_TAG, "{} package #{}: {}", accept ? "Accepting" : "Dropping", packetId, tlPackage.toString());
             isAnswered = true;
 
-            sendPackageQueryResponse(false);
+            if (autoAnswerTimeout != null) {
+                autoAnswerTimeout.cancel();
+                autoAnswerTimeout = null;
+            }
+            removePendingDecision(this);
+
+            sendPackageQueryResponse(packetId, accept, connectionGeneration);
+            statistics.onVerdict(tlPackage, accept, receivedAtNanos);
+            packagePool.release(tlPackage);
         }
     }
 
@@ -0,0 +1,143 @@
+package de.uni_kl.informatik.disco.discowall.netfilter.bridge;
+
+import java.nio.ByteBuffer;
+
+import de.uni_kl.informatik.disco.discowall.packages.ConnectionEvents;
+import de.uni_kl.informatik.disco.discowall.packages.Packages;
+
+/**
+ * Parses the {@link NetfilterBridgeProtocol.ConntrackEvent} messages (text and binary) into {@link ConnectionEvents.ConnectionEvent}s.
+ */
+class NetfilterBridgeConntrackEventParser {
+    private NetfilterBridgeConntrackEventParser() {
+    }
+
+    public static ConnectionEvents.ConnectionEvent parse(final String message) throws NetfilterBridgeProtocol.ProtocolException {
+        // Example: #Conntrack.Event##conntrack.event=destroy##protocol=tcp##ip.src=10.0.0.2##ip.dst=1.2.3.4##port.src=4711##port.dst=80##conntrack.tcp.state=7#
+
+        ConnectionEvents.EventType type;
+        String typeValue = NetfilterBridgeCommunicator.extractStringValueFromMessage(message, NetfilterBridgeProtocol.ConntrackEvent.VALUE_EVENT_TYPE);
+
+        if (typeValue.equals(NetfilterBridgeProtocol.ConntrackEvent.EVENT_TYPE_UPDATE))
+            type = ConnectionEvents.EventType.UPDATE;
+        else if (typeValue.equals(NetfilterBridgeProtocol.ConntrackEvent.EVENT_TYPE_DESTROY))
+            type = ConnectionEvents.EventType.DESTROY;
+        else
+            throw new NetfilterBridgeProtocol.ProtocolValueException("Unknown conntrack event type: " + typeValue, typeValue, message);
+
+        Packages.TransportLayerProtocol protocol;
+        if (message.contains(NetfilterBridgeProtocol.ConntrackEvent.FLAG_PROTOCOL_TYPE_TCP))
+            protocol = Packages.TransportLayerProtocol.TCP;
+        else if (message.contains(NetfilterBridgeProtocol.ConntrackEvent.FLAG_PROTOCOL_TYPE_UDP))
+            protocol = Packages.TransportLayerProtocol.UDP;
+        else
+            throw new NetfilterBridgeProtocol.ProtocolFormatException("Unknown message format: no transport-layer defined", message);
+
+        Packages.IpPortPair source = new Packages.IpPortPair(
+                NetfilterBridgeCommunicator.extractStringValueFromMessage(message, NetfilterBridgeProtocol.ConntrackEvent.VALUE_SOURCE),
+                NetfilterBridgeCommunicator.extractIntValueFromMessage(message, NetfilterBridgeProtocol.ConntrackEvent.VALUE_SOURCE_PORT));
+        Packages.IpPortPair destination = new Packages.IpPortPair(
+                NetfilterBridgeCommunicator.extractStringValueFromMessage(message, NetfilterBridgeProtocol.ConntrackEvent.VALUE_DESTINATION),
+                NetfilterBridgeCommunicator.extractIntValueFromMessage(message, NetfilterBridgeProtocol.ConntrackEvent.VALUE_DESTINATION_PORT));
+
+        int tcpState = 0;
+        if (NetfilterBridgeCommunicator.messageContainsValue(message, NetfilterBridgeProtocol.ConntrackEvent.VALUE_TCP_STATE))
+            tcpState = NetfilterBridgeCommunicator.extractIntValueFromMessage(message, NetfilterBridgeProtocol.ConntrackEvent.VALUE_TCP_STATE);
+
+        return new ConnectionEvents.ConnectionEvent(type, protocol, source, destination, ConnectionEvents.ConntrackTcpState.fromValue(tcpState));
+    }
+
+    /**
+     * @param offset index of the first frame-byte (after the length prefix)
+     * @param length frame length, without the length prefix
+     */
+    public static ConnectionEvents.ConnectionEvent decode(ByteBuffer buffer, int offset, int length) throws NetfilterBridgeProtocol.ProtocolException {
+        if (length < NetfilterBridgeProtocol.BinaryFormat.ConntrackEvent.FRAME_LENGTH)
+            throw new NetfilterBridgeProtocol.ProtocolFormatException("Binary frame too short: expected " + NetfilterBridgeProtocol.BinaryFormat.ConntrackEvent.FRAME_LENGTH + " bytes but got " + length + ".", NetfilterBridgeBinaryDecoder.toHexString(buffer, offset, length));
+
+        ConnectionEvents.EventType type;
+        int typeValue = buffer.get(offset + NetfilterBridgeProtocol.BinaryFormat.ConntrackEvent.OFFSET_EVENT_TYPE) & 0xFF;
+
+        switch(typeValue) {
+            case NetfilterBridgeProtocol.BinaryFormat.ConntrackEvent.EVENT_TYPE_UPDATE:
+                type = ConnectionEvents.EventType.UPDATE;
+                break;
+            case NetfilterBridgeProtocol.BinaryFormat.ConntrackEvent.EVENT_TYPE_DESTROY:
+                type = ConnectionEvents.EventType.DESTROY;
+                break;
+            default:
+                throw new NetfilterBridgeProtocol.ProtocolValueException("Unknown conntrack event type: " + typeValue, typeValue + "", NetfilterBridgeBinaryDecoder.toHexString(buffer, offset, length));
+        }
+
+        Packages.TransportLayerProtocol protocol;
+        int ipProtocol = buffer.get(offset + NetfilterBridgeProtocol.BinaryFormat.ConntrackEvent.OFFSET_IP_PROTOCOL) & 0xFF;
+
+        switch(ipProtocol) {
+            case NetfilterBridgeProtocol.BinaryFormat.QueryPackageAction.IP_PROTOCOL_TCP:
+                protocol = Packages.TransportLayerProtocol.TCP;
+                break;
+            case NetfilterBridgeProtocol.BinaryFormat.QueryPackageAction.IP_PROTOCOL_UDP:
+                protocol = Packages.TransportLayerProtocol.UDP;
+                break;
+            default:
+                throw new NetfilterBridgeProtocol.ProtocolValueException("Unknown message format: unsupported ip-protocol " + ipProtocol, ipProtocol + "", NetfilterBridgeBinaryDecoder.toHexString(buffer, offset, length));
+        }
+
+        Packages.IpPortPair source = new Packages.IpPortPair(
+                Packages.IpAddress.ipv4(buffer.getInt(offset + NetfilterBridgeProtocol.BinaryFormat.ConntrackEvent.OFFSET_IP_SOURCE)),
+                buffer.getShort(offset + NetfilterBridgeProtocol.BinaryFormat.ConntrackEvent.OFFSET_SOURCE_PORT) & 0xFFFF);
+        Packages.IpPortPair destination = new Packages.IpPortPair(
+                Packages.IpAddress.ipv4(buffer.getInt(offset + NetfilterBridgeProtocol.BinaryFormat.ConntrackEvent.OFFSET_IP_DESTINATION)),
+                buffer.getShort(offset + NetfilterBridgeProtocol.BinaryFormat.ConntrackEvent.OFFSET_DESTINATION_PORT) & 0xFFFF);
+        int tcpState = buffer.get(offset + NetfilterBridgeProtocol.BinaryFormat.ConntrackEvent.OFFSET_TCP_STATE) & 0xFF;
+
+        return new ConnectionEvents.ConnectionEvent(type, protocol, source, destination, ConnectionEvents.ConntrackTcpState.fromValue(tcpState));
+    }
+
+    /**
+     * Encodes the event as binary frame including the length prefix, as sent by the netfilter-bridge. IPv4 only.
+     * @return the length of the frame, without the length prefix
+     */
+    public static int encode(ConnectionEvents.ConnectionEvent event, ByteBuffer buffer) {
+        int length = NetfilterBridgeProtocol.BinaryFormat.ConntrackEvent.FRAME_LENGTH;
+
+        buffer.putShort((short) length);
+        buffer.put((byte) NetfilterBridgeProtocol.BinaryFormat.VERSION);
+        buffer.put((byte) NetfilterBridgeProtocol.BinaryFormat.MESSAGE_TYPE_CONNTRACK_EVENT);
+        buffer.put((byte) (event.getType() == ConnectionEvents.EventType.UPDATE
+                ? NetfilterBridgeProtocol.BinaryFormat.ConntrackEvent.EVENT_TYPE_UPDATE
+                : NetfilterBridgeProtocol.BinaryFormat.ConntrackEvent.EVENT_TYPE_DESTROY));
+        buffer.put((byte) (event.getProtocol() == Packages.TransportLayerProtocol.TCP
+                ? NetfilterBridgeProtocol.BinaryFormat.QueryPackageAction.IP_PROTOCOL_TCP
+                : NetfilterBridgeProtocol.BinaryFormat.QueryPackageAction.IP_PROTOCOL_UDP));
+        buffer.putInt((int) event.getSource().getAddress().getLow());
+        buffer.putInt((int) event.getDestination().getAddress().getLow());
+        buffer.putShort((short) event.getSourcePort());
+        buffer.putShort((short) event.getDestinationPort());
+        buffer.put((byte) event.getTcpState().ordinal());
+
+        return length;
+    }
+
+    /**
+     * Encodes the event as text-message, as sent by the netfilter-bridge (without line-terminator).
+     */
+    public static String format(ConnectionEvents.ConnectionEvent event) {
+        String type = event.getType() == ConnectionEvents.EventType.UPDATE
+                ? NetfilterBridgeProtocol.ConntrackEvent.EVENT_TYPE_UPDATE
+                : NetfilterBridgeProtocol.ConntrackEvent.EVENT_TYPE_DESTROY;
+
+        return NetfilterBridgeProtocol.ConntrackEvent.MSG_PREFIX
+                + value(NetfilterBridgeProtocol.ConntrackEvent.VALUE_EVENT_TYPE, type)
+                + NetfilterBridgeProtocol.VALUE_PREFIX + (event.getProtocol() == Packages.TransportLayerProtocol.TCP ? NetfilterBridgeProtocol.ConntrackEvent.FLAG_PROTOCOL_TYPE_TCP : NetfilterBridgeProtocol.ConntrackEvent.FLAG_PROTOCOL_TYPE_UDP) + NetfilterBridgeProtocol.VALUE_SUFFIX
+                + value(NetfilterBridgeProtocol.ConntrackEvent.VALUE_SOURCE, event.getSourceIP())
+                + value(NetfilterBridgeProtocol.ConntrackEvent.VALUE_DESTINATION, event.getDestinationIP())
+                + value(NetfilterBridgeProtocol.ConntrackEvent.VALUE_SOURCE_PORT, event.getSourcePort() + "")
+                + value(NetfilterBridgeProtocol.ConntrackEvent.VALUE_DESTINATION_PORT, event.getDestinationPort() + "")
+                + value(NetfilterBridgeProtocol.ConntrackEvent.VALUE_TCP_STATE, event.getTcpState().ordinal() + "");
+    }
+
+    private static String value(String key, String value) {
+        return NetfilterBridgeProtocol.VALUE_PREFIX + key + NetfilterBridgeProtocol.VALUE_KEY_DELIM + value + NetfilterBridgeProtocol.VALUE_SUFFIX;
+    }
+}
@@ -3,7 +3,10 @@ package de.uni_kl.informatik.disco.discowall.netfilter.bridge;
 import android.content.Context;
 import android.util.Log;
 
+import java.io.File;
 import java.io.IOException;
+import java.util.LinkedList;
+import java.util.List;
 
 import de.uni_kl.informatik.disco.discowall.netfilter.NetfilterExceptions;
 import de.uni_kl.informatik.disco.discowall.utils.ressources.DiscoWallConstants;
@@ -12,23 +15,50 @@ import de.uni_kl.informatik.disco.discowall.utils.shell.ShellExecuteExceptions;
 
 public class NetfilterBridgeControl {
     private static final String LOG_TAG = NetfilterBridgeControl.class.getSimpleName();
+    private static final long FIRST_QUEUE_CONNECT_TIMEOUT_MS = 10000;
 
     private final Context firewallServiceContext;
 
     private final NetfilterBridgeIptablesHandler iptablesHandler;
     private final NetfilterBridgeBinaryHandler bridgeBinaryHandler;
-    private NetfilterBridgeCommunicator bridgeCommunicator;
-    private final int bridgeCommunicationPort;
+    private final List<BridgeChannel> bridgeChannels = new LinkedList<>();
+
+    /**
+     * One netfilter-bridge instance per nfqueue. Each channel has its own transport, communicator and I/O-thread,
+     * so that packages of different queues are being handled in parallel.
+     */
+    private static class BridgeChannel {
+        public final int queueNumber;
+        public final NetfilterBridgeTransport transport;
+        public NetfilterBridgeCommunicator communicator;
+
+        private BridgeChannel(int queueNumber, NetfilterBridgeTransport transport) {
+            this.queueNumber = queueNumber;
+            this.transport = transport;
+        }
+    }
 
-    public NetfilterBridgeControl(boolean automaticallyStartLocalInstance, NetfilterBridgeCommunicator.PackageReceivedHandler packageReceivedHandler, NetfilterBridgeCommunicator.BridgeEventsHandler bridgeEventsHandler, Context firewallServiceContext, int bridgeCommunicationPort) throws NetfilterExceptions.NetfilterBridgeDeploymentException, ShellExecuteExceptions.ReturnValueException, ShellExecuteExceptions.CallException, IOException {
+    /**
+     * @param bridgeTransports one transport per nfqueue. The transport at index i is being used by the bridge-instance bound to queue i.
+     * @param queueCpuFanout only used with more than one queue, see {@link NetfilterBridgeIptablesHandler#NetfilterBridgeIptablesHandler(int, boolean, boolean, boolean, boolean)}
+     * @param connmarkOffload save verdicts as connmark, so that following packages of decided connections bypass the bridge
+     * @param udpNewOnly only the UDP packages in conntrack-state NEW are being sent to the bridge
+     * @param conntrackEventHandler if not null, connection-closes are learned from the conntrack-events, so that FIN packages are no longer being queued
+     * @param overloadPolicy if not null, limits the kernel-queues and the undecided packages of each queue
+     */
+    public NetfilterBridgeControl(boolean automaticallyStartLocalInstance, NetfilterBridgeCommunicator.PackageReceivedHandler packageReceivedHandler, NetfilterBridgeCommunicator.BridgeEventsHandler bridgeEventsHandler, Context firewallServiceContext, List<NetfilterBridgeTransport> bridgeTransports, boolean queueCpuFanout, boolean connmarkOffload, boolean udpNewOnly, NetfilterBridgeCommunicator.ConntrackEventHandler conntrackEventHandler, NetfilterBridgeOverloadPolicy overloadPolicy) throws NetfilterExceptions.NetfilterBridgeDeploymentException, ShellExecuteExceptions.ReturnValueException, ShellExecuteExceptions.CallException, IOException {
         Log.d(LOG_TAG, "initializing NetfilterBridgeControl...");
-        Log.d(LOG_TAG, "NetfilterBridge communication port: " + bridgeCommunicationPort);
+        Log.d(LOG_TAG, "NetfilterBridge queues: " + bridgeTransports.size() + (queueCpuFanout ? " (cpu-fanout)" : "") + ", connmark offload: " + connmarkOffload + ", udp new only: " + udpNewOnly + ", conntrack events: " + (conntrackEventHandler != null) + ", overload-policy: " + overloadPolicy);
 
-        this.bridgeCommunicationPort = bridgeCommunicationPort;
+        int queueNumber = 0;
+        for(NetfilterBridgeTransport bridgeTransport : bridgeTransports) {
+            Log.d(LOG_TAG, "NetfilterBridge transport for queue " + queueNumber + ": " + bridgeTransport.getClass().getSimpleName() + " [" + bridgeTransport.getBridgeArguments() + "]");
+            bridgeChannels.add(new BridgeChannel(queueNumber++, bridgeTransport));
+        }
 
         this.firewallServiceContext = firewallServiceContext;
         this.bridgeBinaryHandler = new NetfilterBridgeBinaryHandler(firewallServiceContext);
-        this.iptablesHandler = new NetfilterBridgeIptablesHandler(bridgeCommunicationPort);
+        this.iptablesHandler = new NetfilterBridgeIptablesHandler(bridgeChannels.size(), queueCpuFanout, connmarkOffload, udpNewOnly, conntrackEventHandler != null);
 
         // -----------------------------------------------------------------------------------------------------------
         // Connect to bridge
@@ -49,16 +79,34 @@ public class NetfilterBridgeControl {
         Log.d(LOG_TAG, "adding static iptable-rules required for bridge-android communication");
         iptablesHandler.rulesEnableAll();
 
-        Log.d(LOG_TAG, "starting netfilter bridge communicator as listening server...");
-        bridgeCommunicator = new NetfilterBridgeCommunicator(packageReceivedHandler, bridgeEventsHandler, bridgeCommunicationPort);
-        Log.d(LOG_TAG, "listening on port: " + bridgeCommunicationPort);
+        Log.d(LOG_TAG, "starting netfilter bridge communicators as listening servers...");
+        for(BridgeChannel channel : bridgeChannels) {
+            try {
+                channel.communicator = new NetfilterBridgeCommunicator(packageReceivedHandler, bridgeEventsHandler, channel.transport, connmarkOffload, conntrackEventHandler, overloadPolicy);
+            } catch (IOException e) {
+                // do not leave the already started communicators listening
+                for(BridgeChannel startedChannel : bridgeChannels) {
+                    if (startedChannel.communicator != null)
+                        startedChannel.communicator.disconnect();
+                }
+                throw e;
+            }
+            Log.d(LOG_TAG, "listening for netfilter bridge of queue " + channel.queueNumber + ": " + channel.transport.getBridgeArguments());
+        }
 
         Log.d(LOG_TAG, "killing all possibly running netfilter bridge instances...");
         bridgeBinaryHandler.killAllInstances();
 
         if (automaticallyStartLocalInstance) {
             Log.d(LOG_TAG, "executing netfilter bridge binary...");
-            bridgeBinaryHandler.start(bridgeCommunicationPort);
+            for(BridgeChannel channel : bridgeChannels) {
+                bridgeBinaryHandler.start(channel.transport.getBridgeArguments(), channel.queueNumber);
+
+                // The instance of queue 0 rebinds the nfqueue-handler, which would detach queues bound in the meantime.
+                // It binds its queue before connecting, so the others are started as soon as it has connected.
+                if (channel.queueNumber == 0 && bridgeChannels.size() > 1)
+                    awaitFirstQueueConnected(channel);
+            }
         } else {
             Log.i(LOG_TAG, "DEBUG-Flag set. The netfilter-bridge has to be started externally. It will NOT be started from here. Typically an adb-shell will be used to start it directly.");
         }
@@ -66,11 +114,90 @@ public class NetfilterBridgeControl {
         Log.d(LOG_TAG, "netfilter-bridge connected.");
     }
 
+    private static void awaitFirstQueueConnected(BridgeChannel channel) {
+        try {
+            if (!channel.communicator.awaitConnected(FIRST_QUEUE_CONNECT_TIMEOUT_MS))
+                Log.w(LOG_TAG, "netfilter bridge of queue " + channel.queueNumber + " did not connect within " + FIRST_QUEUE_CONNECT_TIMEOUT_MS + "ms. Starting the other queues anyway.");
+        } catch (InterruptedException e) {
+            Log.w(LOG_TAG, "interrupted while waiting for the netfilter bridge of queue " + channel.queueNumber + ". Starting the other queues anyway.");
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    /**
+     * @return true, if the bridge-instances of all queues are running and connected
+     */
     public boolean isBridgeConnected() {
-        if (bridgeCommunicator == null)
+        if (bridgeChannels.isEmpty() || !bridgeBinaryHandler.isProcessRunning())
             return false;
-        else
-            return bridgeCommunicator.isConnected() && bridgeBinaryHandler.isProcessRunning();
+
+        for(BridgeChannel channel : bridgeChannels) {
+            if (channel.communicator == null || !channel.communicator.isConnected())
+                return false;
+        }
+
+        return true;
+    }
+
+    /**
+     * @return the overload-metrics summed up over all queues
+     */
+    public NetfilterBridgeOverloadPolicy.Metrics getOverloadMetrics() {
+        NetfilterBridgeOverloadPolicy.Metrics metrics = new NetfilterBridgeOverloadPolicy.Metrics();
+
+        for(BridgeChannel channel : bridgeChannels) {
+            if (channel.communicator != null)
+                metrics.add(channel.communicator.getOverloadMetrics());
+        }
+
+        return metrics;
+    }
+
+    /**
+     * @return the statistics summed up over all queues
+     */
+    public NetfilterBridgeStatistics getStatistics() {
+        NetfilterBridgeStatistics statistics = new NetfilterBridgeStatistics();
+
+        for(BridgeChannel channel : bridgeChannels) {
+            if (channel.communicator != null)
+                statistics.add(channel.communicator.getStatistics());
+        }
+
+        return statistics;
+    }
+
+    /**
+     * Starts the capture-mode of all queues. Each queue is recorded to its own file within the directory.
+     * @return the created trace-files
+     */
+    public List<File> startTraceRecording(File directory) throws IOException {
+        if (!directory.isDirectory() && !directory.mkdirs())
+            throw new IOException("Unable to create trace-directory: " + directory.getAbsolutePath());
+
+        List<File> traceFiles = new LinkedList<>();
+        try {
+            for(BridgeChannel channel : bridgeChannels) {
+                if (channel.communicator == null)
+                    continue;
+
+                File traceFile = new File(directory, "bridge-queue" + channel.queueNumber + NetfilterBridgeTrace.FILE_EXTENSION);
+                channel.communicator.startTraceRecording(traceFile);
+                traceFiles.add(traceFile);
+            }
+        } catch (IOException e) {
+            stopTraceRecording();
+            throw e;
+        }
+
+        return traceFiles;
+    }
+
+    public void stopTraceRecording() {
+        for(BridgeChannel channel : bridgeChannels) {
+            if (channel.communicator != null)
+                channel.communicator.stopTraceRecording();
+        }
     }
 
     public void disconnectBridge() throws IOException, ShellExecuteExceptions.CallException, ShellExecuteExceptions.ReturnValueException {
@@ -80,13 +207,20 @@ public class NetfilterBridgeControl {
         Log.d(LOG_TAG, "removing all static iptable-rules");
         iptablesHandler.rulesDisableAll(true);
 
-        if (bridgeCommunicator == null) {
+        boolean anyCommunicatorStarted = false;
+        for(BridgeChannel channel : bridgeChannels) {
+            if (channel.communicator == null)
+                continue;
+
+            channel.communicator.disconnect();
+            anyCommunicatorStarted = true;
+        }
+
+        if (!anyCommunicatorStarted) {
             Log.v(LOG_TAG, "bridge-communicator has never been connected - nothing to disconnect.");
             return;
         }
 
-        bridgeCommunicator.disconnect();
-
         Log.d(LOG_TAG, "killing all possibly running netfilter bridge instances...");
         bridgeBinaryHandler.killAllInstances();
     }
@@ -17,7 +17,6 @@ import de.uni_kl.informatik.disco.discowall.utils.shell.ShellExecuteExceptions;
 
 public class NetfilterBridgeIptablesHandler {
     private static final String LOG_TAG = NetfilterBridgeIptablesHandler.class.getSimpleName();
-    private final int bridgeCommunicationPort;
 
     // chains
     static final String CHAIN_FIREWALL_MAIN = "discowall";
@@ -42,7 +41,6 @@ public class NetfilterBridgeIptablesHandler {
 //            "-p tcp --tcp-flags SYN,RST,FIN,ACK FIN,ACK -j " + CHAIN_FIREWALL_MAIN_PREFILTER  // within SYN,RST,FIN,ACK has only(!) FIN+ACK
 //    };
     static final String RULE_UDP_JUMP_TO_FIREWALL_PREFILTER_CHAIN = "-p udp -j " + CHAIN_FIREWALL_MAIN_PREFILTER;
-    static final String RULE_JUMP_TO_NFQUEUE = "-j NFQUEUE --queue-num 0 --queue-bypass"; // '--queue-bypass' will allow all packages, when no application is bound to the --queue-num 0
     static final String RULE_JUMP_TO_FIREWALL_ACCEPTED = "-j " + CHAIN_FIREWALL_ACTION_ACCEPT;
     static final String RULE_JUMP_TO_FIREWALL_INTERACTIVE = "-j " + CHAIN_FIREWALL_ACTION_INTERACTIVE;
     static final String RULE_JUMP_TO_FIREWALL_REJECTED = "-j " + CHAIN_FIREWALL_ACTION_REJECT;
@@ -67,13 +65,57 @@ public class NetfilterBridgeIptablesHandler {
      */
     public static final int PACKAGE_UID_MARK_OFFSET = 1000;
 
-    public NetfilterBridgeIptablesHandler(int bridgeCommunicationPort) {
-        this.bridgeCommunicationPort = bridgeCommunicationPort;
+    /**
+     * Connmark offload: the bridge answers with NF_REPEAT and one of these marks, so that the package traverses the chains again.
+     * The decision is then saved as connmark, so that all following packages of the connection are decided in-kernel.
+     * Only bits 28-29 are used, as android uses the lower bits of the marks itself (i.e. for the network-id).
+     */
+    public static final int VERDICT_MARK_ACCEPT = 0x10000000;
+    public static final int VERDICT_MARK_DROP = 0x20000000;
+    static final int VERDICT_MARK_MASK = 0x30000000;
+    static final String RULE_VERDICT_MARK_ACCEPT = "-m mark --mark " + toMarkWithMask(VERDICT_MARK_ACCEPT);
+    static final String RULE_VERDICT_MARK_DROP = "-m mark --mark " + toMarkWithMask(VERDICT_MARK_DROP);
+    static final String RULE_VERDICT_MARK_ACCEPT_SAVE_CONNMARK = RULE_VERDICT_MARK_ACCEPT + " -j CONNMARK --set-mark " + toMarkWithMask(VERDICT_MARK_ACCEPT);
+    static final String RULE_VERDICT_MARK_DROP_SAVE_CONNMARK = RULE_VERDICT_MARK_DROP + " -j CONNMARK --set-mark " + toMarkWithMask(VERDICT_MARK_DROP);
+    static final String RULE_CONNMARK_ACCEPT = "-m connmark --mark " + toMarkWithMask(VERDICT_MARK_ACCEPT);
+    static final String RULE_CONNMARK_DROP = "-m connmark --mark " + toMarkWithMask(VERDICT_MARK_DROP);
+
+    // '--queue-bypass' will allow all packages, when no application is bound to the queue
+    private final String ruleJumpToNfqueue;
+    private final boolean connmarkOffload;
+    private final boolean udpNewOnly;
+    private final boolean conntrackEvents;
+
+    public NetfilterBridgeIptablesHandler() {
+        this(1, false, false, false, false);
+    }
+
+    /**
+     * @param queueCount number of nfqueues (and netfilter-bridge instances). With more than one queue, the packages are
+     *                   balanced across the queues '0' to 'queueCount-1' by their connection, so that all packages of a connection use the same queue.
+     * @param queueCpuFanout balance by the cpu handling the package, instead of by connection
+     * @param connmarkOffload add the rules which save the verdicts as connmark and apply them in-kernel. See {@link #VERDICT_MARK_ACCEPT}.
+     * @param udpNewOnly only queue UDP packages in conntrack-state NEW. Packages of established flows follow the verdict of their first package.
+     * @param conntrackEvents the bridge reports connection-closes as conntrack-events, so FIN packages do not have to be queued
+     */
+    public NetfilterBridgeIptablesHandler(int queueCount, boolean queueCpuFanout, boolean connmarkOffload, boolean udpNewOnly, boolean conntrackEvents) {
+        this.connmarkOffload = connmarkOffload;
+        this.udpNewOnly = udpNewOnly;
+        this.conntrackEvents = conntrackEvents;
+
+        if (queueCount <= 1)
+            ruleJumpToNfqueue = "-j NFQUEUE --queue-num 0 --queue-bypass";
+        else
+            ruleJumpToNfqueue = "-j NFQUEUE --queue-balance 0:" + (queueCount - 1) + (queueCpuFanout ? " --queue-cpu-fanout" : "") + " --queue-bypass";
 
 //        RULE_BRIDGE_COM_EXCEPTION_CLIENT = "-p tcp -s localhost -d localhost --destination-port " + bridgeCommunicationPort + " -j ACCEPT";
 //        RULE_BRIDGE_COM_EXCEPTION_SERVER = "-p tcp -s localhost -d localhost --source-port " + bridgeCommunicationPort + " -j ACCEPT";
     }
 
+    private static String toMarkWithMask(int mark) {
+        return "0x" + Integer.toHexString(mark) + "/0x" + Integer.toHexString(VERDICT_MARK_MASK);
+    }
+
     /**
      * Adds the rules required for bridge-android communication.
      * <p/>
@@ -125,6 +167,14 @@ public class NetfilterBridgeIptablesHandler {
 
         // chain MAIN-PREFILTER:
         {
+            // rules: packages repeated by the bridge carry the verdict as mark. Has to be first, before the mark is overwritten by the uid-mark.
+            if (connmarkOffload) {
+                IptablesControl.ruleAdd(CHAIN_FIREWALL_MAIN_PREFILTER, RULE_VERDICT_MARK_ACCEPT_SAVE_CONNMARK);
+                IptablesControl.ruleAdd(CHAIN_FIREWALL_MAIN_PREFILTER, RULE_VERDICT_MARK_ACCEPT + " " + RULE_JUMP_TO_FIREWALL_ACCEPTED);
+                IptablesControl.ruleAdd(CHAIN_FIREWALL_MAIN_PREFILTER, RULE_VERDICT_MARK_DROP_SAVE_CONNMARK);
+                IptablesControl.ruleAdd(CHAIN_FIREWALL_MAIN_PREFILTER, RULE_VERDICT_MARK_DROP + " -j DROP");
+            }
+
             // rule: exceptions for all local traffic - including the netfilter-bridge
             IptablesControl.ruleAdd(CHAIN_FIREWALL_MAIN_PREFILTER, RULE_IGNORE_TRAFFIC_FROM_LOOPBACK);
             IptablesControl.ruleAdd(CHAIN_FIREWALL_MAIN_PREFILTER, RULE_IGNORE_TRAFFIC_TO_LOOPBACK);
@@ -169,14 +219,31 @@ public class NetfilterBridgeIptablesHandler {
         // chain INTERACTIVE:
         {
 //            // rule: jump to NFQUEUE and handle package interactively
-//            IptablesControl.ruleAdd(CHAIN_FIREWALL_ACTION_INTERACTIVE, RULE_JUMP_TO_NFQUEUE);
+//            IptablesControl.ruleAdd(CHAIN_FIREWALL_ACTION_INTERACTIVE, ruleJumpToNfqueue);
 
             // rule, TCP: only SYN/FIN packages will jump to NFQUEUE and handle package interactively
-            IptablesControl.ruleAdd(CHAIN_FIREWALL_ACTION_INTERACTIVE, "-p tcp --tcp-flags SYN,RST,FIN SYN " + RULE_JUMP_TO_NFQUEUE);
-            IptablesControl.ruleAdd(CHAIN_FIREWALL_ACTION_INTERACTIVE, "-p tcp --tcp-flags SYN,RST,FIN,ACK FIN,ACK " + RULE_JUMP_TO_NFQUEUE);
+            // FIN/ACK always reaches the app, as the connection-tracking relies on it - unless the closes are reported as conntrack-events.
+            // So does SYN/ACK, which would otherwise be accepted by the connmark, so that the connection would never be seen as open.
+            if (!conntrackEvents) {
+                IptablesControl.ruleAdd(CHAIN_FIREWALL_ACTION_INTERACTIVE, "-p tcp --tcp-flags SYN,RST,FIN,ACK FIN,ACK " + ruleJumpToNfqueue);
+                if (connmarkOffload)
+                    IptablesControl.ruleAdd(CHAIN_FIREWALL_ACTION_INTERACTIVE, "-p tcp --tcp-flags SYN,RST,FIN,ACK SYN,ACK " + ruleJumpToNfqueue);
+            }
+
+            // rules: connections which already have a verdict are handled in-kernel
+            if (connmarkOffload) {
+                IptablesControl.ruleAdd(CHAIN_FIREWALL_ACTION_INTERACTIVE, RULE_CONNMARK_ACCEPT + " " + RULE_JUMP_TO_FIREWALL_ACCEPTED);
+                IptablesControl.ruleAdd(CHAIN_FIREWALL_ACTION_INTERACTIVE, RULE_CONNMARK_DROP + " -j DROP");
+            }
+
+            IptablesControl.ruleAdd(CHAIN_FIREWALL_ACTION_INTERACTIVE, "-p tcp --tcp-flags SYN,RST,FIN SYN " + ruleJumpToNfqueue);
 
-            // rule, UDP: since packages are indistinguishable ALL have to be forwarded into the firewall
-            IptablesControl.ruleAdd(CHAIN_FIREWALL_ACTION_INTERACTIVE, "-p udp " + RULE_JUMP_TO_NFQUEUE);
+            // rule, UDP: since packages are indistinguishable ALL have to be forwarded into the firewall - unless conntrack tells the first packages apart.
+            // Conntrack only establishes a flow once its first package has been accepted and answered, so blocked flows stay NEW and keep being queued.
+            if (udpNewOnly)
+                IptablesControl.ruleAdd(CHAIN_FIREWALL_ACTION_INTERACTIVE, "-p udp -m conntrack --ctstate NEW " + ruleJumpToNfqueue);
+            else
+                IptablesControl.ruleAdd(CHAIN_FIREWALL_ACTION_INTERACTIVE, "-p udp " + ruleJumpToNfqueue);
         }
 
         // chain REDIRECT, table NAT:
@@ -0,0 +1,125 @@
+package de.uni_kl.informatik.disco.discowall.netfilter.bridge;
+
+import java.util.concurrent.atomic.AtomicLong;
+
+import de.uni_kl.informatik.disco.discowall.packages.Packages;
+
+/**
+ * Defines how the decision-path degrades, when the firewall cannot keep up with the queued packages:
+ * <ul>
+ *     <li>kernel: maximum length of each nfqueue, and whether packages are accepted (fail-open) or dropped while the queue is full</li>
+ *     <li>app: maximum number of undecided packages per queue (backlog) and the maximum time a package may stay undecided (deadline).
+ *     Packages exceeding either limit are answered with the fallback-verdict.</li>
+ * </ul>
+ */
+public class NetfilterBridgeOverloadPolicy {
+    public static final int UNLIMITED = 0;
+
+    public static interface FallbackVerdictHandler {
+        /**
+         * Is being called for each package, which has to be answered without waiting for the regular decision.
+         * Can be called from any thread.
+         * @return true for ACCEPT, false for BLOCK
+         */
+        boolean isFallbackVerdictAccept(Packages.TransportLayerPackage tlPackage);
+    }
+
+    private final int queueMaxLength;
+    private final boolean failOpen;
+    private final int decisionBacklogMaxSize;
+    private final int decisionDeadlineMs;
+    private final FallbackVerdictHandler fallbackVerdictHandler;
+
+    /**
+     * @param queueMaxLength maximum number of packages within each nfqueue, or {@link #UNLIMITED} for the kernel default (1024)
+     * @param failOpen accept packages while the nfqueue is full. Otherwise they are dropped by the kernel.
+     * @param decisionBacklogMaxSize maximum number of undecided packages per queue, or {@link #UNLIMITED}
+     * @param decisionDeadlineMs maximum time in milliseconds a package may stay undecided, or {@link #UNLIMITED}
+     */
+    public NetfilterBridgeOverloadPolicy(int queueMaxLength, boolean failOpen, int decisionBacklogMaxSize, int decisionDeadlineMs, FallbackVerdictHandler fallbackVerdictHandler) {
+        this.queueMaxLength = queueMaxLength;
+        this.failOpen = failOpen;
+        this.decisionBacklogMaxSize = decisionBacklogMaxSize;
+        this.decisionDeadlineMs = decisionDeadlineMs;
+        this.fallbackVerdictHandler = fallbackVerdictHandler;
+    }
+
+    public int getQueueMaxLength() {
+        return queueMaxLength;
+    }
+
+    public boolean isFailOpen() {
+        return failOpen;
+    }
+
+    public int getDecisionBacklogMaxSize() {
+        return decisionBacklogMaxSize;
+    }
+
+    public int getDecisionDeadlineMs() {
+        return decisionDeadlineMs;
+    }
+
+    public FallbackVerdictHandler getFallbackVerdictHandler() {
+        return fallbackVerdictHandler;
+    }
+
+    @Override
+    public String toString() {
+        return "queue-maxlen=" + (queueMaxLength == UNLIMITED ? "default" : queueMaxLength + "")
+                + ", fail-" + (failOpen ? "open" : "closed")
+                + ", backlog=" + (decisionBacklogMaxSize == UNLIMITED ? "unlimited" : decisionBacklogMaxSize + "")
+                + ", deadline=" + (decisionDeadlineMs == UNLIMITED ? "none" : decisionDeadlineMs + "ms");
+    }
+
+    /**
+     * Counts each fallback. The kernel counters are the latest values reported by the bridge (see {@link NetfilterBridgeProtocol.QueueStats}).
+     * The kernel does not count packages accepted due to fail-open.
+     */
+    public static class Metrics {
+        final AtomicLong backlogFallbacks = new AtomicLong();
+        final AtomicLong deadlineFallbacks = new AtomicLong();
+        volatile long decisionBacklog;
+        volatile long kernelQueueLength;
+        volatile long kernelQueueDropped;
+        volatile long kernelUserDropped;
+        volatile long bridgeReceiveOverruns;
+
+        /**
+         * @return packages answered with the fallback-verdict, as the decision-backlog was full
+         */
+        public long getBacklogFallbacks() { return backlogFallbacks.get(); }
+
+        /**
+         * @return packages answered with the fallback-verdict, as their decision-deadline had passed
+         */
+        public long getDeadlineFallbacks() { return deadlineFallbacks.get(); }
+
+        public long getDecisionBacklog() { return decisionBacklog; }
+        public long getKernelQueueLength() { return kernelQueueLength; }
+        public long getKernelQueueDropped() { return kernelQueueDropped; }
+        public long getKernelUserDropped() { return kernelUserDropped; }
+        public long getBridgeReceiveOverruns() { return bridgeReceiveOverruns; }
+
+        /**
+         * Adds the values of the other metrics to this one, i.e. for summing up the metrics of all queues.
+         */
+        public void add(Metrics other) {
+            backlogFallbacks.addAndGet(other.getBacklogFallbacks());
+            deadlineFallbacks.addAndGet(other.getDeadlineFallbacks());
+            decisionBacklog += other.decisionBacklog;
+            kernelQueueLength += other.kernelQueueLength;
+            kernelQueueDropped += other.kernelQueueDropped;
+            kernelUserDropped += other.kernelUserDropped;
+            bridgeReceiveOverruns += other.bridgeReceiveOverruns;
+        }
+
+        @Override
+        public String toString() {
+            return "fallbacks { backlog=" + getBacklogFallbacks() + ", deadline=" + getDeadlineFallbacks() + " }"
+                    + ", backlog=" + decisionBacklog
+                    + ", kernel { queued=" + kernelQueueLength + ", queue-dropped=" + kernelQueueDropped + ", user-dropped=" + kernelUserDropped + " }"
+                    + ", bridge-overruns=" + bridgeReceiveOverruns;
+        }
+    }
+}
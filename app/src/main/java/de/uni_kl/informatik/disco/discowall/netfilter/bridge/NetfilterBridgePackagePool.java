@@ -0,0 +1,77 @@
+package de.uni_kl.informatik.disco.discowall.netfilter.bridge;
+
+import de.uni_kl.informatik.disco.discowall.packages.Packages;
+
+/**
+ * Recycles the reusable packages of one bridge-connection (see {@link Packages.TransportLayerPackage#isReusable()}), so that the
+ * steady-state decision-path does not allocate a package per query. Packages are acquired by the I/O-thread while decoding
+ * and released by whichever thread sends their verdict - exactly once per package.
+ * <p></p>
+ * Undecided packages are not limited by the pool: if it is empty, a new package is created. Packages released while the pool
+ * is full are left to the garbage-collector.
+ */
+class NetfilterBridgePackagePool {
+    public static final int DEFAULT_CAPACITY = 256;
+
+    private final Packages.TcpPackage[] tcpPackages;
+    private final Packages.UdpPackage[] udpPackages;
+    private int tcpPackagesCount = 0, udpPackagesCount = 0;
+    private long createdPackages = 0;
+
+    NetfilterBridgePackagePool() {
+        this(DEFAULT_CAPACITY);
+    }
+
+    /**
+     * @param capacity maximum number of idle packages kept per protocol
+     */
+    NetfilterBridgePackagePool(int capacity) {
+        tcpPackages = new Packages.TcpPackage[capacity];
+        udpPackages = new Packages.UdpPackage[capacity];
+    }
+
+    public synchronized Packages.TcpPackage acquireTcpPackage() {
+        if (tcpPackagesCount == 0) {
+            createdPackages++;
+            return Packages.TcpPackage.createReusable();
+        }
+
+        Packages.TcpPackage tcpPackage = tcpPackages[--tcpPackagesCount];
+        tcpPackages[tcpPackagesCount] = null;
+        return tcpPackage;
+    }
+
+    public synchronized Packages.UdpPackage acquireUdpPackage() {
+        if (udpPackagesCount == 0) {
+            createdPackages++;
+            return Packages.UdpPackage.createReusable();
+        }
+
+        Packages.UdpPackage udpPackage = udpPackages[--udpPackagesCount];
+        udpPackages[udpPackagesCount] = null;
+        return udpPackage;
+    }
+
+    /**
+     * The package must not be used afterwards. Packages which are not reusable are being ignored.
+     */
+    public synchronized void release(Packages.TransportLayerPackage tlPackage) {
+        if (!tlPackage.isReusable())
+            return;
+
+        if (tlPackage instanceof Packages.TcpPackage) {
+            if (tcpPackagesCount < tcpPackages.length)
+                tcpPackages[tcpPackagesCount++] = (Packages.TcpPackage) tlPackage;
+        } else if (tlPackage instanceof Packages.UdpPackage) {
+            if (udpPackagesCount < udpPackages.length)
+                udpPackages[udpPackagesCount++] = (Packages.UdpPackage) tlPackage;
+        }
+    }
+
+    /**
+     * @return number of packages created because the pool was empty
+     */
+    public synchronized long getCreatedPackages() {
+        return createdPackages;
+    }
+}
@@ -54,12 +54,161 @@ public class NetfilterBridgeProtocol {
         public static final String MSG_PREFIX = "#COMMENT#";
     }
 
+    /**
+     * The hello-message of the netfilter-bridge may offer a list of supported message-formats,
+     * i.e. "#COMMENT#Netfilter-Bridge says hello.##protocol.formats=text,binary.v1#".
+     * The app answers with the selected one: "#COMMENT#DiscoWall App says hello.#protocol.format=binary.v1#".
+     * Bridges which do not offer any format will always use {@link #FORMAT_TEXT}.
+     * <p></p>
+     * For connmark offload the app additionally sends the verdict-marks, i.e. "#verdict.mark.accept=268435456##verdict.mark.drop=536870912#".
+     * The bridge will then answer packages with NF_REPEAT and the according mark, instead of NF_ACCEPT/NF_DROP.
+     * <p></p>
+     * With "#conntrack.events=1#" the bridge subscribes to the conntrack update/destroy events and sends them as {@link ConntrackEvent}.
+     * Only the bridge-instance of queue 0 subscribes, so that each event is being received once.
+     * <p></p>
+     * The overload-policy is passed as "#queue.maxlen=4096##queue.fail.open=1#": the bridge sets the maximum length of its nfqueue
+     * and lets the kernel accept packages while the queue is full (instead of dropping them). Bridges report their queue-state as {@link QueueStats}.
+     */
+    public static class Handshake {
+        public static final String VALUE_SUPPORTED_FORMATS = "protocol.formats";
+        public static final String VALUE_SELECTED_FORMAT = "protocol.format";
+        public static final String VALUE_VERDICT_MARK_ACCEPT = "verdict.mark.accept"; // optional, unsigned decimal
+        public static final String VALUE_VERDICT_MARK_DROP = "verdict.mark.drop"; // optional, unsigned decimal
+        public static final String VALUE_CONNTRACK_EVENTS = "conntrack.events"; // optional, 1 = enabled
+        public static final String VALUE_QUEUE_MAXLEN = "queue.maxlen"; // optional, kernel default if missing
+        public static final String VALUE_QUEUE_FAIL_OPEN = "queue.fail.open"; // optional, 1 = accept packages while the queue is full
+        public static final String FORMATS_DELIM = ",";
+        public static final String FORMAT_TEXT = "text";
+        public static final String FORMAT_BINARY_V1 = "binary.v1";
+    }
+
+    /**
+     * Binary framing used for package-queries once {@link Handshake#FORMAT_BINARY_V1} has been negotiated.
+     * Responses are still sent as text-lines.
+     * <p></p>
+     * Each frame starts with an unsigned 16-bit length prefix (big endian), which counts all following bytes of the frame.
+     * All offsets are relative to the first byte after the length prefix. Multi-byte values are big endian (network byte order).
+     */
+    public static class BinaryFormat {
+        public static final int VERSION = 1;
+        public static final int LENGTH_PREFIX_SIZE = 2;
+        public static final int FRAME_MAX_LENGTH = 0xFFFF;
+
+        // Header
+        public static final int OFFSET_VERSION = 0;         // u8
+        public static final int OFFSET_MESSAGE_TYPE = 1;    // u8
+        public static final int HEADER_LENGTH = 2;
+
+        public static final int MESSAGE_TYPE_QUERY_PACKAGE_ACTION = 1;
+        public static final int MESSAGE_TYPE_CONNTRACK_EVENT = 2;
+        public static final int MESSAGE_TYPE_QUEUE_STATS = 3;
+
+        public static class QueueStats {
+            public static final int OFFSET_QUEUE_LENGTH = 2;        // u32: packages currently queued by the kernel
+            public static final int OFFSET_QUEUE_DROPPED = 6;       // u32: dropped by the kernel, as the queue was full
+            public static final int OFFSET_USER_DROPPED = 10;       // u32: dropped by the kernel, as the netlink-socket of the bridge was full
+            public static final int OFFSET_RECEIVE_OVERRUNS = 14;   // u32: ENOBUFS received by the bridge
+            public static final int FRAME_LENGTH = 18;
+        }
+
+        public static class ConntrackEvent {
+            public static final int OFFSET_EVENT_TYPE = 2;          // u8: EVENT_TYPE_*
+            public static final int OFFSET_IP_PROTOCOL = 3;         // u8: IP protocol number
+            public static final int OFFSET_IP_SOURCE = 4;           // u32: original direction
+            public static final int OFFSET_IP_DESTINATION = 8;      // u32
+            public static final int OFFSET_SOURCE_PORT = 12;        // u16
+            public static final int OFFSET_DESTINATION_PORT = 14;   // u16
+            public static final int OFFSET_TCP_STATE = 16;          // u8: conntrack tcp-state, 0 for udp
+            public static final int FRAME_LENGTH = 17;
+
+            // 1 (new) is not being used: new connections are not subscribed, see ConnectionEvents.EventType
+            public static final int EVENT_TYPE_UPDATE = 2;
+            public static final int EVENT_TYPE_DESTROY = 3;
+        }
+
+        public static class QueryPackageAction {
+            public static final int OFFSET_IP_PROTOCOL = 2;         // u8: IP protocol number
+            public static final int OFFSET_PRESENCE_FLAGS = 3;      // u8: FLAG_HAS_* bits
+            public static final int OFFSET_INPUT_DEVICE = 4;        // u32
+            public static final int OFFSET_OUTPUT_DEVICE = 8;       // u32
+            public static final int OFFSET_MARK = 12;               // u32
+            public static final int OFFSET_IP_SOURCE = 16;          // u32
+            public static final int OFFSET_IP_DESTINATION = 20;     // u32
+            public static final int OFFSET_SOURCE_PORT = 24;        // u16
+            public static final int OFFSET_DESTINATION_PORT = 26;   // u16
+            public static final int OFFSET_LENGTH = 28;             // u16: tcp header length or udp length
+            public static final int OFFSET_CHECKSUM = 30;           // u16
+            public static final int OFFSET_TCP_SEQUENCE_NUMBER = 32;// u32
+            public static final int OFFSET_TCP_ACK_NUMBER = 36;     // u32
+            public static final int OFFSET_TCP_FLAGS = 40;          // u8: TCP_FLAG_* bits
+            public static final int OFFSET_PACKET_ID = 41;          // u32: nfqueue packet-id
+            public static final int FRAME_LENGTH = 45;
+
+            public static final int IP_PROTOCOL_TCP = 6;
+            public static final int IP_PROTOCOL_UDP = 17;
+
+            public static final int FLAG_HAS_INPUT_DEVICE = 0x01;
+            public static final int FLAG_HAS_OUTPUT_DEVICE = 0x02;
+            public static final int FLAG_HAS_MARK = 0x04;
+
+            // same bit-order as within the tcp-header
+            public static final int TCP_FLAG_FIN = 0x01;
+            public static final int TCP_FLAG_SYN = 0x02;
+            public static final int TCP_FLAG_RESET = 0x04;
+            public static final int TCP_FLAG_PUSH = 0x08;
+            public static final int TCP_FLAG_ACK = 0x10;
+            public static final int TCP_FLAG_URGENT = 0x20;
+        }
+    }
+
+    /**
+     * If the query contained a {@link QueryPackageAction.Netfilter#VALUE_PACKET_ID}, the response has to carry the same id,
+     * i.e. "#Packet.QueryAction.Response##netfilter.packet.id=42##ACCEPT#". This allows the bridge to have multiple packages
+     * pending at the same time, which can be answered in any order.
+     * <p></p>
+     * Verdicts can also be sent in batches, using ranges of packet-ids which share the same verdict:
+     * "#Packet.QueryAction.Response##netfilter.packet.ids=42-45,47##ACCEPT#".
+     */
     public static class QueryPackageActionResponse {
         public static final String MSG_PREFIX = "#Packet.QueryAction.Response#";
+        public static final String VALUE_PACKET_ID = QueryPackageAction.Netfilter.VALUE_PACKET_ID;
+        public static final String VALUE_PACKET_IDS = "netfilter.packet.ids";
+        public static final String PACKET_IDS_DELIM = ",";
+        public static final String PACKET_IDS_RANGE_DELIM = "-";
         public static final String FLAG_ACCEPT_PACKAGE = "#ACCEPT#";
         public static final String FLAG_DROP_PACKAGE = "#DROP#";
     }
 
+    /**
+     * Conntrack-event of a connection, i.e. "#Conntrack.Event##conntrack.event=destroy##protocol=tcp##ip.src=10.0.0.2##ip.dst=1.2.3.4##port.src=4711##port.dst=80##conntrack.tcp.state=7#".
+     * Events are not being answered.
+     */
+    public static class ConntrackEvent {
+        public static final String MSG_PREFIX = "#Conntrack.Event#";
+        public static final String VALUE_EVENT_TYPE = "conntrack.event";
+        public static final String EVENT_TYPE_UPDATE = "update";
+        public static final String EVENT_TYPE_DESTROY = "destroy";
+        public static final String VALUE_SOURCE = QueryPackageAction.IP.VALUE_SOURCE;
+        public static final String VALUE_DESTINATION = QueryPackageAction.IP.VALUE_DESTINATION;
+        public static final String FLAG_PROTOCOL_TYPE_TCP = QueryPackageAction.IP.FLAG_PROTOCOL_TYPE_TCP;
+        public static final String FLAG_PROTOCOL_TYPE_UDP = QueryPackageAction.IP.FLAG_PROTOCOL_TYPE_UDP;
+        public static final String VALUE_SOURCE_PORT = "port.src";
+        public static final String VALUE_DESTINATION_PORT = "port.dst";
+        public static final String VALUE_TCP_STATE = "conntrack.tcp.state"; // optional: kernel tcp_conntrack value
+    }
+
+    /**
+     * Queue-state of the bridge-instance, i.e. "#Bridge.QueueStats##queue.length=12##queue.dropped=0##queue.user.dropped=3##bridge.recv.overruns=1#".
+     * Sent whenever the counters changed (checked once per second). Counters are totals since the queue has been created. Not being answered.
+     */
+    public static class QueueStats {
+        public static final String MSG_PREFIX = "#Bridge.QueueStats#";
+        public static final String VALUE_QUEUE_LENGTH = "queue.length";
+        public static final String VALUE_QUEUE_DROPPED = "queue.dropped";
+        public static final String VALUE_USER_DROPPED = "queue.user.dropped";
+        public static final String VALUE_RECEIVE_OVERRUNS = "bridge.recv.overruns";
+    }
+
     public static class QueryPackageAction {
         public static final String MSG_PREFIX = "#Packet.QueryAction#";
 
@@ -70,6 +219,7 @@ public class NetfilterBridgeProtocol {
 
         public static class Netfilter {
             public static final String VALUE_MARK = "netfilter.mark";
+            public static final String VALUE_PACKET_ID = "netfilter.packet.id"; // optional: nfqueue packet-id (unsigned 32 bit)
         }
 
         public static class IP {
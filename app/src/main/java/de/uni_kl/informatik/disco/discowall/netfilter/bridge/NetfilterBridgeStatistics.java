@@ -0,0 +1,115 @@
+package de.uni_kl.informatik.disco.discowall.netfilter.bridge;
+
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+import de.uni_kl.informatik.disco.discowall.packages.Packages;
+import de.uni_kl.informatik.disco.discowall.utils.LatencyHistogram;
+
+/**
+ * Throughput-counters and latencies of the package-queries of one bridge-connection (or, summed up, of all queues):
+ * <ul>
+ *     <li>decode: from the complete message within the receive-buffer to the decoded package</li>
+ *     <li>verdict: from the complete message within the receive-buffer to the verdict being sent (including user-decisions)</li>
+ * </ul>
+ */
+public class NetfilterBridgeStatistics {
+    public static final int UID_UNKNOWN = -1;
+
+    final LatencyHistogram decodeLatency = new LatencyHistogram();
+    final LatencyHistogram verdictLatency = new LatencyHistogram();
+    final AtomicLong acceptedVerdicts = new AtomicLong();
+    final AtomicLong droppedVerdicts = new AtomicLong();
+    final AtomicLong tcpPackages = new AtomicLong();
+    final AtomicLong udpPackages = new AtomicLong();
+    final AtomicLong protocolErrors = new AtomicLong();
+    private final ConcurrentHashMap<Integer, UidCounters> uidCounters = new ConcurrentHashMap<>();
+
+    public static class UidCounters {
+        final AtomicLong acceptedVerdicts = new AtomicLong();
+        final AtomicLong droppedVerdicts = new AtomicLong();
+
+        public long getAcceptedVerdicts() { return acceptedVerdicts.get(); }
+        public long getDroppedVerdicts() { return droppedVerdicts.get(); }
+
+        @Override
+        public String toString() {
+            return "accepted=" + getAcceptedVerdicts() + ", dropped=" + getDroppedVerdicts();
+        }
+    }
+
+    void onPackageDecoded(Packages.TransportLayerPackage tlPackage, long receivedAtNanos) {
+        decodeLatency.recordSince(receivedAtNanos);
+
+        if (tlPackage.getProtocol() == Packages.TransportLayerProtocol.TCP)
+            tcpPackages.incrementAndGet();
+        else
+            udpPackages.incrementAndGet();
+    }
+
+    void onVerdict(Packages.TransportLayerPackage tlPackage, boolean accept, long receivedAtNanos) {
+        verdictLatency.recordSince(receivedAtNanos);
+        (accept ? acceptedVerdicts : droppedVerdicts).incrementAndGet();
+
+        UidCounters counters = getOrCreateUidCounters(Math.max(UID_UNKNOWN, tlPackage.getUserId()));
+        (accept ? counters.acceptedVerdicts : counters.droppedVerdicts).incrementAndGet();
+    }
+
+    private UidCounters getOrCreateUidCounters(int uid) {
+        UidCounters counters = uidCounters.get(uid);
+        if (counters != null)
+            return counters;
+
+        counters = new UidCounters();
+        UidCounters existing = uidCounters.putIfAbsent(uid, counters);
+        return existing != null ? existing : counters;
+    }
+
+    public LatencyHistogram getDecodeLatency() { return decodeLatency; }
+    public LatencyHistogram getVerdictLatency() { return verdictLatency; }
+    public long getAcceptedVerdicts() { return acceptedVerdicts.get(); }
+    public long getDroppedVerdicts() { return droppedVerdicts.get(); }
+    public long getTcpPackages() { return tcpPackages.get(); }
+    public long getUdpPackages() { return udpPackages.get(); }
+
+    /**
+     * @return malformed queries, which have been accepted without asking the firewall
+     */
+    public long getProtocolErrors() { return protocolErrors.get(); }
+
+    /**
+     * @return the verdict-counters of each uid, sorted by uid. Packages without uid are counted as {@link #UID_UNKNOWN}.
+     */
+    public Map<Integer, UidCounters> getUidCounters() {
+        return new TreeMap<>(uidCounters);
+    }
+
+    /**
+     * Adds the values of the other statistics to this one, i.e. for summing up the statistics of all queues.
+     */
+    public void add(NetfilterBridgeStatistics other) {
+        decodeLatency.add(other.decodeLatency);
+        verdictLatency.add(other.verdictLatency);
+        acceptedVerdicts.addAndGet(other.getAcceptedVerdicts());
+        droppedVerdicts.addAndGet(other.getDroppedVerdicts());
+        tcpPackages.addAndGet(other.getTcpPackages());
+        udpPackages.addAndGet(other.getUdpPackages());
+        protocolErrors.addAndGet(other.getProtocolErrors());
+
+        for(Map.Entry<Integer, UidCounters> entry : other.uidCounters.entrySet()) {
+            UidCounters counters = getOrCreateUidCounters(entry.getKey());
+            counters.acceptedVerdicts.addAndGet(entry.getValue().getAcceptedVerdicts());
+            counters.droppedVerdicts.addAndGet(entry.getValue().getDroppedVerdicts());
+        }
+    }
+
+    @Override
+    public String toString() {
+        return "packages { tcp=" + getTcpPackages() + ", udp=" + getUdpPackages() + ", protocol-errors=" + getProtocolErrors() + " }"
+                + ", verdicts { accepted=" + getAcceptedVerdicts() + ", dropped=" + getDroppedVerdicts() + " }"
+                + ", decode { " + decodeLatency + " }"
+                + ", verdict { " + verdictLatency + " }";
+    }
+}
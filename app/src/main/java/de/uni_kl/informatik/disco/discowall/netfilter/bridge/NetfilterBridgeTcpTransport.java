@@ -0,0 +1,236 @@
+package de.uni_kl.informatik.disco.discowall.netfilter.bridge;
+
+import android.util.Log;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.util.Iterator;
+
+/**
+ * TCP-transport on a local port, driven by a single non-blocking selector-thread which handles accept, read and write.
+ * A client connecting while another one is still connected replaces the previous client.
+ */
+public class NetfilterBridgeTcpTransport implements NetfilterBridgeTransport, Runnable {
+    private static final String LOG_TAG = "NfBridgeTcpTransport";
+    private static final int WRITE_QUEUE_SIZE = 64 * 1024;
+    public final int listeningPort;
+
+    private final ByteBuffer readBuffer = ByteBuffer.allocateDirect(RECEIVE_BUFFER_SIZE); // big endian by default
+    private final ByteBuffer pendingWriteBuffer = ByteBuffer.allocateDirect(WRITE_QUEUE_SIZE); // bytes the socket did not accept yet
+
+    private volatile boolean running = false;
+    private volatile boolean writeInterestRequested = false; // interest-ops are only changed by the selector-thread
+    private Selector selector;
+    private ServerSocketChannel serverChannel;
+    private SocketChannel clientChannel;
+    private SelectionKey clientKey;
+    private Session session;
+    private volatile Thread selectorThread;
+
+    public NetfilterBridgeTcpTransport(int listeningPort) {
+        this.listeningPort = listeningPort;
+    }
+
+    @Override
+    public void start(Session session) throws IOException {
+        this.session = session;
+
+        Log.v(LOG_TAG, "opening listening port: " + listeningPort);
+        selector = Selector.open();
+        serverChannel = ServerSocketChannel.open();
+        serverChannel.configureBlocking(false);
+        serverChannel.socket().setReuseAddress(true); // the port may still be in TIME_WAIT after a restart
+        serverChannel.socket().bind(new InetSocketAddress(listeningPort));
+        serverChannel.register(selector, SelectionKey.OP_ACCEPT);
+        Log.d(LOG_TAG, "Listening on port: " + listeningPort);
+
+        running = true;
+        new Thread(this, "NetfilterBridgeTcpTransport").start();
+    }
+
+    @Override
+    public void stop() {
+        running = false;
+        if (selector != null)
+            selector.wakeup();
+    }
+
+    @Override
+    public String getBridgeArguments() {
+        return "localhost " + listeningPort;
+    }
+
+    @Override
+    public void run() {
+        selectorThread = Thread.currentThread();
+
+        while (running) {
+            try {
+                selector.select();
+                updateWriteInterest();
+
+                Iterator<SelectionKey> selectedKeys = selector.selectedKeys().iterator();
+                while (selectedKeys.hasNext()) {
+                    SelectionKey key = selectedKeys.next();
+                    selectedKeys.remove();
+
+                    if (!key.isValid())
+                        continue;
+
+                    if (key.isAcceptable()) {
+                        onClientAcceptable();
+                    } else {
+                        if (key.isReadable())
+                            onClientReadable();
+                        if (key.isValid() && key.isWritable())
+                            onClientWritable();
+                    }
+                }
+            } catch (IOException e) {
+                Log.e(LOG_TAG, "netfilter bridge connection closed with exception: " + e.getMessage(), e);
+                closeClient(e);
+            }
+        }
+
+        closeClient(null);
+        try {
+            Log.v(LOG_TAG, "closing listening port: " + listeningPort);
+            serverChannel.close();
+            selector.close();
+        } catch (IOException e) {
+            Log.e(LOG_TAG, "Error while closing listening port: " + e.getMessage(), e);
+        }
+
+        session.onClosed();
+    }
+
+    private void onClientAcceptable() throws IOException {
+        SocketChannel channel = serverChannel.accept();
+        if (channel == null)
+            return;
+
+        if (clientChannel != null) {
+            Log.w(LOG_TAG, "new client connected while the previous one is still connected. Replacing previous client.");
+            closeClient(null);
+        }
+
+        Log.v(LOG_TAG, "client (netfilter bridge) connected.");
+        channel.configureBlocking(false);
+        channel.socket().setTcpNoDelay(true); // verdicts are small and latency-critical
+
+        synchronized (this) {
+            clientChannel = channel;
+            clientKey = channel.register(selector, SelectionKey.OP_READ);
+            pendingWriteBuffer.clear();
+        }
+        readBuffer.clear();
+
+        session.onConnected(new ClientConnection(channel));
+    }
+
+    private void onClientReadable() throws IOException {
+        int read = clientChannel.read(readBuffer);
+
+        if (read < 0) {
+            Log.d(LOG_TAG, "end of stream received. Closing connection and waiting for new client.");
+            closeClient(null);
+            return;
+        }
+
+        readBuffer.flip();
+        session.onReceived(readBuffer);
+        readBuffer.compact();
+    }
+
+    private synchronized void onClientWritable() throws IOException {
+        pendingWriteBuffer.flip();
+        try {
+            clientChannel.write(pendingWriteBuffer);
+        } finally {
+            pendingWriteBuffer.compact();
+        }
+
+        if (pendingWriteBuffer.position() == 0)
+            clientKey.interestOps(SelectionKey.OP_READ);
+    }
+
+    private void updateWriteInterest() {
+        if (!writeInterestRequested)
+            return;
+        writeInterestRequested = false;
+
+        synchronized (this) {
+            if (clientKey != null && clientKey.isValid() && pendingWriteBuffer.position() > 0)
+                clientKey.interestOps(SelectionKey.OP_READ | SelectionKey.OP_WRITE);
+        }
+    }
+
+    /**
+     * The session is being notified outside of the lock, so that it can write without any lock-order issues.
+     */
+    private void closeClient(IOException cause) {
+        synchronized (this) {
+            if (clientChannel == null)
+                return;
+
+            try {
+                clientChannel.close(); // also cancels the selection-key
+            } catch (IOException e) {
+                Log.w(LOG_TAG, "Error while closing client connection: " + e.getMessage());
+            }
+
+            clientChannel = null;
+            clientKey = null;
+            pendingWriteBuffer.clear();
+        }
+
+        session.onDisconnected(cause);
+    }
+
+    private class ClientConnection implements Connection {
+        private final SocketChannel channel;
+
+        private ClientConnection(SocketChannel channel) {
+            this.channel = channel;
+        }
+
+        @Override
+        public void write(ByteBuffer source) throws IOException {
+            synchronized (NetfilterBridgeTcpTransport.this) {
+                if (channel != clientChannel)
+                    throw new IOException("Connection to netfilter-bridge has been closed.");
+
+                // keep the order: only write directly, if nothing is queued
+                if (pendingWriteBuffer.position() == 0) {
+                    channel.write(source);
+                    if (!source.hasRemaining())
+                        return;
+                }
+
+                if (pendingWriteBuffer.remaining() < source.remaining())
+                    throw new IOException("Write-queue full, the netfilter-bridge is not reading.");
+                pendingWriteBuffer.put(source);
+
+                // socket buffer full: let the selector-thread write the remainder
+                if (Thread.currentThread() == selectorThread) {
+                    clientKey.interestOps(SelectionKey.OP_READ | SelectionKey.OP_WRITE);
+                } else {
+                    writeInterestRequested = true;
+                    selector.wakeup();
+                }
+            }
+        }
+
+        @Override
+        public boolean isOpen() {
+            synchronized (NetfilterBridgeTcpTransport.this) {
+                return channel == clientChannel;
+            }
+        }
+    }
+}
@@ -0,0 +1,347 @@
+package de.uni_kl.informatik.disco.discowall.netfilter.bridge;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.Closeable;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+
+import de.uni_kl.informatik.disco.discowall.packages.Packages;
+
+/**
+ * Compact binary trace of the package-queries and verdicts of one bridge-connection, written by the {@link NetfilterBridgeCommunicator}
+ * (capture mode) and replayed by {@link NetfilterBridgeTraceReplayer}. Does not depend on android, so that traces can be replayed on any JVM.
+ * <p></p>
+ * Layout (big endian):
+ * <pre>
+ * header:  "DWTR" | u8 version | u64 start-time (ms since epoch)
+ * record:  u8 type | u32 microseconds since the previous record
+ *   QUERY:   u16 frame-length | frame ({@link NetfilterBridgeProtocol.BinaryFormat.QueryPackageAction}, without length prefix)
+ *   VERDICT: u32 packet-id | u8 accept (1) or drop (0)
+ * </pre>
+ * Text-queries are recorded as binary frames too.
+ */
+public class NetfilterBridgeTrace {
+    public static final byte[] MAGIC = { 'D', 'W', 'T', 'R' };
+    public static final int VERSION = 1;
+    public static final String FILE_EXTENSION = ".dwtrace";
+
+    public static final int RECORD_TYPE_QUERY = 1;
+    public static final int RECORD_TYPE_VERDICT = 2;
+
+    private NetfilterBridgeTrace() {
+    }
+
+    public static class Record {
+        public final int type;
+        public final long deltaMicros;
+        public final long packetId;
+        public final boolean accept; // VERDICT only
+        public final byte[] frame;   // QUERY only
+
+        private Record(int type, long deltaMicros, long packetId, boolean accept, byte[] frame) {
+            this.type = type;
+            this.deltaMicros = deltaMicros;
+            this.packetId = packetId;
+            this.accept = accept;
+            this.frame = frame;
+        }
+    }
+
+    /**
+     * Appends records to a trace-file. Can be used from multiple threads.
+     * <p></p>
+     * The records are only being encoded by the calling thread (i.e. the I/O-thread of the bridge): a background-thread writes them
+     * to the file, so that disk-I/O does not delay the package-path. If the writer cannot keep up, records are being dropped (see
+     * {@link #getDroppedRecordCount()}). Recording after {@link #close()} is a no-op.
+     */
+    public static class Recorder implements Closeable, Runnable {
+        private static final int BUFFER_SIZE = 64 * 1024;
+        private static final int RECORD_HEADER_LENGTH = 5; // u8 type | u32 delta
+
+        private final DataOutputStream out; // only written by the writer-thread, once started
+        private final ByteBuffer frameBuffer = ByteBuffer.allocate(NetfilterBridgeProtocol.BinaryFormat.QueryPackageAction.FRAME_LENGTH);
+        private final Thread writerThread;
+
+        // guarded by this: records are appended to pendingBuffer, the writer-thread swaps it with writeBuffer
+        private ByteBuffer pendingBuffer = ByteBuffer.allocate(BUFFER_SIZE);
+        private ByteBuffer writeBuffer = ByteBuffer.allocate(BUFFER_SIZE);
+        private long lastRecordNanos = System.nanoTime();
+        private long droppedRecords = 0;
+        private boolean closed = false;
+        private IOException writeException;
+
+        public Recorder(File traceFile) throws IOException {
+            out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(traceFile)));
+            try {
+                out.write(MAGIC);
+                out.writeByte(VERSION);
+                out.writeLong(System.currentTimeMillis());
+                out.flush();
+            } catch (IOException e) {
+                out.close();
+                throw e;
+            }
+
+            writerThread = new Thread(this, "NetfilterBridgeTraceWriter");
+            writerThread.setDaemon(true);
+            writerThread.start();
+        }
+
+        /**
+         * @throws IOException if writing previous records failed. The recording has been closed then.
+         */
+        public synchronized void recordQuery(Packages.TransportLayerPackage tlPackage, long packetId) throws IOException {
+            if (!beginRecord(RECORD_HEADER_LENGTH + 2 + NetfilterBridgeProtocol.BinaryFormat.QueryPackageAction.FRAME_LENGTH))
+                return;
+
+            encodeQueryPackageAction(tlPackage, packetId, frameBuffer);
+
+            writeRecordHeader(RECORD_TYPE_QUERY);
+            pendingBuffer.putShort((short) frameBuffer.limit());
+            pendingBuffer.put(frameBuffer.array(), 0, frameBuffer.limit());
+            notifyAll();
+        }
+
+        /**
+         * @throws IOException if writing previous records failed. The recording has been closed then.
+         */
+        public synchronized void recordVerdict(long packetId, boolean accept) throws IOException {
+            if (!beginRecord(RECORD_HEADER_LENGTH + 5))
+                return;
+
+            writeRecordHeader(RECORD_TYPE_VERDICT);
+            pendingBuffer.putInt((int) packetId);
+            pendingBuffer.put((byte) (accept ? 1 : 0));
+            notifyAll();
+        }
+
+        /**
+         * @return false, if the record has to be skipped
+         */
+        private boolean beginRecord(int length) throws IOException {
+            if (writeException != null)
+                throw writeException;
+            if (closed)
+                return false;
+
+            if (pendingBuffer.remaining() < length) {
+                droppedRecords++;
+                return false;
+            }
+
+            return true;
+        }
+
+        private void writeRecordHeader(int type) {
+            long now = System.nanoTime();
+            long deltaMicros = Math.min((now - lastRecordNanos) / 1000, 0xFFFFFFFFL);
+            lastRecordNanos = now;
+
+            pendingBuffer.put((byte) type);
+            pendingBuffer.putInt((int) deltaMicros);
+        }
+
+        /**
+         * @return records skipped, as the writer-thread did not keep up
+         */
+        public synchronized long getDroppedRecordCount() {
+            return droppedRecords;
+        }
+
+        /**
+         * Writer-thread: writes the pending records in batches, until the recorder has been closed and all records are written.
+         */
+        @Override
+        public void run() {
+            try {
+                while (true) {
+                    ByteBuffer buffer;
+
+                    synchronized (this) {
+                        while (pendingBuffer.position() == 0 && !closed)
+                            wait();
+
+                        if (pendingBuffer.position() == 0)
+                            break; // closed, everything written
+
+                        buffer = pendingBuffer;
+                        pendingBuffer = writeBuffer;
+                        writeBuffer = buffer;
+                    }
+
+                    out.write(buffer.array(), 0, buffer.position());
+                    out.flush();
+                    buffer.clear();
+                }
+            } catch (IOException e) {
+                synchronized (this) {
+                    writeException = e;
+                    closed = true;
+                }
+            } catch (InterruptedException e) {
+                synchronized (this) {
+                    writeException = new IOException("Trace-writer has been interrupted.");
+                    closed = true;
+                }
+            }
+
+            try {
+                out.close();
+            } catch (IOException e) {
+                synchronized (this) {
+                    if (writeException == null)
+                        writeException = e;
+                }
+            }
+        }
+
+        /**
+         * Writes all records recorded so far and closes the file.
+         * @throws IOException if writing the records failed
+         */
+        @Override
+        public void close() throws IOException {
+            synchronized (this) {
+                closed = true;
+                notifyAll();
+            }
+
+            try {
+                writerThread.join();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new IOException("Interrupted while writing the trace-file.");
+            }
+
+            synchronized (this) {
+                if (writeException != null)
+                    throw writeException;
+            }
+        }
+    }
+
+    /**
+     * Reads the records of a trace-file one by one.
+     */
+    public static class Reader implements Closeable {
+        private final DataInputStream in;
+        private final long startTimeMillis;
+
+        public Reader(File traceFile) throws IOException {
+            in = new DataInputStream(new BufferedInputStream(new FileInputStream(traceFile)));
+
+            byte[] magic = new byte[MAGIC.length];
+            in.readFully(magic);
+            for(int i = 0; i < MAGIC.length; i++) {
+                if (magic[i] != MAGIC[i])
+                    throw new IOException("Not a netfilter-bridge trace: " + traceFile);
+            }
+
+            int version = in.readUnsignedByte();
+            if (version != VERSION)
+                throw new IOException("Unsupported trace version " + version + ": " + traceFile);
+
+            startTimeMillis = in.readLong();
+        }
+
+        public long getStartTimeMillis() {
+            return startTimeMillis;
+        }
+
+        /**
+         * @return the next record, or null at the end of the trace
+         */
+        public Record next() throws IOException {
+            int type;
+            try {
+                type = in.readUnsignedByte();
+            } catch (EOFException e) {
+                return null;
+            }
+
+            long deltaMicros = in.readInt() & 0xFFFFFFFFL;
+
+            switch(type) {
+                case RECORD_TYPE_QUERY: {
+                    byte[] frame = new byte[in.readUnsignedShort()];
+                    in.readFully(frame);
+                    long packetId = NetfilterBridgeBinaryDecoder.decodePacketId(ByteBuffer.wrap(frame), 0, frame.length, -1);
+                    return new Record(type, deltaMicros, packetId, false, frame);
+                }
+                case RECORD_TYPE_VERDICT: {
+                    long packetId = in.readInt() & 0xFFFFFFFFL;
+                    boolean accept = in.readUnsignedByte() != 0;
+                    return new Record(type, deltaMicros, packetId, accept, null);
+                }
+                default:
+                    throw new IOException("Corrupt trace: unknown record type " + type);
+            }
+        }
+
+        @Override
+        public void close() throws IOException {
+            in.close();
+        }
+    }
+
+    /**
+     * Counterpart of {@link NetfilterBridgeBinaryDecoder#decodeQueryPackageAction}. The buffer is being cleared and flipped.
+     */
+    static void encodeQueryPackageAction(Packages.TransportLayerPackage tlPackage, long packetId, ByteBuffer buffer) {
+        int presenceFlags = NetfilterBridgeProtocol.BinaryFormat.QueryPackageAction.FLAG_HAS_MARK;
+        if (tlPackage.getInputDeviceIndex() >= 0)
+            presenceFlags |= NetfilterBridgeProtocol.BinaryFormat.QueryPackageAction.FLAG_HAS_INPUT_DEVICE;
+        if (tlPackage.getOutputDeviceIndex() >= 0)
+            presenceFlags |= NetfilterBridgeProtocol.BinaryFormat.QueryPackageAction.FLAG_HAS_OUTPUT_DEVICE;
+
+        int tcpFlags = 0;
+        int seqNumber = 0, ackNumber = 0;
+        if (tlPackage instanceof Packages.TcpPackage) {
+            Packages.TcpPackage tcpPackage = (Packages.TcpPackage) tlPackage;
+            seqNumber = tcpPackage.getSeqNumber();
+            ackNumber = tcpPackage.getAckNumber();
+
+            if (tcpPackage.hasFlagFIN()) tcpFlags |= NetfilterBridgeProtocol.BinaryFormat.QueryPackageAction.TCP_FLAG_FIN;
+            if (tcpPackage.hasFlagSYN()) tcpFlags |= NetfilterBridgeProtocol.BinaryFormat.QueryPackageAction.TCP_FLAG_SYN;
+            if (tcpPackage.hasFlagReset()) tcpFlags |= NetfilterBridgeProtocol.BinaryFormat.QueryPackageAction.TCP_FLAG_RESET;
+            if (tcpPackage.hasFlagPush()) tcpFlags |= NetfilterBridgeProtocol.BinaryFormat.QueryPackageAction.TCP_FLAG_PUSH;
+            if (tcpPackage.hasFlagACK()) tcpFlags |= NetfilterBridgeProtocol.BinaryFormat.QueryPackageAction.TCP_FLAG_ACK;
+            if (tcpPackage.hasFlagUrgent()) tcpFlags |= NetfilterBridgeProtocol.BinaryFormat.QueryPackageAction.TCP_FLAG_URGENT;
+        }
+
+        buffer.clear();
+        buffer.put((byte) NetfilterBridgeProtocol.BinaryFormat.VERSION);
+        buffer.put((byte) NetfilterBridgeProtocol.BinaryFormat.MESSAGE_TYPE_QUERY_PACKAGE_ACTION);
+        buffer.put((byte) (tlPackage.getProtocol() == Packages.TransportLayerProtocol.TCP ? NetfilterBridgeProtocol.BinaryFormat.QueryPackageAction.IP_PROTOCOL_TCP : NetfilterBridgeProtocol.BinaryFormat.QueryPackageAction.IP_PROTOCOL_UDP));
+        buffer.put((byte) presenceFlags);
+        buffer.putInt(Math.max(0, tlPackage.getInputDeviceIndex()));
+        buffer.putInt(Math.max(0, tlPackage.getOutputDeviceIndex()));
+        buffer.putInt(tlPackage.getMark());
+        buffer.putInt(ipv4ToInt(tlPackage.getSource()));
+        buffer.putInt(ipv4ToInt(tlPackage.getDestination()));
+        buffer.putShort((short) tlPackage.getSourcePort());
+        buffer.putShort((short) tlPackage.getDestinationPort());
+        buffer.putShort((short) tlPackage.getLength());
+        buffer.putShort((short) tlPackage.getChecksum());
+        buffer.putInt(seqNumber);
+        buffer.putInt(ackNumber);
+        buffer.put((byte) tcpFlags);
+        buffer.putInt((int) packetId);
+        buffer.flip();
+    }
+
+    /**
+     * @return the address in network byte order, or 0 if it is no ipv4-address
+     */
+    private static int ipv4ToInt(Packages.IpPortPair ipPortPair) {
+        Packages.IpAddress address = ipPortPair.getAddress();
+        return address != null && !address.isIpv6() ? address.getIpv4() : 0;
+    }
+}
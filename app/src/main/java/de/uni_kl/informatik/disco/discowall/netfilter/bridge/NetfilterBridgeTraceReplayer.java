@@ -0,0 +1,311 @@
+package de.uni_kl.informatik.disco.discowall.netfilter.bridge;
+
+import java.io.BufferedOutputStream;
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.util.ArrayDeque;
+import java.util.HashMap;
+import java.util.LinkedList;
+import java.util.List;
+
+/**
+ * Replays a trace recorded by the capture-mode of {@link NetfilterBridgeCommunicator} against a communicator listening on a tcp-port.
+ * The replayer acts as netfilter-bridge: it negotiates the binary format, sends the recorded queries (at the original or an accelerated speed)
+ * and compares the received verdicts with the recorded ones. Does not depend on android, so that it can also be run on a desktop-JVM:
+ * <pre>
+ * java NetfilterBridgeTraceReplayer &lt;trace-file&gt; &lt;host&gt; &lt;port&gt; [speed]
+ * </pre>
+ * Speed 1 replays at the original pace, 10 ten times faster and 0 as fast as possible.
+ */
+public class NetfilterBridgeTraceReplayer {
+    public static final double SPEED_ORIGINAL = 1;
+    public static final double SPEED_UNLIMITED = 0;
+
+    private final File traceFile;
+    private final String host;
+    private final int port;
+    private final double speed;
+
+    // guarded by this
+    private final HashMap<Long, ArrayDeque<Boolean>> recordedVerdicts = new HashMap<>();
+    private final HashMap<Long, Integer> pendingQueries = new HashMap<>();
+    private int pendingQueryCount;
+    private Result result;
+
+    public static class Result {
+        public int queries;         // queries sent
+        public int answered;        // verdicts received for sent queries
+        public int matches;         // verdict equals the recorded verdict
+        public int mismatches;      // verdict differs from the recorded verdict
+        public int unverified;      // no verdict had been recorded for the query
+        public int unexpected;      // verdicts for packet-ids, which had not been sent (or were already answered)
+        public int missing;         // queries not answered within the response-timeout
+        public long durationNanos;
+
+        public boolean isSuccessful() {
+            return mismatches == 0 && unexpected == 0 && missing == 0;
+        }
+
+        public double getQueriesPerSecond() {
+            return durationNanos > 0 ? queries * 1e9 / durationNanos : 0;
+        }
+
+        @Override
+        public String toString() {
+            return "queries=" + queries + ", answered=" + answered
+                    + ", matches=" + matches + ", mismatches=" + mismatches + ", unverified=" + unverified
+                    + ", unexpected=" + unexpected + ", missing=" + missing
+                    + ", duration=" + (durationNanos / 1000000) + "ms"
+                    + ", throughput=" + String.format("%.1f", getQueriesPerSecond()) + " queries/s";
+        }
+    }
+
+    /**
+     * @param speed replay-speed relative to the recording, or {@link #SPEED_UNLIMITED}
+     */
+    public NetfilterBridgeTraceReplayer(File traceFile, String host, int port, double speed) {
+        if (speed < 0)
+            throw new IllegalArgumentException("Replay-speed must not be negative: " + speed);
+
+        this.traceFile = traceFile;
+        this.host = host;
+        this.port = port;
+        this.speed = speed;
+    }
+
+    /**
+     * Replays the trace once, using a new connection.
+     * @param responseTimeoutMs time to wait for the outstanding verdicts, after all queries have been sent
+     */
+    public Result replay(long responseTimeoutMs) throws IOException, InterruptedException {
+        List<NetfilterBridgeTrace.Record> records = readTrace();
+
+        synchronized (this) {
+            recordedVerdicts.clear();
+            pendingQueries.clear();
+            pendingQueryCount = 0;
+            result = new Result();
+
+            for(NetfilterBridgeTrace.Record record : records) {
+                if (record.type != NetfilterBridgeTrace.RECORD_TYPE_VERDICT)
+                    continue;
+
+                ArrayDeque<Boolean> verdicts = recordedVerdicts.get(record.packetId);
+                if (verdicts == null) {
+                    verdicts = new ArrayDeque<>();
+                    recordedVerdicts.put(record.packetId, verdicts);
+                }
+                verdicts.add(record.accept);
+            }
+        }
+
+        Socket socket = new Socket();
+        try {
+            socket.connect(new InetSocketAddress(host, port));
+            socket.setTcpNoDelay(true);
+
+            OutputStream out = new BufferedOutputStream(socket.getOutputStream());
+            final BufferedReader in = new BufferedReader(new InputStreamReader(socket.getInputStream(), "US-ASCII"));
+
+            handshake(out, in);
+
+            Thread responseThread = new Thread(new Runnable() {
+                @Override
+                public void run() {
+                    readResponses(in);
+                }
+            }, "TraceReplayer-Responses");
+            responseThread.setDaemon(true);
+            responseThread.start();
+
+            long startNanos = System.nanoTime();
+            sendQueries(records, out, startNanos);
+            awaitResponses(responseTimeoutMs);
+
+            synchronized (this) {
+                result.durationNanos = System.nanoTime() - startNanos;
+                result.missing = pendingQueryCount;
+                return result;
+            }
+        } finally {
+            socket.close();
+        }
+    }
+
+    private List<NetfilterBridgeTrace.Record> readTrace() throws IOException {
+        List<NetfilterBridgeTrace.Record> records = new LinkedList<>();
+
+        NetfilterBridgeTrace.Reader reader = new NetfilterBridgeTrace.Reader(traceFile);
+        try {
+            NetfilterBridgeTrace.Record record;
+            while ((record = reader.next()) != null)
+                records.add(record);
+        } finally {
+            reader.close();
+        }
+
+        return records;
+    }
+
+    private void handshake(OutputStream out, BufferedReader in) throws IOException {
+        writeLine(out, NetfilterBridgeProtocol.Comment.MSG_PREFIX + "Trace-Replayer says hello."
+                + NetfilterBridgeProtocol.VALUE_PREFIX + NetfilterBridgeProtocol.Handshake.VALUE_SUPPORTED_FORMATS + NetfilterBridgeProtocol.VALUE_KEY_DELIM + NetfilterBridgeProtocol.Handshake.FORMAT_BINARY_V1 + NetfilterBridgeProtocol.VALUE_SUFFIX);
+        out.flush();
+
+        String reply = in.readLine();
+        if (reply == null)
+            throw new IOException("Connection closed during handshake.");
+
+        String selectedFormat = NetfilterBridgeProtocol.VALUE_PREFIX + NetfilterBridgeProtocol.Handshake.VALUE_SELECTED_FORMAT + NetfilterBridgeProtocol.VALUE_KEY_DELIM + NetfilterBridgeProtocol.Handshake.FORMAT_BINARY_V1 + NetfilterBridgeProtocol.VALUE_SUFFIX;
+        if (!reply.contains(selectedFormat))
+            throw new IOException("Communicator did not select the binary format: " + reply);
+    }
+
+    /**
+     * The records are sent at their recorded offsets, divided by the speed. Pending output is flushed before waiting,
+     * so that no query is delayed by the buffer.
+     */
+    private void sendQueries(List<NetfilterBridgeTrace.Record> records, OutputStream out, long startNanos) throws IOException, InterruptedException {
+        long offsetMicros = 0;
+
+        for(NetfilterBridgeTrace.Record record : records) {
+            offsetMicros += record.deltaMicros;
+            if (record.type != NetfilterBridgeTrace.RECORD_TYPE_QUERY)
+                continue;
+
+            if (speed != SPEED_UNLIMITED) {
+                long waitNanos = startNanos + (long) (offsetMicros * 1000 / speed) - System.nanoTime();
+                if (waitNanos > 0) {
+                    out.flush();
+                    Thread.sleep(waitNanos / 1000000, (int) (waitNanos % 1000000));
+                }
+            }
+
+            synchronized (this) {
+                Integer count = pendingQueries.get(record.packetId);
+                pendingQueries.put(record.packetId, count == null ? 1 : count + 1);
+                pendingQueryCount++;
+                result.queries++;
+            }
+
+            out.write(record.frame.length >> 8);
+            out.write(record.frame.length);
+            out.write(record.frame);
+        }
+
+        out.flush();
+    }
+
+    private synchronized void awaitResponses(long timeoutMs) throws InterruptedException {
+        long deadline = System.currentTimeMillis() + timeoutMs;
+
+        while (pendingQueryCount > 0) {
+            long remaining = deadline - System.currentTimeMillis();
+            if (remaining <= 0)
+                return;
+            wait(remaining);
+        }
+    }
+
+    private void readResponses(BufferedReader in) {
+        try {
+            String message;
+            while ((message = in.readLine()) != null) {
+                if (message.startsWith(NetfilterBridgeProtocol.QueryPackageActionResponse.MSG_PREFIX))
+                    onResponse(message);
+            }
+        } catch (IOException e) {
+            // connection closed by replay() or by the communicator
+        }
+    }
+
+    private void onResponse(String message) {
+        boolean accept = message.contains(NetfilterBridgeProtocol.QueryPackageActionResponse.FLAG_ACCEPT_PACKAGE);
+
+        String packetIds = extractValue(message, NetfilterBridgeProtocol.QueryPackageActionResponse.VALUE_PACKET_IDS);
+        if (packetIds == null)
+            packetIds = extractValue(message, NetfilterBridgeProtocol.QueryPackageActionResponse.VALUE_PACKET_ID);
+        if (packetIds == null) {
+            System.err.println("Response without packet-id: " + message);
+            return;
+        }
+
+        try {
+            for(String range : packetIds.split(NetfilterBridgeProtocol.QueryPackageActionResponse.PACKET_IDS_DELIM)) {
+                int delim = range.indexOf(NetfilterBridgeProtocol.QueryPackageActionResponse.PACKET_IDS_RANGE_DELIM);
+                long first = Long.parseLong(delim < 0 ? range : range.substring(0, delim));
+                long last = delim < 0 ? first : Long.parseLong(range.substring(delim + 1));
+
+                for(long packetId = first; packetId <= last; packetId++)
+                    onVerdict(packetId, accept);
+            }
+        } catch (NumberFormatException e) {
+            System.err.println("Malformed packet-ids within response: " + message);
+        }
+    }
+
+    private synchronized void onVerdict(long packetId, boolean accept) {
+        Integer count = pendingQueries.get(packetId);
+        if (count == null) {
+            result.unexpected++;
+            System.err.println("Unexpected verdict for packet-id " + packetId);
+            return;
+        }
+
+        if (count == 1)
+            pendingQueries.remove(packetId);
+        else
+            pendingQueries.put(packetId, count - 1);
+        pendingQueryCount--;
+        result.answered++;
+
+        ArrayDeque<Boolean> verdicts = recordedVerdicts.get(packetId);
+        Boolean recordedAccept = verdicts != null ? verdicts.poll() : null;
+
+        if (recordedAccept == null)
+            result.unverified++;
+        else if (recordedAccept == accept)
+            result.matches++;
+        else {
+            result.mismatches++;
+            System.err.println("Verdict mismatch for packet-id " + packetId + ": recorded " + (recordedAccept ? "ACCEPT" : "DROP") + ", replayed " + (accept ? "ACCEPT" : "DROP"));
+        }
+
+        if (pendingQueryCount == 0)
+            notifyAll();
+    }
+
+    private static String extractValue(String message, String key) {
+        String prefix = NetfilterBridgeProtocol.VALUE_PREFIX + key + NetfilterBridgeProtocol.VALUE_KEY_DELIM;
+        int start = message.indexOf(prefix);
+        if (start < 0)
+            return null;
+
+        start += prefix.length();
+        int end = message.indexOf(NetfilterBridgeProtocol.VALUE_SUFFIX, start);
+        return end < 0 ? null : message.substring(start, end);
+    }
+
+    private static void writeLine(OutputStream out, String line) throws IOException {
+        out.write((line + "\n").getBytes("US-ASCII"));
+    }
+
+    public static void main(String[] args) throws Exception {
+        if (args.length < 3) {
+            System.err.println("usage: NetfilterBridgeTraceReplayer <trace-file> <host> <port> [speed (1 = original, 0 = unlimited)]");
+            System.exit(2);
+        }
+
+        double speed = args.length > 3 ? Double.parseDouble(args[3]) : SPEED_ORIGINAL;
+        NetfilterBridgeTraceReplayer replayer = new NetfilterBridgeTraceReplayer(new File(args[0]), args[1], Integer.parseInt(args[2]), speed);
+
+        Result result = replayer.replay(10000);
+        System.out.println(result);
+        System.exit(result.isSuccessful() ? 0 : 1);
+    }
+}
@@ -0,0 +1,63 @@
+package de.uni_kl.informatik.disco.discowall.netfilter.bridge;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+
+/**
+ * The channel between the {@link NetfilterBridgeCommunicator} (server) and the netfilter-bridge binary (client).
+ * The transport owns the I/O-thread: it accepts the bridge and passes all received bytes to the {@link Session}.
+ * Only one bridge is being served at a time.
+ */
+public interface NetfilterBridgeTransport {
+    /**
+     * Has to hold at least one complete binary frame including its length prefix.
+     */
+    public static final int RECEIVE_BUFFER_SIZE = 2 * (NetfilterBridgeProtocol.BinaryFormat.LENGTH_PREFIX_SIZE + NetfilterBridgeProtocol.BinaryFormat.FRAME_MAX_LENGTH);
+
+    public static interface Connection {
+        /**
+         * Writes all remaining bytes of the buffer. Bytes which cannot be written without blocking are being queued by the transport.
+         * Can be called from any thread.
+         * @throws IOException if the connection has been closed or the queue is full.
+         */
+        void write(ByteBuffer source) throws IOException;
+
+        boolean isOpen();
+    }
+
+    /**
+     * All callbacks are being called from within the I/O-thread of the transport.
+     */
+    public static interface Session {
+        void onConnected(Connection connection);
+
+        /**
+         * @param receiveBuffer flipped buffer containing all received bytes. Complete messages have to be consumed,
+         *                      incomplete ones have to stay within the buffer until more data has been received.
+         * @throws IOException on unrecoverable protocol errors. The connection will be closed.
+         */
+        void onReceived(ByteBuffer receiveBuffer) throws IOException;
+
+        /**
+         * @param cause the error which closed the connection, or null if the bridge closed it.
+         */
+        void onDisconnected(IOException cause);
+
+        /**
+         * The transport has been stopped and will not accept any more connections.
+         */
+        void onClosed();
+    }
+
+    /**
+     * Binds the transport (synchronously, so that errors are being reported to the caller) and starts the I/O-thread.
+     */
+    void start(Session session) throws IOException;
+
+    void stop();
+
+    /**
+     * @return the command-line arguments which let the netfilter-bridge binary connect to this transport.
+     */
+    String getBridgeArguments();
+}
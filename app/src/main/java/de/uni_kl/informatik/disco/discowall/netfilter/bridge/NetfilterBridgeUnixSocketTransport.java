@@ -0,0 +1,242 @@
+package de.uni_kl.informatik.disco.discowall.netfilter.bridge;
+
+import android.util.Log;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+
+/**
+ * Unix-domain-socket transport within the abstract namespace. Avoids the TCP-stack for each message and cannot collide with any used port.
+ * <p></p>
+ * Android local sockets cannot be used with a selector, so a single thread is blocking on accept and read.
+ * Writes from other threads are written directly (and blocking), which is cheap for local sockets.
+ * As anyone could connect to an abstract socket, only peers running as root (like the bridge) are being accepted.
+ * <p></p>
+ * The sockets are created by a {@link ServerSocketFactory}: {@link AndroidLocalSocketFactory} on the device, any other implementation
+ * (i.e. in-memory) where the android local sockets are not available.
+ */
+public class NetfilterBridgeUnixSocketTransport implements NetfilterBridgeTransport, Runnable {
+    private static final String LOG_TAG = "NfBridgeUnixTransport";
+    public static final int BRIDGE_UID = 0; // the netfilter-bridge runs as root
+    public final String socketName;
+
+    /**
+     * Creates the listening socket of the transport.
+     */
+    public static interface ServerSocketFactory {
+        ServerSocket bind(String socketName) throws IOException;
+    }
+
+    public static interface ServerSocket {
+        /**
+         * Blocks until a client connects, or {@link #wakeup()} is being called.
+         */
+        ClientSocket accept() throws IOException;
+
+        /**
+         * Unblocks a pending (or the next) {@link #accept()}, which returns a socket then.
+         */
+        void wakeup();
+
+        void close() throws IOException;
+    }
+
+    public static interface ClientSocket {
+        /**
+         * @return the user-id of the process on the other side of the socket
+         */
+        int getPeerUid() throws IOException;
+
+        InputStream getInputStream() throws IOException;
+        OutputStream getOutputStream() throws IOException;
+
+        /**
+         * Unblocks a pending read, which returns end-of-stream then.
+         */
+        void shutdownInput() throws IOException;
+
+        void close() throws IOException;
+    }
+
+    private final ServerSocketFactory socketFactory;
+    private final ByteBuffer receiveBuffer = ByteBuffer.allocate(RECEIVE_BUFFER_SIZE); // local sockets only provide streams working on arrays
+
+    private volatile boolean running = false;
+    private ServerSocket serverSocket;
+    private volatile ClientSocket clientSocket;
+    private Session session;
+
+    public NetfilterBridgeUnixSocketTransport(String socketName) {
+        this(socketName, new AndroidLocalSocketFactory());
+    }
+
+    public NetfilterBridgeUnixSocketTransport(String socketName, ServerSocketFactory socketFactory) {
+        this.socketName = socketName;
+        this.socketFactory = socketFactory;
+    }
+
+    @Override
+    public void start(Session session) throws IOException {
+        this.session = session;
+
+        Log.v(LOG_TAG, "opening unix-socket: @" + socketName);
+        serverSocket = socketFactory.bind(socketName); // abstract namespace
+        Log.d(LOG_TAG, "Listening on unix-socket: @" + socketName);
+
+        running = true;
+        new Thread(this, "NetfilterBridgeUnixSocketTransport").start();
+    }
+
+    @Override
+    public void stop() {
+        running = false;
+
+        ClientSocket client = clientSocket;
+        if (client != null) {
+            try {
+                client.shutdownInput(); // unblocks read()
+            } catch (IOException e) {
+                Log.w(LOG_TAG, "Error while shutting down client connection: " + e.getMessage());
+            }
+        }
+
+        ServerSocket server = serverSocket;
+        if (server != null)
+            server.wakeup(); // unblocks accept()
+    }
+
+    @Override
+    public String getBridgeArguments() {
+        return "@" + socketName;
+    }
+
+    @Override
+    public void run() {
+        while (running) {
+            ClientSocket socket;
+            try {
+                socket = serverSocket.accept();
+            } catch (IOException e) {
+                if (running)
+                    Log.e(LOG_TAG, "Error while accepting client: " + e.getMessage(), e);
+                continue;
+            }
+
+            if (!running) {
+                closeSocket(socket);
+                break;
+            }
+
+            try {
+                int uid = socket.getPeerUid();
+                if (uid != BRIDGE_UID) {
+                    Log.w(LOG_TAG, "Rejecting client with uid " + uid + ". Only the netfilter-bridge (uid " + BRIDGE_UID + ") may connect.");
+                    closeSocket(socket);
+                    continue;
+                }
+            } catch (IOException e) {
+                Log.e(LOG_TAG, "Could not read client credentials: " + e.getMessage(), e);
+                closeSocket(socket);
+                continue;
+            }
+
+            handleClient(socket);
+        }
+
+        try {
+            Log.v(LOG_TAG, "closing unix-socket: @" + socketName);
+            serverSocket.close();
+        } catch (IOException e) {
+            Log.e(LOG_TAG, "Error while closing unix-socket: " + e.getMessage(), e);
+        }
+
+        session.onClosed();
+    }
+
+    private void handleClient(ClientSocket socket) {
+        Log.v(LOG_TAG, "client (netfilter bridge) connected.");
+
+        ClientConnection connection = new ClientConnection(socket);
+        IOException cause = null;
+
+        clientSocket = socket;
+        receiveBuffer.clear();
+        session.onConnected(connection);
+
+        try {
+            InputStream in = socket.getInputStream();
+
+            while (running) {
+                int read = in.read(receiveBuffer.array(), receiveBuffer.arrayOffset() + receiveBuffer.position(), receiveBuffer.remaining());
+
+                if (read < 0) {
+                    Log.d(LOG_TAG, "end of stream received. Closing connection and waiting for new client.");
+                    break;
+                }
+
+                receiveBuffer.position(receiveBuffer.position() + read);
+                receiveBuffer.flip();
+                session.onReceived(receiveBuffer);
+                receiveBuffer.compact();
+            }
+        } catch (IOException e) {
+            if (running) {
+                Log.e(LOG_TAG, "netfilter bridge connection closed with exception: " + e.getMessage(), e);
+                cause = e;
+            }
+        }
+
+        clientSocket = null;
+        connection.close();
+        session.onDisconnected(cause);
+    }
+
+    private static void closeSocket(ClientSocket socket) {
+        try {
+            socket.close();
+        } catch (IOException e) {
+            Log.w(LOG_TAG, "Error while closing client connection: " + e.getMessage());
+        }
+    }
+
+    private static class ClientConnection implements Connection {
+        private final ClientSocket socket;
+        private byte[] writeArray = new byte[1024]; // reused for copying direct buffers
+        private boolean open = true;
+
+        private ClientConnection(ClientSocket socket) {
+            this.socket = socket;
+        }
+
+        @Override
+        public synchronized void write(ByteBuffer source) throws IOException {
+            if (!open)
+                throw new IOException("Connection to netfilter-bridge has been closed.");
+
+            OutputStream out = socket.getOutputStream();
+            int length = source.remaining();
+
+            if (source.hasArray()) {
+                out.write(source.array(), source.arrayOffset() + source.position(), length);
+                source.position(source.position() + length);
+            } else {
+                if (writeArray.length < length)
+                    writeArray = new byte[Math.max(length, 2 * writeArray.length)];
+                source.get(writeArray, 0, length);
+                out.write(writeArray, 0, length);
+            }
+        }
+
+        @Override
+        public synchronized boolean isOpen() {
+            return open;
+        }
+
+        private synchronized void close() {
+            open = false;
+            closeSocket(socket);
+        }
+    }
+}
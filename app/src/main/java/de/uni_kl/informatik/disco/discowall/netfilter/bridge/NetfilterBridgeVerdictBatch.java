@@ -0,0 +1,85 @@
+package de.uni_kl.informatik.disco.discowall.netfilter.bridge;
+
+import java.util.Arrays;
+
+/**
+ * Collects package-verdicts until they are flushed, so that the netfilter-bridge receives them within one message.
+ * Consecutive packet-ids sharing the same verdict are encoded as range, which the bridge can apply using a single batch-verdict.
+ * <p></p>
+ * Not thread-safe: access is synchronized by the {@link NetfilterBridgeCommunicator}.
+ */
+class NetfilterBridgeVerdictBatch {
+    private long[] acceptedPacketIds = new long[64];
+    private long[] droppedPacketIds = new long[64];
+    private int acceptedCount = 0;
+    private int droppedCount = 0;
+
+    public void add(long packetId, boolean accept) {
+        if (accept) {
+            if (acceptedCount == acceptedPacketIds.length)
+                acceptedPacketIds = Arrays.copyOf(acceptedPacketIds, acceptedCount * 2);
+            acceptedPacketIds[acceptedCount++] = packetId;
+        } else {
+            if (droppedCount == droppedPacketIds.length)
+                droppedPacketIds = Arrays.copyOf(droppedPacketIds, droppedCount * 2);
+            droppedPacketIds[droppedCount++] = packetId;
+        }
+    }
+
+    public int size() {
+        return acceptedCount + droppedCount;
+    }
+
+    public boolean isEmpty() {
+        return size() == 0;
+    }
+
+    public void clear() {
+        acceptedCount = 0;
+        droppedCount = 0;
+    }
+
+    /**
+     * Appends one response-line per verdict to the builder and clears the batch afterwards.
+     * Example: "#Packet.QueryAction.Response##netfilter.packet.ids=42-45,47##ACCEPT#\n"
+     */
+    public void encodeAndClear(StringBuilder builder) {
+        encode(builder, acceptedPacketIds, acceptedCount, NetfilterBridgeProtocol.QueryPackageActionResponse.FLAG_ACCEPT_PACKAGE);
+        encode(builder, droppedPacketIds, droppedCount, NetfilterBridgeProtocol.QueryPackageActionResponse.FLAG_DROP_PACKAGE);
+
+        acceptedCount = 0;
+        droppedCount = 0;
+    }
+
+    private static void encode(StringBuilder builder, long[] packetIds, int count, String verdictFlag) {
+        if (count == 0)
+            return;
+
+        Arrays.sort(packetIds, 0, count);
+
+        builder.append(NetfilterBridgeProtocol.QueryPackageActionResponse.MSG_PREFIX)
+                .append(NetfilterBridgeProtocol.VALUE_PREFIX)
+                .append(NetfilterBridgeProtocol.QueryPackageActionResponse.VALUE_PACKET_IDS)
+                .append(NetfilterBridgeProtocol.VALUE_KEY_DELIM);
+
+        int rangeStart = 0;
+        for(int i = 1; i <= count; i++) {
+            // a range ends, if the next id is not consecutive (duplicates are being skipped)
+            if (i < count && packetIds[i] - packetIds[i - 1] <= 1)
+                continue;
+
+            if (rangeStart > 0)
+                builder.append(NetfilterBridgeProtocol.QueryPackageActionResponse.PACKET_IDS_DELIM);
+
+            builder.append(packetIds[rangeStart]);
+            if (packetIds[i - 1] != packetIds[rangeStart])
+                builder.append(NetfilterBridgeProtocol.QueryPackageActionResponse.PACKET_IDS_RANGE_DELIM).append(packetIds[i - 1]);
+
+            rangeStart = i;
+        }
+
+        builder.append(NetfilterBridgeProtocol.VALUE_SUFFIX)
+                .append(verdictFlag)
+                .append('\n');
+    }
+}
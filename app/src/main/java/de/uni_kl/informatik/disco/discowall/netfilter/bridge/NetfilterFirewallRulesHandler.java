@@ -4,6 +4,8 @@ import android.util.Log;
 
 import java.net.InetAddress;
 import java.net.UnknownHostException;
+import java.util.LinkedList;
+import java.util.List;
 
 import de.uni_kl.informatik.disco.discowall.firewall.rules.FirewallRules;
 import de.uni_kl.informatik.disco.discowall.firewall.rules.FirewallIptableRulesHandler;
@@ -16,6 +18,7 @@ import de.uni_kl.informatik.disco.discowall.utils.shell.ShellExecuteExceptions;
 
 public class NetfilterFirewallRulesHandler implements FirewallIptableRulesHandler {
     private static final String LOG_TAG = FirewallIptableRulesHandler.class.getSimpleName();
+    private static final int MULTIPORT_MAX_PORTS = 15; // per multiport-match, a port-range counts as two ports
 
     private NetfilterFirewallRulesHandler() { }
     public static final FirewallIptableRulesHandler instance = new NetfilterFirewallRulesHandler();
@@ -156,22 +159,62 @@ public class NetfilterFirewallRulesHandler implements FirewallIptableRulesHandle
            * ==> localhost/127.0.0.1 will be ignored as filter, as they will never match and destroy the rules function.
          */
 
-        // Source filtering:
-        if (source.getPort() > 0)
-            rule += " --source-port " + source.getPort();
+        // Source- & destination-ip filtering:
+        String sourceIpFilter = "", destinationIpFilter = "";
         if (!source.getIp().isEmpty() && !source.getIp().equals("*") && !source.getIp().equals("localhost") && !source.getIp().equals("127.0.0.1"))
-            rule += " --source " + source.getIp();
-
-        // Destination filtering:
-        if (destination.getPort() > 0)
-            rule += " --destination-port " + destination.getPort();
+            sourceIpFilter = " --source " + source.getIp();
         if (!destination.getIp().isEmpty() && !destination.getIp().equals("*") && !destination.getIp().equals("localhost") && !destination.getIp().equals("127.0.0.1"))
-            rule += " --destination " + destination.getIp();
+            destinationIpFilter = " --destination " + destination.getIp();
+
+        // Port filtering - port-lists which do not fit into a single multiport-match need several rules:
+        for(String sourcePortFilter : getPortFilters(source, true)) {
+            for(String destinationPortFilter : getPortFilters(destination, false)) {
+                // Append jump to target chain:
+                String portRule = rule + sourcePortFilter + sourceIpFilter + destinationPortFilter + destinationIpFilter + " -j " + target;
+                addDeleteUserRule(userID, portRule, deviceFilter, delete);
+            }
+        }
+    }
+
+    /**
+     * @return "--source-port a" or "--source-port a:b" for a single port or port-range, "-m multiport --source-ports a,b:c,..." for port-lists
+     *         (split into several filters, if the list exceeds {@link #MULTIPORT_MAX_PORTS}) - or an empty filter for any port.
+     *         The destination-filters respectively.
+     */
+    static List<String> getPortFilters(Packages.IpPortPair filter, boolean source) {
+        LinkedList<String> filters = new LinkedList<>();
 
-        // Append jump to target chain:
-        rule += " -j " + target;
+        if (!filter.hasPortRanges()) {
+            filters.add(filter.getPort() > 0 ? (source ? " --source-port " : " --destination-port ") + filter.getPort() : "");
+            return filters;
+        }
+
+        int[] portRanges = filter.getPortRanges();
+        if (portRanges.length == 2) {
+            filters.add((source ? " --source-port " : " --destination-port ") + portRanges[0] + ":" + portRanges[1]);
+            return filters;
+        }
+
+        StringBuilder ports = new StringBuilder();
+        int portCount = 0;
+        for(int i = 0; i < portRanges.length; i += 2) {
+            int rangePortCount = portRanges[i] == portRanges[i + 1] ? 1 : 2;
+            if (portCount + rangePortCount > MULTIPORT_MAX_PORTS) {
+                filters.add((source ? " -m multiport --source-ports " : " -m multiport --destination-ports ") + ports);
+                ports.setLength(0);
+                portCount = 0;
+            }
+
+            if (ports.length() > 0)
+                ports.append(',');
+            ports.append(portRanges[i]);
+            if (rangePortCount == 2)
+                ports.append(':').append(portRanges[i + 1]);
+            portCount += rangePortCount;
+        }
+        filters.add((source ? " -m multiport --source-ports " : " -m multiport --destination-ports ") + ports);
 
-        addDeleteUserRule(userID, rule, deviceFilter, delete);
+        return filters;
     }
 
     private void addDeleteUserRule(int userID, String rule, FirewallRules.DeviceFilter deviceFilter, boolean delete) throws ShellExecuteExceptions.CallException, ShellExecuteExceptions.ReturnValueException {
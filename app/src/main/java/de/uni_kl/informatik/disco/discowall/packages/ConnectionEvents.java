@@ -0,0 +1,73 @@
+package de.uni_kl.informatik.disco.discowall.packages;
+
+/**
+ * Connection-lifecycle events, as reported by the conntrack-subsystem of the kernel.
+ * They let the {@link ConnectionManager} follow the state of connections whose packages are not being queued (i.e. FIN packages).
+ */
+public class ConnectionEvents {
+    /**
+     * There are no events for new connections: the bridge only subscribes to the update- and destroy-groups,
+     * as new connections are learned from their queued packages.
+     */
+    public enum EventType { UPDATE, DESTROY }
+
+    /**
+     * Same order as the kernel enum 'tcp_conntrack', so that the ordinal equals the value reported by conntrack.
+     */
+    public enum ConntrackTcpState {
+        NONE, SYN_SENT, SYN_RECV, ESTABLISHED, FIN_WAIT, CLOSE_WAIT, LAST_ACK, TIME_WAIT, CLOSE, SYN_SENT2;
+
+        public static ConntrackTcpState fromValue(int value) {
+            ConntrackTcpState[] states = values();
+            if (value < 0 || value >= states.length)
+                return NONE;
+            return states[value];
+        }
+    }
+
+    public static interface ConnectionLifecycleListener {
+        /**
+         * @param connection the tracked connection the event refers to, or null if the connection is not known (i.e. it has never been queued).
+         */
+        void onConnectionEvent(ConnectionEvent event, Connections.Connection connection);
+    }
+
+    /**
+     * Source and destination are the original direction of the connection, as seen by conntrack.
+     */
+    public static class ConnectionEvent implements Connections.IConnection {
+        private final EventType type;
+        private final Packages.TransportLayerProtocol protocol;
+        private final Packages.IpPortPair source, destination;
+        private final ConntrackTcpState tcpState;
+
+        public ConnectionEvent(EventType type, Packages.TransportLayerProtocol protocol, Packages.IpPortPair source, Packages.IpPortPair destination, ConntrackTcpState tcpState) {
+            this.type = type;
+            this.protocol = protocol;
+            this.source = source;
+            this.destination = destination;
+            this.tcpState = tcpState;
+        }
+
+        public EventType getType() { return type; }
+        public Packages.TransportLayerProtocol getProtocol() { return protocol; }
+
+        /**
+         * @return the conntrack tcp-state, or {@link ConntrackTcpState#NONE} for UDP.
+         */
+        public ConntrackTcpState getTcpState() { return tcpState; }
+
+        @Override public Packages.IpPortPair getSource() { return source; }
+        @Override public int getSourcePort() { return source.getPort(); }
+        @Override public String getSourceIP() { return source.getIp(); }
+
+        @Override public Packages.IpPortPair getDestination() { return destination; }
+        @Override public int getDestinationPort() { return destination.getPort(); }
+        @Override public String getDestinationIP() { return destination.getIp(); }
+
+        @Override
+        public String toString() {
+            return type + " " + protocol + " " + source + " -> " + destination + (protocol == Packages.TransportLayerProtocol.TCP ? " { tcpState=" + tcpState + " }" : "");
+        }
+    }
+}
@@ -0,0 +1,140 @@
+package de.uni_kl.informatik.disco.discowall.packages;
+
+import java.util.Collections;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+/**
+ * Secondary indexes of the tracked connections: by user-id, by remote address and by TCP-state.
+ * Maintained incrementally: connections are added/removed by the {@link StripedConnectionTable} while it holds the lock of their stripe,
+ * and a {@link Connections.TcpConnection} moves itself to its new state. The index-sets are concurrent, so that readers
+ * iterate them without blocking the package-path (weakly consistent).
+ * <p></p>
+ * A connection is locked while it is being added, removed or moved, so that it cannot be moved back into the index after its removal.
+ */
+class ConnectionIndex {
+    private final ConcurrentMap<Integer, Set<Connections.Connection>> byUserId = new ConcurrentHashMap<>();
+    private final ConcurrentMap<Object, Set<Connections.Connection>> byRemoteAddress = new ConcurrentHashMap<>();
+    private final Set<Connections.TcpConnection>[] byTcpState;
+
+    @SuppressWarnings("unchecked")
+    ConnectionIndex() {
+        byTcpState = (Set<Connections.TcpConnection>[]) new Set<?>[Connections.TcpConnection.TcpConnectionState.values().length];
+        for(int i = 0; i < byTcpState.length; i++)
+            byTcpState[i] = newSet();
+    }
+
+    private static <T> Set<T> newSet() {
+        return Collections.newSetFromMap(new ConcurrentHashMap<T, Boolean>());
+    }
+
+    /**
+     * @return the numeric address, or the host-name - so that "::1" and "0:0:0:0:0:0:0:1" have the same key
+     */
+    static Object remoteAddressKey(Packages.IpPortPair remoteAddress) {
+        return remoteAddress.getAddress() != null ? remoteAddress.getAddress() : remoteAddress.getIp();
+    }
+
+    static Object remoteAddressKey(String remoteAddress) {
+        return remoteAddressKey(new Packages.IpPortPair(remoteAddress, 0));
+    }
+
+    void add(Connections.Connection connection) {
+        synchronized (connection) {
+            if (connection.index == this)
+                return;
+            connection.index = this;
+
+            addTo(byUserId, connection.getUserId(), connection);
+            addTo(byRemoteAddress, remoteAddressKey(connection.getRemoteAddress()), connection);
+            if (connection instanceof Connections.TcpConnection) {
+                Connections.TcpConnection tcpConnection = (Connections.TcpConnection) connection;
+                byTcpState[tcpConnection.getState().ordinal()].add(tcpConnection);
+            }
+        }
+    }
+
+    void remove(Connections.Connection connection) {
+        synchronized (connection) {
+            if (connection.index != this)
+                return;
+            connection.index = null;
+
+            removeFrom(byUserId, connection.getUserId(), connection);
+            removeFrom(byRemoteAddress, remoteAddressKey(connection.getRemoteAddress()), connection);
+            if (connection instanceof Connections.TcpConnection) {
+                Connections.TcpConnection tcpConnection = (Connections.TcpConnection) connection;
+                byTcpState[tcpConnection.getState().ordinal()].remove(tcpConnection);
+            }
+        }
+    }
+
+    /**
+     * Called by the connection, while it is locked.
+     */
+    void onTcpStateChanged(Connections.TcpConnection connection, Connections.TcpConnection.TcpConnectionState oldState, Connections.TcpConnection.TcpConnectionState newState) {
+        byTcpState[oldState.ordinal()].remove(connection);
+        byTcpState[newState.ordinal()].add(connection);
+    }
+
+    /**
+     * Retries, if the set has been removed (as it became empty) while the connection has been added to it.
+     */
+    private static <TKey> void addTo(ConcurrentMap<TKey, Set<Connections.Connection>> index, TKey key, Connections.Connection connection) {
+        while (true) {
+            Set<Connections.Connection> connections = index.get(key);
+            if (connections == null) {
+                Set<Connections.Connection> newConnections = newSet();
+                connections = index.putIfAbsent(key, newConnections);
+                if (connections == null)
+                    connections = newConnections;
+            }
+
+            connections.add(connection);
+            if (index.get(key) == connections)
+                return;
+            connections.remove(connection);
+        }
+    }
+
+    private static <TKey> void removeFrom(ConcurrentMap<TKey, Set<Connections.Connection>> index, TKey key, Connections.Connection connection) {
+        Set<Connections.Connection> connections = index.get(key);
+        if (connections == null)
+            return;
+
+        connections.remove(connection);
+        if (connections.isEmpty())
+            index.remove(key, connections);
+    }
+
+    /**
+     * @return live view, or an empty set
+     */
+    Set<Connections.Connection> getByUserId(int userId) {
+        Set<Connections.Connection> connections = byUserId.get(userId);
+        return connections != null ? connections : Collections.<Connections.Connection>emptySet();
+    }
+
+    /**
+     * @return live view, or an empty set
+     */
+    Set<Connections.Connection> getByRemoteAddress(Object remoteAddressKey) {
+        Set<Connections.Connection> connections = byRemoteAddress.get(remoteAddressKey);
+        return connections != null ? connections : Collections.<Connections.Connection>emptySet();
+    }
+
+    /**
+     * @return live view
+     */
+    Set<Connections.TcpConnection> getByTcpState(Connections.TcpConnection.TcpConnectionState state) {
+        return byTcpState[state.ordinal()];
+    }
+
+    /**
+     * @return live views, which together contain all indexed connections
+     */
+    Iterable<Set<Connections.Connection>> getAllByUserId() {
+        return byUserId.values();
+    }
+}
@@ -1,88 +1,536 @@
 package de.uni_kl.informatik.disco.discowall.packages;
 
-import java.util.HashMap;
+import android.util.Log;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Comparator;
 import java.util.LinkedList;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+
+import de.uni_kl.informatik.disco.discowall.utils.TimerService;
 
+/**
+ * Tracks the TCP and UDP connections of the queued packages. Memory is bounded: connections expire according to the {@link ExpiryPolicy}
+ * (see {@link #startExpirySweeper()}) and the least recently active ones are evicted, if there are too many.
+ * An evicted connection is simply tracked again as new connection, if another of its packages is being queued.
+ * <p></p>
+ * Thread-safe for concurrent packages, conntrack-events, the sweeper on the {@link TimerService} thread and readers:
+ * the tables are striped (see {@link StripedConnectionTable}), so that the packages of different connections are tracked in parallel.
+ * <p></p>
+ * Connections are indexed by user-id, remote address and TCP-state, so that {@link #queryConnections(ConnectionQuery)} does not have to
+ * walk all connections and does not lock the tables.
+ */
 public class ConnectionManager {
-    private final ConnectionHash<Connections.TcpConnection> tcpConnectionHash = new ConnectionHash();
-    private final ConnectionHash<Connections.UdpConnection> udpConnectionHash = new ConnectionHash();
+    private static final String LOG_TAG = ConnectionManager.class.getSimpleName();
 
-    public Connections.TcpConnection getTcpConnection(int userID, Packages.IpPortPair source, Packages.IpPortPair destination) {
-        Connections.TcpConnection connection = tcpConnectionHash.get(source, destination);
+    /**
+     * Time-to-lives and limits of the tracked connections. All values are in milliseconds, except for the maximum connections.
+     */
+    public static class ExpiryPolicy {
+        public static final long DEFAULT_TCP_CLOSED_GRACE_MS = TimeUnit.SECONDS.toMillis(30);
+        public static final long DEFAULT_TCP_HANDSHAKE_TTL_MS = TimeUnit.MINUTES.toMillis(2);
+        public static final long DEFAULT_TCP_IDLE_TTL_MS = TimeUnit.HOURS.toMillis(1);
+        public static final long DEFAULT_UDP_IDLE_TTL_MS = TimeUnit.MINUTES.toMillis(3);
+        public static final int DEFAULT_MAX_CONNECTIONS = 4096;
+        public static final long DEFAULT_SWEEP_INTERVAL_MS = TimeUnit.SECONDS.toMillis(30);
+
+        private final long tcpClosedGraceMs, tcpHandshakeTtlMs, tcpIdleTtlMs, udpIdleTtlMs, sweepIntervalMs;
+        private final int maxConnections;
+
+        public ExpiryPolicy() {
+            this(DEFAULT_TCP_CLOSED_GRACE_MS, DEFAULT_TCP_HANDSHAKE_TTL_MS, DEFAULT_TCP_IDLE_TTL_MS, DEFAULT_UDP_IDLE_TTL_MS, DEFAULT_MAX_CONNECTIONS, DEFAULT_SWEEP_INTERVAL_MS);
+        }
+
+        /**
+         * @param tcpClosedGraceMs closed or reset TCP connections are kept this long, so that late packages still find their connection
+         * @param tcpHandshakeTtlMs idle-time after which TCP connections in state SYN_WAIT or UNKNOWN expire
+         * @param tcpIdleTtlMs idle-time after which any other TCP connection expires
+         * @param udpIdleTtlMs idle-time after which UDP connections expire
+         * @param maxConnections maximum number of tracked connections per protocol
+         */
+        public ExpiryPolicy(long tcpClosedGraceMs, long tcpHandshakeTtlMs, long tcpIdleTtlMs, long udpIdleTtlMs, int maxConnections, long sweepIntervalMs) {
+            if (maxConnections < 1)
+                throw new IllegalArgumentException("At least one connection per protocol has to be tracked: " + maxConnections);
+
+            this.tcpClosedGraceMs = tcpClosedGraceMs;
+            this.tcpHandshakeTtlMs = tcpHandshakeTtlMs;
+            this.tcpIdleTtlMs = tcpIdleTtlMs;
+            this.udpIdleTtlMs = udpIdleTtlMs;
+            this.maxConnections = maxConnections;
+            this.sweepIntervalMs = sweepIntervalMs;
+        }
+
+        public long getTcpClosedGraceMs() { return tcpClosedGraceMs; }
+        public long getTcpHandshakeTtlMs() { return tcpHandshakeTtlMs; }
+        public long getTcpIdleTtlMs() { return tcpIdleTtlMs; }
+        public long getUdpIdleTtlMs() { return udpIdleTtlMs; }
+        public int getMaxConnections() { return maxConnections; }
+        public long getSweepIntervalMs() { return sweepIntervalMs; }
+
+        boolean isExpired(Connections.TcpConnection connection, long now) {
+            switch(connection.getState()) {
+                case CLOSED:
+                case RESET:
+                    long closedTimestamp = connection.getClosedTimestamp() >= 0 ? connection.getClosedTimestamp() : connection.getLastActivityTimestamp();
+                    return now - closedTimestamp > TimeUnit.MILLISECONDS.toNanos(tcpClosedGraceMs);
+                case SYN_WAIT:
+                case UNKNOWN:
+                    return now - connection.getLastActivityTimestamp() > TimeUnit.MILLISECONDS.toNanos(tcpHandshakeTtlMs);
+                default:
+                    return now - connection.getLastActivityTimestamp() > TimeUnit.MILLISECONDS.toNanos(tcpIdleTtlMs);
+            }
+        }
 
-        if (connection == null) {
-            connection = new Connections.TcpConnection(userID, source, destination);
-            tcpConnectionHash.put(connection);
+        boolean isExpired(Connections.UdpConnection connection, long now) {
+            return now - connection.getLastActivityTimestamp() > TimeUnit.MILLISECONDS.toNanos(udpIdleTtlMs);
         }
 
+        @Override
+        public String toString() {
+            return "tcp-closed-grace=" + tcpClosedGraceMs + "ms, tcp-handshake-ttl=" + tcpHandshakeTtlMs + "ms, tcp-idle-ttl=" + tcpIdleTtlMs
+                    + "ms, udp-idle-ttl=" + udpIdleTtlMs + "ms, max-connections=" + maxConnections + ", sweep-interval=" + sweepIntervalMs + "ms";
+        }
+    }
+
+    /**
+     * Number of connections removed, by reason. Connections destroyed by conntrack-events are not counted.
+     */
+    public static class EvictionCounters {
+        final AtomicLong tcpClosed = new AtomicLong();
+        final AtomicLong tcpIdle = new AtomicLong();
+        final AtomicLong udpIdle = new AtomicLong();
+        final AtomicLong capacity = new AtomicLong();
+
+        /**
+         * @return closed or reset TCP connections, after their grace-period
+         */
+        public long getTcpClosed() { return tcpClosed.get(); }
+        public long getTcpIdle() { return tcpIdle.get(); }
+        public long getUdpIdle() { return udpIdle.get(); }
+
+        /**
+         * @return least recently active connections, evicted as the maximum number of connections has been reached
+         */
+        public long getCapacity() { return capacity.get(); }
+
+        public long getTotal() {
+            return getTcpClosed() + getTcpIdle() + getUdpIdle() + getCapacity();
+        }
+
+        @Override
+        public String toString() {
+            return "evictions { tcp-closed=" + getTcpClosed() + ", tcp-idle=" + getTcpIdle() + ", udp-idle=" + getUdpIdle() + ", capacity=" + getCapacity() + " }";
+        }
+    }
+
+    /**
+     * Criteria of {@link #queryConnections(ConnectionQuery)}. All criteria which have been set have to match.
+     */
+    public static class ConnectionQuery {
+        private Packages.TransportLayerProtocol protocol;
+        private Integer userId;
+        private Object remoteAddressKey;
+        private Connections.TcpConnection.TcpConnectionState tcpState;
+        private boolean excludeClosed;
+
+        public ConnectionQuery setProtocol(Packages.TransportLayerProtocol protocol) {
+            this.protocol = protocol;
+            return this;
+        }
+
+        public ConnectionQuery setUserId(int userId) {
+            this.userId = userId;
+            return this;
+        }
+
+        /**
+         * @param remoteAddress numeric ipv4/ipv6-address or host-name, without port
+         */
+        public ConnectionQuery setRemoteAddress(String remoteAddress) {
+            this.remoteAddressKey = ConnectionIndex.remoteAddressKey(remoteAddress);
+            return this;
+        }
+
+        /**
+         * Matches TCP connections only.
+         */
+        public ConnectionQuery setTcpState(Connections.TcpConnection.TcpConnectionState tcpState) {
+            this.tcpState = tcpState;
+            return this;
+        }
+
+        /**
+         * Excludes closed and reset TCP connections, which are kept until their grace-period has passed.
+         */
+        public ConnectionQuery setExcludeClosed(boolean excludeClosed) {
+            this.excludeClosed = excludeClosed;
+            return this;
+        }
+
+        boolean matches(Connections.Connection connection) {
+            if (protocol != null && connection.getTransportLayerProtocol() != protocol)
+                return false;
+            if (userId != null && connection.getUserId() != userId)
+                return false;
+            if (remoteAddressKey != null && !remoteAddressKey.equals(ConnectionIndex.remoteAddressKey(connection.getRemoteAddress())))
+                return false;
+
+            if (connection instanceof Connections.TcpConnection) {
+                Connections.TcpConnection.TcpConnectionState state = ((Connections.TcpConnection) connection).getState();
+                if (tcpState != null && state != tcpState)
+                    return false;
+                if (excludeClosed && (state == Connections.TcpConnection.TcpConnectionState.CLOSED || state == Connections.TcpConnection.TcpConnectionState.RESET))
+                    return false;
+            } else if (tcpState != null) {
+                return false;
+            }
+
+            return true;
+        }
+
+        @Override
+        public String toString() {
+            return "query { protocol=" + protocol + ", uid=" + userId + ", remote=" + remoteAddressKey + ", tcp-state=" + tcpState + ", exclude-closed=" + excludeClosed + " }";
+        }
+    }
+
+    /**
+     * Result of {@link #queryConnections(ConnectionQuery)}, ordered by the creation of the connections (oldest first).
+     * Does not change after the query, so that it can be paged through while the connections are being updated.
+     * The connections themselves are live, i.e. their counters and states still change.
+     */
+    public static class ConnectionSnapshot {
+        private final List<Connections.Connection> connections;
+        private final long timestamp = System.nanoTime();
+
+        ConnectionSnapshot(List<Connections.Connection> connections) {
+            this.connections = Collections.unmodifiableList(connections);
+        }
+
+        public int getTotalCount() {
+            return connections.size();
+        }
+
+        /**
+         * @return up to limit connections, starting at offset - or an empty list if the offset lies behind the last connection
+         */
+        public List<Connections.Connection> getPage(int offset, int limit) {
+            if (offset < 0 || limit < 0)
+                throw new IllegalArgumentException("Invalid page: offset=" + offset + ", limit=" + limit);
+            if (offset >= connections.size())
+                return Collections.emptyList();
+
+            return connections.subList(offset, Math.min(connections.size(), offset + limit));
+        }
+
+        public List<Connections.Connection> getConnections() {
+            return connections;
+        }
+
+        /**
+         * @return {@link System#nanoTime()} of the query
+         */
+        public long getTimestamp() {
+            return timestamp;
+        }
+    }
+
+    private static final Comparator<Connections.Connection> creationOrder = new Comparator<Connections.Connection>() {
+        @Override
+        public int compare(Connections.Connection a, Connections.Connection b) {
+            return a.getTimestamp() < b.getTimestamp() ? -1 : (a.getTimestamp() == b.getTimestamp() ? 0 : 1);
+        }
+    };
+
+    private final ConnectionIndex index = new ConnectionIndex();
+    private final StripedConnectionTable<Connections.TcpConnection> tcpConnectionTable = new StripedConnectionTable<>(index);
+    private final StripedConnectionTable<Connections.UdpConnection> udpConnectionTable = new StripedConnectionTable<>(index);
+    private final CopyOnWriteArrayList<ConnectionEvents.ConnectionLifecycleListener> lifecycleListeners = new CopyOnWriteArrayList<>();
+    private final ExpiryPolicy expiryPolicy;
+    private final EvictionCounters evictionCounters = new EvictionCounters();
+    private final AtomicBoolean evicting = new AtomicBoolean(); // only one thread evicts, while the others continue
+    private TimerService.Timeout expirySweeper;
+
+    public ConnectionManager() {
+        this(new ExpiryPolicy());
+    }
+
+    public ConnectionManager(ExpiryPolicy expiryPolicy) {
+        this.expiryPolicy = expiryPolicy;
+    }
+
+    public Connections.TcpConnection getTcpConnection(int userID, Packages.IpPortPair source, Packages.IpPortPair destination) {
+        Connections.TcpConnection connection = tcpConnectionTable.get(source, destination);
+
+        if (connection == null)
+            connection = insert(tcpConnectionTable, new Connections.TcpConnection(userID, source, destination));
+
         return connection;
     }
 
+    /**
+     * Does not allocate, if the connection is already known.
+     */
     public Connections.TcpConnection getTcpConnection(Packages.TcpPackage tcpPackage) {
-        return getTcpConnection(tcpPackage.getUserId(), tcpPackage.getSource(), tcpPackage.getDestination());
+        Connections.TcpConnection connection = tcpConnectionTable.get(tcpPackage);
+
+        if (connection == null)
+            connection = insert(tcpConnectionTable, new Connections.TcpConnection(tcpPackage.getUserId(), tcpPackage.getSource(), tcpPackage.getDestination(), tcpPackage.isInbound()));
+
+        return connection;
     }
 
     public boolean containsTcpConnection(Connections.IConnection connection) {
-        return tcpConnectionHash.contains(connection);
+        return tcpConnectionTable.contains(connection);
     }
 
     public Connections.UdpConnection getUdpConnection(int userID, Packages.IpPortPair source, Packages.IpPortPair destination) {
-        Connections.UdpConnection connection = udpConnectionHash.get(source, destination);
+        Connections.UdpConnection connection = udpConnectionTable.get(source, destination);
 
-        if (connection == null) {
-            connection = new Connections.UdpConnection(userID, source, destination);
-            udpConnectionHash.put(connection);
-        }
+        if (connection == null)
+            connection = insert(udpConnectionTable, new Connections.UdpConnection(userID, source, destination));
 
         return connection;
     }
 
+    /**
+     * Does not allocate, if the connection is already known.
+     */
     public Connections.UdpConnection getUdpConnection(Packages.UdpPackage udpPackage) {
-        return getUdpConnection(udpPackage.getUserId(), udpPackage.getSource(), udpPackage.getDestination());
+        Connections.UdpConnection connection = udpConnectionTable.get(udpPackage);
+
+        if (connection == null)
+            connection = insert(udpConnectionTable, new Connections.UdpConnection(udpPackage.getUserId(), udpPackage.getSource(), udpPackage.getDestination(), udpPackage.isInbound()));
+
+        return connection;
     }
 
     public boolean containsUdpConnection(Connections.IConnection connection) {
-        return udpConnectionHash.contains(connection);
+        return udpConnectionTable.contains(connection);
     }
 
+    public int getTcpConnectionCount() {
+        return tcpConnectionTable.size();
+    }
 
-    private static class ConnectionHash<TConnection extends Connections.Connection> {
-        private final HashMap<String, TConnection> connectionIdToConnectionMap = new HashMap<>();
+    public int getUdpConnectionCount() {
+        return udpConnectionTable.size();
+    }
 
-        public LinkedList<TConnection> getConnections() {
-            return new LinkedList<>(connectionIdToConnectionMap.values());
-        }
+    /**
+     * @return consistent snapshot of the tracked TCP connections
+     */
+    public LinkedList<Connections.TcpConnection> getTcpConnections() {
+        return tcpConnectionTable.getConnections();
+    }
 
-        public void put(TConnection connection) {
-            connectionIdToConnectionMap.put(connection.getID(), connection);
-        }
+    /**
+     * @return consistent snapshot of the tracked UDP connections
+     */
+    public LinkedList<Connections.UdpConnection> getUdpConnections() {
+        return udpConnectionTable.getConnections();
+    }
 
-        public boolean contains(Connections.IConnection connection) {
-            return contains(connection.getSource(), connection.getDestination());
-        }
+    /**
+     * Takes its candidates from the most selective index of the query, so that neither all connections are walked
+     * nor the tables are locked. Connections which are being added or removed concurrently may or may not be contained.
+     */
+    public ConnectionSnapshot queryConnections(ConnectionQuery query) {
+        Collection<? extends Connections.Connection> candidates = null;
+
+        if (query.userId != null)
+            candidates = index.getByUserId(query.userId);
+        if (query.remoteAddressKey != null)
+            candidates = smaller(candidates, index.getByRemoteAddress(query.remoteAddressKey));
+        if (query.tcpState != null)
+            candidates = smaller(candidates, index.getByTcpState(query.tcpState));
+
+        ArrayList<Connections.Connection> connections = new ArrayList<>();
 
-        public boolean contains(Packages.IpPortPair source, Packages.IpPortPair destination) {
-            return connectionIdToConnectionMap.containsKey(getConnectionID(source, destination));
+        if (candidates != null) {
+            addMatches(connections, candidates, query);
+        } else {
+            for(Collection<Connections.Connection> userConnections : index.getAllByUserId())
+                addMatches(connections, userConnections, query);
         }
 
-        public Connections.Connection get(Connections.IConnection connection) {
-            return get(connection.getSource(), connection.getDestination());
+        Collections.sort(connections, creationOrder);
+        return new ConnectionSnapshot(connections);
+    }
+
+    private static Collection<? extends Connections.Connection> smaller(Collection<? extends Connections.Connection> a, Collection<? extends Connections.Connection> b) {
+        return a == null || b.size() < a.size() ? b : a;
+    }
+
+    private static void addMatches(List<Connections.Connection> connections, Collection<? extends Connections.Connection> candidates, ConnectionQuery query) {
+        for(Connections.Connection connection : candidates) {
+            if (query.matches(connection))
+                connections.add(connection);
         }
+    }
+
+    public ExpiryPolicy getExpiryPolicy() {
+        return expiryPolicy;
+    }
 
-        public TConnection get(Packages.IpPortPair source, Packages.IpPortPair destination) {
-            return connectionIdToConnectionMap.get(getConnectionID(source, destination));
+    public EvictionCounters getEvictionCounters() {
+        return evictionCounters;
+    }
+
+    /**
+     * @return the new connection, or the one which has been inserted by another thread in the meantime
+     */
+    private <TConnection extends Connections.Connection> TConnection insert(StripedConnectionTable<TConnection> table, TConnection connection) {
+        TConnection existing = table.putIfAbsent(connection);
+        if (existing != null)
+            return existing;
+
+        if (table.size() > expiryPolicy.getMaxConnections() && evicting.compareAndSet(false, true)) {
+            try {
+                evictLeastRecentlyActive(table);
+            } finally {
+                evicting.set(false);
+            }
         }
 
-        private String getConnectionID(Packages.IpPortPair source, Packages.IpPortPair destination) {
-            String sourceID = source.toString();
-            String destinationID = destination.toString();
+        return connection;
+    }
+
+    /**
+     * Evicts an eighth of the maximum connections at once, so that the timestamps do not have to be sorted for each new connection.
+     */
+    private <TConnection extends Connections.Connection> void evictLeastRecentlyActive(StripedConnectionTable<TConnection> table) {
+        LinkedList<TConnection> connections = table.getConnections();
+        if (connections.size() <= expiryPolicy.getMaxConnections())
+            return; // evicted by the sweeper in the meantime
+
+        final int evictCount = connections.size() - expiryPolicy.getMaxConnections() + Math.max(1, expiryPolicy.getMaxConnections() / 8);
+
+        long[] activityTimestamps = new long[connections.size()];
+        int i = 0;
+        for(TConnection connection : connections)
+            activityTimestamps[i++] = connection.getLastActivityTimestamp();
+        Arrays.sort(activityTimestamps);
+        final long threshold = activityTimestamps[Math.min(evictCount, activityTimestamps.length) - 1];
+
+        int evicted = table.removeIf(new ConnectionTable.Filter<TConnection>() {
+            private int remaining = evictCount; // connections with equal timestamps may exceed the count
+
+            @Override
+            public boolean matches(TConnection connection) {
+                if (remaining == 0 || connection.getLastActivityTimestamp() > threshold)
+                    return false;
+
+                remaining--;
+                return true;
+            }
+        });
+
+        evictionCounters.capacity.addAndGet(evicted);
+        Log.d(LOG_TAG, "Maximum of " + expiryPolicy.getMaxConnections() + " connections reached. Evicted least recently active: " + evicted);
+    }
+
+    /**
+     * Removes all expired connections.
+     * @param now {@link System#nanoTime()}
+     * @return number of evicted connections
+     */
+    public int evictExpired(final long now) {
+        final int[] tcpClosed = new int[1];
+
+        int tcpEvicted = tcpConnectionTable.removeIf(new ConnectionTable.Filter<Connections.TcpConnection>() {
+            @Override
+            public boolean matches(Connections.TcpConnection connection) {
+                if (!expiryPolicy.isExpired(connection, now))
+                    return false;
+
+                Connections.TcpConnection.TcpConnectionState state = connection.getState();
+                if (state == Connections.TcpConnection.TcpConnectionState.CLOSED || state == Connections.TcpConnection.TcpConnectionState.RESET)
+                    tcpClosed[0]++;
+                return true;
+            }
+        });
+
+        int udpEvicted = udpConnectionTable.removeIf(new ConnectionTable.Filter<Connections.UdpConnection>() {
+            @Override
+            public boolean matches(Connections.UdpConnection connection) {
+                return expiryPolicy.isExpired(connection, now);
+            }
+        });
+
+        evictionCounters.tcpClosed.addAndGet(tcpClosed[0]);
+        evictionCounters.tcpIdle.addAndGet(tcpEvicted - tcpClosed[0]);
+        evictionCounters.udpIdle.addAndGet(udpEvicted);
+
+        return tcpEvicted + udpEvicted;
+    }
+
+    /**
+     * Periodically evicts the expired connections on the {@link TimerService} thread, until {@link #stopExpirySweeper()} is called.
+     */
+    public synchronized void startExpirySweeper() {
+        if (expirySweeper != null)
+            return;
+
+        expirySweeper = TimerService.getInstance().scheduleAtFixedRate(new Runnable() {
+            @Override
+            public void run() {
+                int evicted = evictExpired(System.nanoTime());
+                if (evicted > 0)
+                    Log.v(LOG_TAG, "Expired connections evicted: " + evicted + ", remaining tcp=" + getTcpConnectionCount() + ", udp=" + getUdpConnectionCount());
+            }
+        }, expiryPolicy.getSweepIntervalMs());
+    }
 
-            if (sourceID.compareTo(destinationID) < 0)
-                return sourceID + "->" + destinationID;
+    public synchronized void stopExpirySweeper() {
+        if (expirySweeper == null)
+            return;
+
+        expirySweeper.cancel();
+        expirySweeper = null;
+    }
+
+    public void addLifecycleListener(ConnectionEvents.ConnectionLifecycleListener listener) {
+        lifecycleListeners.add(listener);
+    }
+
+    public void removeLifecycleListener(ConnectionEvents.ConnectionLifecycleListener listener) {
+        lifecycleListeners.remove(listener);
+    }
+
+    /**
+     * Lifecycle-channel: updates the tracked connection (if any) by the conntrack-event and notifies the listeners.
+     * Destroyed connections are no longer being tracked.
+     */
+    public void onConnectionEvent(ConnectionEvents.ConnectionEvent event) {
+        Connections.Connection connection;
+
+        if (event.getProtocol() == Packages.TransportLayerProtocol.TCP) {
+            Connections.TcpConnection tcpConnection;
+            if (event.getType() == ConnectionEvents.EventType.DESTROY)
+                tcpConnection = tcpConnectionTable.remove(event.getSource(), event.getDestination());
             else
-                return destinationID + "->" + sourceID;
+                tcpConnection = tcpConnectionTable.get(event.getSource(), event.getDestination());
+
+            if (tcpConnection != null)
+                tcpConnection.update(event);
+            connection = tcpConnection;
+        } else {
+            if (event.getType() == ConnectionEvents.EventType.DESTROY)
+                connection = udpConnectionTable.remove(event.getSource(), event.getDestination());
+            else
+                connection = udpConnectionTable.get(event.getSource(), event.getDestination());
         }
 
+        // no lock is being held, so that listeners cannot block the package-path
+        for(ConnectionEvents.ConnectionLifecycleListener listener : lifecycleListeners)
+            listener.onConnectionEvent(event, connection);
     }
-
 }
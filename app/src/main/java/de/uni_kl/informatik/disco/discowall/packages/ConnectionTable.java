@@ -0,0 +1,277 @@
+package de.uni_kl.informatik.disco.discowall.packages;
+
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedList;
+
+/**
+ * Open-addressing hash-table for the connections of one transport-layer protocol. Connections between ipv4-endpoints are keyed by
+ * both endpoints (address and port) packed into a long each. The smaller one comes first, so that the key is direction-independent.
+ * Looking up the connection of a package therefore creates neither strings nor objects.
+ * Connections with other endpoints (ipv6, hostnames) are kept within a regular hash-map.
+ * <p></p>
+ * Uses linear probing with backward-shift deletion, so that no tombstones are left behind. Not thread-safe, see {@link StripedConnectionTable}.
+ */
+class ConnectionTable<TConnection extends Connections.Connection> {
+    private static final int INITIAL_CAPACITY = 256; // power of two
+    private static final int MAX_LOAD_PERCENT = 50;
+    static final long NO_ENDPOINT = -1;
+
+    private long[] lowEndpoints, highEndpoints;
+    private Connections.Connection[] connections; // null for free slots
+    private int mask, size, resizeThreshold;
+    private HashMap<Connections.ConnectionKey, TConnection> otherConnections; // created on demand
+
+    ConnectionTable() {
+        allocate(INITIAL_CAPACITY);
+    }
+
+    private void allocate(int capacity) {
+        lowEndpoints = new long[capacity];
+        highEndpoints = new long[capacity];
+        connections = new Connections.Connection[capacity];
+        mask = capacity - 1;
+        resizeThreshold = capacity * MAX_LOAD_PERCENT / 100;
+    }
+
+    /**
+     * @param ipv4 address in network byte order
+     * @return address and port as non-negative 48 bit value
+     */
+    static long endpoint(int ipv4, int port) {
+        return ((ipv4 & 0xFFFFFFFFL) << 16) | (port & 0xFFFF);
+    }
+
+    private static boolean isIpv4(Packages.IpPortPair pair) {
+        Packages.IpAddress address = pair.getAddress();
+        return address != null && !address.isIpv6();
+    }
+
+    /**
+     * @return the packed endpoint, or {@link #NO_ENDPOINT} if the pair is no numeric ipv4-address
+     */
+    static long endpoint(Packages.IpPortPair pair) {
+        return isIpv4(pair) ? endpoint(pair.getAddress().getIpv4(), pair.getPort()) : NO_ENDPOINT;
+    }
+
+    static int hash(long lowEndpoint, long highEndpoint) {
+        long hash = lowEndpoint * 0x9E3779B97F4A7C15L + highEndpoint;
+        hash ^= hash >>> 29;
+        hash *= 0xBF58476D1CE4E5B9L;
+        return (int) (hash ^ (hash >>> 32));
+    }
+
+    /**
+     * Direction-independent hash of the connection-key, which does not allocate for ipv4-packages. Used to choose the stripe of a
+     * {@link StripedConnectionTable}: the stripe has to be taken from other bits than the slot within the table.
+     */
+    static int keyHash(Packages.TransportLayerPackage tlPackage) {
+        if (!tlPackage.isIpv4())
+            return Connections.ConnectionKey.hashCode(tlPackage.getSource(), tlPackage.getDestination());
+
+        return keyHash(endpoint(tlPackage.getSourceIpv4(), tlPackage.getSourcePort()), endpoint(tlPackage.getDestinationIpv4(), tlPackage.getDestinationPort()));
+    }
+
+    static int keyHash(Packages.IpPortPair source, Packages.IpPortPair destination) {
+        if (!isIpv4(source) || !isIpv4(destination))
+            return Connections.ConnectionKey.hashCode(source, destination);
+
+        return keyHash(endpoint(source), endpoint(destination));
+    }
+
+    private static int keyHash(long endpointA, long endpointB) {
+        return hash(Math.min(endpointA, endpointB), Math.max(endpointA, endpointB));
+    }
+
+    /**
+     * @return the slot of the key, or (-1 - free slot) if the key is not contained
+     */
+    private int indexOf(long lowEndpoint, long highEndpoint) {
+        int index = hash(lowEndpoint, highEndpoint) & mask;
+
+        while (connections[index] != null) {
+            if (lowEndpoints[index] == lowEndpoint && highEndpoints[index] == highEndpoint)
+                return index;
+            index = (index + 1) & mask;
+        }
+
+        return -1 - index;
+    }
+
+    @SuppressWarnings("unchecked")
+    private TConnection get(long endpointA, long endpointB) {
+        int index = indexOf(Math.min(endpointA, endpointB), Math.max(endpointA, endpointB));
+        return index >= 0 ? (TConnection) connections[index] : null;
+    }
+
+    /**
+     * Does not allocate for ipv4-packages.
+     */
+    public TConnection get(Packages.TransportLayerPackage tlPackage) {
+        if (!tlPackage.isIpv4())
+            return getOther(tlPackage.getSource(), tlPackage.getDestination());
+
+        return get(endpoint(tlPackage.getSourceIpv4(), tlPackage.getSourcePort()), endpoint(tlPackage.getDestinationIpv4(), tlPackage.getDestinationPort()));
+    }
+
+    public TConnection get(Packages.IpPortPair source, Packages.IpPortPair destination) {
+        if (!isIpv4(source) || !isIpv4(destination))
+            return getOther(source, destination);
+
+        return get(endpoint(source), endpoint(destination));
+    }
+
+    private TConnection getOther(Packages.IpPortPair source, Packages.IpPortPair destination) {
+        if (otherConnections == null)
+            return null;
+        return otherConnections.get(new Connections.ConnectionKey(source, destination, true));
+    }
+
+    public boolean contains(Connections.IConnection connection) {
+        return get(connection.getSource(), connection.getDestination()) != null;
+    }
+
+    /**
+     * Replaces any connection with the same endpoints.
+     */
+    public void put(TConnection connection) {
+        Packages.IpPortPair source = connection.getSource(), destination = connection.getDestination();
+
+        if (!isIpv4(source) || !isIpv4(destination)) {
+            if (otherConnections == null)
+                otherConnections = new HashMap<>();
+            otherConnections.put(new Connections.ConnectionKey(source, destination, true), connection);
+            return;
+        }
+
+        long endpointA = endpoint(source), endpointB = endpoint(destination);
+        long lowEndpoint = Math.min(endpointA, endpointB), highEndpoint = Math.max(endpointA, endpointB);
+
+        int index = indexOf(lowEndpoint, highEndpoint);
+        if (index >= 0) {
+            connections[index] = connection;
+            return;
+        }
+
+        if (size >= resizeThreshold) {
+            resize(connections.length * 2);
+            index = indexOf(lowEndpoint, highEndpoint);
+        }
+
+        index = -1 - index;
+        lowEndpoints[index] = lowEndpoint;
+        highEndpoints[index] = highEndpoint;
+        connections[index] = connection;
+        size++;
+    }
+
+    public TConnection remove(Packages.IpPortPair source, Packages.IpPortPair destination) {
+        if (!isIpv4(source) || !isIpv4(destination))
+            return otherConnections == null ? null : otherConnections.remove(new Connections.ConnectionKey(source, destination, true));
+
+        long endpointA = endpoint(source), endpointB = endpoint(destination);
+        int index = indexOf(Math.min(endpointA, endpointB), Math.max(endpointA, endpointB));
+        if (index < 0)
+            return null;
+
+        @SuppressWarnings("unchecked")
+        TConnection connection = (TConnection) connections[index];
+        removeAt(index);
+        return connection;
+    }
+
+    /**
+     * Backward-shift deletion: following entries of the probe-sequence are moved into the freed slot,
+     * unless their home-slot lies behind it.
+     */
+    private void removeAt(int index) {
+        int free = index;
+
+        for(int i = (index + 1) & mask; connections[i] != null; i = (i + 1) & mask) {
+            int home = hash(lowEndpoints[i], highEndpoints[i]) & mask;
+
+            if (((i - home) & mask) >= ((i - free) & mask)) {
+                lowEndpoints[free] = lowEndpoints[i];
+                highEndpoints[free] = highEndpoints[i];
+                connections[free] = connections[i];
+                free = i;
+            }
+        }
+
+        connections[free] = null;
+        size--;
+    }
+
+    private void resize(int capacity) {
+        long[] oldLowEndpoints = lowEndpoints, oldHighEndpoints = highEndpoints;
+        Connections.Connection[] oldConnections = connections;
+        allocate(capacity);
+
+        for(int i = 0; i < oldConnections.length; i++) {
+            if (oldConnections[i] == null)
+                continue;
+
+            int index = -1 - indexOf(oldLowEndpoints[i], oldHighEndpoints[i]);
+            lowEndpoints[index] = oldLowEndpoints[i];
+            highEndpoints[index] = oldHighEndpoints[i];
+            connections[index] = oldConnections[i];
+        }
+    }
+
+    /**
+     * Decides for each connection whether it is being removed, see {@link #removeIf(Filter)}.
+     */
+    interface Filter<TConnection> {
+        boolean matches(TConnection connection);
+    }
+
+    /**
+     * @return number of removed connections
+     */
+    @SuppressWarnings("unchecked")
+    public int removeIf(Filter<? super TConnection> filter) {
+        int removed = 0;
+
+        // Each slot is checked again after a removal, as backward-shift deletion may have moved a following connection into it.
+        // Connections of a cluster wrapping around the end of the table may be checked twice.
+        for(int i = 0; i < connections.length; ) {
+            Connections.Connection connection = connections[i];
+
+            if (connection != null && filter.matches((TConnection) connection)) {
+                removeAt(i);
+                removed++;
+            } else {
+                i++;
+            }
+        }
+
+        if (otherConnections != null) {
+            for(Iterator<TConnection> iterator = otherConnections.values().iterator(); iterator.hasNext(); ) {
+                if (filter.matches(iterator.next())) {
+                    iterator.remove();
+                    removed++;
+                }
+            }
+        }
+
+        return removed;
+    }
+
+    @SuppressWarnings("unchecked")
+    public LinkedList<TConnection> getConnections() {
+        LinkedList<TConnection> list = new LinkedList<>();
+
+        for(Connections.Connection connection : connections) {
+            if (connection != null)
+                list.add((TConnection) connection);
+        }
+        if (otherConnections != null)
+            list.addAll(otherConnections.values());
+
+        return list;
+    }
+
+    public int size() {
+        return size + (otherConnections == null ? 0 : otherConnections.size());
+    }
+}
@@ -1,5 +1,7 @@
 package de.uni_kl.informatik.disco.discowall.packages;
 
+import de.uni_kl.informatik.disco.discowall.utils.StripedCounter;
+
 public class Connections {
     public static interface IConnectionSource {
         Packages.IpPortPair getSource();
@@ -16,12 +18,93 @@ public class Connections {
     public static interface IConnection extends IConnectionSource, IConnectionDestination {
     }
 
+    /**
+     * Direction-independent key of a connection (source/destination may be swapped), to be used within hash-maps
+     * instead of string-ids. Optionally ignores the ports.
+     */
+    public static final class ConnectionKey {
+        private final Packages.IpPortPair first, second;
+        private final boolean includePorts;
+
+        public ConnectionKey(IConnection connection) {
+            this(connection, true);
+        }
+
+        public ConnectionKey(IConnection connection, boolean includePorts) {
+            this(connection.getSource(), connection.getDestination(), includePorts);
+        }
+
+        public ConnectionKey(Packages.IpPortPair source, Packages.IpPortPair destination, boolean includePorts) {
+            this.first = source;
+            this.second = destination;
+            this.includePorts = includePorts;
+        }
+
+        private static boolean matches(IConnection connection, Packages.IpPortPair source, Packages.IpPortPair destination) {
+            return (connection.getSource().equals(source) && connection.getDestination().equals(destination))
+                    || (connection.getSource().equals(destination) && connection.getDestination().equals(source));
+        }
+
+        private static boolean equals(Packages.IpPortPair a, Packages.IpPortPair b, boolean includePorts) {
+            return includePorts ? a.equals(b) : a.hasSameIp(b);
+        }
+
+        /**
+         * Symmetric in source and destination.
+         */
+        static int hashCode(Packages.IpPortPair source, Packages.IpPortPair destination) {
+            return source.hashCode() + destination.hashCode();
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            if (this == o)
+                return true;
+            if (!(o instanceof ConnectionKey))
+                return false;
+
+            ConnectionKey key = (ConnectionKey) o;
+            if (includePorts != key.includePorts)
+                return false;
+
+            return (equals(first, key.first, includePorts) && equals(second, key.second, includePorts))
+                    || (equals(first, key.second, includePorts) && equals(second, key.first, includePorts));
+        }
+
+        @Override
+        public int hashCode() {
+            if (includePorts)
+                return hashCode(first, second);
+
+            return ipHashCode(first) + ipHashCode(second);
+        }
+
+        private static int ipHashCode(Packages.IpPortPair pair) {
+            return pair.getAddress() != null ? pair.getAddress().hashCode() : pair.getIp().hashCode();
+        }
+
+        @Override
+        public String toString() {
+            return first + "<->" + second;
+        }
+    }
+
+    /**
+     * Connections outlive the packages they are updated with, which may be reused after their verdict: a connection only keeps
+     * the immutable address-pairs and counters of its packages, never a package itself.
+     * <p></p>
+     * Packages of the same connection may be updated concurrently (i.e. from different queues): counters are striped, the state is volatile.
+     */
     public static abstract class Connection implements IConnection {
         private final Packages.IpPortPair source, destination;
+        private final boolean inbound; // initiated by the remote-host, i.e. the source is remote
+        private final long sourceEndpoint, destinationEndpoint; // packed ipv4-endpoints, or NO_ENDPOINT
         private final long timestamp = System.nanoTime();
+        private volatile long lastActivityTimestamp = timestamp; // read by the expiry-sweeper
         private final int uid;
-        private int packagesCount = 0;
-        private int totalLength = 0;
+        private final StripedCounter packagesCount = new StripedCounter();
+        private final StripedCounter totalLength = new StripedCounter();
+        ConnectionIndex index; // guarded by this, null while not tracked
 
         @Override public Packages.IpPortPair getSource() { return source; }
         @Override public int getSourcePort() { return source.getPort(); }
@@ -32,6 +115,22 @@ public class Connections {
         @Override public String getDestinationIP() { return destination.getIp(); }
 
         public long getTimestamp() { return timestamp; }
+
+        /**
+         * @return the endpoint of the remote-host, according to the direction of the first package
+         */
+        public Packages.IpPortPair getRemoteAddress() { return inbound ? source : destination; }
+        public Packages.IpPortPair getLocalAddress() { return inbound ? destination : source; }
+
+        /**
+         * @return {@link System#nanoTime()} of the last package or conntrack-event of this connection
+         */
+        public long getLastActivityTimestamp() { return lastActivityTimestamp; }
+
+        void setLastActivityTimestamp(long timestamp) {
+            lastActivityTimestamp = timestamp;
+        }
+
         public int getUserId() {
             return uid;
         }
@@ -41,13 +140,20 @@ public class Connections {
         }
 
         Connection(int userID, Packages.IpPortPair source, Packages.IpPortPair destination) {
-            this(userID, source.getIp(), source.getPort(), destination.getIp(), destination.getPort());
+            this(userID, source, destination, false);
         }
 
-        Connection(int userID, String sourceIP, int sourcePort, String destinationIP, int destinationPort) {
+        Connection(int userID, Packages.IpPortPair source, Packages.IpPortPair destination, boolean inbound) {
             uid = userID;
-            source = new Packages.IpPortPair(sourceIP, sourcePort);
-            destination = new Packages.IpPortPair(destinationIP, destinationPort);
+            this.source = source; // immutable
+            this.destination = destination;
+            this.inbound = inbound;
+            this.sourceEndpoint = ConnectionTable.endpoint(source);
+            this.destinationEndpoint = ConnectionTable.endpoint(destination);
+        }
+
+        Connection(int userID, String sourceIP, int sourcePort, String destinationIP, int destinationPort) {
+            this(userID, new Packages.IpPortPair(sourceIP, sourcePort), new Packages.IpPortPair(destinationIP, destinationPort));
         }
 
         @Override
@@ -62,18 +168,27 @@ public class Connections {
 
             if (o instanceof Connection) {
                 Connection connection = (Connection)o;
-                return connection.getID().equals(this.getID());
+                return getTransportLayerProtocol() == connection.getTransportLayerProtocol()
+                        && ConnectionKey.matches(this, connection.source, connection.destination);
             } else {
                 return super.equals(o);
             }
         }
 
-        public int getPackagesCount() {
-            return packagesCount;
+        @Override
+        public int hashCode() {
+            return ConnectionKey.hashCode(source, destination);
+        }
+
+        public long getPackagesCount() {
+            return packagesCount.get();
         }
 
-        public int getTotalLength() {
-            return totalLength;
+        /**
+         * @return bytes of all packages, as long - the sum exceeds an int after 2 GB
+         */
+        public long getTotalLength() {
+            return totalLength.get();
         }
 
         public String getID(boolean includePortInfo) {
@@ -113,15 +228,24 @@ public class Connections {
             if (!isPackagePartOfConnection(tlPackage))
                 return false;
 
-            packagesCount++;
-            totalLength += tlPackage.getLength();
+            packagesCount.increment();
+            totalLength.add(tlPackage.getLength());
+            lastActivityTimestamp = tlPackage.getTimestamp();
 
             return true;
         }
 
         public boolean isPackagePartOfConnection(Packages.TransportLayerPackage tlPackage) {
-            return ( tlPackage.getSource().equals(getSource()) && tlPackage.getDestination().equals(getDestination()) )
-                    || ( tlPackage.getSource().equals(getDestination()) && tlPackage.getDestination().equals(getSource()) );
+            if (sourceEndpoint != ConnectionTable.NO_ENDPOINT && destinationEndpoint != ConnectionTable.NO_ENDPOINT && tlPackage.isIpv4()) {
+                // compare the packed endpoints, so that the address-pairs of the package are not being created
+                long packageSource = ConnectionTable.endpoint(tlPackage.getSourceIpv4(), tlPackage.getSourcePort());
+                long packageDestination = ConnectionTable.endpoint(tlPackage.getDestinationIpv4(), tlPackage.getDestinationPort());
+
+                return (packageSource == sourceEndpoint && packageDestination == destinationEndpoint)
+                        || (packageSource == destinationEndpoint && packageDestination == sourceEndpoint);
+            }
+
+            return ConnectionKey.matches(this, tlPackage.getSource(), tlPackage.getDestination());
         }
 
         public abstract Packages.TransportLayerProtocol getTransportLayerProtocol();
@@ -138,6 +262,10 @@ public class Connections {
     }
 
     public static class UdpConnection extends Connection {
+        public enum UdpConnectionVerdict { UNDECIDED, ACCEPTED, BLOCKED }
+        private UdpConnectionVerdict verdict = UdpConnectionVerdict.UNDECIDED;
+        private int verdictRulesRevision;
+
         UdpConnection(int userID, IConnection connectionData) {
             super(userID, connectionData);
         }
@@ -146,6 +274,10 @@ public class Connections {
             super(userID, source, destination);
         }
 
+        UdpConnection(int userID, Packages.IpPortPair source, Packages.IpPortPair destination, boolean inbound) {
+            super(userID, source, destination, inbound);
+        }
+
         UdpConnection(int userID, String sourceIP, int sourcePort, String destinationIP, int destinationPort) {
             super(userID, sourceIP, sourcePort, destinationIP, destinationPort);
         }
@@ -155,19 +287,40 @@ public class Connections {
             return Packages.TransportLayerProtocol.UDP;
         }
 
-        public boolean update(Packages.UdpPackage udpPackage) {
-            return super.update(udpPackage);
+        /**
+         * Remembers the verdict of the flow, so that its following packages can be answered without deciding again.
+         * @param rulesRevision revision of the rules the verdict has been decided with
+         */
+        public synchronized void setVerdict(boolean accepted, int rulesRevision) {
+            verdict = accepted ? UdpConnectionVerdict.ACCEPTED : UdpConnectionVerdict.BLOCKED;
+            verdictRulesRevision = rulesRevision;
+        }
+
+        /**
+         * @return the remembered verdict, or UNDECIDED if there is none or the rules have changed since.
+         */
+        public synchronized UdpConnectionVerdict getVerdict(int rulesRevision) {
+            if (verdictRulesRevision != rulesRevision)
+                return UdpConnectionVerdict.UNDECIDED;
+            return verdict;
+        }
+
+        @Override
+        public String toString() {
+            return super.toString() + " { verdict=" + verdict + " }";
         }
     }
 
     public static class TcpConnection extends Connection {
         public enum TcpConnectionState { UNKNOWN, OPEN, SYN_WAIT, CLOSE_WAIT, CLOSED, RESET }
-        private int lastSeqNumber = -1;
-        private Packages.TcpPackage lastPackage;
-        private TcpConnectionState state = TcpConnectionState.UNKNOWN;
+        private volatile int lastSeqNumber = -1;
+        private volatile TcpConnectionState state = TcpConnectionState.UNKNOWN;
 
-        private long closedTimestamp = -1;
+        private volatile long closedTimestamp = -1;
 
+        /**
+         * @return {@link System#nanoTime()} at which the connection has been closed or reset, or -1 if it is still open
+         */
         public long getClosedTimestamp() {
             return closedTimestamp;
         }
@@ -180,6 +333,10 @@ public class Connections {
             super(userID, source, destination);
         }
 
+        TcpConnection(int userID, Packages.IpPortPair source, Packages.IpPortPair destination, boolean inbound) {
+            super(userID, source, destination, inbound);
+        }
+
         TcpConnection(int userID, String sourceIP, int sourcePort, String destinationIP, int destinationPort) {
             super(userID, sourceIP, sourcePort, destinationIP, destinationPort);
         }
@@ -192,32 +349,92 @@ public class Connections {
             return state;
         }
 
-        public Packages.TcpPackage getLastPackage() {
-            return lastPackage;
-        }
-
-        public boolean update(Packages.TcpPackage tcpPackage) {
-            if (!super.update(tcpPackage))
+        /**
+         * Overrides the update of any package, so that the state also follows packages whose static type is not {@link Packages.TcpPackage}.
+         */
+        @Override
+        public boolean update(Packages.TransportLayerPackage tlPackage) {
+            if (!super.update(tlPackage))
                 return false;
 
+            if (!(tlPackage instanceof Packages.TcpPackage))
+                return true;
+
+            Packages.TcpPackage tcpPackage = (Packages.TcpPackage) tlPackage;
             lastSeqNumber = tcpPackage.getSeqNumber();
-            lastPackage = tcpPackage;
 
             if (tcpPackage.hasFlagFIN() && !tcpPackage.hasFlagACK())
-                state = TcpConnectionState.CLOSE_WAIT;
+                setState(TcpConnectionState.CLOSE_WAIT);
             else if (tcpPackage.hasFlagFIN() && tcpPackage.hasFlagACK()) {
-                state = TcpConnectionState.CLOSED;
-                closedTimestamp = System.nanoTime();
+                closedTimestamp = tcpPackage.getTimestamp();
+                setState(TcpConnectionState.CLOSED);
             } else if (tcpPackage.hasFlagSYN() && !tcpPackage.hasFlagACK())
-                state = TcpConnectionState.SYN_WAIT;
+                setState(TcpConnectionState.SYN_WAIT);
             else if (tcpPackage.hasFlagSYN() && tcpPackage.hasFlagACK())
-                state = TcpConnectionState.OPEN;
-            else if (tcpPackage.hasFlagReset())
-                state = TcpConnectionState.RESET;
+                setState(TcpConnectionState.OPEN);
+            else if (tcpPackage.hasFlagReset()) {
+                closedTimestamp = tcpPackage.getTimestamp();
+                setState(TcpConnectionState.RESET);
+            }
 
             return true;
         }
 
+        /**
+         * Follows the conntrack-state, as FIN-packages are not necessarily being queued.
+         */
+        public void update(ConnectionEvents.ConnectionEvent event) {
+            setLastActivityTimestamp(System.nanoTime());
+
+            if (event.getType() == ConnectionEvents.EventType.DESTROY) {
+                if (state != TcpConnectionState.RESET)
+                    setClosed();
+                return;
+            }
+
+            switch(event.getTcpState()) {
+                case SYN_SENT:
+                case SYN_SENT2:
+                case SYN_RECV:
+                    setState(TcpConnectionState.SYN_WAIT);
+                    break;
+                case ESTABLISHED:
+                    setState(TcpConnectionState.OPEN);
+                    break;
+                case FIN_WAIT:
+                case CLOSE_WAIT:
+                case LAST_ACK:
+                    setState(TcpConnectionState.CLOSE_WAIT);
+                    break;
+                case TIME_WAIT:
+                case CLOSE:
+                    setClosed();
+                    break;
+            }
+        }
+
+        private void setClosed() {
+            if (state != TcpConnectionState.CLOSED)
+                closedTimestamp = System.nanoTime();
+            setState(TcpConnectionState.CLOSED);
+        }
+
+        /**
+         * Moves the connection within the state-index. Only locks, if the state actually changes.
+         */
+        private void setState(TcpConnectionState newState) {
+            if (state == newState)
+                return;
+
+            synchronized (this) {
+                TcpConnectionState oldState = state;
+                state = newState;
+
+                if (index != null && oldState != newState)
+                    index.onTcpStateChanged(this, oldState, newState);
+            }
+        }
+
         @Override
         public Packages.TransportLayerProtocol getTransportLayerProtocol() {
             return Packages.TransportLayerProtocol.TCP;
@@ -245,12 +462,12 @@ public class Connections {
         }
 
         public SimpleConnection(Packages.IpPortPair source, Packages.IpPortPair destination) {
-            this(source.getIp(), source.getPort(), destination.getIp(), destination.getPort());
+            this.source = source; // immutable
+            this.destination = destination;
         }
 
         public SimpleConnection(String sourceIP, int sourcePort, String destinationIP, int destinationPort) {
-            source = new Packages.IpPortPair(sourceIP, sourcePort);
-            destination = new Packages.IpPortPair(destinationIP, destinationPort);
+            this(new Packages.IpPortPair(sourceIP, sourcePort), new Packages.IpPortPair(destinationIP, destinationPort));
         }
 
         @Override
@@ -4,6 +4,9 @@ import java.net.InetAddress;
 import java.net.UnknownHostException;
 import java.text.DateFormat;
 import java.text.SimpleDateFormat;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
 import java.util.Date;
 
 import de.uni_kl.informatik.disco.discowall.firewall.rules.FirewallRules;
@@ -31,35 +34,441 @@ public class Packages {
 
     public enum NetworkInterface { Loopback, WiFi, Umts }
 
+    /**
+     * Numeric ip-address: IPv4 as int, IPv6 as two longs. Strings are only created for display (and then cached).
+     */
+    public static final class IpAddress {
+        private final boolean ipv6;
+        private final long high, low; // IPv4: low holds the address as unsigned int
+        private String string;
+
+        private IpAddress(boolean ipv6, long high, long low) {
+            this.ipv6 = ipv6;
+            this.high = high;
+            this.low = low;
+        }
+
+        /**
+         * @param address in network byte order, as read by {@link java.nio.ByteBuffer#getInt(int)}
+         */
+        public static IpAddress ipv4(int address) {
+            return new IpAddress(false, 0, address & 0xFFFFFFFFL);
+        }
+
+        public static IpAddress ipv6(long high, long low) {
+            return new IpAddress(true, high, low);
+        }
+
+        /**
+         * Parses numeric addresses only (no DNS-lookup).
+         * @return the address, or null if the string is neither a dotted IPv4- nor an IPv6-address
+         */
+        public static IpAddress parse(String address) {
+            if (address.indexOf(':') >= 0)
+                return parseIpv6(address);
+
+            long ipv4 = parseIpv4(address);
+            return ipv4 < 0 ? null : new IpAddress(false, 0, ipv4);
+        }
+
+        /**
+         * @return the address as unsigned int, or -1
+         */
+        private static long parseIpv4(String address) {
+            long value = 0;
+            int octets = 0, octet = -1;
+
+            for(int i = 0; i <= address.length(); i++) {
+                char c = i < address.length() ? address.charAt(i) : '.';
+
+                if (c == '.') {
+                    if (octet < 0 || ++octets > 4)
+                        return -1;
+                    value = (value << 8) | octet;
+                    octet = -1;
+                } else if (c >= '0' && c <= '9') {
+                    octet = (octet < 0 ? 0 : octet * 10) + (c - '0');
+                    if (octet > 255)
+                        return -1;
+                } else {
+                    return -1;
+                }
+            }
+
+            return octets == 4 ? value : -1;
+        }
+
+        private static IpAddress parseIpv6(String address) {
+            int[] groups = new int[8];
+            int count = 0, compressAt = -1;
+            int i = 0, length = address.length();
+
+            if (address.startsWith("::")) {
+                compressAt = 0;
+                i = 2;
+            }
+
+            while (i < length) {
+                int end = address.indexOf(':', i);
+                if (end < 0)
+                    end = length;
+
+                String group = address.substring(i, end);
+                if (group.indexOf('.') >= 0) { // embedded IPv4, i.e. ::ffff:10.0.0.1
+                    long ipv4 = parseIpv4(group);
+                    if (ipv4 < 0 || end != length || count > 6)
+                        return null;
+                    groups[count++] = (int) (ipv4 >>> 16);
+                    groups[count++] = (int) (ipv4 & 0xFFFF);
+                    break;
+                }
+
+                if (group.isEmpty() || group.length() > 4 || count >= 8)
+                    return null;
+                try {
+                    groups[count++] = Integer.parseInt(group, 16);
+                } catch (NumberFormatException e) {
+                    return null;
+                }
+
+                if (end + 1 < length && address.charAt(end + 1) == ':') {
+                    if (compressAt >= 0)
+                        return null;
+                    compressAt = count;
+                    end++;
+                } else if (end + 1 == length) {
+                    return null; // trailing single colon
+                }
+
+                i = end + 1;
+            }
+
+            if (compressAt >= 0) {
+                if (count == 8)
+                    return null;
+                int shift = 8 - count;
+                System.arraycopy(groups, compressAt, groups, compressAt + shift, count - compressAt);
+                for(int j = compressAt; j < compressAt + shift; j++)
+                    groups[j] = 0;
+            } else if (count != 8) {
+                return null;
+            }
+
+            long high = 0, low = 0;
+            for(int j = 0; j < 4; j++) {
+                high = (high << 16) | groups[j];
+                low = (low << 16) | groups[j + 4];
+            }
+
+            return new IpAddress(true, high, low);
+        }
+
+        public boolean isIpv6() { return ipv6; }
+
+        /**
+         * @return 32 for IPv4, 128 for IPv6
+         */
+        public int getBitLength() { return ipv6 ? 128 : 32; }
+
+        /**
+         * @return the IPv4-address in network byte order. Only valid for IPv4.
+         */
+        public int getIpv4() { return (int) low; }
+
+        public long getHigh() { return high; }
+        public long getLow() { return low; }
+
+        /**
+         * @return the address with all bits after the prefix cleared, i.e. the network-address
+         */
+        public IpAddress toNetwork(int prefixLength) {
+            if (ipv6)
+                return new IpAddress(true, high & prefixMask(prefixLength), low & prefixMask(prefixLength - 64));
+            return new IpAddress(false, 0, low & (prefixMask(prefixLength) >>> 32));
+        }
+
+        /**
+         * @return true, if both addresses are of the same family and share their first bits
+         */
+        public boolean hasSamePrefix(IpAddress other, int prefixLength) {
+            if (ipv6 != other.ipv6)
+                return false;
+            if (ipv6)
+                return ((high ^ other.high) & prefixMask(prefixLength)) == 0 && ((low ^ other.low) & prefixMask(prefixLength - 64)) == 0;
+            return ((low ^ other.low) & (prefixMask(prefixLength) >>> 32)) == 0;
+        }
+
+        /**
+         * @return the upper bits of a long set
+         */
+        private static long prefixMask(int bits) {
+            if (bits <= 0)
+                return 0;
+            return bits >= 64 ? -1L : -1L << (64 - bits);
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            if (this == o)
+                return true;
+            if (!(o instanceof IpAddress))
+                return false;
+
+            IpAddress address = (IpAddress) o;
+            return ipv6 == address.ipv6 && high == address.high && low == address.low;
+        }
+
+        @Override
+        public int hashCode() {
+            long hash = high * 31 + low;
+            return (int) (hash ^ (hash >>> 32)) + (ipv6 ? 1 : 0);
+        }
+
+        @Override
+        public String toString() {
+            String result = string;
+            if (result == null)
+                string = result = ipv6 ? formatIpv6() : formatIpv4();
+            return result;
+        }
+
+        private String formatIpv4() {
+            return new StringBuilder(15)
+                    .append((low >>> 24) & 0xFF).append('.')
+                    .append((low >>> 16) & 0xFF).append('.')
+                    .append((low >>> 8) & 0xFF).append('.')
+                    .append(low & 0xFF)
+                    .toString();
+        }
+
+        /**
+         * Hex-groups, with the longest run of zero-groups compressed to "::".
+         */
+        private String formatIpv6() {
+            int[] groups = new int[8];
+            for(int j = 0; j < 4; j++) {
+                groups[j] = (int) ((high >>> (48 - 16 * j)) & 0xFFFF);
+                groups[j + 4] = (int) ((low >>> (48 - 16 * j)) & 0xFFFF);
+            }
+
+            int bestStart = -1, bestLength = 1;
+            for(int j = 0; j < 8; ) {
+                if (groups[j] != 0) {
+                    j++;
+                    continue;
+                }
+                int runStart = j;
+                while (j < 8 && groups[j] == 0)
+                    j++;
+                if (j - runStart > bestLength) {
+                    bestStart = runStart;
+                    bestLength = j - runStart;
+                }
+            }
+
+            StringBuilder builder = new StringBuilder(39);
+            for(int j = 0; j < 8; j++) {
+                if (j == bestStart) {
+                    builder.append("::");
+                    j += bestLength - 1;
+                    continue;
+                }
+                if (builder.length() > 0 && builder.charAt(builder.length() - 1) != ':')
+                    builder.append(':');
+                builder.append(Integer.toHexString(groups[j]));
+            }
+            return builder.toString();
+        }
+    }
+
+    /**
+     * Address and port of one side of a connection, or a filter of a rule. Addresses of packages are numeric ({@link IpAddress}),
+     * while rule-filters may also contain hostnames or "*" (any), which are kept as string.
+     * Rule-filters may also contain port-ranges and -lists ("6881-6999", "5000,5004-5010") instead of a single port.
+     */
     public static class IpPortPair {
         public static final int PORT_ANY = 0;
         public static final int PORT_MAX = 65535;
         public static final String IP_ANY = "";
 
-        private final String ip;
-        private final int port;
+        private final IpAddress address; // null for hostnames and any-ip. The network-address, if this is a network.
+        private final String host;       // null for numeric addresses
+        private final short port;        // unsigned
+        private final boolean ipAny;
+        private final int prefixLength;  // bit-length of the address, unless this is a network - 0 for hostnames and any-ip
+        private final int[] portRanges;  // null, unless the filter has port-ranges: sorted, disjoint [first, last] pairs. The port is PORT_ANY then.
+
+        /**
+         * @return the port - {@link #PORT_ANY} for any port, and also for port-ranges (see {@link #hasPortRanges()})
+         */
+        public int getPort() { return port & 0xFFFF; }
 
-        public int getPort() { return port; }
-        public String getIp() { return ip; }
+        /**
+         * @return the ip for display: the numeric address, the network in CIDR-notation ("10.0.0.0/8"), the hostname or the any-ip ("" or "*")
+         */
+        public String getIp() {
+            if (address == null)
+                return host;
+            return isNetwork() ? address + "/" + prefixLength : address.toString();
+        }
 
+        /**
+         * @return the numeric address (the network-address, if {@link #isNetwork()}), or null for hostnames and any-ip
+         */
+        public IpAddress getAddress() { return address; }
+
+        /**
+         * @return number of leading address-bits which are matched: the bit-length of the address, unless this is a network.
+         * 0 for hostnames and any-ip.
+         */
+        public int getPrefixLength() { return prefixLength; }
+
+        /**
+         * @param ip numeric address, network in CIDR-notation ("10.0.0.0/8", "2001:db8::/32"), hostname or any-ip ("" or "*")
+         */
         public IpPortPair(String ip, int port) {
+            this(ip, port, null);
+        }
+
+        /**
+         * @param ports a single port, a port-range ("6881-6999"), a list of ports and ranges ("5000,5004-5010") or any-port ("", "*" or "0")
+         */
+        public IpPortPair(String ip, String ports) {
+            this(ip, parsePortRanges(ports));
+        }
+
+        /**
+         * A single port is kept as port, not as range.
+         */
+        private IpPortPair(String ip, int[] portRanges) {
+            this(ip, isSinglePort(portRanges) ? portRanges[0] : PORT_ANY, isSinglePort(portRanges) || portRanges.length == 0 ? null : portRanges);
+        }
+
+        private IpPortPair(String ip, int port, int[] portRanges) {
             if (ip == null)
                 throw new IllegalArgumentException("IP address cannot be null.");
+            checkPort(port);
+
+            ip = ip.trim();
+            this.ipAny = ip.isEmpty() || ip.equals("*");
+            this.port = (short) port;
+            this.portRanges = portRanges;
+
+            int prefixSeparator = ip.indexOf('/');
+            if (prefixSeparator >= 0) {
+                IpAddress network = IpAddress.parse(ip.substring(0, prefixSeparator));
+                if (network == null)
+                    throw new IllegalArgumentException("Network-address is not numeric: " + ip);
+
+                String prefixValue = ip.substring(prefixSeparator + 1);
+                if (prefixValue.isEmpty() || prefixValue.length() > 3)
+                    throw new IllegalArgumentException("Invalid prefix-length: " + ip);
+                int prefixLength = 0;
+                for(int i = 0; i < prefixValue.length(); i++) {
+                    char digit = prefixValue.charAt(i);
+                    if (digit < '0' || digit > '9') // also rejects signs, which Integer.parseInt() would accept
+                        throw new IllegalArgumentException("Invalid prefix-length: " + ip);
+                    prefixLength = 10 * prefixLength + (digit - '0');
+                }
+                if (prefixLength > network.getBitLength())
+                    throw new IllegalArgumentException("Prefix-length " + prefixLength + " out of range for " + ip);
+
+                this.address = network.toNetwork(prefixLength);
+                this.prefixLength = prefixLength;
+                this.host = null;
+            } else {
+                this.address = ipAny ? null : IpAddress.parse(ip);
+                this.prefixLength = address != null ? address.getBitLength() : 0;
+                this.host = address == null ? ip : null;
+            }
+        }
+
+        public IpPortPair(IpAddress address, int port) {
+            if (address == null)
+                throw new IllegalArgumentException("IP address cannot be null.");
+            checkPort(port);
+
+            this.address = address;
+            this.host = null;
+            this.ipAny = false;
+            this.port = (short) port;
+            this.prefixLength = address.getBitLength();
+            this.portRanges = null;
+        }
+
+        private static void checkPort(int port) {
             if (port < 0)
                 throw new IllegalArgumentException("Port-numbers cannot be negative.");
             else if (port > PORT_MAX)
                 throw new IllegalArgumentException("Port " + port + " exceeds maximum " + PORT_MAX + ".");
+        }
 
-            this.ip = ip.trim();
-            this.port = port;
+        private static boolean isSinglePort(int[] portRanges) {
+            return portRanges.length == 2 && portRanges[0] == portRanges[1];
+        }
+
+        /**
+         * @return sorted [first, last] pairs, with overlapping and adjacent ranges merged - empty for any-port
+         */
+        private static int[] parsePortRanges(String ports) {
+            if (ports == null)
+                throw new IllegalArgumentException("Ports cannot be null.");
+
+            ports = ports.trim();
+            if (ports.isEmpty() || ports.equals("*") || ports.equals("0"))
+                return new int[0];
+
+            ArrayList<int[]> ranges = new ArrayList<>();
+            for(String range : ports.split(",", -1)) { // keeps trailing empty ranges, so that "80," is rejected
+                range = range.trim();
+                int separator = range.indexOf('-', 1);
+                int first, last;
+
+                try {
+                    first = Integer.parseInt((separator < 0 ? range : range.substring(0, separator)).trim());
+                    last = separator < 0 ? first : Integer.parseInt(range.substring(separator + 1).trim());
+                } catch (NumberFormatException e) {
+                    throw new IllegalArgumentException("Invalid port-range \"" + range + "\" in: " + ports);
+                }
+
+                checkPort(first);
+                checkPort(last);
+                if (first == PORT_ANY)
+                    throw new IllegalArgumentException("Port-ranges cannot contain port " + PORT_ANY + ": " + ports);
+                if (first > last)
+                    throw new IllegalArgumentException("Port-range \"" + range + "\" is descending: " + ports);
+
+                ranges.add(new int[] { first, last });
+            }
+
+            int[][] sorted = ranges.toArray(new int[ranges.size()][]);
+            Arrays.sort(sorted, new Comparator<int[]>() {
+                @Override
+                public int compare(int[] a, int[] b) {
+                    return a[0] < b[0] ? -1 : (a[0] == b[0] ? 0 : 1);
+                }
+            });
+
+            int[] merged = new int[2 * sorted.length];
+            int count = 0;
+            for(int[] range : sorted) {
+                if (count > 0 && range[0] <= merged[count - 1] + 1) {
+                    merged[count - 1] = Math.max(merged[count - 1], range[1]);
+                } else {
+                    merged[count++] = range[0];
+                    merged[count++] = range[1];
+                }
+            }
+
+            return Arrays.copyOf(merged, count);
         }
 
         public boolean hasIp() {
-            return !isIpAny();
+            return !ipAny;
         }
 
         public boolean isIpAny() {
-            return ip.trim().isEmpty() || ip.trim().equals("*");
+            return ipAny;
         }
 
         public boolean hasPort() {
@@ -67,41 +476,129 @@ public class Packages {
         }
 
         public boolean isPortAny() {
-            return port <= 0;
+            return port == PORT_ANY && portRanges == null;
+        }
+
+        /**
+         * @return true, if the filter is a port-range or -list instead of a single port
+         */
+        public boolean hasPortRanges() {
+            return portRanges != null;
+        }
+
+        /**
+         * @return sorted, disjoint [first, last] pairs of the port-ranges, or null if {@link #hasPortRanges()} is false. Must not be modified.
+         */
+        public int[] getPortRanges() {
+            return portRanges;
+        }
+
+        /**
+         * @return true, if the port is any-port, equals the port or lies within one of the port-ranges
+         */
+        public boolean matchesPort(int port) {
+            if (portRanges == null)
+                return this.port == PORT_ANY || port == getPort();
+
+            // binary search for the last range starting at or before the port
+            int low = 0, high = portRanges.length / 2 - 1;
+            while (low <= high) {
+                int middle = (low + high) >>> 1;
+                if (portRanges[2 * middle] <= port)
+                    low = middle + 1;
+                else
+                    high = middle - 1;
+            }
+            return high >= 0 && port <= portRanges[2 * high + 1];
+        }
+
+        /**
+         * @return the ports as accepted by {@link #IpPortPair(String, String)}: "0" for any-port, "80", "6881-6999" or "5000,5004-5010"
+         */
+        public String getPorts() {
+            if (portRanges == null)
+                return getPort() + "";
+
+            StringBuilder builder = new StringBuilder();
+            for(int i = 0; i < portRanges.length; i += 2) {
+                if (i > 0)
+                    builder.append(',');
+                builder.append(portRanges[i]);
+                if (portRanges[i + 1] != portRanges[i])
+                    builder.append('-').append(portRanges[i + 1]);
+            }
+            return builder.toString();
+        }
+
+        /**
+         * @return true, if the ip is a network in CIDR-notation, which matches any address with the same prefix
+         */
+        public boolean isNetwork() {
+            return address != null && prefixLength < address.getBitLength();
+        }
+
+        /**
+         * Numeric addresses are compared by value, hostnames by string. A hostname never equals a numeric address.
+         * Networks are only equal to networks with the same prefix-length.
+         */
+        public boolean hasSameIp(IpPortPair other) {
+            if (address != null)
+                return address.equals(other.address) && prefixLength == other.prefixLength;
+            return other.address == null && host.equals(other.host);
+        }
+
+        /**
+         * Like {@link #hasSameIp(IpPortPair)}, but if this is a network, any address within the network matches.
+         */
+        public boolean matchesIp(IpPortPair other) {
+            if (!isNetwork())
+                return hasSameIp(other);
+            return other.address != null && address.hasSamePrefix(other.address, prefixLength);
         }
 
         @Override
         public String toString() {
-            return (ip.isEmpty()?"*":ip) + ":" + (port<1?"*":port); // examples: *:*, 127.0.0.1:*, 127.0.0.1:1337, *:1337
+            String ip = getIp();
+            return (ip.isEmpty()?"*":ip) + ":" + (isPortAny()?"*":getPorts()); // examples: *:*, 127.0.0.1:*, 127.0.0.1:1337, *:1337, *:6881-6999
         }
 
         @Override
         public boolean equals(Object o) {
-            if (o == null)
+            if (this == o)
+                return true;
+            if (!(o instanceof IpPortPair))
                 return false;
 
-            if (o instanceof IpPortPair) {
-                IpPortPair pair = (IpPortPair)o;
-                return pair.getIp().equals(getIp()) && pair.getPort() == getPort();
-            } else {
-                return super.equals(o);
-            }
+            IpPortPair pair = (IpPortPair)o;
+            return pair.port == port && Arrays.equals(pair.portRanges, portRanges) && hasSameIp(pair);
+        }
+
+        @Override
+        public int hashCode() {
+            return 31 * (address != null ? address.hashCode() + prefixLength : host.hashCode()) + port + Arrays.hashCode(portRanges);
         }
 
         public String getHostname() {
             try {
-                InetAddress ia = InetAddress.getByName(ip);
+                InetAddress ia = InetAddress.getByName(getIp());
                 return ia.getHostName();
             } catch (UnknownHostException e) {
                 return null;
             }
         }
-
     }
 
+    // SimpleDateFormat is not thread-safe, but expensive to create: one instance per thread
+    private static final ThreadLocal<DateFormat> timestampFormatter = new ThreadLocal<DateFormat>() {
+        @Override
+        protected DateFormat initialValue() {
+            return new SimpleDateFormat("HH:mm:ss.SSS");
+        }
+    };
+
     private static abstract class Package {
         private NetworkInterface networkInterface = null;
-        private final long timestamp = System.nanoTime();
+        private long timestamp = System.nanoTime();
         private int userId = -1;
 
         /**
@@ -115,8 +612,7 @@ public class Packages {
 
         public String getTimestampReadable() {
             Date date = new Date(timestamp/1000); // nanoseconds to milliseconds
-            DateFormat formatter = new SimpleDateFormat("HH:mm:ss.SSS");
-            return formatter.format(date);
+            return timestampFormatter.get().format(date);
         }
 
         public NetworkInterface getNetworkInterface() {
@@ -135,6 +631,15 @@ public class Packages {
             return userId;
         }
 
+        /**
+         * Clears the state of a reusable package, before it is being filled again.
+         */
+        void reset(long timestamp) {
+            this.timestamp = timestamp;
+            networkInterface = null;
+            userId = -1;
+        }
+
         @Override
         public String toString() {
             return "{ [*] timestamp="+ timestamp + ", time=" + getTimestampReadable() + (networkInterface==null ? "" : ", interface="+networkInterface) + (userId < 0 ? "" : ", uid=" + userId) +" }";
@@ -156,6 +661,12 @@ public class Packages {
             this.mark = mark;
         }
 
+        @Override
+        void reset(long timestamp) {
+            super.reset(timestamp);
+            mark = -1;
+        }
+
         @Override
         public String toString() {
             return  " { [netfilter]"
@@ -166,8 +677,8 @@ public class Packages {
     }
 
     private static abstract class PhysicalLayerPackage extends NetfilterPackage {
-        private final int inputDeviceIndex;
-        private final int outputDeviceIndex;
+        private int inputDeviceIndex;
+        private int outputDeviceIndex;
 
         public PhysicalLayerPackage(int inputDeviceIndex, int outputDeviceIndex) {
             this.inputDeviceIndex = inputDeviceIndex;
@@ -182,6 +693,11 @@ public class Packages {
             return inputDeviceIndex;
         }
 
+        void setDeviceIndices(int inputDeviceIndex, int outputDeviceIndex) {
+            this.inputDeviceIndex = inputDeviceIndex;
+            this.outputDeviceIndex = outputDeviceIndex;
+        }
+
         @Override
         public String toString() {
             return  " { [phys]"
@@ -201,71 +717,169 @@ public class Packages {
         public abstract String getDestinationIP();
     }
 
+    /**
+     * Packages decoded from binary queries are <b>reusable</b> (see {@link #isReusable()}): the netfilter-bridge decodes the next package
+     * into the same instance, once the verdict has been sent. Their ports and flags are stored as primitives, while the address-pairs are
+     * only being created if requested. Packages must not be kept beyond their verdict: anything outliving it (i.e. connections) copies
+     * the values it needs, like the address-pairs, which are immutable.
+     */
     public static abstract class TransportLayerPackage extends IpPackage implements Connections.IConnection {
         private final TransportLayerProtocol protocol;
-        private final IpPortPair source, destination, localAddress, remoteAddress;
-        private final int checksum, length;
+        private final boolean reusable;
+        private IpPortPair source, destination;  // created on demand, for reusable packages
+        private int sourceIpv4, destinationIpv4; // valid if ipv4
+        private boolean ipv4;
+        private int sourcePort, destinationPort;
+        private int checksum, length;
 
         public TransportLayerProtocol getProtocol() { return protocol; }
 
-        @Override public IpPortPair getSource() { return source; }
-        @Override public int getSourcePort() { return source.getPort(); }
-        @Override public String getSourceIP() { return source.getIp(); }
+        // Lazy creation is a benign race: concurrent callers create equal, immutable pairs.
+        @Override public IpPortPair getSource() {
+            if (source == null)
+                source = new IpPortPair(IpAddress.ipv4(sourceIpv4), sourcePort);
+            return source;
+        }
+        @Override public int getSourcePort() { return sourcePort; }
+        @Override public String getSourceIP() { return getSource().getIp(); }
 
-        @Override public IpPortPair getDestination() { return destination; }
-        @Override public int getDestinationPort() { return destination.getPort(); }
-        @Override public String getDestinationIP() { return destination.getIp(); }
+        @Override public IpPortPair getDestination() {
+            if (destination == null)
+                destination = new IpPortPair(IpAddress.ipv4(destinationIpv4), destinationPort);
+            return destination;
+        }
+        @Override public int getDestinationPort() { return destinationPort; }
+        @Override public String getDestinationIP() { return getDestination().getIp(); }
+
+        /**
+         * If the input-device is specified, the package has been received by this device: its destination is the device,
+         * its source the remote-host.
+         */
+        public boolean isInbound() {
+            return getInputDeviceIndex() >= 0;
+        }
 
         public IpPortPair getLocalAddress() {
-            return localAddress;
+            return isInbound() ? getDestination() : getSource();
         }
 
         public IpPortPair getRemoteAddress() {
-            return remoteAddress;
+            return isInbound() ? getSource() : getDestination();
+        }
+
+        public int getLocalPort() {
+            return isInbound() ? destinationPort : sourcePort;
+        }
+
+        public int getRemotePort() {
+            return isInbound() ? sourcePort : destinationPort;
         }
 
         public int getLength() { return length; }
         public int getChecksum() { return checksum; }
 
+        /**
+         * @return true, if source and destination are numeric ipv4-addresses, which can be read without creating the address-pairs
+         */
+        public boolean isIpv4() { return ipv4; }
+
+        /**
+         * @return the address in network byte order. Only valid if {@link #isIpv4()}.
+         */
+        public int getSourceIpv4() { return sourceIpv4; }
+
+        /**
+         * @return the address in network byte order. Only valid if {@link #isIpv4()}.
+         */
+        public int getDestinationIpv4() { return destinationIpv4; }
+
         public boolean isOriginRemote() {
-            return remoteAddress.equals(destination);
+            return getRemoteAddress().equals(getDestination());
         }
 
         public boolean isOriginLocal() {
-            return localAddress.equals(source);
+            return getLocalAddress().equals(getSource());
+        }
+
+        public boolean isReusable() {
+            return reusable;
         }
 
         public TransportLayerPackage(int inputDeviceIndex, int outputDeviceIndex, TransportLayerProtocol protocol, String sourceIP, String destinationIP, int sourcePort, int destinationPort, int checksum, int length) {
+            this(inputDeviceIndex, outputDeviceIndex, protocol, new IpPortPair(sourceIP, sourcePort), new IpPortPair(destinationIP, destinationPort), checksum, length);
+        }
+
+        public TransportLayerPackage(int inputDeviceIndex, int outputDeviceIndex, TransportLayerProtocol protocol, IpPortPair source, IpPortPair destination, int checksum, int length) {
             super(inputDeviceIndex, outputDeviceIndex);
 
             this.protocol = protocol;
+            this.reusable = false;
             this.checksum = checksum;
             this.length = length;
 
-            source = new IpPortPair(sourceIP, sourcePort);
-            destination = new IpPortPair(destinationIP, destinationPort);
+            this.source = source;
+            this.destination = destination;
+            this.sourcePort = source.getPort();
+            this.destinationPort = destination.getPort();
 
-            if (getInputDeviceIndex() >= 0) {
-                // if input-device index specified, the package has been received by this device
-                localAddress = destination; // ==> The destination of this package is the device
-                remoteAddress = source; // ==> The source of this package is the remote-host
-            } else if (getOutputDeviceIndex() >= 0) {
-                localAddress = source;
-                remoteAddress = destination;
-            } else {
-                throw new RuntimeException("Invalid package definition! Neither input- nor output-device specified. Package: " + this.toString());
+            IpAddress sourceAddress = source.getAddress(), destinationAddress = destination.getAddress();
+            this.ipv4 = sourceAddress != null && !sourceAddress.isIpv6() && destinationAddress != null && !destinationAddress.isIpv6();
+            if (ipv4) {
+                this.sourceIpv4 = sourceAddress.getIpv4();
+                this.destinationIpv4 = destinationAddress.getIpv4();
             }
+
+            checkDeviceIndices();
+        }
+
+        /**
+         * Creates an empty reusable package.
+         */
+        TransportLayerPackage(TransportLayerProtocol protocol) {
+            super(-1, -1);
+
+            this.protocol = protocol;
+            this.reusable = true;
+        }
+
+        /**
+         * Fills a reusable package.
+         * @param sourceIpv4 ipv4-address in network byte order
+         */
+        void setIpv4(long timestamp, int inputDeviceIndex, int outputDeviceIndex, int sourceIpv4, int destinationIpv4, int sourcePort, int destinationPort, int checksum, int length) {
+            if (!reusable)
+                throw new IllegalStateException("Package is not reusable: " + this);
+
+            reset(timestamp);
+            setDeviceIndices(inputDeviceIndex, outputDeviceIndex);
+
+            this.source = null;
+            this.destination = null;
+            this.ipv4 = true;
+            this.sourceIpv4 = sourceIpv4;
+            this.destinationIpv4 = destinationIpv4;
+            this.sourcePort = sourcePort;
+            this.destinationPort = destinationPort;
+            this.checksum = checksum;
+            this.length = length;
+
+            checkDeviceIndices();
+        }
+
+        private void checkDeviceIndices() {
+            if (getInputDeviceIndex() < 0 && getOutputDeviceIndex() < 0)
+                throw new RuntimeException("Invalid package definition! Neither input- nor output-device specified. Package: " + this.toString());
         }
 
         protected String transportLayerToString() {
-            return source + " -> " + destination + ", local=" + localAddress + ", remote=" + remoteAddress + ", length="+ length +", checksum=" + checksum;
+            return getSource() + " -> " + getDestination() + ", local=" + getLocalAddress() + ", remote=" + getRemoteAddress() + ", length="+ length +", checksum=" + checksum;
         }
 
     }
 
     public static  class TcpPackage extends TransportLayerPackage {
-        private final int seqNumber, ackNumber;
-        private final boolean hasFlagACK, hasFlagFIN, hasFlagSYN, hasFlagPush, hasFlagReset, hasFlagUrgent;
+        private int seqNumber, ackNumber;
+        private boolean hasFlagACK, hasFlagFIN, hasFlagSYN, hasFlagPush, hasFlagReset, hasFlagUrgent;
 
         public int getSeqNumber() { return seqNumber; }
         public int getAckNumber() { return ackNumber; }
@@ -280,8 +894,45 @@ public class Packages {
                           int seqNumber, int ackNumber,
                           boolean hasFlagACK, boolean hasFlagFIN, boolean hasFlagSYN, boolean hasFlagPush, boolean hasFlagReset, boolean hasFlagUrgent
         ) {
-            super(inputDeviceIndex, outputDeviceIndex, TransportLayerProtocol.TCP, sourceIP, destinationIP, sourcePort, destinationPort, checksum, length);
+            this(inputDeviceIndex, outputDeviceIndex, new IpPortPair(sourceIP, sourcePort), new IpPortPair(destinationIP, destinationPort), checksum, length,
+                    seqNumber, ackNumber, hasFlagACK, hasFlagFIN, hasFlagSYN, hasFlagPush, hasFlagReset, hasFlagUrgent);
+        }
+
+        public TcpPackage(int inputDeviceIndex, int outputDeviceIndex, IpPortPair source, IpPortPair destination, int checksum, int length,
+                          int seqNumber, int ackNumber,
+                          boolean hasFlagACK, boolean hasFlagFIN, boolean hasFlagSYN, boolean hasFlagPush, boolean hasFlagReset, boolean hasFlagUrgent
+        ) {
+            super(inputDeviceIndex, outputDeviceIndex, TransportLayerProtocol.TCP, source, destination, checksum, length);
+
+            setTcp(seqNumber, ackNumber, hasFlagACK, hasFlagFIN, hasFlagSYN, hasFlagPush, hasFlagReset, hasFlagUrgent);
+        }
+
+        private TcpPackage() {
+            super(TransportLayerProtocol.TCP);
+        }
+
+        /**
+         * @return an empty package, to be filled by {@link #set} for each decoded query
+         */
+        public static TcpPackage createReusable() {
+            return new TcpPackage();
+        }
+
+        /**
+         * Fills a reusable package, see {@link #createReusable()}.
+         * @param timestamp {@link System#nanoTime()} at which the package has been received
+         * @param sourceIpv4 ipv4-address in network byte order
+         * @param destinationIpv4 ipv4-address in network byte order
+         */
+        public void set(long timestamp, int inputDeviceIndex, int outputDeviceIndex, int sourceIpv4, int destinationIpv4, int sourcePort, int destinationPort, int checksum, int length,
+                        int seqNumber, int ackNumber,
+                        boolean hasFlagACK, boolean hasFlagFIN, boolean hasFlagSYN, boolean hasFlagPush, boolean hasFlagReset, boolean hasFlagUrgent
+        ) {
+            setIpv4(timestamp, inputDeviceIndex, outputDeviceIndex, sourceIpv4, destinationIpv4, sourcePort, destinationPort, checksum, length);
+            setTcp(seqNumber, ackNumber, hasFlagACK, hasFlagFIN, hasFlagSYN, hasFlagPush, hasFlagReset, hasFlagUrgent);
+        }
 
+        private void setTcp(int seqNumber, int ackNumber, boolean hasFlagACK, boolean hasFlagFIN, boolean hasFlagSYN, boolean hasFlagPush, boolean hasFlagReset, boolean hasFlagUrgent) {
             this.seqNumber = seqNumber;
             this.ackNumber = ackNumber;
             this.hasFlagACK = hasFlagACK;
@@ -331,6 +982,31 @@ public class Packages {
             super(inputDeviceIndex, outputDeviceIndex, TransportLayerProtocol.UDP, sourceIP, destinationIP, sourcePort, destinationPort, checksum, length);
         }
 
+        public UdpPackage(int inputDeviceIndex, int outputDeviceIndex, IpPortPair source, IpPortPair destination, int checksum, int length) {
+            super(inputDeviceIndex, outputDeviceIndex, TransportLayerProtocol.UDP, source, destination, checksum, length);
+        }
+
+        private UdpPackage() {
+            super(TransportLayerProtocol.UDP);
+        }
+
+        /**
+         * @return an empty package, to be filled by {@link #set} for each decoded query
+         */
+        public static UdpPackage createReusable() {
+            return new UdpPackage();
+        }
+
+        /**
+         * Fills a reusable package, see {@link #createReusable()}.
+         * @param timestamp {@link System#nanoTime()} at which the package has been received
+         * @param sourceIpv4 ipv4-address in network byte order
+         * @param destinationIpv4 ipv4-address in network byte order
+         */
+        public void set(long timestamp, int inputDeviceIndex, int outputDeviceIndex, int sourceIpv4, int destinationIpv4, int sourcePort, int destinationPort, int checksum, int length) {
+            setIpv4(timestamp, inputDeviceIndex, outputDeviceIndex, sourceIpv4, destinationIpv4, sourcePort, destinationPort, checksum, length);
+        }
+
         public String toString() { return "{ [UDP] "+transportLayerToString()+ " } " + super.toString(); }
     }
 }
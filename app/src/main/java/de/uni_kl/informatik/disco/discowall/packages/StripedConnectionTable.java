@@ -0,0 +1,169 @@
+package de.uni_kl.informatik.disco.discowall.packages;
+
+import java.util.LinkedList;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * Thread-safe {@link ConnectionTable}: the connections are split into stripes by their key-hash, each with its own table and lock.
+ * Packages of different connections are therefore looked up in parallel, unless their connections share a stripe.
+ * Each operation on a single connection only holds the lock of its stripe.
+ * <p></p>
+ * Connections are added to and removed from the {@link ConnectionIndex} while the lock of their stripe is held,
+ * so that the index never contains two connections with the same endpoints.
+ */
+class StripedConnectionTable<TConnection extends Connections.Connection> {
+    private static final int STRIPE_BITS = 4;
+    private static final int STRIPE_COUNT = 1 << STRIPE_BITS;
+
+    private final ConnectionTable<TConnection>[] stripes;
+    private final ReentrantLock[] locks = new ReentrantLock[STRIPE_COUNT];
+    private final AtomicInteger size = new AtomicInteger();
+    private final ConnectionIndex index;
+
+    @SuppressWarnings("unchecked")
+    StripedConnectionTable(ConnectionIndex index) {
+        this.index = index;
+        stripes = (ConnectionTable<TConnection>[]) new ConnectionTable<?>[STRIPE_COUNT];
+
+        for(int i = 0; i < STRIPE_COUNT; i++) {
+            stripes[i] = new ConnectionTable<>();
+            locks[i] = new ReentrantLock();
+        }
+    }
+
+    /**
+     * The upper bits of the re-mixed hash, as the tables use the lower bits of the hash for their slots.
+     */
+    private static int stripeOf(int keyHash) {
+        return (keyHash * 0x9E3779B9) >>> (32 - STRIPE_BITS);
+    }
+
+    /**
+     * Does not allocate for ipv4-packages.
+     */
+    public TConnection get(Packages.TransportLayerPackage tlPackage) {
+        int stripe = stripeOf(ConnectionTable.keyHash(tlPackage));
+
+        locks[stripe].lock();
+        try {
+            return stripes[stripe].get(tlPackage);
+        } finally {
+            locks[stripe].unlock();
+        }
+    }
+
+    public TConnection get(Packages.IpPortPair source, Packages.IpPortPair destination) {
+        int stripe = stripeOf(ConnectionTable.keyHash(source, destination));
+
+        locks[stripe].lock();
+        try {
+            return stripes[stripe].get(source, destination);
+        } finally {
+            locks[stripe].unlock();
+        }
+    }
+
+    public boolean contains(Connections.IConnection connection) {
+        return get(connection.getSource(), connection.getDestination()) != null;
+    }
+
+    /**
+     * @return the connection with the same endpoints, which has been added by another thread in the meantime - or null if the connection has been added
+     */
+    public TConnection putIfAbsent(TConnection connection) {
+        Packages.IpPortPair source = connection.getSource(), destination = connection.getDestination();
+        int stripe = stripeOf(ConnectionTable.keyHash(source, destination));
+
+        locks[stripe].lock();
+        try {
+            TConnection existing = stripes[stripe].get(source, destination);
+            if (existing != null)
+                return existing;
+
+            stripes[stripe].put(connection);
+            index.add(connection);
+            size.incrementAndGet();
+            return null;
+        } finally {
+            locks[stripe].unlock();
+        }
+    }
+
+    public TConnection remove(Packages.IpPortPair source, Packages.IpPortPair destination) {
+        int stripe = stripeOf(ConnectionTable.keyHash(source, destination));
+
+        locks[stripe].lock();
+        try {
+            TConnection connection = stripes[stripe].remove(source, destination);
+            if (connection != null) {
+                index.remove(connection);
+                size.decrementAndGet();
+            }
+            return connection;
+        } finally {
+            locks[stripe].unlock();
+        }
+    }
+
+    /**
+     * Filters one stripe after the other, so that the package-path is only blocked for a single stripe at a time.
+     * The filter is called by the current thread only.
+     * @return number of removed connections
+     */
+    public int removeIf(final ConnectionTable.Filter<? super TConnection> filter) {
+        ConnectionTable.Filter<TConnection> indexedFilter = new ConnectionTable.Filter<TConnection>() {
+            @Override
+            public boolean matches(TConnection connection) {
+                if (!filter.matches(connection))
+                    return false;
+
+                index.remove(connection);
+                return true;
+            }
+        };
+        int removed = 0;
+
+        for(int i = 0; i < STRIPE_COUNT; i++) {
+            locks[i].lock();
+            try {
+                int stripeRemoved = stripes[i].removeIf(indexedFilter);
+                size.addAndGet(-stripeRemoved);
+                removed += stripeRemoved;
+            } finally {
+                locks[i].unlock();
+            }
+        }
+
+        return removed;
+    }
+
+    /**
+     * Consistent snapshot: all stripes are locked while it is being taken (in ascending order, which is the only
+     * place where more than one lock is held).
+     */
+    public LinkedList<TConnection> getConnections() {
+        LinkedList<TConnection> connections = new LinkedList<>();
+        int locked = 0;
+
+        try {
+            for(; locked < STRIPE_COUNT; locked++)
+                locks[locked].lock();
+
+            for(ConnectionTable<TConnection> stripe : stripes)
+                connections.addAll(stripe.getConnections());
+        } finally {
+            while (locked > 0)
+                locks[--locked].unlock();
+        }
+
+        return connections;
+    }
+
+    /**
+     * Without locking, i.e. possibly changed in the meantime.
+     */
+    public int size() {
+        return size.get();
+    }
+}
@@ -0,0 +1,204 @@
+package de.uni_kl.informatik.disco.discowall.utils;
+
+import android.util.Log;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Logging for the package-path (one or more messages per package). Messages below the current priority cost a single volatile read:
+ * arguments are passed as they are and the message is only formatted if it is being written.
+ * Enabled messages are put into a preallocated lock-free ring-buffer and are formatted and written by a background-thread,
+ * so that the package-path is neither blocked by formatting nor by logcat. If the ring-buffer is full, messages are dropped (and counted).
+ * <p></p>
+ * Format-strings use "{}" as placeholder for the next argument. Arguments are rendered when the message is written, i.e. slightly later:
+ * mutable buffers have to be passed as string. Primitive arguments should be guarded by {@link #isLoggable(int)}, to avoid boxing.
+ * <p></p>
+ * The initial priority is taken from the system-property of {@link #PROPERTY_TAG}, i.e. "adb shell setprop log.tag.DiscoWall VERBOSE".
+ * Otherwise it is {@link Log#INFO}, so that verbose/debug messages of the package-path cost nothing in release-builds.
+ */
+public final class HotPathLog {
+    private static final String LOG_TAG = HotPathLog.class.getSimpleName();
+    public static final String PROPERTY_TAG = "DiscoWall";
+
+    /**
+     * Compile-time switch: if false, all calls are removed as dead code.
+     */
+    public static final boolean ENABLED = true;
+
+    private static final int RING_SIZE = 1024; // power of two
+    private static final int RING_MASK = RING_SIZE - 1;
+    private static final long WRITER_IDLE_NANOS = 5000000; // 5ms
+
+    private static volatile int minPriority = initialPriority();
+
+    private static final Entry[] ring = new Entry[RING_SIZE];
+    private static final AtomicLong claimSequence = new AtomicLong(); // next slot to be claimed by a logging thread
+    private static volatile long drainSequence = 0;                   // next slot to be written, only changed by the writer-thread
+    private static final AtomicLong droppedMessages = new AtomicLong();
+
+    private static class Entry {
+        volatile long publishedSequence = -1; // equals the sequence, once all fields of the entry have been set
+        int priority;
+        String tag;
+        String format;
+        int argCount;
+        Object arg0, arg1, arg2;
+    }
+
+    static {
+        for(int i = 0; i < RING_SIZE; i++)
+            ring[i] = new Entry();
+
+        Thread writerThread = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                drainLoop();
+            }
+        }, "DiscoWall-LogWriter");
+        writerThread.setDaemon(true);
+        writerThread.setPriority(Thread.MIN_PRIORITY);
+        writerThread.start();
+    }
+
+    private HotPathLog() {
+    }
+
+    private static int initialPriority() {
+        for(int priority = Log.VERBOSE; priority < Log.ASSERT; priority++) {
+            if (Log.isLoggable(PROPERTY_TAG, priority))
+                return priority;
+        }
+        return Log.ASSERT;
+    }
+
+    /**
+     * @param priority one of {@link Log#VERBOSE}, {@link Log#DEBUG}, ... Messages with a lower priority are being discarded.
+     */
+    public static void setMinPriority(int priority) {
+        minPriority = priority;
+    }
+
+    public static int getMinPriority() {
+        return minPriority;
+    }
+
+    public static boolean isLoggable(int priority) {
+        return ENABLED && priority >= minPriority;
+    }
+
+    /**
+     * @return messages discarded, as the ring-buffer was full
+     */
+    public static long getDroppedMessages() {
+        return droppedMessages.get();
+    }
+
+    public static void v(String tag, String message) {
+        if (isLoggable(Log.VERBOSE))
+            enqueue(Log.VERBOSE, tag, message, 0, null, null, null);
+    }
+
+    public static void v(String tag, String format, Object arg0) {
+        if (isLoggable(Log.VERBOSE))
+            enqueue(Log.VERBOSE, tag, format, 1, arg0, null, null);
+    }
+
+    public static void v(String tag, String format, Object arg0, Object arg1) {
+        if (isLoggable(Log.VERBOSE))
+            enqueue(Log.VERBOSE, tag, format, 2, arg0, arg1, null);
+    }
+
+    public static void v(String tag, String format, Object arg0, Object arg1, Object arg2) {
+        if (isLoggable(Log.VERBOSE))
+            enqueue(Log.VERBOSE, tag, format, 3, arg0, arg1, arg2);
+    }
+
+    public static void d(String tag, String message) {
+        if (isLoggable(Log.DEBUG))
+            enqueue(Log.DEBUG, tag, message, 0, null, null, null);
+    }
+
+    public static void d(String tag, String format, Object arg0) {
+        if (isLoggable(Log.DEBUG))
+            enqueue(Log.DEBUG, tag, format, 1, arg0, null, null);
+    }
+
+    public static void d(String tag, String format, Object arg0, Object arg1) {
+        if (isLoggable(Log.DEBUG))
+            enqueue(Log.DEBUG, tag, format, 2, arg0, arg1, null);
+    }
+
+    public static void d(String tag, String format, Object arg0, Object arg1, Object arg2) {
+        if (isLoggable(Log.DEBUG))
+            enqueue(Log.DEBUG, tag, format, 3, arg0, arg1, arg2);
+    }
+
+    private static void enqueue(int priority, String tag, String format, int argCount, Object arg0, Object arg1, Object arg2) {
+        long sequence;
+        do {
+            sequence = claimSequence.get();
+            if (sequence - drainSequence >= RING_SIZE) {
+                droppedMessages.incrementAndGet();
+                return;
+            }
+        } while (!claimSequence.compareAndSet(sequence, sequence + 1));
+
+        Entry entry = ring[(int) sequence & RING_MASK];
+        entry.priority = priority;
+        entry.tag = tag;
+        entry.format = format;
+        entry.argCount = argCount;
+        entry.arg0 = arg0;
+        entry.arg1 = arg1;
+        entry.arg2 = arg2;
+        entry.publishedSequence = sequence;
+    }
+
+    private static void drainLoop() {
+        StringBuilder builder = new StringBuilder(256);
+        long sequence = 0;
+
+        while (true) {
+            Entry entry = ring[(int) sequence & RING_MASK];
+            if (entry.publishedSequence != sequence) {
+                LockSupport.parkNanos(WRITER_IDLE_NANOS);
+                continue;
+            }
+
+            int priority = entry.priority;
+            String tag = entry.tag;
+            String format = entry.format;
+            int argCount = entry.argCount;
+            Object arg0 = entry.arg0, arg1 = entry.arg1, arg2 = entry.arg2;
+            entry.tag = null;
+            entry.format = null;
+            entry.arg0 = entry.arg1 = entry.arg2 = null;
+
+            drainSequence = ++sequence; // releases the slot
+
+            try {
+                builder.setLength(0);
+                format(builder, format, argCount, arg0, arg1, arg2);
+                Log.println(priority, tag, builder.toString());
+            } catch (RuntimeException e) {
+                Log.e(LOG_TAG, "Error while writing log-message '" + format + "': " + e.getMessage(), e);
+            }
+        }
+    }
+
+    static void format(StringBuilder builder, String format, int argCount, Object arg0, Object arg1, Object arg2) {
+        int argIndex = 0;
+        int start = 0;
+        int placeholder;
+
+        while (argIndex < argCount && (placeholder = format.indexOf("{}", start)) >= 0) {
+            builder.append(format, start, placeholder);
+            builder.append(argIndex == 0 ? arg0 : argIndex == 1 ? arg1 : arg2);
+            argIndex++;
+            start = placeholder + 2;
+        }
+
+        builder.append(format, start, format.length());
+    }
+}
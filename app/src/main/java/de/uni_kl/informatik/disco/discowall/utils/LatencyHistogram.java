@@ -0,0 +1,136 @@
+package de.uni_kl.informatik.disco.discowall.utils;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Lock-free latency histogram with logarithmic buckets (HDR-style): each power of two is split into {@link #SUB_BUCKETS} linear buckets,
+ * so that every recorded value is reported with a relative error below 1/{@link #SUB_BUCKETS} (~6%).
+ * Recording is a few arithmetic operations and one atomic increment, so it can be used on the package-path.
+ * Values are nanoseconds; larger values than {@link #MAX_VALUE_NANOS} are counted as the maximum.
+ */
+public class LatencyHistogram {
+    private static final int SUB_BUCKET_BITS = 4;
+    public static final int SUB_BUCKETS = 1 << SUB_BUCKET_BITS;
+    private static final int MAX_MAGNITUDE = 40;
+    public static final long MAX_VALUE_NANOS = (1L << MAX_MAGNITUDE) - 1; // ~18 minutes
+    private static final int BUCKET_COUNT = SUB_BUCKETS + (MAX_MAGNITUDE - SUB_BUCKET_BITS) * SUB_BUCKETS;
+
+    private final AtomicLongArray buckets = new AtomicLongArray(BUCKET_COUNT);
+    private final AtomicLong count = new AtomicLong();
+    private final AtomicLong sum = new AtomicLong();
+    private final AtomicLong max = new AtomicLong();
+
+    public void record(long nanos) {
+        if (nanos < 0)
+            nanos = 0;
+        else if (nanos > MAX_VALUE_NANOS)
+            nanos = MAX_VALUE_NANOS;
+
+        buckets.incrementAndGet(bucketIndex(nanos));
+        count.incrementAndGet();
+        sum.addAndGet(nanos);
+
+        long currentMax;
+        while (nanos > (currentMax = max.get()) && !max.compareAndSet(currentMax, nanos));
+    }
+
+    /**
+     * Records the time passed since the given {@link System#nanoTime()}.
+     */
+    public void recordSince(long startNanos) {
+        record(System.nanoTime() - startNanos);
+    }
+
+    private static int bucketIndex(long value) {
+        if (value < SUB_BUCKETS)
+            return (int) value;
+
+        int magnitude = 63 - Long.numberOfLeadingZeros(value);
+        int shift = magnitude - SUB_BUCKET_BITS;
+        return SUB_BUCKETS + shift * SUB_BUCKETS + (int) ((value >>> shift) - SUB_BUCKETS);
+    }
+
+    /**
+     * @return the highest value, which is counted within the bucket
+     */
+    private static long bucketUpperBound(int index) {
+        if (index < SUB_BUCKETS)
+            return index;
+
+        int shift = (index - SUB_BUCKETS) / SUB_BUCKETS;
+        long subBucket = SUB_BUCKETS + (index - SUB_BUCKETS) % SUB_BUCKETS;
+        return ((subBucket + 1) << shift) - 1;
+    }
+
+    public long getCount() {
+        return count.get();
+    }
+
+    public long getMaxNanos() {
+        return max.get();
+    }
+
+    public long getMeanNanos() {
+        long n = count.get();
+        return n > 0 ? sum.get() / n : 0;
+    }
+
+    /**
+     * @param percentile i.e. 50, 99 or 99.9
+     * @return the value below which the given percentage of the recorded values lies, or 0 if nothing has been recorded
+     */
+    public long getPercentileNanos(double percentile) {
+        long total = 0;
+        for(int i = 0; i < BUCKET_COUNT; i++)
+            total += buckets.get(i);
+        if (total == 0)
+            return 0;
+
+        long threshold = Math.max(1, (long) Math.ceil(total * percentile / 100.0));
+        long cumulated = 0;
+        for(int i = 0; i < BUCKET_COUNT; i++) {
+            cumulated += buckets.get(i);
+            if (cumulated >= threshold)
+                return Math.min(bucketUpperBound(i), getMaxNanos());
+        }
+
+        return getMaxNanos();
+    }
+
+    /**
+     * Adds the values of the other histogram to this one, i.e. for summing up the histograms of all queues.
+     */
+    public void add(LatencyHistogram other) {
+        for(int i = 0; i < BUCKET_COUNT; i++) {
+            long value = other.buckets.get(i);
+            if (value != 0)
+                buckets.addAndGet(i, value);
+        }
+
+        count.addAndGet(other.count.get());
+        sum.addAndGet(other.sum.get());
+
+        long otherMax = other.max.get();
+        long currentMax;
+        while (otherMax > (currentMax = max.get()) && !max.compareAndSet(currentMax, otherMax));
+    }
+
+    /**
+     * Summary in microseconds.
+     */
+    @Override
+    public String toString() {
+        return "count=" + getCount()
+                + ", mean=" + micros(getMeanNanos())
+                + ", p50=" + micros(getPercentileNanos(50))
+                + ", p90=" + micros(getPercentileNanos(90))
+                + ", p99=" + micros(getPercentileNanos(99))
+                + ", p99.9=" + micros(getPercentileNanos(99.9))
+                + ", max=" + micros(getMaxNanos());
+    }
+
+    private static String micros(long nanos) {
+        return (nanos / 1000) + "us";
+    }
+}
@@ -0,0 +1,71 @@
+package de.uni_kl.informatik.disco.discowall.utils;
+
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.AtomicLongFieldUpdater;
+import java.util.concurrent.atomic.AtomicReferenceFieldUpdater;
+
+/**
+ * Long-counter for many concurrent writers (like LongAdder, which is not available on Android before API 24).
+ * As long as there is no contention, it is a single CAS on a long field and costs no more memory than one.
+ * Once a CAS fails, the counter is split into cache-line padded cells, which are chosen by the writing thread.
+ * <p></p>
+ * {@link #get()} sums up the cells and is not an atomic snapshot while the counter is being updated.
+ */
+public final class StripedCounter {
+    private static final int CELL_COUNT = cellCount(); // power of two
+    private static final int CELL_PADDING = 8; // longs per cell, i.e. 64 bytes
+
+    private static final AtomicLongFieldUpdater<StripedCounter> baseUpdater = AtomicLongFieldUpdater.newUpdater(StripedCounter.class, "base");
+    private static final AtomicReferenceFieldUpdater<StripedCounter, AtomicLongArray> cellsUpdater =
+            AtomicReferenceFieldUpdater.newUpdater(StripedCounter.class, AtomicLongArray.class, "cells");
+
+    private volatile long base;
+    private volatile AtomicLongArray cells; // created on the first contention
+
+    private static int cellCount() {
+        int processors = Math.max(2, Math.min(Runtime.getRuntime().availableProcessors(), 16));
+        return Integer.highestOneBit(processors - 1) << 1;
+    }
+
+    public void add(long value) {
+        AtomicLongArray cells = this.cells;
+
+        if (cells == null) {
+            long current = base;
+            if (baseUpdater.compareAndSet(this, current, current + value))
+                return;
+
+            cellsUpdater.compareAndSet(this, null, new AtomicLongArray(CELL_COUNT * CELL_PADDING));
+            cells = this.cells;
+        }
+
+        cells.addAndGet(cellIndex(), value);
+    }
+
+    public void increment() {
+        add(1);
+    }
+
+    private static int cellIndex() {
+        long threadId = Thread.currentThread().getId();
+        int hash = (int) (threadId * 0x9E3779B97F4A7C15L >>> 32);
+        return (hash & (CELL_COUNT - 1)) * CELL_PADDING;
+    }
+
+    public long get() {
+        long sum = base;
+        AtomicLongArray cells = this.cells;
+
+        if (cells != null) {
+            for(int i = 0; i < cells.length(); i += CELL_PADDING)
+                sum += cells.get(i);
+        }
+
+        return sum;
+    }
+
+    @Override
+    public String toString() {
+        return Long.toString(get());
+    }
+}
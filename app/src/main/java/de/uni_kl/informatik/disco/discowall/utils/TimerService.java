@@ -0,0 +1,108 @@
+package de.uni_kl.informatik.disco.discowall.utils;
+
+import android.util.Log;
+
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * One shared timer-thread for all timeouts (i.e. package auto-answers and connection-decision timeouts),
+ * instead of one sleeping thread per timeout. Tasks have to be short, as they are all executed by this single thread.
+ */
+public class TimerService {
+    private static final String LOG_TAG = TimerService.class.getSimpleName();
+    private static final TimerService instance = new TimerService();
+
+    private final ScheduledThreadPoolExecutor executor;
+
+    public static TimerService getInstance() {
+        return instance;
+    }
+
+    private TimerService() {
+        executor = new ScheduledThreadPoolExecutor(1, new ThreadFactory() {
+            @Override
+            public Thread newThread(Runnable runnable) {
+                Thread thread = new Thread(runnable, "DiscoWall-TimerService");
+                thread.setDaemon(true);
+                return thread;
+            }
+        });
+    }
+
+    /**
+     * A scheduled task, which can be cancelled or rescheduled.
+     */
+    public class Timeout {
+        private final Runnable task;
+        private ScheduledFuture<?> future;
+
+        private Timeout(Runnable task) {
+            this.task = task;
+        }
+
+        /**
+         * Cancels the task, if it has not been executed yet. Has no effect otherwise.
+         */
+        public synchronized void cancel() {
+            if (future != null) {
+                future.cancel(false);
+                future = null;
+            }
+        }
+
+        /**
+         * Cancels the task and schedules it again, with the delay counted from now.
+         */
+        public synchronized void reschedule(long delayMilliseconds) {
+            cancel();
+            future = executor.schedule(new SafeRunnable(task), delayMilliseconds, TimeUnit.MILLISECONDS);
+        }
+
+        private synchronized void scheduleAtFixedRate(long periodMilliseconds) {
+            cancel();
+            future = executor.scheduleAtFixedRate(new SafeRunnable(task), periodMilliseconds, periodMilliseconds, TimeUnit.MILLISECONDS);
+        }
+
+        public synchronized boolean isScheduled() {
+            return future != null && !future.isDone();
+        }
+    }
+
+    public Timeout schedule(Runnable task, long delayMilliseconds) {
+        Timeout timeout = new Timeout(task);
+        timeout.reschedule(delayMilliseconds);
+        return timeout;
+    }
+
+    /**
+     * The task is executed periodically, starting after one period, until the timeout is cancelled.
+     */
+    public Timeout scheduleAtFixedRate(Runnable task, long periodMilliseconds) {
+        Timeout timeout = new Timeout(task);
+        timeout.scheduleAtFixedRate(periodMilliseconds);
+        return timeout;
+    }
+
+    /**
+     * An exception would otherwise silently cancel periodic tasks.
+     */
+    private static class SafeRunnable implements Runnable {
+        private final Runnable task;
+
+        private SafeRunnable(Runnable task) {
+            this.task = task;
+        }
+
+        @Override
+        public void run() {
+            try {
+                task.run();
+            } catch (Exception e) {
+                Log.e(LOG_TAG, "Exception within timer-task: " + e.getMessage(), e);
+            }
+        }
+    }
+}
@@ -27,10 +27,13 @@ public final class DiscoWallConstants {
 //        public static final File networkDevicesListFile = new File("/proc/net/dev");
         public static final File installedPackagesXmlFile = new File("/data/system/packages.xml");
         public static final String ruledAppRulesFilePrefix = "RuledAppRules-uid-";
+        public static final String statisticsDumpFilePrefix = "FirewallStatistics";
     }
 
     public static final class Firewall {
         public static final int defaultPort = 1337;
+        public static final String unixSocketName = "discowall.netfilter_bridge"; // abstract namespace
+        public static final int decisionDeadlineGraceSeconds = 5; // decision-deadline exceeds the user-decision timeout at least by this
         public static final int notificationID = NotificationIDs.firewallService;
     }
 
@@ -87,6 +87,70 @@ public class DiscoWallSettings {
         return getSettingBool(context, R.string.preference_id__nfqueue_bridge_start_automatically, true);
     }
 
+    /**
+     * When enabled the netfilter-bridge communicates using a unix-domain-socket instead of the tcp-port from {@link #getFirewallPort(Context)}.
+     */
+    public boolean isNfqueueBridgeUseUnixSocket(Context context) {
+        return getSettingBool(context, R.string.preference_id__nfqueue_bridge_unix_socket, false);
+    }
+
+    /**
+     * Number of nfqueues, each one handled by its own netfilter-bridge instance. Always at least 1.
+     */
+    public int getNfqueueBridgeQueueCount(Context context) {
+        return Math.max(1, getSettingIntFromStr(context, R.string.preference_id__nfqueue_bridge_queue_count, 1));
+    }
+
+    public boolean isNfqueueBridgeQueueCpuFanout(Context context) {
+        return getSettingBool(context, R.string.preference_id__nfqueue_bridge_queue_cpu_fanout, false);
+    }
+
+    /**
+     * When enabled, the verdict for a connection is saved as connmark, so that its following packages are decided in-kernel.
+     */
+    public boolean isNfqueueBridgeConnmarkOffload(Context context) {
+        return getSettingBool(context, R.string.preference_id__nfqueue_bridge_connmark_offload, true);
+    }
+
+    /**
+     * When enabled, only the first UDP packages of a flow (conntrack-state NEW) are being sent to the firewall.
+     */
+    public boolean isNfqueueBridgeUdpNewOnly(Context context) {
+        return getSettingBool(context, R.string.preference_id__nfqueue_bridge_udp_new_only, false);
+    }
+
+    /**
+     * When enabled, connection-closes are reported by the conntrack-events of the bridge, instead of queuing the FIN packages.
+     */
+    public boolean isNfqueueBridgeConntrackEvents(Context context) {
+        return getSettingBool(context, R.string.preference_id__nfqueue_bridge_conntrack_events, false);
+    }
+
+    /**
+     * @return maximum number of packages per nfqueue, 0 for the kernel default
+     */
+    public int getNfqueueBridgeQueueMaxLength(Context context) {
+        return Math.max(0, getSettingIntFromStr(context, R.string.preference_id__nfqueue_bridge_queue_maxlen, 4096));
+    }
+
+    public boolean isNfqueueBridgeFailOpen(Context context) {
+        return getSettingBool(context, R.string.preference_id__nfqueue_bridge_fail_open, false);
+    }
+
+    /**
+     * @return maximum number of undecided packages per queue, 0 for unlimited
+     */
+    public int getNfqueueBridgeDecisionBacklog(Context context) {
+        return Math.max(0, getSettingIntFromStr(context, R.string.preference_id__nfqueue_bridge_decision_backlog, 1024));
+    }
+
+    /**
+     * @return maximum time in seconds a package may stay undecided, 0 for no deadline
+     */
+    public int getNfqueueBridgeDecisionDeadlineSeconds(Context context) {
+        return Math.max(0, getSettingIntFromStr(context, R.string.preference_id__nfqueue_bridge_decision_deadline, 60));
+    }
+
     public void setHandleConnectionDialogDefaultCreateRule(Context context, boolean value) {
         setSettingBool(context, R.string.preference_id__handle_connection_dialog__create_rule_default_checked, value);
     }
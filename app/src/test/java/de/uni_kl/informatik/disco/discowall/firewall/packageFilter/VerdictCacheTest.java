@@ -0,0 +1,174 @@
+package de.uni_kl.informatik.disco.discowall.firewall.packageFilter;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import de.uni_kl.informatik.disco.discowall.firewall.helpers.FirewallPolicyManager;
+import de.uni_kl.informatik.disco.discowall.firewall.helpers.FirewallRulesManager;
+import de.uni_kl.informatik.disco.discowall.firewall.rules.FirewallRules;
+import de.uni_kl.informatik.disco.discowall.packages.Packages;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+
+public class VerdictCacheTest {
+    private static final int USER_ID = 10042;
+
+    private FirewallRulesManager rulesManager;
+    private FirewallPolicyManager policyManager;
+    private int watchedAppsRevision;
+    private FirewallRules.FirewallTransportRule rule;
+
+    @Before
+    public void setUp() {
+        rulesManager = new FirewallRulesManager();
+        policyManager = new FirewallPolicyManager(null);
+        rule = rulesManager.createTransportLayerRule(USER_ID, new Packages.IpPortPair("", 0), new Packages.IpPortPair("203.0.113.80", 443),
+                FirewallRules.DeviceFilter.WiFi_UMTS, FirewallRules.ProtocolFilter.TCP, FirewallRules.RulePolicy.ALLOW);
+    }
+
+    private int epoch() {
+        return VerdictCache.epoch(rulesManager.getRevision(), policyManager.getRevision(), watchedAppsRevision);
+    }
+
+    private static Packages.TransportLayerPackage tcpPackage(int userId, String localIp, int localPort, String remoteIp, int remotePort, Packages.NetworkInterface networkInterface, boolean inbound) {
+        Packages.TcpPackage tcpPackage = inbound
+                ? new Packages.TcpPackage(2, -1, remoteIp, localIp, remotePort, localPort, 0, 20, 0, 0, false, false, true, false, false, false)
+                : new Packages.TcpPackage(-1, 2, localIp, remoteIp, localPort, remotePort, 0, 20, 0, 0, false, false, true, false, false, false);
+        tcpPackage.setUserId(userId);
+        tcpPackage.setNetworkInterface(networkInterface);
+        return tcpPackage;
+    }
+
+    private static Packages.TransportLayerPackage tcpPackage(int userId, int localPort, String remoteIp, int remotePort, Packages.NetworkInterface networkInterface) {
+        return tcpPackage(userId, "10.0.0.2", localPort, remoteIp, remotePort, networkInterface, false);
+    }
+
+    private static Packages.TransportLayerPackage basePackage() {
+        return tcpPackage(USER_ID, 40000, "203.0.113.80", 443, Packages.NetworkInterface.WiFi);
+    }
+
+    /**
+     * Packages which differ from {@link #basePackage()} in exactly one part of the flow-signature.
+     */
+    private static Packages.TransportLayerPackage[] variantPackages() {
+        Packages.UdpPackage udpPackage = new Packages.UdpPackage(-1, 2, "10.0.0.2", "203.0.113.80", 40000, 443, 0, 64);
+        udpPackage.setUserId(USER_ID);
+        udpPackage.setNetworkInterface(Packages.NetworkInterface.WiFi);
+
+        return new Packages.TransportLayerPackage[] {
+                tcpPackage(USER_ID + 1, 40000, "203.0.113.80", 443, Packages.NetworkInterface.WiFi),
+                udpPackage,
+                tcpPackage(USER_ID, 40000, "203.0.113.80", 443, Packages.NetworkInterface.Umts),
+                tcpPackage(USER_ID, 40000, "203.0.113.80", 443, null),
+                tcpPackage(USER_ID, 40001, "203.0.113.80", 443, Packages.NetworkInterface.WiFi),
+                tcpPackage(USER_ID, 40000, "203.0.113.80", 444, Packages.NetworkInterface.WiFi),
+                tcpPackage(USER_ID, 443, "203.0.113.80", 40000, Packages.NetworkInterface.WiFi), // ports swapped
+                tcpPackage(USER_ID, 40000, "203.0.113.81", 443, Packages.NetworkInterface.WiFi),
+        };
+    }
+
+    @Test
+    public void testHitForSameFlowSignature() {
+        VerdictCache cache = new VerdictCache();
+        cache.put(basePackage(), epoch(), rule, FirewallRules.RulePolicy.ALLOW);
+
+        VerdictCache.Entry entry = cache.get(basePackage(), epoch());
+        assertNotNull(entry);
+        assertSame(rule, entry.rule);
+        assertEquals(FirewallRules.RulePolicy.ALLOW, entry.policy);
+
+        // the local address is no part of the signature, and neither is the direction
+        assertNotNull(cache.get(tcpPackage(USER_ID, "10.0.0.3", 40000, "203.0.113.80", 443, Packages.NetworkInterface.WiFi, false), epoch()));
+        assertNotNull(cache.get(tcpPackage(USER_ID, "10.0.0.2", 40000, "203.0.113.80", 443, Packages.NetworkInterface.WiFi, true), epoch()));
+
+        // a verdict of the firewall-policy is cached without rule
+        Packages.TransportLayerPackage otherPackage = tcpPackage(USER_ID, 40000, "198.51.100.1", 80, Packages.NetworkInterface.WiFi);
+        cache.put(otherPackage, epoch(), null, FirewallRules.RulePolicy.INTERACTIVE);
+        assertNull(cache.get(otherPackage, epoch()).rule);
+        assertEquals(FirewallRules.RulePolicy.INTERACTIVE, cache.get(otherPackage, epoch()).policy);
+
+        assertEquals(5, cache.getHits());
+        assertEquals(0, cache.getMisses());
+    }
+
+    @Test
+    public void testMissAfterRulesChange() {
+        VerdictCache cache = new VerdictCache();
+        int epoch = epoch();
+        cache.put(basePackage(), epoch, rule, FirewallRules.RulePolicy.ALLOW);
+
+        rulesManager.createTransportLayerRule(USER_ID + 1, FirewallRules.RulePolicy.BLOCK);
+        assertNull(cache.get(basePackage(), epoch()));
+
+        // changes to a rule itself count as well
+        epoch = epoch();
+        cache.put(basePackage(), epoch, rule, FirewallRules.RulePolicy.ALLOW);
+        rule.setRulePolicy(FirewallRules.RulePolicy.BLOCK);
+        assertNull(cache.get(basePackage(), epoch()));
+        assertNotNull(cache.get(basePackage(), epoch));
+    }
+
+    @Test
+    public void testMissAfterPolicyChange() throws Exception {
+        VerdictCache cache = new VerdictCache();
+        cache.put(basePackage(), epoch(), null, FirewallRules.RulePolicy.INTERACTIVE);
+
+        policyManager.setFirewallPolicy(FirewallPolicyManager.FirewallPolicy.BLOCK, false);
+        assertNull(cache.get(basePackage(), epoch()));
+    }
+
+    @Test
+    public void testMissAfterWatchedAppsChange() {
+        VerdictCache cache = new VerdictCache();
+        cache.put(basePackage(), epoch(), null, FirewallRules.RulePolicy.ALLOW);
+
+        watchedAppsRevision++;
+        assertNull(cache.get(basePackage(), epoch()));
+        assertEquals(1, cache.getMisses());
+    }
+
+    @Test
+    public void testNoAliasingBetweenSignatures() {
+        // with a single slot every lookup finds the same entry, so that only the signature tells them apart
+        for(int capacity : new int[] { 1, VerdictCache.DEFAULT_CAPACITY }) {
+            VerdictCache cache = new VerdictCache(capacity);
+            cache.put(basePackage(), epoch(), rule, FirewallRules.RulePolicy.ALLOW);
+
+            for(Packages.TransportLayerPackage variant : variantPackages())
+                assertNull("capacity " + capacity + ": " + variant, cache.get(variant, epoch()));
+            assertNotNull(cache.get(basePackage(), epoch()));
+        }
+
+        // each signature keeps its own verdict
+        VerdictCache cache = new VerdictCache(1 << 16);
+        Packages.TransportLayerPackage[] variants = variantPackages();
+        FirewallRules.RulePolicy[] policies = FirewallRules.RulePolicy.values();
+        for(int i = 0; i < variants.length; i++)
+            cache.put(variants[i], epoch(), null, policies[i % policies.length]);
+        for(int i = 0; i < variants.length; i++)
+            assertEquals(variants[i].toString(), policies[i % policies.length], cache.get(variants[i], epoch()).policy);
+    }
+
+    @Test
+    public void testMissForIpv6() {
+        VerdictCache cache = new VerdictCache();
+        Packages.TransportLayerPackage ipv6Package = tcpPackage(USER_ID, "2001:db8::2", 40000, "2001:db8::80", 443, Packages.NetworkInterface.WiFi, false);
+
+        cache.put(ipv6Package, epoch(), rule, FirewallRules.RulePolicy.ALLOW);
+        assertNull(cache.get(ipv6Package, epoch()));
+
+        assertEquals(1, cache.getUncacheable());
+        assertEquals(0, cache.getMisses());
+        assertEquals(0, cache.getHits());
+    }
+
+    @Test
+    public void testCapacityIsRoundedUp() {
+        assertEquals(1, new VerdictCache(1).getCapacity());
+        assertEquals(8, new VerdictCache(5).getCapacity());
+        assertEquals(4096, new VerdictCache(4096).getCapacity());
+    }
+}
@@ -0,0 +1,145 @@
+package de.uni_kl.informatik.disco.discowall.firewall.rules;
+
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import de.uni_kl.informatik.disco.discowall.packages.Packages;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+public class AddressPrefixTrieTest {
+    private static final int USER_ID = 10042;
+
+    private final List<FirewallRules.IFirewallPolicyRule> rules = new ArrayList<>();
+
+    private void addRule(String remoteFilter, FirewallRules.ProtocolFilter protocolFilter) {
+        rules.add(new FirewallRules.FirewallTransportRule(USER_ID, new Packages.IpPortPair("", 0), new Packages.IpPortPair(remoteFilter, 0),
+                FirewallRules.DeviceFilter.WiFi_UMTS, protocolFilter, FirewallRules.RulePolicy.BLOCK));
+    }
+
+    private void addRule(String remoteFilter) {
+        addRule(remoteFilter, FirewallRules.ProtocolFilter.TCP_UDP);
+    }
+
+    /**
+     * Adds all rules in order, like the rule-index does.
+     */
+    private AddressPrefixTrie createTrie(boolean ipv6) {
+        AddressPrefixTrie trie = new AddressPrefixTrie(ipv6);
+        for(int i = 0; i < rules.size(); i++) {
+            Packages.IpPortPair filter = rules.get(i).getRemoteFilter();
+            trie.add(filter.getAddress(), filter.getPrefixLength(), i);
+        }
+        trie.compile();
+        return trie;
+    }
+
+    private static Packages.TransportLayerPackage outboundPackage(String remoteIp, boolean tcp) {
+        Packages.TransportLayerPackage tlPackage;
+        if (tcp)
+            tlPackage = new Packages.TcpPackage(-1, 2, "10.0.0.2", remoteIp, 4711, 443, 0, 20, 0, 0, false, false, true, false, false, false);
+        else
+            tlPackage = new Packages.UdpPackage(-1, 2, "10.0.0.2", remoteIp, 4711, 53, 0, 64);
+        tlPackage.setUserId(USER_ID);
+        tlPackage.setNetworkInterface(Packages.NetworkInterface.WiFi);
+        return tlPackage;
+    }
+
+    private int findFirstMatch(AddressPrefixTrie trie, String remoteIp, boolean tcp, int limit) {
+        Packages.IpAddress address = Packages.IpAddress.parse(remoteIp);
+        return trie.findFirstMatch(AddressPrefixTrie.high(address), AddressPrefixTrie.low(address),
+                rules.toArray(new FirewallRules.IFirewallPolicyRule[rules.size()]), outboundPackage(remoteIp, tcp), limit);
+    }
+
+    private int findFirstMatch(AddressPrefixTrie trie, String remoteIp) {
+        return findFirstMatch(trie, remoteIp, true, rules.size());
+    }
+
+    @Test
+    public void testLowestIndexAcrossNestedIpv4Prefixes() {
+        addRule("10.1.2.0/24");   // 0
+        addRule("10.0.0.0/8");    // 1
+        addRule("10.1.0.0/16");   // 2
+        addRule("0.0.0.0/0");     // 3
+        addRule("10.1.2.3");      // 4: host, shadowed by rule 0
+        addRule("10.1.128.0/17"); // 5: splits the /16 node
+        AddressPrefixTrie trie = createTrie(false);
+
+        assertEquals(0, findFirstMatch(trie, "10.1.2.3"));
+        assertEquals(0, findFirstMatch(trie, "10.1.2.200"));
+        assertEquals(1, findFirstMatch(trie, "10.1.3.1"));
+        assertEquals(1, findFirstMatch(trie, "10.1.200.1"));
+        assertEquals(1, findFirstMatch(trie, "10.255.0.1"));
+        assertEquals(3, findFirstMatch(trie, "11.0.0.1"));
+        assertEquals(3, findFirstMatch(trie, "255.255.255.255"));
+        assertEquals(6, trie.getPrefixCount());
+    }
+
+    @Test
+    public void testLimitAndNonApplyingRules() {
+        addRule("10.1.2.3", FirewallRules.ProtocolFilter.UDP); // 0: not for tcp
+        addRule("10.1.0.0/16");                               // 1
+        addRule("10.0.0.0/8");                                // 2
+        AddressPrefixTrie trie = createTrie(false);
+
+        assertEquals(1, findFirstMatch(trie, "10.1.2.3", true, rules.size()));
+        assertEquals(0, findFirstMatch(trie, "10.1.2.3", false, rules.size()));
+
+        // rules at or above the limit are not being checked, i.e. because a lower rule already matched elsewhere
+        assertEquals(-1, findFirstMatch(trie, "10.1.2.3", true, 1));
+        assertEquals(1, findFirstMatch(trie, "10.1.2.3", true, 2));
+        assertEquals(-1, findFirstMatch(trie, "10.2.0.1", true, 2));
+        assertEquals(2, findFirstMatch(trie, "10.2.0.1", true, 3));
+    }
+
+    @Test
+    public void testSamePrefixKeepsAllRulesInOrder() {
+        addRule("10.1.0.0/16", FirewallRules.ProtocolFilter.UDP); // 0
+        addRule("10.1.2.3/16");                                  // 1: same network
+        addRule("10.1.0.0/16");                                  // 2
+        AddressPrefixTrie trie = createTrie(false);
+
+        assertEquals(1, trie.getPrefixCount());
+        assertEquals(0, findFirstMatch(trie, "10.1.9.9", false, rules.size()));
+        assertEquals(1, findFirstMatch(trie, "10.1.9.9", true, rules.size()));
+    }
+
+    @Test
+    public void testLowestIndexAcrossNestedIpv6Prefixes() {
+        addRule("2001:db8:1:2::/64");  // 0
+        addRule("2001:db8::/32");      // 1
+        addRule("2001:db8:1:2::1");    // 2: /128 host, shadowed by rule 0
+        addRule("::/0");               // 3
+        addRule("2001:db8:1:3::7");    // 4: /128 host
+        AddressPrefixTrie trie = createTrie(true);
+
+        assertEquals(0, findFirstMatch(trie, "2001:db8:1:2::1"));
+        assertEquals(0, findFirstMatch(trie, "2001:db8:1:2:ffff:ffff:ffff:ffff"));
+        assertEquals(1, findFirstMatch(trie, "2001:db8:1:3::7"));
+        assertEquals(1, findFirstMatch(trie, "2001:db8:ffff::1"));
+        assertEquals(3, findFirstMatch(trie, "2001:db9::1"));
+        assertEquals(3, findFirstMatch(trie, "::1"));
+    }
+
+    @Test
+    public void testFullLengthPrefixesAreExact() {
+        addRule("2001:db8::1");     // 0
+        addRule("2001:db8::2/128"); // 1
+        AddressPrefixTrie trie = createTrie(true);
+
+        assertEquals(0, findFirstMatch(trie, "2001:db8::1"));
+        assertEquals(1, findFirstMatch(trie, "2001:db8::2"));
+        assertEquals(-1, findFirstMatch(trie, "2001:db8::3"));
+        assertEquals(-1, findFirstMatch(trie, "2001:db8::"));
+    }
+
+    @Test
+    public void testEmptyTrie() {
+        AddressPrefixTrie trie = createTrie(false);
+        assertTrue(trie.isEmpty());
+        assertEquals(-1, findFirstMatch(trie, "10.1.2.3"));
+    }
+}
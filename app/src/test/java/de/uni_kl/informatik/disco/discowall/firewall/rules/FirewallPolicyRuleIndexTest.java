@@ -0,0 +1,128 @@
+package de.uni_kl.informatik.disco.discowall.firewall.rules;
+
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import de.uni_kl.informatik.disco.discowall.packages.Packages;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+
+public class FirewallPolicyRuleIndexTest {
+    private static final int USER_ID = 10042;
+
+    private final List<FirewallRules.FirewallTransportRule> rules = new ArrayList<>();
+
+    private void addRule(String remoteIp, String remotePorts, FirewallRules.ProtocolFilter protocolFilter, FirewallRules.DeviceFilter deviceFilter) {
+        rules.add(new FirewallRules.FirewallTransportRule(USER_ID, new Packages.IpPortPair("", 0), new Packages.IpPortPair(remoteIp, remotePorts),
+                deviceFilter, protocolFilter, FirewallRules.RulePolicy.ALLOW));
+    }
+
+    private void addRule(String remotePorts) {
+        addRule("", remotePorts, FirewallRules.ProtocolFilter.TCP_UDP, FirewallRules.DeviceFilter.WiFi_UMTS);
+    }
+
+    private static Packages.TransportLayerPackage outboundPackage(String remoteIp, int remotePort, boolean tcp, Packages.NetworkInterface networkInterface) {
+        Packages.TransportLayerPackage tlPackage;
+        if (tcp)
+            tlPackage = new Packages.TcpPackage(-1, 2, "10.0.0.2", remoteIp, 4711, remotePort, 0, 20, 0, 0, false, false, true, false, false, false);
+        else
+            tlPackage = new Packages.UdpPackage(-1, 2, "10.0.0.2", remoteIp, 4711, remotePort, 0, 64);
+        tlPackage.setUserId(USER_ID);
+        tlPackage.setNetworkInterface(networkInterface);
+        return tlPackage;
+    }
+
+    /**
+     * @return index of the first matching rule, or -1
+     */
+    private int findFirstMatch(FirewallPolicyRuleIndex index, String remoteIp, int remotePort, boolean tcp, Packages.NetworkInterface networkInterface) {
+        Packages.TransportLayerPackage tlPackage = outboundPackage(remoteIp, remotePort, tcp, networkInterface);
+        FirewallRules.IFirewallPolicyRule match = index.findFirstMatch(tlPackage);
+
+        // the index has to agree with checking all rules in order
+        int expected = -1;
+        for(int i = 0; i < rules.size(); i++) {
+            if (rules.get(i).appliesTo(tlPackage)) {
+                expected = i;
+                break;
+            }
+        }
+        assertSame("remote " + remoteIp + ":" + remotePort, expected >= 0 ? rules.get(expected) : null, match);
+
+        return rules.indexOf(match);
+    }
+
+    private int findFirstMatch(FirewallPolicyRuleIndex index, int remotePort) {
+        return findFirstMatch(index, "203.0.113.80", remotePort, true, Packages.NetworkInterface.WiFi);
+    }
+
+    @Test
+    public void testSegmentBoundaries() {
+        addRule("100-199");         // 0
+        addRule("150-250");         // 1
+        addRule("200");             // 2: shadowed by rule 1
+        addRule("300-301,303");     // 3
+        addRule("65535");           // 4
+        FirewallPolicyRuleIndex index = new FirewallPolicyRuleIndex(rules, 1);
+
+        assertEquals(-1, findFirstMatch(index, 1));
+        assertEquals(-1, findFirstMatch(index, 99));
+        assertEquals(0, findFirstMatch(index, 100));
+        assertEquals(0, findFirstMatch(index, 149));
+        assertEquals(0, findFirstMatch(index, 150));
+        assertEquals(0, findFirstMatch(index, 199));
+        assertEquals(1, findFirstMatch(index, 200));
+        assertEquals(1, findFirstMatch(index, 250));
+        assertEquals(-1, findFirstMatch(index, 251));
+        assertEquals(3, findFirstMatch(index, 300));
+        assertEquals(3, findFirstMatch(index, 301));
+        assertEquals(-1, findFirstMatch(index, 302));
+        assertEquals(3, findFirstMatch(index, 303));
+        assertEquals(-1, findFirstMatch(index, 304));
+        assertEquals(-1, findFirstMatch(index, 65534));
+        assertEquals(4, findFirstMatch(index, 65535));
+    }
+
+    @Test
+    public void testAnyPortRulesAreMergedInRuleOrder() {
+        addRule("1000-2000");                                                                             // 0
+        addRule("", "*", FirewallRules.ProtocolFilter.UDP, FirewallRules.DeviceFilter.WiFi_UMTS);         // 1
+        addRule("1500");                                                                                  // 2
+        addRule("", "*", FirewallRules.ProtocolFilter.TCP, FirewallRules.DeviceFilter.UMTS);              // 3
+        addRule("", "*", FirewallRules.ProtocolFilter.TCP_UDP, FirewallRules.DeviceFilter.WiFi_UMTS);     // 4
+        FirewallPolicyRuleIndex index = new FirewallPolicyRuleIndex(rules, 1);
+
+        assertEquals(0, findFirstMatch(index, "203.0.113.80", 1500, false, Packages.NetworkInterface.WiFi));
+        assertEquals(1, findFirstMatch(index, "203.0.113.80", 999, false, Packages.NetworkInterface.WiFi));
+        assertEquals(0, findFirstMatch(index, "203.0.113.80", 1500, true, Packages.NetworkInterface.WiFi));
+        assertEquals(4, findFirstMatch(index, "203.0.113.80", 999, true, Packages.NetworkInterface.WiFi));
+        assertEquals(3, findFirstMatch(index, "203.0.113.80", 999, true, Packages.NetworkInterface.Umts));
+    }
+
+    @Test
+    public void testAddressRulesBeforeLaneRules() {
+        addRule("10.1.0.0/16", "443", FirewallRules.ProtocolFilter.TCP_UDP, FirewallRules.DeviceFilter.WiFi_UMTS); // 0
+        addRule("400-500");                                                                                        // 1
+        addRule("10.0.0.0/8", "*", FirewallRules.ProtocolFilter.TCP_UDP, FirewallRules.DeviceFilter.WiFi_UMTS);    // 2
+        FirewallPolicyRuleIndex index = new FirewallPolicyRuleIndex(rules, 1);
+
+        assertEquals(0, findFirstMatch(index, "10.1.2.3", 443, true, Packages.NetworkInterface.WiFi));
+        assertEquals(1, findFirstMatch(index, "10.1.2.3", 444, true, Packages.NetworkInterface.WiFi));
+        assertEquals(2, findFirstMatch(index, "10.1.2.3", 80, true, Packages.NetworkInterface.WiFi));
+        assertEquals(1, findFirstMatch(index, "10.2.0.1", 443, true, Packages.NetworkInterface.WiFi));
+        assertEquals(-1, findFirstMatch(index, "11.0.0.1", 80, true, Packages.NetworkInterface.WiFi));
+        assertEquals(2, index.getAddressPrefixCount());
+        assertEquals(3, index.getRuleCount());
+    }
+
+    @Test
+    public void testEmptyIndex() {
+        FirewallPolicyRuleIndex index = new FirewallPolicyRuleIndex(rules, 1);
+        assertNull(index.findFirstMatch(outboundPackage("203.0.113.80", 80, true, Packages.NetworkInterface.WiFi)));
+        assertEquals(0, index.getRuleCount());
+    }
+}
@@ -0,0 +1,141 @@
+package de.uni_kl.informatik.disco.discowall.netfilter.bridge;
+
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.junit.runners.Parameterized;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.List;
+
+import de.uni_kl.informatik.disco.discowall.packages.ConnectionEvents;
+import de.uni_kl.informatik.disco.discowall.packages.ConnectionManager;
+import de.uni_kl.informatik.disco.discowall.packages.Connections;
+import de.uni_kl.informatik.disco.discowall.packages.Packages;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Connection-lifecycle of the {@link ConnectionManager}, driven by simulated conntrack-events in both wire-formats.
+ */
+@RunWith(Parameterized.class)
+public class ConnectionManagerConntrackTest {
+    private static final int USER_ID = 10042;
+    private static final Packages.IpPortPair LOCAL = new Packages.IpPortPair("10.0.0.2", 4711);
+    private static final Packages.IpPortPair REMOTE = new Packages.IpPortPair("203.0.113.80", 443);
+
+    @Parameterized.Parameters(name = "binary={0}")
+    public static Collection<Object[]> formats() {
+        return Arrays.asList(new Object[][] { { false }, { true } });
+    }
+
+    private final boolean binaryFormat;
+    private ConnectionManager connectionManager;
+    private NetfilterBridgeConntrackEventSimulator simulator;
+    private final List<ConnectionEvents.ConnectionEvent> notifiedEvents = new ArrayList<>();
+    private final List<Connections.Connection> notifiedConnections = new ArrayList<>();
+
+    public ConnectionManagerConntrackTest(boolean binaryFormat) {
+        this.binaryFormat = binaryFormat;
+    }
+
+    @Before
+    public void setUp() {
+        connectionManager = new ConnectionManager();
+        connectionManager.addLifecycleListener(new ConnectionEvents.ConnectionLifecycleListener() {
+            @Override
+            public void onConnectionEvent(ConnectionEvents.ConnectionEvent event, Connections.Connection connection) {
+                notifiedEvents.add(event);
+                notifiedConnections.add(connection);
+            }
+        });
+
+        simulator = new NetfilterBridgeConntrackEventSimulator(new NetfilterBridgeCommunicator.ConntrackEventHandler() {
+            @Override
+            public void onConntrackEvent(ConnectionEvents.ConnectionEvent event) {
+                connectionManager.onConnectionEvent(event);
+            }
+        }, binaryFormat);
+    }
+
+    @Test
+    public void testTcpStateFollowsConntrack() throws Exception {
+        Connections.TcpConnection connection = connectionManager.getTcpConnection(USER_ID, LOCAL, REMOTE);
+
+        simulator.emitTcpStateChange(connection, ConnectionEvents.ConntrackTcpState.SYN_SENT);
+        assertEquals(Connections.TcpConnection.TcpConnectionState.SYN_WAIT, connection.getState());
+
+        simulator.emitTcpStateChange(connection, ConnectionEvents.ConntrackTcpState.ESTABLISHED);
+        assertEquals(Connections.TcpConnection.TcpConnectionState.OPEN, connection.getState());
+
+        simulator.emitTcpStateChange(connection, ConnectionEvents.ConntrackTcpState.FIN_WAIT);
+        assertEquals(Connections.TcpConnection.TcpConnectionState.CLOSE_WAIT, connection.getState());
+
+        simulator.emitTcpStateChange(connection, ConnectionEvents.ConntrackTcpState.TIME_WAIT);
+        assertEquals(Connections.TcpConnection.TcpConnectionState.CLOSED, connection.getState());
+        assertTrue("closed connections stay tracked until destroyed", connectionManager.containsTcpConnection(connection));
+    }
+
+    @Test
+    public void testTcpDestroyStopsTracking() throws Exception {
+        Connections.TcpConnection connection = connectionManager.getTcpConnection(USER_ID, LOCAL, REMOTE);
+        simulator.emitTcpStateChange(connection, ConnectionEvents.ConntrackTcpState.ESTABLISHED);
+
+        simulator.emitTcpClose(connection);
+
+        assertEquals(Connections.TcpConnection.TcpConnectionState.CLOSED, connection.getState());
+        assertFalse(connectionManager.containsTcpConnection(connection));
+        assertEquals(0, connectionManager.getTcpConnectionCount());
+
+        // the flow is tracked as new connection, once it is being queued again
+        assertFalse(connection == connectionManager.getTcpConnection(USER_ID, LOCAL, REMOTE));
+    }
+
+    @Test
+    public void testUdpDestroyStopsTracking() throws Exception {
+        Connections.UdpConnection connection = connectionManager.getUdpConnection(USER_ID, LOCAL, REMOTE);
+        Connections.UdpConnection other = connectionManager.getUdpConnection(USER_ID, LOCAL, new Packages.IpPortPair("203.0.113.80", 53));
+
+        simulator.emitDestroy(connection, Packages.TransportLayerProtocol.UDP);
+
+        assertFalse(connectionManager.containsUdpConnection(connection));
+        assertTrue(connectionManager.containsUdpConnection(other));
+        assertEquals(1, connectionManager.getUdpConnectionCount());
+    }
+
+    @Test
+    public void testListenersAreNotified() throws Exception {
+        Connections.TcpConnection connection = connectionManager.getTcpConnection(USER_ID, LOCAL, REMOTE);
+
+        simulator.emitTcpClose(connection);
+
+        assertEquals(3, notifiedEvents.size());
+        assertEquals(ConnectionEvents.EventType.UPDATE, notifiedEvents.get(0).getType());
+        assertEquals(ConnectionEvents.ConntrackTcpState.FIN_WAIT, notifiedEvents.get(0).getTcpState());
+        assertEquals(ConnectionEvents.ConntrackTcpState.TIME_WAIT, notifiedEvents.get(1).getTcpState());
+        assertEquals(ConnectionEvents.EventType.DESTROY, notifiedEvents.get(2).getType());
+        assertEquals(LOCAL, notifiedEvents.get(2).getSource());
+        assertEquals(REMOTE, notifiedEvents.get(2).getDestination());
+
+        for(Connections.Connection notifiedConnection : notifiedConnections)
+            assertSame(connection, notifiedConnection);
+    }
+
+    @Test
+    public void testListenersAreNotifiedOfUnknownConnections() throws Exception {
+        ConnectionEvents.ConnectionEvent event = new ConnectionEvents.ConnectionEvent(ConnectionEvents.EventType.UPDATE, Packages.TransportLayerProtocol.TCP,
+                LOCAL, REMOTE, ConnectionEvents.ConntrackTcpState.ESTABLISHED);
+
+        simulator.emit(event);
+
+        assertEquals(1, notifiedEvents.size());
+        assertNull(notifiedConnections.get(0));
+        assertEquals(0, connectionManager.getTcpConnectionCount());
+    }
+}
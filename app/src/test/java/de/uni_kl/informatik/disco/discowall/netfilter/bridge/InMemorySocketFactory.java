@@ -0,0 +1,208 @@
+package de.uni_kl.informatik.disco.discowall.netfilter.bridge;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.LinkedBlockingQueue;
+
+/**
+ * In-memory replacement for the android local sockets, so that the {@link NetfilterBridgeUnixSocketTransport} can be tested on the JVM.
+ * The test plays the bridge by {@link #connect(int) connecting} with any uid.
+ */
+class InMemorySocketFactory implements NetfilterBridgeUnixSocketTransport.ServerSocketFactory {
+    private final BlockingQueue<Socket> pendingClients = new LinkedBlockingQueue<>();
+    private volatile String boundName;
+
+    @Override
+    public NetfilterBridgeUnixSocketTransport.ServerSocket bind(String socketName) throws IOException {
+        if (boundName != null)
+            throw new IOException("Address in use: " + boundName);
+        boundName = socketName;
+
+        return new NetfilterBridgeUnixSocketTransport.ServerSocket() {
+            @Override
+            public NetfilterBridgeUnixSocketTransport.ClientSocket accept() throws IOException {
+                try {
+                    return pendingClients.take();
+                } catch (InterruptedException e) {
+                    throw new IOException("Interrupted while accepting.");
+                }
+            }
+
+            @Override
+            public void wakeup() {
+                Socket wakeupSocket = new Socket(-1, new Pipe(), new Pipe());
+                wakeupSocket.close();
+                pendingClients.add(wakeupSocket);
+            }
+
+            @Override
+            public void close() {
+                boundName = null;
+            }
+        };
+    }
+
+    public boolean isBound() {
+        return boundName != null;
+    }
+
+    /**
+     * @return the bridge-side end of the new connection
+     */
+    public Peer connect(int uid) throws IOException {
+        if (boundName == null)
+            throw new IOException("Connection refused.");
+
+        Pipe toTransport = new Pipe();
+        Pipe toPeer = new Pipe();
+        pendingClients.add(new Socket(uid, toTransport, toPeer));
+        return new Peer(toPeer, toTransport);
+    }
+
+    /**
+     * Bridge-side end of a connection.
+     */
+    public static class Peer {
+        private final Pipe in, out;
+
+        private Peer(Pipe in, Pipe out) {
+            this.in = in;
+            this.out = out;
+        }
+
+        public void write(byte[] bytes) throws IOException {
+            out.output.write(bytes);
+        }
+
+        /**
+         * @return the next byte written by the transport, or -1 if the transport closed the connection
+         */
+        public int read() throws IOException {
+            return in.input.read();
+        }
+
+        public byte[] read(int length) throws IOException {
+            byte[] bytes = new byte[length];
+            for(int i = 0; i < length; i++) {
+                int b = read();
+                if (b < 0)
+                    throw new IOException("End of stream after " + i + " of " + length + " bytes.");
+                bytes[i] = (byte) b;
+            }
+            return bytes;
+        }
+
+        public void close() {
+            out.close();
+        }
+    }
+
+    private static class Socket implements NetfilterBridgeUnixSocketTransport.ClientSocket {
+        private final int uid;
+        private final Pipe in, out;
+
+        private Socket(int uid, Pipe in, Pipe out) {
+            this.uid = uid;
+            this.in = in;
+            this.out = out;
+        }
+
+        @Override
+        public int getPeerUid() {
+            return uid;
+        }
+
+        @Override
+        public InputStream getInputStream() {
+            return in.input;
+        }
+
+        @Override
+        public OutputStream getOutputStream() {
+            return out.output;
+        }
+
+        @Override
+        public void shutdownInput() {
+            in.close();
+        }
+
+        @Override
+        public void close() {
+            in.close();
+            out.close();
+        }
+    }
+
+    /**
+     * Unbounded blocking byte-pipe. Reading from a closed pipe returns the remaining bytes, then end-of-stream.
+     */
+    private static class Pipe {
+        private byte[] buffer = new byte[256];
+        private int readPosition, writePosition;
+        private boolean closed;
+
+        private synchronized void close() {
+            closed = true;
+            notifyAll();
+        }
+
+        final InputStream input = new InputStream() {
+            @Override
+            public int read() throws IOException {
+                byte[] single = new byte[1];
+                return read(single, 0, 1) < 0 ? -1 : single[0] & 0xFF;
+            }
+
+            @Override
+            public int read(byte[] target, int offset, int length) throws IOException {
+                synchronized (Pipe.this) {
+                    while (readPosition == writePosition && !closed) {
+                        try {
+                            Pipe.this.wait();
+                        } catch (InterruptedException e) {
+                            throw new IOException("Interrupted while reading.");
+                        }
+                    }
+
+                    if (readPosition == writePosition)
+                        return -1;
+
+                    int count = Math.min(length, writePosition - readPosition);
+                    System.arraycopy(buffer, readPosition, target, offset, count);
+                    readPosition += count;
+                    return count;
+                }
+            }
+        };
+
+        final OutputStream output = new OutputStream() {
+            @Override
+            public void write(int b) throws IOException {
+                write(new byte[] { (byte) b }, 0, 1);
+            }
+
+            @Override
+            public void write(byte[] source, int offset, int length) throws IOException {
+                synchronized (Pipe.this) {
+                    if (closed)
+                        throw new IOException("Broken pipe.");
+
+                    if (buffer.length - writePosition < length) {
+                        byte[] grown = new byte[Math.max(buffer.length * 2, writePosition - readPosition + length)];
+                        System.arraycopy(buffer, readPosition, grown, 0, writePosition - readPosition);
+                        writePosition -= readPosition;
+                        readPosition = 0;
+                        buffer = grown;
+                    }
+
+                    System.arraycopy(source, offset, buffer, writePosition, length);
+                    writePosition += length;
+                    Pipe.this.notifyAll();
+                }
+            }
+        };
+    }
+}
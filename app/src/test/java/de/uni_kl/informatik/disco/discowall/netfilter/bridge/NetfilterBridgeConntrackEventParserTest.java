@@ -0,0 +1,91 @@
+package de.uni_kl.informatik.disco.discowall.netfilter.bridge;
+
+import org.junit.Test;
+
+import java.nio.ByteBuffer;
+
+import de.uni_kl.informatik.disco.discowall.packages.ConnectionEvents;
+import de.uni_kl.informatik.disco.discowall.packages.Packages;
+
+import static org.junit.Assert.assertEquals;
+
+public class NetfilterBridgeConntrackEventParserTest {
+    private static final ConnectionEvents.ConnectionEvent TCP_UPDATE = new ConnectionEvents.ConnectionEvent(ConnectionEvents.EventType.UPDATE, Packages.TransportLayerProtocol.TCP,
+            new Packages.IpPortPair("10.0.0.2", 4711), new Packages.IpPortPair("203.0.113.80", 443), ConnectionEvents.ConntrackTcpState.ESTABLISHED);
+    private static final ConnectionEvents.ConnectionEvent UDP_DESTROY = new ConnectionEvents.ConnectionEvent(ConnectionEvents.EventType.DESTROY, Packages.TransportLayerProtocol.UDP,
+            new Packages.IpPortPair("192.168.1.10", 65535), new Packages.IpPortPair("255.255.255.255", 53), ConnectionEvents.ConntrackTcpState.NONE);
+
+    private static void assertEventEquals(ConnectionEvents.ConnectionEvent expected, ConnectionEvents.ConnectionEvent actual) {
+        assertEquals(expected.getType(), actual.getType());
+        assertEquals(expected.getProtocol(), actual.getProtocol());
+        assertEquals(expected.getSource(), actual.getSource());
+        assertEquals(expected.getDestination(), actual.getDestination());
+        assertEquals(expected.getTcpState(), actual.getTcpState());
+    }
+
+    private static ConnectionEvents.ConnectionEvent binaryRoundTrip(ConnectionEvents.ConnectionEvent event) throws NetfilterBridgeProtocol.ProtocolException {
+        ByteBuffer buffer = ByteBuffer.allocate(64);
+        buffer.put((byte) 0x55); // the frame does not have to start at the beginning of the buffer
+        int length = NetfilterBridgeConntrackEventParser.encode(event, buffer);
+
+        assertEquals(NetfilterBridgeProtocol.BinaryFormat.ConntrackEvent.FRAME_LENGTH, length);
+        assertEquals(1 + NetfilterBridgeProtocol.BinaryFormat.LENGTH_PREFIX_SIZE + length, buffer.position());
+        assertEquals(length, buffer.getShort(1));
+
+        return NetfilterBridgeConntrackEventParser.decode(buffer, 1 + NetfilterBridgeProtocol.BinaryFormat.LENGTH_PREFIX_SIZE, length);
+    }
+
+    @Test
+    public void testTextRoundTrip() throws Exception {
+        assertEventEquals(TCP_UPDATE, NetfilterBridgeConntrackEventParser.parse(NetfilterBridgeConntrackEventParser.format(TCP_UPDATE)));
+        assertEventEquals(UDP_DESTROY, NetfilterBridgeConntrackEventParser.parse(NetfilterBridgeConntrackEventParser.format(UDP_DESTROY)));
+    }
+
+    @Test
+    public void testBinaryRoundTrip() throws Exception {
+        assertEventEquals(TCP_UPDATE, binaryRoundTrip(TCP_UPDATE));
+        assertEventEquals(UDP_DESTROY, binaryRoundTrip(UDP_DESTROY));
+    }
+
+    @Test
+    public void testParseBridgeMessage() throws Exception {
+        // as formatted by the netfilter-bridge
+        ConnectionEvents.ConnectionEvent event = NetfilterBridgeConntrackEventParser.parse(
+                "#Conntrack.Event##conntrack.event=destroy##protocol=tcp##ip.src=10.0.0.2##ip.dst=1.2.3.4##port.src=4711##port.dst=80##conntrack.tcp.state=7#");
+
+        assertEquals(ConnectionEvents.EventType.DESTROY, event.getType());
+        assertEquals(Packages.TransportLayerProtocol.TCP, event.getProtocol());
+        assertEquals(new Packages.IpPortPair("10.0.0.2", 4711), event.getSource());
+        assertEquals(new Packages.IpPortPair("1.2.3.4", 80), event.getDestination());
+        assertEquals(ConnectionEvents.ConntrackTcpState.TIME_WAIT, event.getTcpState());
+    }
+
+    @Test
+    public void testDecodeBridgeFrame() throws Exception {
+        // as encoded by the netfilter-bridge: update, tcp, 10.0.0.2:4711 -> 1.2.3.4:80, SYN_SENT
+        byte[] frame = { 1, 2, 2, 6, 10, 0, 0, 2, 1, 2, 3, 4, 0x12, 0x67, 0, 80, 1 };
+        ConnectionEvents.ConnectionEvent event = NetfilterBridgeConntrackEventParser.decode(ByteBuffer.wrap(frame), 0, frame.length);
+
+        assertEquals(ConnectionEvents.EventType.UPDATE, event.getType());
+        assertEquals(Packages.TransportLayerProtocol.TCP, event.getProtocol());
+        assertEquals(new Packages.IpPortPair("10.0.0.2", 4711), event.getSource());
+        assertEquals(new Packages.IpPortPair("1.2.3.4", 80), event.getDestination());
+        assertEquals(ConnectionEvents.ConntrackTcpState.SYN_SENT, event.getTcpState());
+    }
+
+    @Test(expected = NetfilterBridgeProtocol.ProtocolValueException.class)
+    public void testNewEventIsRejected() throws Exception {
+        NetfilterBridgeConntrackEventParser.parse("#Conntrack.Event##conntrack.event=new##protocol=tcp##ip.src=10.0.0.2##ip.dst=1.2.3.4##port.src=4711##port.dst=80#");
+    }
+
+    @Test(expected = NetfilterBridgeProtocol.ProtocolValueException.class)
+    public void testBinaryNewEventIsRejected() throws Exception {
+        byte[] frame = { 1, 2, 1, 6, 10, 0, 0, 2, 1, 2, 3, 4, 0x12, 0x67, 0, 80, 1 };
+        NetfilterBridgeConntrackEventParser.decode(ByteBuffer.wrap(frame), 0, frame.length);
+    }
+
+    @Test(expected = NetfilterBridgeProtocol.ProtocolFormatException.class)
+    public void testShortFrameIsRejected() throws Exception {
+        NetfilterBridgeConntrackEventParser.decode(ByteBuffer.allocate(32), 0, NetfilterBridgeProtocol.BinaryFormat.ConntrackEvent.FRAME_LENGTH - 1);
+    }
+}
@@ -0,0 +1,58 @@
+package de.uni_kl.informatik.disco.discowall.netfilter.bridge;
+
+import java.nio.ByteBuffer;
+
+import de.uni_kl.informatik.disco.discowall.packages.ConnectionEvents;
+import de.uni_kl.informatik.disco.discowall.packages.Connections;
+import de.uni_kl.informatik.disco.discowall.packages.Packages;
+
+/**
+ * Simulated conntrack event-source for testing the connection-lifecycle without a kernel (and without root).
+ * The events are encoded as protocol-messages (text or binary) and parsed again, exactly like the events of a netfilter-bridge.
+ */
+class NetfilterBridgeConntrackEventSimulator {
+    private final NetfilterBridgeCommunicator.ConntrackEventHandler eventHandler;
+    private final boolean binaryFormat;
+    private final ByteBuffer frameBuffer = ByteBuffer.allocate(NetfilterBridgeProtocol.BinaryFormat.LENGTH_PREFIX_SIZE + NetfilterBridgeProtocol.BinaryFormat.ConntrackEvent.FRAME_LENGTH);
+
+    NetfilterBridgeConntrackEventSimulator(NetfilterBridgeCommunicator.ConntrackEventHandler eventHandler, boolean binaryFormat) {
+        this.eventHandler = eventHandler;
+        this.binaryFormat = binaryFormat;
+    }
+
+    /**
+     * Passes a raw protocol-message (i.e. recorded from a bridge) to the event-handler.
+     */
+    public void emit(String message) throws NetfilterBridgeProtocol.ProtocolException {
+        eventHandler.onConntrackEvent(NetfilterBridgeConntrackEventParser.parse(message));
+    }
+
+    public void emit(ConnectionEvents.ConnectionEvent event) throws NetfilterBridgeProtocol.ProtocolException {
+        if (!binaryFormat) {
+            emit(NetfilterBridgeConntrackEventParser.format(event));
+            return;
+        }
+
+        frameBuffer.clear();
+        int length = NetfilterBridgeConntrackEventParser.encode(event, frameBuffer);
+        eventHandler.onConntrackEvent(NetfilterBridgeConntrackEventParser.decode(frameBuffer, NetfilterBridgeProtocol.BinaryFormat.LENGTH_PREFIX_SIZE, length));
+    }
+
+    public void emitTcpStateChange(Connections.IConnection connection, ConnectionEvents.ConntrackTcpState tcpState) throws NetfilterBridgeProtocol.ProtocolException {
+        emit(new ConnectionEvents.ConnectionEvent(ConnectionEvents.EventType.UPDATE, Packages.TransportLayerProtocol.TCP, connection.getSource(), connection.getDestination(), tcpState));
+    }
+
+    public void emitDestroy(Connections.IConnection connection, Packages.TransportLayerProtocol protocol) throws NetfilterBridgeProtocol.ProtocolException {
+        ConnectionEvents.ConntrackTcpState tcpState = protocol == Packages.TransportLayerProtocol.TCP ? ConnectionEvents.ConntrackTcpState.CLOSE : ConnectionEvents.ConntrackTcpState.NONE;
+        emit(new ConnectionEvents.ConnectionEvent(ConnectionEvents.EventType.DESTROY, protocol, connection.getSource(), connection.getDestination(), tcpState));
+    }
+
+    /**
+     * Simulates the regular close of a tcp-connection, as reported by conntrack: FIN_WAIT, TIME_WAIT, destroy.
+     */
+    public void emitTcpClose(Connections.IConnection connection) throws NetfilterBridgeProtocol.ProtocolException {
+        emitTcpStateChange(connection, ConnectionEvents.ConntrackTcpState.FIN_WAIT);
+        emitTcpStateChange(connection, ConnectionEvents.ConntrackTcpState.TIME_WAIT);
+        emitDestroy(connection, Packages.TransportLayerProtocol.TCP);
+    }
+}
@@ -0,0 +1,100 @@
+package de.uni_kl.informatik.disco.discowall.netfilter.bridge;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import de.uni_kl.informatik.disco.discowall.packages.ConnectionManager;
+import de.uni_kl.informatik.disco.discowall.packages.Connections;
+import de.uni_kl.informatik.disco.discowall.packages.Packages;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotSame;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Pooled packages are being overwritten by the next query once their verdict has been sent: whatever has been captured from them before must not change.
+ */
+public class NetfilterBridgePackagePoolTest {
+    private static final int RULES_REVISION = 7;
+    private static final int LOCAL = 0x0A000002;    // 10.0.0.2
+    private static final int REMOTE = 0xCB007150;   // 203.0.113.80
+    private static final int OTHER = 0x08080808;    // 8.8.8.8
+
+    private NetfilterBridgePackagePool packagePool;
+    private ConnectionManager connectionManager;
+
+    @Before
+    public void setUp() {
+        packagePool = new NetfilterBridgePackagePool(4);
+        connectionManager = new ConnectionManager();
+    }
+
+    private Packages.UdpPackage acquireUdpPackage(int sourceIp, int destinationIp, int sourcePort, int destinationPort) {
+        Packages.UdpPackage udpPackage = packagePool.acquireUdpPackage();
+        udpPackage.set(System.nanoTime(), 2, -1, sourceIp, destinationIp, sourcePort, destinationPort, 0, 64);
+        udpPackage.setUserId(10042);
+        return udpPackage;
+    }
+
+    private Packages.TcpPackage acquireTcpPackage(int sourceIp, int destinationIp, int sourcePort, int destinationPort, boolean syn, boolean reset) {
+        Packages.TcpPackage tcpPackage = packagePool.acquireTcpPackage();
+        tcpPackage.set(System.nanoTime(), 2, -1, sourceIp, destinationIp, sourcePort, destinationPort, 0, 20,
+                1000, 0, false, false, syn, false, reset, false);
+        tcpPackage.setUserId(10042);
+        return tcpPackage;
+    }
+
+    @Test
+    public void testPackagesAreRecycled() {
+        Packages.UdpPackage first = acquireUdpPackage(LOCAL, REMOTE, 4711, 53);
+        packagePool.release(first);
+
+        assertSame(first, packagePool.acquireUdpPackage());
+        assertEquals(1, packagePool.getCreatedPackages());
+    }
+
+    @Test
+    public void testRecycledUdpPackageKeepsConnectionState() {
+        Packages.UdpPackage udpPackage = acquireUdpPackage(LOCAL, REMOTE, 4711, 53);
+        Packages.IpPortPair capturedSource = udpPackage.getSource();
+        Connections.UdpConnection connection = connectionManager.getUdpConnection(udpPackage);
+        connection.update(udpPackage);
+        connection.setVerdict(true, RULES_REVISION);
+        packagePool.release(udpPackage);
+
+        // the next query of another flow is decoded into the same instance
+        Packages.UdpPackage recycled = acquireUdpPackage(OTHER, LOCAL, 53, 5353);
+        assertSame(udpPackage, recycled);
+        Connections.UdpConnection otherConnection = connectionManager.getUdpConnection(recycled);
+        otherConnection.setVerdict(false, RULES_REVISION);
+
+        assertNotSame(connection, otherConnection);
+        assertEquals(new Packages.IpPortPair("10.0.0.2", 4711), capturedSource);
+        assertEquals(new Packages.IpPortPair("10.0.0.2", 4711), connection.getSource());
+        assertEquals(new Packages.IpPortPair("203.0.113.80", 53), connection.getDestination());
+        assertEquals(Connections.UdpConnection.UdpConnectionVerdict.ACCEPTED, connection.getVerdict(RULES_REVISION));
+        assertSame(connection, connectionManager.getUdpConnection(10042, new Packages.IpPortPair("10.0.0.2", 4711), new Packages.IpPortPair("203.0.113.80", 53)));
+    }
+
+    @Test
+    public void testRecycledTcpPackageKeepsConnectionState() {
+        Packages.TcpPackage tcpPackage = acquireTcpPackage(LOCAL, REMOTE, 4711, 443, true, false);
+        Connections.TcpConnection connection = connectionManager.getTcpConnection(tcpPackage);
+        assertTrue(connection.update(tcpPackage));
+        assertEquals(Connections.TcpConnection.TcpConnectionState.SYN_WAIT, connection.getState());
+        packagePool.release(tcpPackage);
+
+        Packages.TcpPackage recycled = acquireTcpPackage(OTHER, LOCAL, 80, 5000, false, true);
+        assertSame(tcpPackage, recycled);
+        Connections.TcpConnection otherConnection = connectionManager.getTcpConnection(recycled);
+        otherConnection.update(recycled);
+
+        assertNotSame(connection, otherConnection);
+        assertEquals(Connections.TcpConnection.TcpConnectionState.SYN_WAIT, connection.getState());
+        assertEquals(Connections.TcpConnection.TcpConnectionState.RESET, otherConnection.getState());
+        assertEquals(new Packages.IpPortPair("10.0.0.2", 4711), connection.getSource());
+        assertEquals(new Packages.IpPortPair("203.0.113.80", 443), connection.getDestination());
+        assertEquals(2, connectionManager.getTcpConnectionCount());
+    }
+}
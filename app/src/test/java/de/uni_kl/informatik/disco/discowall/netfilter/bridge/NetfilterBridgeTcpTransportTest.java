@@ -0,0 +1,145 @@
+package de.uni_kl.informatik.disco.discowall.netfilter.bridge;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.DataInputStream;
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.nio.ByteBuffer;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class NetfilterBridgeTcpTransportTest {
+    private int port;
+    private NetfilterBridgeTcpTransport transport;
+    private RecordingSession session;
+
+    @Before
+    public void setUp() throws Exception {
+        ServerSocket probe = new ServerSocket(0);
+        port = probe.getLocalPort();
+        probe.close();
+
+        transport = new NetfilterBridgeTcpTransport(port);
+        session = new RecordingSession();
+        transport.start(session);
+    }
+
+    @After
+    public void tearDown() throws Exception {
+        transport.stop();
+        session.awaitClosed();
+    }
+
+    private Socket connectBridge() throws IOException {
+        Socket socket = new Socket(InetAddress.getLoopbackAddress(), port);
+        socket.setSoTimeout((int) RecordingSession.TIMEOUT_MS);
+        return socket;
+    }
+
+    private static byte[] read(Socket socket, int length) throws IOException {
+        byte[] bytes = new byte[length];
+        new DataInputStream(socket.getInputStream()).readFully(bytes);
+        return bytes;
+    }
+
+    @Test
+    public void testBridgeArguments() {
+        assertEquals("localhost " + port, transport.getBridgeArguments());
+    }
+
+    @Test
+    public void testAcceptReadWriteStop() throws Exception {
+        Socket bridge = connectBridge();
+        NetfilterBridgeTransport.Connection connection = session.awaitConnected();
+        assertTrue(connection.isOpen());
+
+        bridge.getOutputStream().write(new byte[] { 1, 2, 3 });
+        bridge.getOutputStream().write(new byte[] { 4, 5 });
+        assertArrayEquals(new byte[] { 1, 2, 3, 4, 5 }, session.awaitReceived(5));
+
+        connection.write(ByteBuffer.wrap(new byte[] { 10, 11, 12 }));
+        assertArrayEquals(new byte[] { 10, 11, 12 }, read(bridge, 3));
+
+        transport.stop();
+        session.awaitDisconnected();
+        session.awaitClosed();
+        assertFalse(connection.isOpen());
+        assertEquals(-1, bridge.getInputStream().read());
+        bridge.close();
+
+        // the port has been released
+        new ServerSocket(port).close();
+    }
+
+    @Test
+    public void testStopWithoutClient() throws Exception {
+        transport.stop();
+        session.awaitClosed();
+        assertFalse(session.hasConnected());
+    }
+
+    @Test
+    public void testQueuedWritesKeepTheirOrder() throws Exception {
+        Socket bridge = connectBridge();
+        NetfilterBridgeTransport.Connection connection = session.awaitConnected();
+
+        // more than the socket-buffers take while the bridge is not reading, so that the transport has to queue
+        byte[] chunk = new byte[1024];
+        int chunks = 48;
+        for(int i = 0; i < chunks; i++) {
+            for(int j = 0; j < chunk.length; j++)
+                chunk[j] = (byte) (i + j);
+            connection.write(ByteBuffer.wrap(chunk));
+        }
+
+        for(int i = 0; i < chunks; i++) {
+            byte[] received = read(bridge, chunk.length);
+            for(int j = 0; j < chunk.length; j++)
+                assertEquals((byte) (i + j), received[j]);
+        }
+        bridge.close();
+    }
+
+    @Test
+    public void testBridgeDisconnectAndNewClient() throws Exception {
+        Socket bridge = connectBridge();
+        NetfilterBridgeTransport.Connection first = session.awaitConnected();
+
+        bridge.close();
+        session.awaitDisconnected();
+        assertFalse(first.isOpen());
+
+        Socket restartedBridge = connectBridge();
+        NetfilterBridgeTransport.Connection second = session.awaitConnected();
+        second.write(ByteBuffer.wrap(new byte[] { 7 }));
+        assertArrayEquals(new byte[] { 7 }, read(restartedBridge, 1));
+        restartedBridge.close();
+    }
+
+    @Test
+    public void testNewClientReplacesPrevious() throws Exception {
+        Socket bridge = connectBridge();
+        NetfilterBridgeTransport.Connection first = session.awaitConnected();
+
+        Socket replacement = connectBridge();
+        NetfilterBridgeTransport.Connection second = session.awaitConnected();
+        session.awaitDisconnected();
+
+        assertFalse(first.isOpen());
+        assertTrue(second.isOpen());
+        assertEquals(-1, bridge.getInputStream().read());
+
+        replacement.getOutputStream().write(new byte[] { 9 });
+        assertArrayEquals(new byte[] { 9 }, session.awaitReceived(1));
+        bridge.close();
+        replacement.close();
+    }
+}
@@ -0,0 +1,121 @@
+package de.uni_kl.informatik.disco.discowall.netfilter.bridge;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.File;
+import java.nio.ByteBuffer;
+import java.util.concurrent.atomic.AtomicReference;
+
+import de.uni_kl.informatik.disco.discowall.packages.Packages;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+public class NetfilterBridgeTraceTest {
+    private File traceFile;
+
+    @Before
+    public void setUp() throws Exception {
+        traceFile = File.createTempFile("bridge-trace", NetfilterBridgeTrace.FILE_EXTENSION);
+    }
+
+    @After
+    public void tearDown() {
+        traceFile.delete();
+    }
+
+    private static Packages.TcpPackage createTcpPackage(int sourcePort) {
+        Packages.TcpPackage tcpPackage = new Packages.TcpPackage(2, -1, "10.0.0.2", "203.0.113.80", sourcePort, 443, 0x1234, 20,
+                1000, 0, false, false, true, false, false, false);
+        tcpPackage.setMark(10042);
+        return tcpPackage;
+    }
+
+    @Test
+    public void testRecordAndRead() throws Exception {
+        NetfilterBridgeTrace.Recorder recorder = new NetfilterBridgeTrace.Recorder(traceFile);
+        recorder.recordQuery(createTcpPackage(4711), 42);
+        recorder.recordVerdict(42, true);
+        recorder.recordVerdict(43, false);
+        recorder.close();
+        assertEquals(0, recorder.getDroppedRecordCount());
+
+        NetfilterBridgeTrace.Reader reader = new NetfilterBridgeTrace.Reader(traceFile);
+        try {
+            NetfilterBridgeTrace.Record query = reader.next();
+            assertEquals(NetfilterBridgeTrace.RECORD_TYPE_QUERY, query.type);
+            assertEquals(42, query.packetId);
+
+            Packages.TransportLayerPackage decoded = NetfilterBridgeBinaryDecoder.decodeQueryPackageAction(ByteBuffer.wrap(query.frame), 0, query.frame.length, new NetfilterBridgePackagePool(), 0);
+            assertEquals(new Packages.IpPortPair("10.0.0.2", 4711), decoded.getSource());
+            assertEquals(new Packages.IpPortPair("203.0.113.80", 443), decoded.getDestination());
+
+            NetfilterBridgeTrace.Record accept = reader.next();
+            assertEquals(NetfilterBridgeTrace.RECORD_TYPE_VERDICT, accept.type);
+            assertEquals(42, accept.packetId);
+            assertTrue(accept.accept);
+
+            NetfilterBridgeTrace.Record drop = reader.next();
+            assertEquals(43, drop.packetId);
+            assertFalse(drop.accept);
+
+            assertNull(reader.next());
+        } finally {
+            reader.close();
+        }
+    }
+
+    @Test
+    public void testRecordingAfterCloseIsIgnored() throws Exception {
+        NetfilterBridgeTrace.Recorder recorder = new NetfilterBridgeTrace.Recorder(traceFile);
+        recorder.recordVerdict(1, true);
+        recorder.close();
+        long length = traceFile.length();
+
+        recorder.recordVerdict(2, true);
+        recorder.recordQuery(createTcpPackage(4711), 3);
+        recorder.close();
+
+        assertEquals(length, traceFile.length());
+    }
+
+    @Test
+    public void testCloseWhileRecording() throws Exception {
+        final NetfilterBridgeTrace.Recorder recorder = new NetfilterBridgeTrace.Recorder(traceFile);
+        final Packages.TcpPackage tcpPackage = createTcpPackage(4711);
+        final AtomicReference<Throwable> failure = new AtomicReference<>();
+
+        Thread ioThread = new Thread() {
+            @Override
+            public void run() {
+                try {
+                    for(int packetId = 0; packetId < 200000; packetId++) {
+                        recorder.recordQuery(tcpPackage, packetId);
+                        recorder.recordVerdict(packetId, true);
+                    }
+                } catch (Throwable e) {
+                    failure.set(e);
+                }
+            }
+        };
+        ioThread.start();
+        Thread.sleep(5);
+        recorder.close();
+        ioThread.join();
+
+        assertNull(failure.get());
+
+        // the file only contains complete records
+        NetfilterBridgeTrace.Reader reader = new NetfilterBridgeTrace.Reader(traceFile);
+        try {
+            while (reader.next() != null)
+                ;
+        } finally {
+            reader.close();
+        }
+    }
+}
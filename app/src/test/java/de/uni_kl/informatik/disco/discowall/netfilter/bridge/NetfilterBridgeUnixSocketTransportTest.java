@@ -0,0 +1,103 @@
+package de.uni_kl.informatik.disco.discowall.netfilter.bridge;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.nio.ByteBuffer;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class NetfilterBridgeUnixSocketTransportTest {
+    private InMemorySocketFactory socketFactory;
+    private NetfilterBridgeUnixSocketTransport transport;
+    private RecordingSession session;
+
+    @Before
+    public void setUp() throws Exception {
+        socketFactory = new InMemorySocketFactory();
+        transport = new NetfilterBridgeUnixSocketTransport("discowall.test", socketFactory);
+        session = new RecordingSession();
+        transport.start(session);
+    }
+
+    @After
+    public void tearDown() throws Exception {
+        transport.stop();
+        session.awaitClosed();
+    }
+
+    @Test
+    public void testBridgeArguments() {
+        assertEquals("@discowall.test", transport.getBridgeArguments());
+    }
+
+    @Test
+    public void testAcceptReadWriteStop() throws Exception {
+        InMemorySocketFactory.Peer bridge = socketFactory.connect(NetfilterBridgeUnixSocketTransport.BRIDGE_UID);
+        NetfilterBridgeTransport.Connection connection = session.awaitConnected();
+        assertTrue(connection.isOpen());
+
+        bridge.write(new byte[] { 1, 2, 3 });
+        bridge.write(new byte[] { 4, 5 });
+        assertArrayEquals(new byte[] { 1, 2, 3, 4, 5 }, session.awaitReceived(5));
+
+        connection.write(ByteBuffer.wrap(new byte[] { 10, 11, 12 }));
+        ByteBuffer direct = ByteBuffer.allocateDirect(2048); // larger than the copy-array of the connection
+        for(int i = 0; i < direct.capacity(); i++)
+            direct.put((byte) i);
+        direct.flip();
+        connection.write(direct);
+        assertFalse(direct.hasRemaining());
+
+        assertArrayEquals(new byte[] { 10, 11, 12 }, bridge.read(3));
+        byte[] directBytes = bridge.read(2048);
+        for(int i = 0; i < directBytes.length; i++)
+            assertEquals((byte) i, directBytes[i]);
+
+        transport.stop();
+        session.awaitDisconnected();
+        session.awaitClosed();
+        assertFalse(connection.isOpen());
+        assertEquals(-1, bridge.read());
+        assertFalse(socketFactory.isBound());
+    }
+
+    @Test
+    public void testStopWithoutClient() throws Exception {
+        transport.stop();
+        session.awaitClosed();
+        assertFalse(session.hasConnected());
+        assertFalse(socketFactory.isBound());
+    }
+
+    @Test
+    public void testRejectsNonRootPeer() throws Exception {
+        InMemorySocketFactory.Peer intruder = socketFactory.connect(10042);
+        assertEquals(-1, intruder.read()); // closed by the transport
+        assertFalse(session.hasConnected());
+
+        InMemorySocketFactory.Peer bridge = socketFactory.connect(NetfilterBridgeUnixSocketTransport.BRIDGE_UID);
+        session.awaitConnected();
+        bridge.write(new byte[] { 42 });
+        assertArrayEquals(new byte[] { 42 }, session.awaitReceived(1));
+    }
+
+    @Test
+    public void testBridgeReconnects() throws Exception {
+        InMemorySocketFactory.Peer bridge = socketFactory.connect(NetfilterBridgeUnixSocketTransport.BRIDGE_UID);
+        NetfilterBridgeTransport.Connection first = session.awaitConnected();
+
+        bridge.close();
+        session.awaitDisconnected();
+        assertFalse(first.isOpen());
+
+        InMemorySocketFactory.Peer restartedBridge = socketFactory.connect(NetfilterBridgeUnixSocketTransport.BRIDGE_UID);
+        NetfilterBridgeTransport.Connection second = session.awaitConnected();
+        second.write(ByteBuffer.wrap(new byte[] { 7 }));
+        assertEquals(7, restartedBridge.read());
+    }
+}
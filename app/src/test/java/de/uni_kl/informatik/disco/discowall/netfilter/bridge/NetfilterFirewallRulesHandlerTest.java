@@ -0,0 +1,47 @@
+package de.uni_kl.informatik.disco.discowall.netfilter.bridge;
+
+import org.junit.Test;
+
+import java.util.Arrays;
+import java.util.Collections;
+
+import de.uni_kl.informatik.disco.discowall.packages.Packages;
+
+import static org.junit.Assert.assertEquals;
+
+public class NetfilterFirewallRulesHandlerTest {
+    private static Packages.IpPortPair ports(String ports) {
+        return new Packages.IpPortPair("", ports);
+    }
+
+    @Test
+    public void testSinglePortAndRange() {
+        assertEquals(Collections.singletonList(""), NetfilterFirewallRulesHandler.getPortFilters(ports("*"), true));
+        assertEquals(Collections.singletonList(" --source-port 80"), NetfilterFirewallRulesHandler.getPortFilters(ports("80"), true));
+        assertEquals(Collections.singletonList(" --destination-port 6881:6999"), NetfilterFirewallRulesHandler.getPortFilters(ports("6881-6999"), false));
+    }
+
+    @Test
+    public void testPortListWithinLimit() {
+        // 15 single ports fit into one match
+        assertEquals(Collections.singletonList(" -m multiport --destination-ports 1,3,5,7,9,11,13,15,17,19,21,23,25,27,29"),
+                NetfilterFirewallRulesHandler.getPortFilters(ports("1,3,5,7,9,11,13,15,17,19,21,23,25,27,29"), false));
+
+        // 7 ranges and a single port are 15 ports as well
+        assertEquals(Collections.singletonList(" -m multiport --source-ports 1:2,4:5,7:8,10:11,13:14,16:17,19:20,22"),
+                NetfilterFirewallRulesHandler.getPortFilters(ports("1-2,4-5,7-8,10-11,13-14,16-17,19-20,22"), true));
+    }
+
+    @Test
+    public void testPortListIsSplitAtLimit() {
+        assertEquals(Arrays.asList(" -m multiport --destination-ports 1,3,5,7,9,11,13,15,17,19,21,23,25,27,29", " -m multiport --destination-ports 31"),
+                NetfilterFirewallRulesHandler.getPortFilters(ports("1,3,5,7,9,11,13,15,17,19,21,23,25,27,29,31"), false));
+
+        // a range would exceed the limit by one port, so it starts the next match
+        assertEquals(Arrays.asList(" -m multiport --destination-ports 1,3,5,7,9,11,13,15,17,19:20,22:23,25,27", " -m multiport --destination-ports 29:30,32"),
+                NetfilterFirewallRulesHandler.getPortFilters(ports("1,3,5,7,9,11,13,15,17,19-20,22-23,25,27,29-30,32"), false));
+
+        assertEquals(Arrays.asList(" -m multiport --source-ports 1:2,4:5,7:8,10:11,13:14,16:17,19:20", " -m multiport --source-ports 22:23"),
+                NetfilterFirewallRulesHandler.getPortFilters(ports("1-2,4-5,7-8,10-11,13-14,16-17,19-20,22-23"), true));
+    }
+}
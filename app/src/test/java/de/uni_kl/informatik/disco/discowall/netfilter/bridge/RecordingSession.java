@@ -0,0 +1,93 @@
+package de.uni_kl.informatik.disco.discowall.netfilter.bridge;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Transport-session which consumes all received bytes and lets the test wait for the callbacks.
+ */
+class RecordingSession implements NetfilterBridgeTransport.Session {
+    static final long TIMEOUT_MS = 5000;
+    private static final Object NO_CAUSE = new Object();
+
+    private final BlockingQueue<NetfilterBridgeTransport.Connection> connections = new LinkedBlockingQueue<>();
+    private final BlockingQueue<Object> disconnects = new LinkedBlockingQueue<>();
+    private final ByteArrayOutputStream received = new ByteArrayOutputStream();
+    private final CountDownLatch closed = new CountDownLatch(1);
+
+    @Override
+    public void onConnected(NetfilterBridgeTransport.Connection connection) {
+        connections.add(connection);
+    }
+
+    @Override
+    public void onReceived(ByteBuffer receiveBuffer) {
+        synchronized (received) {
+            while (receiveBuffer.hasRemaining())
+                received.write(receiveBuffer.get());
+            received.notifyAll();
+        }
+    }
+
+    @Override
+    public void onDisconnected(IOException cause) {
+        disconnects.add(cause != null ? cause : NO_CAUSE);
+    }
+
+    @Override
+    public void onClosed() {
+        closed.countDown();
+    }
+
+    NetfilterBridgeTransport.Connection awaitConnected() throws InterruptedException {
+        NetfilterBridgeTransport.Connection connection = connections.poll(TIMEOUT_MS, TimeUnit.MILLISECONDS);
+        assertNotNull("transport did not accept the client", connection);
+        return connection;
+    }
+
+    boolean hasConnected() {
+        return !connections.isEmpty();
+    }
+
+    /**
+     * Asserts that the transport disconnected without an error.
+     */
+    void awaitDisconnected() throws InterruptedException {
+        Object cause = disconnects.poll(TIMEOUT_MS, TimeUnit.MILLISECONDS);
+        assertNotNull("transport did not report the disconnect", cause);
+        assertEquals(NO_CAUSE, cause);
+    }
+
+    void awaitClosed() throws InterruptedException {
+        assertTrue("transport did not close", closed.await(TIMEOUT_MS, TimeUnit.MILLISECONDS));
+    }
+
+    byte[] awaitReceived(int length) throws InterruptedException {
+        long deadline = System.currentTimeMillis() + TIMEOUT_MS;
+
+        synchronized (received) {
+            while (received.size() < length) {
+                long remaining = deadline - System.currentTimeMillis();
+                assertTrue("received only " + received.size() + " of " + length + " bytes", remaining > 0);
+                received.wait(remaining);
+            }
+
+            byte[] bytes = received.toByteArray();
+            received.reset();
+            received.write(bytes, length, bytes.length - length);
+
+            byte[] result = new byte[length];
+            System.arraycopy(bytes, 0, result, 0, length);
+            return result;
+        }
+    }
+}
@@ -0,0 +1,204 @@
+package de.uni_kl.informatik.disco.discowall.packages;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotSame;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Packages are fed like the firewall does: the connection is being updated through its static type {@link Connections.Connection}.
+ */
+public class ConnectionManagerExpiryTest {
+    private static final int USER_ID = 10042;
+    private static final int LOCAL = 0x0A000002;    // 10.0.0.2
+    private static final int REMOTE = 0xCB007150;   // 203.0.113.80
+    private static final int MAX_CONNECTIONS = 16;
+
+    private ConnectionManager connectionManager;
+    private long start;
+
+    @Before
+    public void setUp() {
+        connectionManager = new ConnectionManager(new ConnectionManager.ExpiryPolicy());
+        start = System.nanoTime() - TimeUnit.HOURS.toNanos(2); // older than any connection created by the test
+    }
+
+    private long at(long seconds) {
+        return start + TimeUnit.SECONDS.toNanos(seconds);
+    }
+
+    private static Packages.TcpPackage tcpPackage(long timestamp, boolean outbound, int localPort, boolean ack, boolean fin, boolean syn, boolean reset) {
+        Packages.TcpPackage tcpPackage = Packages.TcpPackage.createReusable();
+        if (outbound)
+            tcpPackage.set(timestamp, -1, 2, LOCAL, REMOTE, localPort, 443, 0, 20, 1000, 0, ack, fin, syn, false, reset, false);
+        else
+            tcpPackage.set(timestamp, 2, -1, REMOTE, LOCAL, 443, localPort, 0, 20, 1000, 0, ack, fin, syn, false, reset, false);
+        tcpPackage.setUserId(USER_ID);
+        return tcpPackage;
+    }
+
+    private static Packages.UdpPackage udpPackage(long timestamp, int localPort) {
+        Packages.UdpPackage udpPackage = Packages.UdpPackage.createReusable();
+        udpPackage.set(timestamp, -1, 2, LOCAL, REMOTE, localPort, 53, 0, 64);
+        udpPackage.setUserId(USER_ID);
+        return udpPackage;
+    }
+
+    private Connections.TcpConnection receive(Packages.TcpPackage tcpPackage) {
+        Connections.Connection connection = connectionManager.getTcpConnection(tcpPackage);
+        assertTrue(connection.update(tcpPackage));
+        return (Connections.TcpConnection) connection;
+    }
+
+    private Connections.UdpConnection receive(Packages.UdpPackage udpPackage) {
+        Connections.Connection connection = connectionManager.getUdpConnection(udpPackage);
+        assertTrue(connection.update(udpPackage));
+        return (Connections.UdpConnection) connection;
+    }
+
+    private Connections.TcpConnection openConnection(long seconds, int localPort) {
+        receive(tcpPackage(at(seconds), true, localPort, false, false, true, false));    // SYN
+        return receive(tcpPackage(at(seconds), false, localPort, true, false, true, false)); // SYN/ACK
+    }
+
+    @Test
+    public void testTcpStateFollowsPackages() {
+        Connections.TcpConnection connection = receive(tcpPackage(at(0), true, 40000, false, false, true, false));
+        assertEquals(Connections.TcpConnection.TcpConnectionState.SYN_WAIT, connection.getState());
+
+        assertSame(connection, receive(tcpPackage(at(1), false, 40000, true, false, true, false)));
+        assertEquals(Connections.TcpConnection.TcpConnectionState.OPEN, connection.getState());
+        assertEquals(-1, connection.getClosedTimestamp());
+
+        assertSame(connection, receive(tcpPackage(at(60), true, 40000, true, true, false, false)));
+        assertEquals(Connections.TcpConnection.TcpConnectionState.CLOSED, connection.getState());
+        assertEquals(at(60), connection.getClosedTimestamp());
+        assertEquals(at(60), connection.getLastActivityTimestamp());
+        assertEquals(3, connection.getPackagesCount());
+    }
+
+    @Test
+    public void testClosedGrace() {
+        receive(tcpPackage(at(0), true, 40000, false, false, true, false));
+        receive(tcpPackage(at(10), true, 40000, true, true, false, false)); // FIN/ACK
+        receive(tcpPackage(at(0), true, 40001, false, false, true, false));
+        receive(tcpPackage(at(20), false, 40001, false, false, false, true)); // RST
+
+        assertEquals(0, connectionManager.evictExpired(at(10 + 30)));
+        assertEquals(2, connectionManager.getTcpConnectionCount());
+
+        assertEquals(1, connectionManager.evictExpired(at(10 + 31)));
+        assertEquals(1, connectionManager.getTcpConnectionCount());
+        assertEquals(1, connectionManager.evictExpired(at(20 + 31)));
+        assertEquals(0, connectionManager.getTcpConnectionCount());
+
+        assertEquals(2, connectionManager.getEvictionCounters().getTcpClosed());
+        assertEquals(0, connectionManager.getEvictionCounters().getTcpIdle());
+    }
+
+    @Test
+    public void testHandshakeTtl() {
+        receive(tcpPackage(at(0), true, 40000, false, false, true, false)); // SYN only
+
+        assertEquals(0, connectionManager.evictExpired(at(120)));
+        assertEquals(1, connectionManager.evictExpired(at(121)));
+        assertEquals(1, connectionManager.getEvictionCounters().getTcpIdle());
+        assertEquals(0, connectionManager.getEvictionCounters().getTcpClosed());
+    }
+
+    @Test
+    public void testOpenConnectionOutlivesHandshakeTtl() {
+        Connections.TcpConnection connection = openConnection(0, 40000);
+
+        assertEquals(0, connectionManager.evictExpired(at(TimeUnit.MINUTES.toSeconds(5))));
+        assertTrue(connectionManager.containsTcpConnection(connection));
+
+        assertEquals(0, connectionManager.evictExpired(at(TimeUnit.HOURS.toSeconds(1))));
+        assertEquals(1, connectionManager.evictExpired(at(TimeUnit.HOURS.toSeconds(1) + 1)));
+        assertFalse(connectionManager.containsTcpConnection(connection));
+        assertEquals(1, connectionManager.getEvictionCounters().getTcpIdle());
+    }
+
+    @Test
+    public void testUdpIdleTtl() {
+        Connections.UdpConnection connection = receive(udpPackage(at(0), 5353));
+        receive(udpPackage(at(60), 5353)); // activity extends the ttl
+
+        assertEquals(0, connectionManager.evictExpired(at(60 + 180)));
+        assertTrue(connectionManager.containsUdpConnection(connection));
+        assertEquals(1, connectionManager.evictExpired(at(60 + 181)));
+        assertEquals(0, connectionManager.getUdpConnectionCount());
+        assertEquals(1, connectionManager.getEvictionCounters().getUdpIdle());
+
+        // an evicted connection is tracked again as a new one
+        assertNotSame(connection, receive(udpPackage(at(300), 5353)));
+    }
+
+    @Test
+    public void testCustomPolicy() {
+        ConnectionManager.ExpiryPolicy policy = new ConnectionManager.ExpiryPolicy(1000, 2000, 3000, 4000, MAX_CONNECTIONS, 500);
+        connectionManager = new ConnectionManager(policy);
+
+        Connections.TcpConnection connection = openConnection(0, 40000);
+        assertFalse(policy.isExpired(connection, at(3)));
+        assertTrue(policy.isExpired(connection, at(4)));
+
+        receive(tcpPackage(at(10), true, 40000, true, true, false, false));
+        assertFalse(policy.isExpired(connection, at(11)));
+        assertTrue(policy.isExpired(connection, at(12)));
+    }
+
+    @Test
+    public void testCapacityEviction() {
+        connectionManager = new ConnectionManager(new ConnectionManager.ExpiryPolicy(30000, 120000, 3600000, 180000, MAX_CONNECTIONS, 30000));
+
+        Connections.UdpConnection[] connections = new Connections.UdpConnection[MAX_CONNECTIONS];
+        for(int i = 0; i < MAX_CONNECTIONS; i++)
+            connections[i] = receive(udpPackage(at(i), 5000 + i));
+        assertEquals(MAX_CONNECTIONS, connectionManager.getUdpConnectionCount());
+        assertEquals(0, connectionManager.getEvictionCounters().getCapacity());
+
+        // the least recently active connection gets new activity, so that the next one is evicted instead
+        receive(udpPackage(at(100), 5000));
+
+        // exceeding the maximum evicts an eighth of it: the exceeding one plus two
+        Connections.UdpConnection newest = receive(udpPackage(at(101), 6000));
+        assertEquals(MAX_CONNECTIONS - MAX_CONNECTIONS / 8, connectionManager.getUdpConnectionCount());
+        assertEquals(3, connectionManager.getEvictionCounters().getCapacity());
+
+        assertTrue(connectionManager.containsUdpConnection(connections[0]));
+        for(int i = 1; i <= 3; i++)
+            assertFalse(connectionManager.containsUdpConnection(connections[i]));
+        for(int i = 4; i < MAX_CONNECTIONS; i++)
+            assertTrue(connectionManager.containsUdpConnection(connections[i]));
+        assertTrue(connectionManager.containsUdpConnection(newest));
+
+        // the tables of the protocols are bounded separately
+        assertEquals(0, connectionManager.getTcpConnectionCount());
+        assertEquals(3, connectionManager.getEvictionCounters().getTotal());
+    }
+
+    @Test
+    public void testEvictionCountersAddUp() {
+        receive(tcpPackage(at(0), true, 40000, false, false, true, false));  // handshake
+        openConnection(0, 40001);                                            // open
+        receive(tcpPackage(at(0), true, 40002, false, false, true, false));
+        receive(tcpPackage(at(0), true, 40002, true, true, false, false));   // closed
+        receive(udpPackage(at(0), 5353));
+
+        assertEquals(4, connectionManager.evictExpired(at(TimeUnit.HOURS.toSeconds(2))));
+
+        ConnectionManager.EvictionCounters counters = connectionManager.getEvictionCounters();
+        assertEquals(1, counters.getTcpClosed());
+        assertEquals(2, counters.getTcpIdle());
+        assertEquals(1, counters.getUdpIdle());
+        assertEquals(0, counters.getCapacity());
+        assertEquals(4, counters.getTotal());
+    }
+}
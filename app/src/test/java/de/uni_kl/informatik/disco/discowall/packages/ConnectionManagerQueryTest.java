@@ -0,0 +1,132 @@
+package de.uni_kl.informatik.disco.discowall.packages;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.Set;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.assertEquals;
+
+/**
+ * The connections are tracked through the package-path only, so that the TCP-states are the ones the firewall sees without conntrack-events.
+ */
+public class ConnectionManagerQueryTest {
+    private static final int USER_A = 10042, USER_B = 10043;
+    private static final int LOCAL = 0x0A000002;     // 10.0.0.2
+    private static final int REMOTE_1 = 0xCB007150;  // 203.0.113.80
+    private static final int REMOTE_2 = 0xC6336401;  // 198.51.100.1
+
+    private ConnectionManager connectionManager;
+    private long now;
+
+    private Connections.TcpConnection synWait, open, closed, reset;
+    private Connections.UdpConnection udp;
+
+    private Connections.TcpConnection receiveTcp(int userId, int remote, int localPort, boolean outbound, boolean ack, boolean fin, boolean syn, boolean rst) {
+        Packages.TcpPackage tcpPackage = Packages.TcpPackage.createReusable();
+        if (outbound)
+            tcpPackage.set(now, -1, 2, LOCAL, remote, localPort, 443, 0, 20, 1000, 0, ack, fin, syn, false, rst, false);
+        else
+            tcpPackage.set(now, 2, -1, remote, LOCAL, 443, localPort, 0, 20, 1000, 0, ack, fin, syn, false, rst, false);
+        tcpPackage.setUserId(userId);
+
+        Connections.Connection connection = connectionManager.getTcpConnection(tcpPackage);
+        connection.update(tcpPackage);
+        return (Connections.TcpConnection) connection;
+    }
+
+    private Connections.TcpConnection syn(int userId, int remote, int localPort) {
+        return receiveTcp(userId, remote, localPort, true, false, false, true, false);
+    }
+
+    private Connections.TcpConnection synAck(int userId, int remote, int localPort) {
+        return receiveTcp(userId, remote, localPort, false, true, false, true, false);
+    }
+
+    private Connections.TcpConnection finAck(int userId, int remote, int localPort) {
+        return receiveTcp(userId, remote, localPort, true, true, true, false, false);
+    }
+
+    @Before
+    public void setUp() {
+        connectionManager = new ConnectionManager();
+        now = System.nanoTime();
+
+        synWait = syn(USER_A, REMOTE_1, 40000);
+
+        syn(USER_A, REMOTE_1, 40001);
+        open = synAck(USER_A, REMOTE_1, 40001);
+
+        syn(USER_B, REMOTE_2, 40002);
+        synAck(USER_B, REMOTE_2, 40002);
+        closed = finAck(USER_B, REMOTE_2, 40002);
+
+        syn(USER_B, REMOTE_1, 40003);
+        reset = receiveTcp(USER_B, REMOTE_1, 40003, false, false, false, false, true);
+
+        Packages.UdpPackage udpPackage = Packages.UdpPackage.createReusable();
+        udpPackage.set(now, -1, 2, LOCAL, REMOTE_1, 5353, 53, 0, 64);
+        udpPackage.setUserId(USER_A);
+        Connections.Connection connection = connectionManager.getUdpConnection(udpPackage);
+        connection.update(udpPackage);
+        udp = (Connections.UdpConnection) connection;
+    }
+
+    private Set<Connections.Connection> query(ConnectionManager.ConnectionQuery query) {
+        ConnectionManager.ConnectionSnapshot snapshot = connectionManager.queryConnections(query);
+        assertEquals(snapshot.getConnections().size(), snapshot.getTotalCount());
+        return new HashSet<>(snapshot.getConnections());
+    }
+
+    private static Set<Connections.Connection> connections(Connections.Connection... connections) {
+        return new HashSet<>(Arrays.asList(connections));
+    }
+
+    @Test
+    public void testQueryByTcpState() {
+        assertEquals(connections(synWait), query(new ConnectionManager.ConnectionQuery().setTcpState(Connections.TcpConnection.TcpConnectionState.SYN_WAIT)));
+        assertEquals(connections(open), query(new ConnectionManager.ConnectionQuery().setTcpState(Connections.TcpConnection.TcpConnectionState.OPEN)));
+        assertEquals(connections(closed), query(new ConnectionManager.ConnectionQuery().setTcpState(Connections.TcpConnection.TcpConnectionState.CLOSED)));
+        assertEquals(connections(reset), query(new ConnectionManager.ConnectionQuery().setTcpState(Connections.TcpConnection.TcpConnectionState.RESET)));
+        assertEquals(connections(), query(new ConnectionManager.ConnectionQuery().setTcpState(Connections.TcpConnection.TcpConnectionState.UNKNOWN)));
+    }
+
+    @Test
+    public void testExcludeClosed() {
+        assertEquals(connections(synWait, open, udp), query(new ConnectionManager.ConnectionQuery().setExcludeClosed(true)));
+        assertEquals(connections(synWait, open), query(new ConnectionManager.ConnectionQuery().setProtocol(Packages.TransportLayerProtocol.TCP).setExcludeClosed(true)));
+        assertEquals(connections(), query(new ConnectionManager.ConnectionQuery().setUserId(USER_B).setExcludeClosed(true)));
+        assertEquals(connections(closed, reset), query(new ConnectionManager.ConnectionQuery().setUserId(USER_B)));
+    }
+
+    @Test
+    public void testCombinedCriteria() {
+        assertEquals(connections(synWait, open, udp), query(new ConnectionManager.ConnectionQuery().setUserId(USER_A)));
+        assertEquals(connections(synWait, open, reset, udp), query(new ConnectionManager.ConnectionQuery().setRemoteAddress("203.0.113.80")));
+        assertEquals(connections(open), query(new ConnectionManager.ConnectionQuery().setRemoteAddress("203.0.113.80").setTcpState(Connections.TcpConnection.TcpConnectionState.OPEN)));
+        assertEquals(connections(reset), query(new ConnectionManager.ConnectionQuery().setUserId(USER_B).setRemoteAddress("203.0.113.80")));
+        assertEquals(connections(udp), query(new ConnectionManager.ConnectionQuery().setProtocol(Packages.TransportLayerProtocol.UDP).setExcludeClosed(true)));
+    }
+
+    @Test
+    public void testStateChangesMoveWithinIndex() {
+        finAck(USER_A, REMOTE_1, 40001);
+
+        assertEquals(connections(), query(new ConnectionManager.ConnectionQuery().setTcpState(Connections.TcpConnection.TcpConnectionState.OPEN)));
+        assertEquals(connections(open, closed), query(new ConnectionManager.ConnectionQuery().setTcpState(Connections.TcpConnection.TcpConnectionState.CLOSED)));
+        assertEquals(connections(synWait, udp), query(new ConnectionManager.ConnectionQuery().setUserId(USER_A).setExcludeClosed(true)));
+    }
+
+    @Test
+    public void testEvictedConnectionsAreNotQueried() {
+        // only the closed and reset connections are past their grace-period
+        assertEquals(2, connectionManager.evictExpired(now + TimeUnit.SECONDS.toNanos(31)));
+
+        assertEquals(connections(), query(new ConnectionManager.ConnectionQuery().setTcpState(Connections.TcpConnection.TcpConnectionState.CLOSED)));
+        assertEquals(connections(), query(new ConnectionManager.ConnectionQuery().setUserId(USER_B)));
+        assertEquals(connections(synWait, open, udp), query(new ConnectionManager.ConnectionQuery()));
+    }
+}
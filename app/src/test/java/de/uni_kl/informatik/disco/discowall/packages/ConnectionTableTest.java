@@ -0,0 +1,302 @@
+package de.uni_kl.informatik.disco.discowall.packages;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.Set;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+public class ConnectionTableTest {
+    private static final int INITIAL_CAPACITY = 256; // of the table, as long as it has not been resized
+    private static final int LOCAL = 0x0A000002;     // 10.0.0.2
+    private static final int REMOTE = 0xCB007150;    // 203.0.113.80
+    private static final int REMOTE_PORT = 53;
+
+    private ConnectionTable<Connections.UdpConnection> table;
+
+    @Before
+    public void setUp() {
+        table = new ConnectionTable<>();
+    }
+
+    private static Packages.IpPortPair local(int port) {
+        return new Packages.IpPortPair("10.0.0.2", port);
+    }
+
+    private static Packages.IpPortPair remote() {
+        return new Packages.IpPortPair("203.0.113.80", REMOTE_PORT);
+    }
+
+    private static Connections.UdpConnection connection(int localPort) {
+        return new Connections.UdpConnection(10042, local(localPort), remote());
+    }
+
+    /**
+     * @return the port of the local endpoint, independent of the direction the connection has been created with
+     */
+    private static int localPort(Connections.Connection connection) {
+        return connection.getSource().getIp().equals("10.0.0.2") ? connection.getSourcePort() : connection.getDestinationPort();
+    }
+
+    private static int homeSlot(int localPort) {
+        long localEndpoint = ConnectionTable.endpoint(LOCAL, localPort), remoteEndpoint = ConnectionTable.endpoint(REMOTE, REMOTE_PORT);
+        return ConnectionTable.hash(Math.min(localEndpoint, remoteEndpoint), Math.max(localEndpoint, remoteEndpoint)) & (INITIAL_CAPACITY - 1);
+    }
+
+    /**
+     * @return local ports of connections whose home-slot is the given one
+     */
+    private static List<Integer> portsWithHomeSlot(int slot, int count) {
+        List<Integer> ports = new ArrayList<>();
+        for(int port = 1; ports.size() < count; port++) {
+            if (homeSlot(port) == slot)
+                ports.add(port);
+        }
+        return ports;
+    }
+
+    /**
+     * Ports of a cluster wrapping around the end of the table: colliding connections with home-slots 253 and 0,
+     * so that the cluster occupies the slots 253 to 3.
+     */
+    private static List<Integer> wrappedClusterPorts() {
+        List<Integer> ports = new ArrayList<>(portsWithHomeSlot(INITIAL_CAPACITY - 3, 5));
+        ports.addAll(portsWithHomeSlot(0, 2));
+        return ports;
+    }
+
+    private void assertContainsExactly(Map<Integer, Connections.UdpConnection> expected, Iterable<Integer> checkedPorts) {
+        for(int port : checkedPorts) {
+            Connections.UdpConnection connection = expected.get(port);
+            if (connection != null) {
+                assertSame("port " + port, connection, table.get(local(port), remote()));
+                assertSame("port " + port, connection, table.get(remote(), local(port)));
+            } else {
+                assertNull("port " + port, table.get(local(port), remote()));
+            }
+        }
+        assertEquals(expected.size(), table.size());
+        assertEquals(new HashSet<>(expected.values()), new HashSet<>(table.getConnections()));
+    }
+
+    @Test
+    public void testDirectionIndependentLookup() {
+        Connections.UdpConnection connection = connection(4711);
+        table.put(connection);
+
+        assertSame(connection, table.get(local(4711), remote()));
+        assertSame(connection, table.get(remote(), local(4711)));
+        assertTrue(table.contains(new Connections.SimpleConnection(remote(), local(4711))));
+
+        Packages.UdpPackage outbound = Packages.UdpPackage.createReusable();
+        outbound.set(System.nanoTime(), -1, 2, LOCAL, REMOTE, 4711, REMOTE_PORT, 0, 64);
+        Packages.UdpPackage inbound = Packages.UdpPackage.createReusable();
+        inbound.set(System.nanoTime(), 2, -1, REMOTE, LOCAL, REMOTE_PORT, 4711, 0, 64);
+        assertSame(connection, table.get(outbound));
+        assertSame(connection, table.get(inbound));
+
+        // other ports or a swapped port-pair are different connections
+        assertNull(table.get(local(4712), remote()));
+        assertNull(table.get(new Packages.IpPortPair("10.0.0.2", REMOTE_PORT), new Packages.IpPortPair("203.0.113.80", 4711)));
+
+        // putting the reverse direction replaces the connection
+        Connections.UdpConnection reverse = new Connections.UdpConnection(10042, remote(), local(4711));
+        table.put(reverse);
+        assertEquals(1, table.size());
+        assertSame(reverse, table.get(local(4711), remote()));
+
+        assertSame(reverse, table.remove(remote(), local(4711)));
+        assertNull(table.get(local(4711), remote()));
+        assertNull(table.remove(local(4711), remote()));
+        assertEquals(0, table.size());
+    }
+
+    @Test
+    public void testRemoveWithinWrappedCluster() {
+        List<Integer> ports = wrappedClusterPorts();
+
+        // remove each connection of the cluster once, the others have to be shifted back and remain reachable
+        for(int removedPort : ports) {
+            table = new ConnectionTable<>();
+            Map<Integer, Connections.UdpConnection> expected = new HashMap<>();
+            for(int port : ports) {
+                expected.put(port, connection(port));
+                table.put(expected.get(port));
+            }
+            assertContainsExactly(expected, ports);
+
+            assertSame(expected.remove(removedPort), table.remove(local(removedPort), remote()));
+            assertContainsExactly(expected, ports);
+
+            // the freed slot is being reused
+            expected.put(removedPort, connection(removedPort));
+            table.put(expected.get(removedPort));
+            assertContainsExactly(expected, ports);
+        }
+    }
+
+    @Test
+    public void testRemoveIfWithinWrappedCluster() {
+        List<Integer> ports = wrappedClusterPorts();
+        ports.addAll(portsWithHomeSlot(1, 2)); // extends the cluster behind the wrap
+
+        // all subsets of the cluster, so that removals happen at each position of the shifts
+        for(int removedMask = 0; removedMask < (1 << ports.size()); removedMask++) {
+            table = new ConnectionTable<>();
+            Map<Integer, Connections.UdpConnection> expected = new HashMap<>();
+            final Set<Connections.UdpConnection> removed = new HashSet<>();
+            for(int i = 0; i < ports.size(); i++) {
+                Connections.UdpConnection connection = connection(ports.get(i));
+                table.put(connection);
+                if ((removedMask & (1 << i)) != 0)
+                    removed.add(connection);
+                else
+                    expected.put(ports.get(i), connection);
+            }
+
+            final Set<Connections.UdpConnection> visited = new HashSet<>();
+            int removedCount = table.removeIf(new ConnectionTable.Filter<Connections.UdpConnection>() {
+                @Override
+                public boolean matches(Connections.UdpConnection connection) {
+                    visited.add(connection);
+                    return removed.contains(connection);
+                }
+            });
+
+            assertEquals(removed.size(), removedCount);
+            assertEquals(ports.size(), visited.size());
+            assertContainsExactly(expected, ports);
+        }
+    }
+
+    @Test
+    public void testResize() {
+        Map<Integer, Connections.UdpConnection> expected = new HashMap<>();
+        List<Integer> ports = new ArrayList<>();
+        for(int port = 1; port <= 5000; port++) {
+            ports.add(port);
+            expected.put(port, connection(port));
+            table.put(expected.get(port));
+        }
+        assertContainsExactly(expected, ports);
+
+        for(int port = 1; port <= 5000; port += 2)
+            assertSame(expected.remove(port), table.remove(remote(), local(port)));
+        assertContainsExactly(expected, ports);
+
+        assertEquals(expected.size(), table.removeIf(new ConnectionTable.Filter<Connections.UdpConnection>() {
+            @Override
+            public boolean matches(Connections.UdpConnection connection) {
+                return true;
+            }
+        }));
+        expected.clear();
+        assertContainsExactly(expected, ports);
+    }
+
+    @Test
+    public void testNonIpv4Fallback() {
+        Packages.IpPortPair ipv6Local = new Packages.IpPortPair("2001:db8::2", 4711), ipv6Remote = new Packages.IpPortPair("2001:db8::80", 443);
+        Packages.IpPortPair host = new Packages.IpPortPair("example.org", 80);
+
+        Connections.UdpConnection ipv4 = connection(4711);
+        Connections.UdpConnection ipv6 = new Connections.UdpConnection(10042, ipv6Local, ipv6Remote);
+        Connections.UdpConnection hostname = new Connections.UdpConnection(10042, local(4712), host);
+        table.put(ipv4);
+        table.put(ipv6);
+        table.put(hostname);
+
+        assertEquals(3, table.size());
+        assertSame(ipv6, table.get(ipv6Local, ipv6Remote));
+        assertSame(ipv6, table.get(ipv6Remote, ipv6Local));
+        assertSame(ipv6, table.get(new Packages.IpPortPair("2001:0db8:0:0:0:0:0:80", 443), ipv6Local));
+        assertSame(hostname, table.get(host, local(4712)));
+        assertNull(table.get(local(4712), remote()));
+        assertEquals(new HashSet<>(Arrays.asList(ipv4, ipv6, hostname)), new HashSet<>(table.getConnections()));
+
+        Packages.UdpPackage inbound = new Packages.UdpPackage(2, -1, ipv6Remote, ipv6Local, 0, 64);
+        assertSame(ipv6, table.get(inbound));
+
+        assertEquals(1, table.removeIf(new ConnectionTable.Filter<Connections.UdpConnection>() {
+            @Override
+            public boolean matches(Connections.UdpConnection connection) {
+                return connection.getDestination().getAddress() == null;
+            }
+        }));
+        assertNull(table.get(local(4712), host));
+
+        assertSame(ipv6, table.remove(ipv6Remote, ipv6Local));
+        assertNull(table.remove(ipv6Remote, ipv6Local));
+        assertEquals(1, table.size());
+        assertSame(ipv4, table.get(remote(), local(4711)));
+    }
+
+    @Test
+    public void testRandomOperationsAgainstHashMap() {
+        Random random = new Random(4711);
+
+        for(int round = 0; round < 20; round++) {
+            table = new ConnectionTable<>();
+            Map<Integer, Connections.UdpConnection> expected = new HashMap<>();
+            List<Integer> ports = new ArrayList<>();
+            int portRange = 64 + random.nextInt(2000);
+            for(int port = 1; port <= portRange; port++)
+                ports.add(port);
+
+            for(int operation = 0; operation < 2000; operation++) {
+                final int port = 1 + random.nextInt(portRange);
+                boolean reverse = random.nextBoolean();
+                Packages.IpPortPair source = reverse ? remote() : local(port), destination = reverse ? local(port) : remote();
+
+                switch(random.nextInt(8)) {
+                    case 0:
+                    case 1:
+                    case 2:
+                        Connections.UdpConnection connection = new Connections.UdpConnection(10042, source, destination);
+                        table.put(connection);
+                        expected.put(port, connection);
+                        break;
+                    case 3:
+                    case 4:
+                        assertSame(expected.remove(port), table.remove(source, destination));
+                        break;
+                    case 5:
+                        final int divisor = 2 + random.nextInt(5);
+                        int removedCount = 0;
+                        for(Iterator<Integer> iterator = expected.keySet().iterator(); iterator.hasNext(); ) {
+                            if (iterator.next() % divisor == 0) {
+                                iterator.remove();
+                                removedCount++;
+                            }
+                        }
+                        assertEquals(removedCount, table.removeIf(new ConnectionTable.Filter<Connections.UdpConnection>() {
+                            @Override
+                            public boolean matches(Connections.UdpConnection connection) {
+                                return localPort(connection) % divisor == 0;
+                            }
+                        }));
+                        break;
+                    default:
+                        assertSame(expected.get(port), table.get(source, destination));
+                        break;
+                }
+            }
+
+            assertContainsExactly(expected, ports);
+            assertFalse(table.size() > portRange);
+        }
+    }
+}
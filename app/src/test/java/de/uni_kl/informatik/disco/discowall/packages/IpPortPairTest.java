@@ -0,0 +1,216 @@
+package de.uni_kl.informatik.disco.discowall.packages;
+
+import org.junit.Test;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+public class IpPortPairTest {
+    private static Packages.IpPortPair ip(String ip) {
+        return new Packages.IpPortPair(ip, 0);
+    }
+
+    private static void assertNetwork(String filter, String expectedIp, int expectedPrefixLength) {
+        Packages.IpPortPair network = ip(filter);
+        assertEquals(expectedIp, network.getIp());
+        assertEquals(expectedPrefixLength, network.getPrefixLength());
+        assertTrue(network.isNetwork());
+    }
+
+    private static void assertHost(String filter, String expectedIp, int expectedBitLength) {
+        Packages.IpPortPair host = ip(filter);
+        assertEquals(expectedIp, host.getIp());
+        assertEquals(expectedBitLength, host.getPrefixLength());
+        assertFalse(host.isNetwork());
+    }
+
+    private static void assertInvalid(String filter) {
+        try {
+            ip(filter);
+            fail("accepted invalid filter: " + filter);
+        } catch (IllegalArgumentException e) {
+            // expected
+        }
+    }
+
+    @Test
+    public void testIpv4PrefixIsNormalized() {
+        assertNetwork("10.1.2.3/16", "10.1.0.0/16", 16);
+        assertNetwork("192.168.7.255/31", "192.168.7.254/31", 31);
+        assertNetwork("10.1.2.3/0", "0.0.0.0/0", 0);
+        assertNetwork("0.0.0.0/0", "0.0.0.0/0", 0);
+    }
+
+    @Test
+    public void testIpv6PrefixIsNormalized() {
+        assertNetwork("2001:db8:1:2:3:4:5:6/64", "2001:db8:1:2::/64", 64);
+        assertNetwork("2001:DB8::/32", "2001:db8::/32", 32);
+        assertNetwork("2001:db8::1/0", "::/0", 0);
+        assertNetwork("::/0", "::/0", 0);
+    }
+
+    @Test
+    public void testFullLengthPrefixIsHost() {
+        assertHost("10.1.2.3/32", "10.1.2.3", 32);
+        assertHost("2001:db8::1/128", "2001:db8::1", 128);
+        assertEquals(ip("10.1.2.3"), ip("10.1.2.3/32"));
+        assertEquals(ip("2001:db8::1"), ip("2001:db8::1/128"));
+    }
+
+    @Test
+    public void testHostsAndAnyIp() {
+        assertHost("10.1.2.3", "10.1.2.3", 32);
+        assertHost("2001:db8::1", "2001:db8::1", 128);
+        assertHost("example.org", "example.org", 0);
+        assertFalse(ip("").isNetwork());
+        assertTrue(ip("*").isIpAny());
+    }
+
+    @Test
+    public void testInvalidPrefixLengthsAreRejected() {
+        assertInvalid("10.0.0.0/33");
+        assertInvalid("10.0.0.0/-1");
+        assertInvalid("10.0.0.0/+8");
+        assertInvalid("10.0.0.0/");
+        assertInvalid("10.0.0.0/x");
+        assertInvalid("10.0.0.0/8/8");
+        assertInvalid("::/129");
+        assertInvalid("::/0128");
+        assertInvalid("example.org/8");
+        assertInvalid("/8");
+    }
+
+    @Test
+    public void testNetworkEquality() {
+        assertEquals(ip("10.1.0.0/16"), ip("10.1.2.3/16"));
+        assertEquals(ip("10.1.0.0/16").hashCode(), ip("10.1.2.3/16").hashCode());
+        assertNotEquals(ip("10.1.0.0/16"), ip("10.1.0.0/17"));
+        assertNotEquals(ip("10.1.0.0/16"), ip("10.1.0.0"));
+        assertNotEquals(ip("0.0.0.0/0"), ip("::/0"));
+    }
+
+    @Test
+    public void testNetworkMatchesIp() {
+        Packages.IpPortPair network = ip("10.1.0.0/16");
+        assertTrue(network.matchesIp(ip("10.1.0.0")));
+        assertTrue(network.matchesIp(ip("10.1.255.255")));
+        assertFalse(network.matchesIp(ip("10.2.0.1")));
+        assertFalse(network.matchesIp(ip("example.org")));
+
+        assertTrue(ip("0.0.0.0/0").matchesIp(ip("203.0.113.80")));
+        assertTrue(ip("192.168.7.254/31").matchesIp(ip("192.168.7.255")));
+        assertFalse(ip("192.168.7.254/31").matchesIp(ip("192.168.7.253")));
+
+        Packages.IpPortPair network6 = ip("2001:db8:1:2::/64");
+        assertTrue(network6.matchesIp(ip("2001:db8:1:2:ffff:ffff:ffff:ffff")));
+        assertFalse(network6.matchesIp(ip("2001:db8:1:3::")));
+        assertTrue(ip("::/0").matchesIp(ip("2001:db8::1")));
+
+        // a host only matches itself
+        assertTrue(ip("10.1.2.3").matchesIp(ip("10.1.2.3")));
+        assertFalse(ip("10.1.2.3").matchesIp(ip("10.1.2.4")));
+    }
+
+    private static Packages.IpPortPair ports(String ports) {
+        return new Packages.IpPortPair("", ports);
+    }
+
+    private static void assertInvalidPorts(String ports) {
+        try {
+            ports(ports);
+            fail("accepted invalid ports: " + ports);
+        } catch (IllegalArgumentException e) {
+            // expected
+        }
+    }
+
+    @Test
+    public void testPortRangesAreSortedAndMerged() {
+        assertArrayEquals(new int[] { 5000, 5000, 5004, 5010 }, ports("5004-5010,5000").getPortRanges());
+        assertArrayEquals(new int[] { 10, 30 }, ports("10-20,15-30").getPortRanges());    // overlapping
+        assertArrayEquals(new int[] { 10, 30 }, ports("21-30,10-20").getPortRanges());    // adjacent
+        assertArrayEquals(new int[] { 10, 20 }, ports("10-20,12-14").getPortRanges());    // contained
+        assertArrayEquals(new int[] { 80, 81 }, ports("80,81").getPortRanges());          // adjacent single ports
+        assertArrayEquals(new int[] { 10, 20, 22, 30 }, ports("22-30,10-20").getPortRanges());
+        assertArrayEquals(new int[] { 1, 65535 }, ports(" 1 - 65535 ").getPortRanges());
+    }
+
+    @Test
+    public void testSinglePortIsNoRange() {
+        Packages.IpPortPair single = ports("80");
+        assertFalse(single.hasPortRanges());
+        assertEquals(80, single.getPort());
+
+        Packages.IpPortPair merged = ports("80-80,80");
+        assertFalse(merged.hasPortRanges());
+        assertEquals(80, merged.getPort());
+        assertEquals(new Packages.IpPortPair("", 80), merged);
+
+        for(String anyPort : new String[] { "0", "*", "", " " }) {
+            Packages.IpPortPair any = ports(anyPort);
+            assertTrue(any.isPortAny());
+            assertFalse(any.hasPortRanges());
+            assertEquals(Packages.IpPortPair.PORT_ANY, any.getPort());
+        }
+    }
+
+    @Test
+    public void testInvalidPortsAreRejected() {
+        assertInvalidPorts("0-10");
+        assertInvalidPorts("80,0");
+        assertInvalidPorts("20-10");
+        assertInvalidPorts("65536");
+        assertInvalidPorts("80-65536");
+        assertInvalidPorts("-1");
+        assertInvalidPorts("http");
+        assertInvalidPorts("80,");
+        assertInvalidPorts("80-");
+    }
+
+    @Test
+    public void testGetPortsRoundTrip() {
+        String[][] cases = {
+                { "0", "0" },
+                { "*", "0" },
+                { "80", "80" },
+                { "6881-6999", "6881-6999" },
+                { "5000,5004-5010", "5000,5004-5010" },
+                { "5004-5010, 5000", "5000,5004-5010" },
+                { "80,81,82", "80-82" },
+                { "10-20,15-30,40", "10-30,40" },
+        };
+
+        for(String[] testCase : cases) {
+            Packages.IpPortPair filter = ports(testCase[0]);
+            assertEquals(testCase[0], testCase[1], filter.getPorts());
+
+            Packages.IpPortPair reparsed = ports(filter.getPorts());
+            assertEquals(testCase[0], filter, reparsed);
+            assertArrayEquals(testCase[0], filter.getPortRanges(), reparsed.getPortRanges());
+        }
+    }
+
+    @Test
+    public void testMatchesPort() {
+        Packages.IpPortPair filter = ports("5000,5004-5010,6000-6001");
+        assertTrue(filter.matchesPort(5000));
+        assertTrue(filter.matchesPort(5004));
+        assertTrue(filter.matchesPort(5007));
+        assertTrue(filter.matchesPort(5010));
+        assertTrue(filter.matchesPort(6001));
+        assertFalse(filter.matchesPort(4999));
+        assertFalse(filter.matchesPort(5001));
+        assertFalse(filter.matchesPort(5003));
+        assertFalse(filter.matchesPort(5011));
+        assertFalse(filter.matchesPort(6002));
+        assertFalse(filter.matchesPort(1));
+
+        assertTrue(ports("80").matchesPort(80));
+        assertFalse(ports("80").matchesPort(81));
+        assertTrue(ports("*").matchesPort(12345));
+    }
+}
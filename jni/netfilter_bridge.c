@@ -30,8 +30,14 @@
 #include <sys/socket.h>
 #include <netinet/in.h>
 #include <netdb.h> 
+#include <poll.h>
+#include <stddef.h>
+#include <sys/un.h>
+#include <time.h>
 
 #include <libnetfilter_queue/libnetfilter_queue.h>
+#include <libnfnetlink/libnfnetlink.h>
+#include <linux/netfilter/nfnetlink_conntrack.h>
 
 
 /*  = Netfilter-Bridge client =
@@ -72,6 +78,26 @@
          <== "#Packet.QueryAction.Resonse##DROP#" // i.e. package will be dropped
          ==> "#Packet.QueryAction##protocol=tcp##ip.src=173.194.116.152##ip.dst=192.168.178.28##tcp.src.port=80##tcp.dst.port=54845#"
          <== "#Packet.QueryAction.Resonse##ACCEPT#" // i.e. package will be accepted
+ *    4) Pipelining:
+ *       Each Filter-Query carries the nfqueue packet-id "#netfilter.packet.id=<id>#" and the server echoes it within its response:
+ *       "#Packet.QueryAction.Response##netfilter.packet.id=<id>##ACCEPT#". The bridge does not wait for the response,
+ *       so that many packages can be pending at the same time and the server may answer them in any order.
+ *       Verdicts may be batched as ranges of ids: "#Packet.QueryAction.Response##netfilter.packet.ids=10-15,17##ACCEPT#".
+ *       If a range covers all packages pending up to its last id, it is applied using a single 'nfq_set_verdict_batch'.
+ *    5) Binary-Format:
+ *       The welcome-message offers the supported formats: "#protocol.formats=text,binary.v1#".
+ *       If the server answers with "#protocol.format=binary.v1#", all Filter-Queries are sent as length-prefixed binary frames
+ *       (see 'NetfilterBridgeProtocol.BinaryFormat' within DiscoWall for the layout). Responses stay text-lines.
+ *    6) Conntrack-Events:
+ *       If the server answers the welcome-message with "#conntrack.events=1#", the instance of queue 0 subscribes to the
+ *       conntrack update/destroy events and forwards them without expecting a response (binary frame or text-line):
+ *       "#Conntrack.Event##conntrack.event=destroy##protocol=tcp##ip.src=10.0.0.2##ip.dst=1.2.3.4##port.src=4711##port.dst=80##conntrack.tcp.state=7#"
+ *    7) Overload-Policy:
+ *       The server may answer the welcome-message with "#queue.maxlen=<n>#" and "#queue.fail.open=1#". The bridge then limits its nfqueue
+ *       to n packages and lets the kernel accept packages while the queue is full (instead of dropping them).
+ *       Whenever the kernel-counters of the queue or the ENOBUFS-count of the bridge changed (checked once per second), the bridge reports them
+ *       without expecting a response (binary frame or text-line):
+ *       "#Bridge.QueueStats##queue.length=12##queue.dropped=0##queue.user.dropped=3##bridge.recv.overruns=1#"
  */
 
 
@@ -83,6 +109,41 @@
 
 int sockfd; // server (android app) connection
 struct sockaddr_in source,dest; // printer-methods
+bool protocol_binary = false; // negotiated within the welcome-messages
+// Connmark offload, enabled by the app within the welcome-messages: verdicts are sent as NF_REPEAT with one of these marks,
+// so that the iptables-rules of the app can save the decision as connmark. 0 = disabled.
+u_int32_t verdict_mark_accept = 0;
+u_int32_t verdict_mark_drop = 0;
+// Conntrack-events, enabled by the app within the welcome-messages. Only subscribed by the instance of queue 0.
+bool conntrack_events = false;
+struct nfnl_handle *conntrack_handle = NULL;
+// Overload-policy, set by the app within the welcome-messages
+u_int32_t queue_maxlen = 0; // 0 = kernel default
+bool queue_fail_open = false;
+struct nfq_handle *library_handle; // opened by 'bindNfqueue()' before connecting to the server
+struct nfq_q_handle *queue_handle; // used for setting verdicts when server-responses arrive
+u_int16_t queue_num = 0; // with '--queue-balance' one bridge-instance is started per queue
+
+// server-responses are being collected here until a full line has been received
+char response_buffer[8192];
+int response_buffer_length = 0;
+
+// packages forwarded to the server, whose verdict is still pending. Indexed by (packet-id % PENDING_PACKAGES_RING_SIZE).
+#define PENDING_PACKAGES_RING_SIZE 65536
+bool pending_packages[PENDING_PACKAGES_RING_SIZE];
+bool pending_packages_any = false;
+u_int32_t pending_lowest_id = 0; // all ids below are answered
+u_int32_t pending_next_id = 0;   // id following the latest forwarded package
+
+// queue-statistics, reported to the server whenever they change
+#define QUEUE_STATS_INTERVAL_SECONDS 1
+u_int32_t stats_receive_overruns = 0; // ENOBUFS: the kernel could not deliver packages to the bridge
+u_int32_t stats_reported[4] = { 0, 0, 0, 0 }; // queue-length, queue-dropped, user-dropped, receive-overruns
+time_t stats_last_check = 0;
+// after an ENOBUFS, the ids skipped until the next received package are lost and answered with the fail-open/-closed verdict
+bool packets_lost = false;
+u_int32_t expected_packet_id = 0;
+#define LOST_PACKETS_MAX_VERDICTS 65536
 
 // debugging stuff:
 bool debug_printTcpPackages = false;
@@ -122,6 +183,20 @@ int sendMessageToServer(char *message)
     return n;
 }
 
+void sendBytesToServer(const unsigned char *data, int size)
+{
+	// a single write might not transmit the whole frame
+	while (size > 0)
+	{
+		int n = write(sockfd, data, size);
+		if (n < 0)
+			error("ERROR writing to socket");
+
+		data += n;
+		size -= n;
+	}
+}
+
 int sendIntToServer(int value)
 {
 	char buffer[20];
@@ -133,6 +208,14 @@ int sendIntToServer(int value)
 }
 
 
+void sendPacketIdToServer(u_int32_t id)
+{
+	char buffer[40];
+	snprintf(buffer, sizeof(buffer), "#netfilter.packet.id=%u#", id);
+	sendMessageToServer(buffer);
+}
+
+
 int receiveMessageFromServer(char* buffer, int size)
 {
     bzero(buffer, size); // fill buffer with zeros
@@ -149,43 +232,35 @@ int receiveMessageFromServer(char* buffer, int size)
 }
 
 
-bool receiveProtocolResponseAcceptOrDropPackage()
+void sendHelloToServer();
+
+/* Connects using a unix-domain-socket within the abstract namespace (as used by android.net.LocalServerSocket). */
+void connectToUnixServer(const char *socketName)
 {
-	char buffer[256];
-	receiveMessageFromServer(buffer, 256);
+	fprintf(stdout, "Connecting to server @%s\n", socketName);
 
-	char responseAccept[40]   = "#Packet.QueryAction.Response##ACCEPT#"; // 37 chars
-	char responseDrop[40]     = "#Packet.QueryAction.Response##DROP#";   // 35 chars
-	char receivedResponse[40];
+    struct sockaddr_un serv_addr;
+    size_t nameLength = strlen(socketName);
 
-	// Test if message is ACCEPT
-	strncpy(receivedResponse, buffer, 37);
-	receivedResponse[37] = '\0'; // Adding the End-Of-String symbol
-	bool isAccept = strcmp(receivedResponse, responseAccept) == 0;
+    if (nameLength + 1 > sizeof(serv_addr.sun_path))
+        error("ERROR socket name too long");
 
-	// Test if message is DROP
-	strncpy(receivedResponse, buffer, 35);
-	receivedResponse[35] = '\0'; // Adding the End-Of-String symbol
-	bool isDrop = strcmp(receivedResponse, responseDrop) == 0;
+    sockfd = socket(AF_UNIX, SOCK_STREAM, 0); // declared public
+    if (sockfd < 0) 
+        error("ERROR opening socket");
 
-	// fprintf(stdout, "Vergleich receivedResponse mit responseAccept (after null char added): %d\n", strcmp(receivedResponse, responseAccept));
+    memset(&serv_addr, 0, sizeof(serv_addr));
+    serv_addr.sun_family = AF_UNIX;
+    serv_addr.sun_path[0] = '\0'; // abstract namespace: leading zero-byte, name is not zero-terminated
+    memcpy(serv_addr.sun_path + 1, socketName, nameLength);
 
-	if (isAccept)
-	{
-		// fprintf(stdout, "IS ACCEPT!\n");
-		return true;
-	} 
-	else if (isDrop)
-	{
-		// fprintf(stdout, "IS DROP!\n");
-		return false;
-	}
-    else 
-    {
-    	error("Invalid Server-Response! Expected '#Packet.QueryAction.Resonse##ACCEPT#' or '#Packet.QueryAction.Resonse##DROP#'.");
-    }
-}
+    socklen_t addrLength = offsetof(struct sockaddr_un, sun_path) + 1 + nameLength;
+    if (connect(sockfd, (struct sockaddr *) &serv_addr, addrLength) < 0) 
+        error("ERROR connecting");
 
+	fprintf(stdout, "Connected.\n");
+	sendHelloToServer();
+}
 
 void connectToServer(const char *hostname, const char *port)
 {
@@ -217,7 +292,12 @@ void connectToServer(const char *hostname, const char *port)
         error("ERROR connecting");
 
 	fprintf(stdout, "Connected.\n");
+	sendHelloToServer();
+}
 
+/* Hello-handshake, which also negotiates the message-format. */
+void sendHelloToServer()
+{
 	// To send strings via console to server
 //    fprintf(stdout, "Please enter the message: ");
 //    char buffer[256];
@@ -225,10 +305,35 @@ void connectToServer(const char *hostname, const char *port)
 //    fgets(buffer,255,stdin); // read from stdin and write to buffer
 
 
-	sendMessageToServer("#COMMENT#Netfilter-Bridge says hello.\n");
+	sendMessageToServer("#COMMENT#Netfilter-Bridge says hello.##protocol.formats=text,binary.v1#\n");
 
-	char buffer[256];
-	receiveMessageFromServer(buffer, 256);
+	char buffer[512];
+	receiveMessageFromServer(buffer, sizeof(buffer));
+	buffer[sizeof(buffer) - 1] = '\0'; // terminating zero for strstr()
+
+	protocol_binary = strstr(buffer, "#protocol.format=binary.v1#") != NULL;
+	fprintf(stdout, "Protocol-Format: %s\n", protocol_binary ? "binary.v1" : "text");
+
+	const char *markAcceptValue = strstr(buffer, "#verdict.mark.accept=");
+	const char *markDropValue = strstr(buffer, "#verdict.mark.drop=");
+	if (markAcceptValue != NULL && markDropValue != NULL)
+	{
+		verdict_mark_accept = (u_int32_t) strtoul(markAcceptValue + strlen("#verdict.mark.accept="), NULL, 10);
+		verdict_mark_drop = (u_int32_t) strtoul(markDropValue + strlen("#verdict.mark.drop="), NULL, 10);
+
+		if (verdict_mark_accept == 0 || verdict_mark_drop == 0)
+			verdict_mark_accept = verdict_mark_drop = 0; // both are required
+	}
+	fprintf(stdout, "Verdict-Marks: accept=0x%x drop=0x%x\n", verdict_mark_accept, verdict_mark_drop);
+
+	conntrack_events = strstr(buffer, "#conntrack.events=1#") != NULL;
+	fprintf(stdout, "Conntrack-Events: %s\n", conntrack_events ? "enabled" : "disabled");
+
+	const char *queueMaxlenValue = strstr(buffer, "#queue.maxlen=");
+	if (queueMaxlenValue != NULL)
+		queue_maxlen = (u_int32_t) strtoul(queueMaxlenValue + strlen("#queue.maxlen="), NULL, 10);
+	queue_fail_open = strstr(buffer, "#queue.fail.open=1#") != NULL;
+	fprintf(stdout, "Queue: maxlen=%u (0 = default), fail-%s\n", queue_maxlen, queue_fail_open ? "open" : "closed");
 
 /*  
 	char buffer[256];
@@ -558,6 +663,199 @@ void handle_udp_packet(unsigned char *Buffer , int Size)
 }
 
  
+/* ======================================================================================== */
+/* Binary Protocol-Format (binary.v1) */
+/* ======================================================================================== */
+
+/* Layout has to match 'NetfilterBridgeProtocol.BinaryFormat' of DiscoWall.
+ * All offsets are relative to the first byte after the 16-bit length prefix. Values are big endian. */
+#define BINARY_FORMAT_VERSION				1
+#define BINARY_MSG_TYPE_QUERY_ACTION		1
+#define BINARY_QUERY_ACTION_FRAME_LENGTH	45
+#define BINARY_MSG_TYPE_CONNTRACK_EVENT		2
+#define BINARY_CONNTRACK_EVENT_FRAME_LENGTH	17
+#define BINARY_MSG_TYPE_QUEUE_STATS			3
+#define BINARY_QUEUE_STATS_FRAME_LENGTH		18
+
+// 1 (new) is not being used: only the update- and destroy-groups are subscribed
+#define CONNTRACK_EVENT_UPDATE				2
+#define CONNTRACK_EVENT_DESTROY				3
+
+#define BINARY_FLAG_HAS_INPUT_DEVICE		0x01
+#define BINARY_FLAG_HAS_OUTPUT_DEVICE		0x02
+#define BINARY_FLAG_HAS_MARK				0x04
+
+#define BINARY_TCP_FLAG_FIN					0x01
+#define BINARY_TCP_FLAG_SYN					0x02
+#define BINARY_TCP_FLAG_RESET				0x04
+#define BINARY_TCP_FLAG_PUSH				0x08
+#define BINARY_TCP_FLAG_ACK					0x10
+#define BINARY_TCP_FLAG_URGENT				0x20
+
+static unsigned char* put_u8(unsigned char *p, u_int8_t value)
+{
+	p[0] = value;
+	return p + 1;
+}
+
+static unsigned char* put_u16(unsigned char *p, u_int16_t value)
+{
+	p[0] = (value >> 8) & 0xff;
+	p[1] = value & 0xff;
+	return p + 2;
+}
+
+static unsigned char* put_u32(unsigned char *p, u_int32_t value)
+{
+	p[0] = (value >> 24) & 0xff;
+	p[1] = (value >> 16) & 0xff;
+	p[2] = (value >> 8) & 0xff;
+	p[3] = value & 0xff;
+	return p + 4;
+}
+
+/* Sends the whole Filter-Query as one binary frame (single write). 
+ * Returns false, if the package is too short to contain the transport-layer header - it will not be sent in this case. */
+bool sendBinaryPacketQueryToServer(struct nfq_data *tb, u_int32_t id, unsigned char *data, int data_size)
+{
+	struct iphdr *iph = (struct iphdr *)data;
+	unsigned short iphdrlen = iph->ihl*4;
+
+	u_int16_t srcPort = 0, dstPort = 0, length = 0, checksum = 0;
+	u_int32_t seq = 0, ack = 0;
+	u_int8_t tcpFlags = 0;
+
+	if (iph->protocol == IPPROTO_TCP)
+	{
+		if (data_size < (int)(iphdrlen + sizeof(struct tcphdr)))
+			return false;
+
+		struct tcphdr *tcph = (struct tcphdr*)(data + iphdrlen);
+		srcPort = ntohs(tcph->source);
+		dstPort = ntohs(tcph->dest);
+		length = tcph->doff*4;
+		checksum = ntohs(tcph->check);
+		seq = ntohl(tcph->seq);
+		ack = ntohl(tcph->ack_seq);
+
+		if (tcph->fin) tcpFlags |= BINARY_TCP_FLAG_FIN;
+		if (tcph->syn) tcpFlags |= BINARY_TCP_FLAG_SYN;
+		if (tcph->rst) tcpFlags |= BINARY_TCP_FLAG_RESET;
+		if (tcph->psh) tcpFlags |= BINARY_TCP_FLAG_PUSH;
+		if (tcph->ack) tcpFlags |= BINARY_TCP_FLAG_ACK;
+		if (tcph->urg) tcpFlags |= BINARY_TCP_FLAG_URGENT;
+	}
+	else
+	{
+		if (data_size < (int)(iphdrlen + sizeof(struct udphdr)))
+			return false;
+
+		struct udphdr *udph = (struct udphdr*)(data + iphdrlen);
+		srcPort = ntohs(udph->source);
+		dstPort = ntohs(udph->dest);
+		length = ntohs(udph->len);
+		checksum = ntohs(udph->check);
+	}
+
+	u_int32_t indev = nfq_get_indev(tb);
+	u_int32_t outdev = nfq_get_outdev(tb);
+	u_int32_t mark = nfq_get_nfmark(tb);
+
+	u_int8_t presenceFlags = 0;
+	if (indev) presenceFlags |= BINARY_FLAG_HAS_INPUT_DEVICE;
+	if (outdev) presenceFlags |= BINARY_FLAG_HAS_OUTPUT_DEVICE;
+	if (mark) presenceFlags |= BINARY_FLAG_HAS_MARK;
+
+	unsigned char frame[2 + BINARY_QUERY_ACTION_FRAME_LENGTH];
+	unsigned char *p = frame;
+
+	p = put_u16(p, BINARY_QUERY_ACTION_FRAME_LENGTH);
+	p = put_u8(p, BINARY_FORMAT_VERSION);
+	p = put_u8(p, BINARY_MSG_TYPE_QUERY_ACTION);
+	p = put_u8(p, iph->protocol);
+	p = put_u8(p, presenceFlags);
+	p = put_u32(p, indev);
+	p = put_u32(p, outdev);
+	p = put_u32(p, mark);
+	p = put_u32(p, ntohl(iph->saddr));
+	p = put_u32(p, ntohl(iph->daddr));
+	p = put_u16(p, srcPort);
+	p = put_u16(p, dstPort);
+	p = put_u16(p, length);
+	p = put_u16(p, checksum);
+	p = put_u32(p, seq);
+	p = put_u32(p, ack);
+	p = put_u8(p, tcpFlags);
+	p = put_u32(p, id);
+
+	sendBytesToServer(frame, p - frame);
+	return true;
+}
+
+
+/* Forwards one conntrack-event to the server. Ports are in host byte order. */
+void sendConntrackEventToServer(u_int8_t eventType, u_int8_t protocol, u_int32_t srcIp, u_int32_t dstIp, u_int16_t srcPort, u_int16_t dstPort, u_int8_t tcpState)
+{
+	if (protocol_binary)
+	{
+		unsigned char frame[2 + BINARY_CONNTRACK_EVENT_FRAME_LENGTH];
+		unsigned char *p = frame;
+
+		p = put_u16(p, BINARY_CONNTRACK_EVENT_FRAME_LENGTH);
+		p = put_u8(p, BINARY_FORMAT_VERSION);
+		p = put_u8(p, BINARY_MSG_TYPE_CONNTRACK_EVENT);
+		p = put_u8(p, eventType);
+		p = put_u8(p, protocol);
+		p = put_u32(p, ntohl(srcIp));
+		p = put_u32(p, ntohl(dstIp));
+		p = put_u16(p, srcPort);
+		p = put_u16(p, dstPort);
+		p = put_u8(p, tcpState);
+
+		sendBytesToServer(frame, p - frame);
+		return;
+	}
+
+	char src[INET_ADDRSTRLEN], dst[INET_ADDRSTRLEN];
+	inet_ntop(AF_INET, &srcIp, src, sizeof(src));
+	inet_ntop(AF_INET, &dstIp, dst, sizeof(dst));
+
+	char buffer[256];
+	snprintf(buffer, sizeof(buffer), "#Conntrack.Event##conntrack.event=%s##protocol=%s##ip.src=%s##ip.dst=%s##port.src=%u##port.dst=%u##conntrack.tcp.state=%u#\n",
+		eventType == CONNTRACK_EVENT_DESTROY ? "destroy" : "update",
+		protocol == IPPROTO_TCP ? "tcp" : "udp",
+		src, dst, srcPort, dstPort, tcpState);
+	sendMessageToServer(buffer);
+}
+
+
+/* Reports the queue-statistics to the server: queue-length, queue-dropped, user-dropped, receive-overruns. */
+void sendQueueStatsToServer(const u_int32_t stats[4])
+{
+	if (protocol_binary)
+	{
+		unsigned char frame[2 + BINARY_QUEUE_STATS_FRAME_LENGTH];
+		unsigned char *p = frame;
+
+		p = put_u16(p, BINARY_QUEUE_STATS_FRAME_LENGTH);
+		p = put_u8(p, BINARY_FORMAT_VERSION);
+		p = put_u8(p, BINARY_MSG_TYPE_QUEUE_STATS);
+		p = put_u32(p, stats[0]);
+		p = put_u32(p, stats[1]);
+		p = put_u32(p, stats[2]);
+		p = put_u32(p, stats[3]);
+
+		sendBytesToServer(frame, p - frame);
+		return;
+	}
+
+	char buffer[200];
+	snprintf(buffer, sizeof(buffer), "#Bridge.QueueStats##queue.length=%u##queue.dropped=%u##queue.user.dropped=%u##bridge.recv.overruns=%u#\n",
+		stats[0], stats[1], stats[2], stats[3]);
+	sendMessageToServer(buffer);
+}
+
+
 /* ======================================================================================== */
 /* Netfilter Stuff */
 /* ======================================================================================== */
@@ -579,8 +877,8 @@ static u_int32_t handle_pkt_get_id(struct nfq_data *tb)
 }
 
 
-/* returns packet id */
-static u_int32_t handle_pkt(struct nfq_data *tb)
+/* returns true, if the package has been forwarded to the server (i.e. the verdict is pending) */
+static bool handle_pkt(struct nfq_data *tb, u_int32_t id)
 {
 	int data_size;
 	unsigned char *data;
@@ -600,6 +898,18 @@ static u_int32_t handle_pkt(struct nfq_data *tb)
     struct iphdr *ip;
 	ip = (struct iphdr *) data; // Get IP addresses in char form
 
+	// --------------------------------- Binary Format ----------------------------
+	if (protocol_binary && (ip->protocol == IPPROTO_TCP || ip->protocol == IPPROTO_UDP))
+	{
+		if (!sendBinaryPacketQueryToServer(tb, id, data, data_size))
+		{
+			fprintf(stdout, "truncated package --> ignoring package.\n");
+			return false;
+		}
+
+		return true;
+	}
+
 	// --------------------------------- TCP/UDP Decoding -------------------------
 	fprintf(stdout, "Protocol-Type:");
 
@@ -607,16 +917,17 @@ static u_int32_t handle_pkt(struct nfq_data *tb)
     {
         case 1:  //ICMP Protocol
             fprintf(stdout, "ICMP --> ignoring package.\n");
-            return true;
+            return false;
          
         case 2:  //IGMP Protocol
             fprintf(stdout, "IGMP --> ignoring package.\n");
-            return true;
+            return false;
          
         case 6:  //TCP Protocol
         	fprintf(stdout, "TCP --> forwarding info to firewall...\n");
 
 			sendMessageToServer("#Packet.QueryAction#");
+			sendPacketIdToServer(id);
 		    sendMessageToServer("#protocol=tcp#");
 
     		handle_tcp_packet(data, data_size);
@@ -626,6 +937,7 @@ static u_int32_t handle_pkt(struct nfq_data *tb)
             fprintf(stdout, "UDP --> forwarding info to firewall...\n");
 
 		    sendMessageToServer("#Packet.QueryAction#");
+			sendPacketIdToServer(id);
 		    sendMessageToServer("#protocol=udp#");
 
             handle_udp_packet(data, data_size);
@@ -633,7 +945,7 @@ static u_int32_t handle_pkt(struct nfq_data *tb)
 
         default: //Some Other Protocol like ARP etc.
 			fprintf(stdout, "<unknown protocol> --> ignoring package.\n");
-            return true;
+            return false;
     }
 
     /* Note that this function will already have returned for any non-supported protocol.
@@ -711,56 +1023,371 @@ static u_int32_t handle_pkt(struct nfq_data *tb)
     // The TCP/UDP/IP information has been transmitted when handling the TCP/UPD package.
     sendMessageToServer("\n"); // message-end
 
-    // Receive server-response
-    bool acceptPackage = receiveProtocolResponseAcceptOrDropPackage();
-
+    // The server-response will be handled asynchronously.
     // ---------------------------------------------------------------------------------
 
-
-	return acceptPackage;
+	return true;
 }
 
 
-// CallBack: is being called for each package by nfqueue
-static int cb(struct nfq_q_handle *qh, struct nfgenmsg *nfmsg,
-	      struct nfq_data *nfa, void *data)
+void setPackageVerdict(u_int32_t id, bool acceptPacket)
 {
-	fprintf(stdout, "\n================ Package Received ================\n");
-
-	u_int32_t id = handle_pkt_get_id(nfa);
-
-	bool acceptPacket = handle_pkt(nfa);
+	if (verdict_mark_accept != 0)
+	{
+		// Connmark offload: the package traverses the chain again, where the mark lets iptables save and apply the decision
+		fprintf(stdout, "%s package %u (repeat with mark).\n", acceptPacket ? "ACCEPT" : "DROP", id);
+		nfq_set_verdict2(queue_handle, id, NF_REPEAT, acceptPacket ? verdict_mark_accept : verdict_mark_drop, 0, NULL);
+		return;
+	}
 
 	if (acceptPacket)
 	{
 		// NOTE: documentation says: The package will continue iterating through the chain (and the super-chains where it jumped from, if any)
 		// BUT: In truth the package will jump to ACCEPT instantly and NOT continue traversing the chain. 
 		//      Has been tested: Any follow-up rule (even reject) will have no effect on the package after it has been accepted.
-		fprintf(stdout, "ACCEPT package.\n");
+		fprintf(stdout, "ACCEPT package %u.\n", id);
 		//return nfq_set_verdict(qh, id, NF_ACCEPT, 0, NULL);
 	
         // DiscoWall: Removing mark set within discowall's iptables-structure, as this mark creates problems for some remote apps:
         // the 'nfq_set_verdict2' function sets a mark in addition to setting a verdict [former function was 'nfq_set_verdict_mark' but is deprecated and broken]
-        fprintf(stdout, "set mark to 0.\n");
         //nfq_set_verdict_mark(qh, id, NF_ACCEPT, 0, 0, NULL); // deprecated version of 'nfq_set_verdict2(qh, id, <verdict>, <mark>, 0, NULL)'
-        nfq_set_verdict2(qh, id, NF_ACCEPT, 0, 0, NULL); // 'nfq_set_verdict2(qh, id, <verdict>, <mark>, 0, NULL)'
+        nfq_set_verdict2(queue_handle, id, NF_ACCEPT, 0, 0, NULL); // 'nfq_set_verdict2(qh, id, <verdict>, <mark>, 0, NULL)'
     }
 	else 
 	{
 		// NOTE: The package will be discarted right here 
-		fprintf(stdout, "DROP package.\n");
-		return nfq_set_verdict(qh, id, NF_DROP, 0, NULL);
+		fprintf(stdout, "DROP package %u.\n", id);
+		nfq_set_verdict(queue_handle, id, NF_DROP, 0, NULL);
 	}
 }
 
-void startNfqueueCallbacks()
+
+void markPackagePending(u_int32_t id)
+{
+	if (!pending_packages_any)
+	{
+		pending_lowest_id = id;
+		pending_packages_any = true;
+	}
+
+	pending_packages[id % PENDING_PACKAGES_RING_SIZE] = true;
+	pending_next_id = id + 1;
+}
+
+
+void markPackageAnswered(u_int32_t id)
+{
+	pending_packages[id % PENDING_PACKAGES_RING_SIZE] = false;
+
+	while (pending_lowest_id != pending_next_id && !pending_packages[pending_lowest_id % PENDING_PACKAGES_RING_SIZE])
+		pending_lowest_id++;
+}
+
+
+/* Sets the verdict for all packages with ids [firstId, lastId]. 
+ * If no other package up to lastId is still pending, a single batch-verdict will be used. */
+void setPackageVerdictRange(u_int32_t firstId, u_int32_t lastId, bool acceptPacket)
+{
+	u_int32_t id;
+
+	if (lastId - firstId >= PENDING_PACKAGES_RING_SIZE)
+	{
+		fprintf(stderr, "Invalid packet-id range: %u-%u\n", firstId, lastId);
+		return;
+	}
+
+	for (id = firstId; id != lastId + 1; id++)
+		markPackageAnswered(id);
+
+	// nfq_set_verdict_batch applies to ALL queued packages with an id <= lastId
+	bool otherPackagesPending = (int32_t)(pending_lowest_id - lastId) <= 0;
+
+	if (otherPackagesPending || firstId == lastId)
+	{
+		for (id = firstId; id != lastId + 1; id++)
+			setPackageVerdict(id, acceptPacket);
+		return;
+	}
+
+	fprintf(stdout, "%s packages %u-%u (batch).\n", acceptPacket ? "ACCEPT" : "DROP", firstId, lastId);
+
+	if (verdict_mark_accept != 0)
+		nfq_set_verdict_batch2(queue_handle, lastId, NF_REPEAT, acceptPacket ? verdict_mark_accept : verdict_mark_drop); // connmark offload - see 'setPackageVerdict()'
+	else if (acceptPacket)
+		nfq_set_verdict_batch2(queue_handle, lastId, NF_ACCEPT, 0); // removing mark - see 'setPackageVerdict()'
+	else
+		nfq_set_verdict_batch(queue_handle, lastId, NF_DROP);
+}
+
+
+/* Handles a single response-line, i.e. "#Packet.QueryAction.Response##netfilter.packet.ids=10-15,17##ACCEPT#" */
+void handleServerResponse(const char *line)
+{
+	const char *responsePrefix = "#Packet.QueryAction.Response#";
+	const char *packetIdsPrefix = "#netfilter.packet.ids=";
+	const char *packetIdPrefix = "#netfilter.packet.id=";
+	bool accept;
+
+	if (strncmp(line, responsePrefix, strlen(responsePrefix)) != 0)
+		goto invalid;
+
+	if (strstr(line, "#ACCEPT#") != NULL)
+		accept = true;
+	else if (strstr(line, "#DROP#") != NULL)
+		accept = false;
+	else
+		goto invalid;
+
+	const char *value = strstr(line, packetIdsPrefix);
+	if (value != NULL)
+	{
+		// list of ranges: <id>[-<id>][,<id>[-<id>]]...
+		char *next = (char*) value + strlen(packetIdsPrefix);
+		for (;;)
+		{
+			u_int32_t firstId = (u_int32_t) strtoul(next, &next, 10);
+			u_int32_t lastId = firstId;
+
+			if (*next == '-')
+				lastId = (u_int32_t) strtoul(next + 1, &next, 10);
+
+			setPackageVerdictRange(firstId, lastId, accept);
+
+			if (*next != ',')
+				break;
+			next++;
+		}
+		return;
+	}
+
+	value = strstr(line, packetIdPrefix);
+	if (value != NULL)
+	{
+		u_int32_t id = (u_int32_t) strtoul(value + strlen(packetIdPrefix), NULL, 10);
+		setPackageVerdictRange(id, id, accept);
+		return;
+	}
+
+invalid:
+	fprintf(stderr, "Invalid Server-Response! Expected '#Packet.QueryAction.Response##netfilter.packet.ids=<id>[-<id>],...##ACCEPT#' or '...##DROP#' but got: %s\n", line);
+}
+
+
+/* Reads all available server-responses and sets the verdicts of the answered packages. */
+void receiveServerResponses()
+{
+	int n = read(sockfd, response_buffer + response_buffer_length, sizeof(response_buffer) - response_buffer_length - 1);
+	if (n < 0)
+		error("ERROR reading from socket");
+	if (n == 0)
+		error("Server closed connection.");
+
+	response_buffer_length += n;
+	response_buffer[response_buffer_length] = '\0';
+
+	// handle all complete lines
+	char *line = response_buffer;
+	char *lineEnd;
+	while ((lineEnd = strchr(line, '\n')) != NULL)
+	{
+		*lineEnd = '\0';
+		handleServerResponse(line);
+		line = lineEnd + 1;
+	}
+
+	// keep incomplete line for next read
+	response_buffer_length -= line - response_buffer;
+	memmove(response_buffer, line, response_buffer_length);
+
+	if (response_buffer_length >= (int) sizeof(response_buffer) - 1)
+		error("Server-Response exceeds buffer size.");
+}
+
+
+// CallBack: is being called for each conntrack-event (ctnetlink message) of the subscribed groups
+static int conntrack_cb(struct nlmsghdr *nlh, struct nfattr *nfa[], void *data)
+{
+	struct nfattr *tuple[CTA_TUPLE_MAX];
+	struct nfattr *ip[CTA_IP_MAX];
+	struct nfattr *proto[CTA_PROTO_MAX];
+
+	if (nfa[CTA_TUPLE_ORIG-1] == NULL)
+		return 0;
+
+	nfnl_parse_nested(tuple, CTA_TUPLE_MAX, nfa[CTA_TUPLE_ORIG-1]);
+	if (tuple[CTA_TUPLE_IP-1] == NULL || tuple[CTA_TUPLE_PROTO-1] == NULL)
+		return 0;
+
+	nfnl_parse_nested(ip, CTA_IP_MAX, tuple[CTA_TUPLE_IP-1]);
+	nfnl_parse_nested(proto, CTA_PROTO_MAX, tuple[CTA_TUPLE_PROTO-1]);
+	if (ip[CTA_IP_V4_SRC-1] == NULL || ip[CTA_IP_V4_DST-1] == NULL || proto[CTA_PROTO_NUM-1] == NULL)
+		return 0; // ipv6 is not being handled by the firewall
+
+	u_int8_t protocol = *(u_int8_t *) NFA_DATA(proto[CTA_PROTO_NUM-1]);
+	if (protocol != IPPROTO_TCP && protocol != IPPROTO_UDP)
+		return 0;
+	if (proto[CTA_PROTO_SRC_PORT-1] == NULL || proto[CTA_PROTO_DST_PORT-1] == NULL)
+		return 0;
+
+	u_int8_t tcpState = 0;
+	if (protocol == IPPROTO_TCP && nfa[CTA_PROTOINFO-1] != NULL)
+	{
+		struct nfattr *protoinfo[CTA_PROTOINFO_MAX];
+		nfnl_parse_nested(protoinfo, CTA_PROTOINFO_MAX, nfa[CTA_PROTOINFO-1]);
+
+		if (protoinfo[CTA_PROTOINFO_TCP-1] != NULL)
+		{
+			struct nfattr *tcpinfo[CTA_PROTOINFO_TCP_MAX];
+			nfnl_parse_nested(tcpinfo, CTA_PROTOINFO_TCP_MAX, protoinfo[CTA_PROTOINFO_TCP-1]);
+
+			if (tcpinfo[CTA_PROTOINFO_TCP_STATE-1] != NULL)
+				tcpState = *(u_int8_t *) NFA_DATA(tcpinfo[CTA_PROTOINFO_TCP_STATE-1]);
+		}
+	}
+
+	u_int8_t eventType;
+	if (NFNL_MSG_TYPE(nlh->nlmsg_type) == IPCTNL_MSG_CT_DELETE)
+		eventType = CONNTRACK_EVENT_DESTROY;
+	else
+		eventType = CONNTRACK_EVENT_UPDATE;
+
+	sendConntrackEventToServer(eventType, protocol,
+		*(u_int32_t *) NFA_DATA(ip[CTA_IP_V4_SRC-1]),
+		*(u_int32_t *) NFA_DATA(ip[CTA_IP_V4_DST-1]),
+		ntohs(*(u_int16_t *) NFA_DATA(proto[CTA_PROTO_SRC_PORT-1])),
+		ntohs(*(u_int16_t *) NFA_DATA(proto[CTA_PROTO_DST_PORT-1])),
+		tcpState);
+
+	return 0;
+}
+
+struct nfnl_callback conntrack_callback = { .call = conntrack_cb, .data = NULL, .attr_count = CTA_MAX };
+
+/* Subscribes to the conntrack update/destroy events. Failures are not fatal: the app will then miss the connection-closes only. */
+void startConntrackEvents()
+{
+	if (!conntrack_events || queue_num != 0)
+		return;
+
+	fprintf(stdout, "subscribing to conntrack events\n");
+	conntrack_handle = nfnl_open();
+	if (!conntrack_handle) {
+		fprintf(stderr, "error during nfnl_open() for conntrack events\n");
+		return;
+	}
+
+	struct nfnl_subsys_handle *subsys = nfnl_subsys_open(conntrack_handle, NFNL_SUBSYS_CTNETLINK, IPCTNL_MSG_MAX,
+		NF_NETLINK_CONNTRACK_UPDATE | NF_NETLINK_CONNTRACK_DESTROY);
+	if (!subsys
+		|| nfnl_callback_register(subsys, IPCTNL_MSG_CT_NEW, &conntrack_callback) < 0 // update-events are sent as 'new' messages
+		|| nfnl_callback_register(subsys, IPCTNL_MSG_CT_DELETE, &conntrack_callback) < 0)
+	{
+		fprintf(stderr, "error subscribing to conntrack events (kernel without ctnetlink?)\n");
+		nfnl_close(conntrack_handle);
+		conntrack_handle = NULL;
+		return;
+	}
+
+	// a burst of closing connections must not overflow the socket
+	nfnl_rcvbufsiz(conntrack_handle, 1024 * 1024);
+}
+
+/* Reads the kernel-counters of the own queue from /proc. Returns false, if they are not available. */
+bool readKernelQueueStats(u_int32_t *queueLength, u_int32_t *queueDropped, u_int32_t *userDropped)
+{
+	FILE *file = fopen("/proc/net/netfilter/nfnetlink_queue", "r");
+	if (file == NULL)
+		return false;
+
+	// columns: queue_number peer_portid queue_total copy_mode copy_range queue_dropped user_dropped id_sequence 1
+	unsigned int number, portid, total, copyMode, copyRange, dropped, uDropped, idSequence;
+	bool found = false;
+	char line[256];
+
+	while (fgets(line, sizeof(line), file) != NULL)
+	{
+		if (sscanf(line, "%u %u %u %u %u %u %u %u", &number, &portid, &total, &copyMode, &copyRange, &dropped, &uDropped, &idSequence) == 8
+			&& number == queue_num)
+		{
+			*queueLength = total;
+			*queueDropped = dropped;
+			*userDropped = uDropped;
+			found = true;
+			break;
+		}
+	}
+
+	fclose(file);
+	return found;
+}
+
+/* Reports the queue-statistics, if they changed since the last report. Checked at most once per QUEUE_STATS_INTERVAL_SECONDS. */
+void checkQueueStats()
+{
+	time_t now = time(NULL);
+	if (now - stats_last_check < QUEUE_STATS_INTERVAL_SECONDS)
+		return;
+	stats_last_check = now;
+
+	u_int32_t stats[4] = { 0, 0, 0, stats_receive_overruns };
+	if (!readKernelQueueStats(&stats[0], &stats[1], &stats[2]))
+	{
+		// kernel-counters not available: report the overruns only
+		stats[0] = stats_reported[0];
+		stats[1] = stats_reported[1];
+		stats[2] = stats_reported[2];
+	}
+
+	// the queue-length alone changes all the time: only reported along with the loss-counters
+	if (stats[1] == stats_reported[1] && stats[2] == stats_reported[2] && stats[3] == stats_reported[3])
+		return;
+
+	memcpy(stats_reported, stats, sizeof(stats_reported));
+	fprintf(stdout, "queue-stats: length=%u dropped=%u user-dropped=%u overruns=%u\n", stats[0], stats[1], stats[2], stats[3]);
+	sendQueueStatsToServer(stats);
+}
+
+// CallBack: is being called for each package by nfqueue
+static int cb(struct nfq_q_handle *qh, struct nfgenmsg *nfmsg,
+	      struct nfq_data *nfa, void *data)
+{
+	fprintf(stdout, "\n================ Package Received ================\n");
+
+	u_int32_t id = handle_pkt_get_id(nfa);
+
+	if (packets_lost)
+	{
+		// without verdict, the lost packages would stay queued until the queue is full
+		u_int32_t lostId;
+		u_int32_t lostCount = id - expected_packet_id;
+		if (lostCount > 0 && lostCount <= LOST_PACKETS_MAX_VERDICTS)
+		{
+			fprintf(stdout, "%s %u lost packages %u-%u.\n", queue_fail_open ? "ACCEPT" : "DROP", lostCount, expected_packet_id, id - 1);
+			for (lostId = expected_packet_id; lostId != id; lostId++)
+				nfq_set_verdict(queue_handle, lostId, queue_fail_open ? NF_ACCEPT : NF_DROP, 0, NULL);
+		}
+		packets_lost = false;
+	}
+	expected_packet_id = id + 1;
+
+	// The verdict will be set as soon as the server-response arrives (see 'receiveServerResponses()').
+	// Packages which are not forwarded to the server are accepted right away.
+	bool forwardedToServer = handle_pkt(nfa, id);
+
+	if (forwardedToServer)
+		markPackagePending(id);
+	else
+		nfq_set_verdict2(queue_handle, id, NF_ACCEPT, 0, 0, NULL); // not decided by the app: never offloaded as connmark
+
+	return 0;
+}
+
+/* Binds the queue before connecting to the server: the app starts the instances of the other queues only after the
+ * instance of queue 0 has connected, so that its 'nfq_unbind_pf()' can not detach the already bound queues of other instances. */
+void bindNfqueue()
 {
 	struct nfq_handle *h;
 	struct nfq_q_handle *qh;
-	struct nfnl_handle *nh;
-	int fd;
-	int rv;
-	char buf[4096] __attribute__ ((aligned));
 
 	fprintf(stdout, "opening library handle\n");
 	h = nfq_open();
@@ -769,34 +1396,100 @@ void startNfqueueCallbacks()
 		exit(1);
 	}
 
-	fprintf(stdout, "unbinding existing nf_queue handler for AF_INET (if any)\n");
-	if (nfq_unbind_pf(h, AF_INET) < 0) {
-		fprintf(stderr, "error during nfq_unbind_pf()\n");
-		exit(1);
+	// The handler is shared by all queues (on older kernels). Only the first instance may rebind it,
+	// otherwise running instances of the other queues would be affected.
+	if (queue_num == 0) {
+		fprintf(stdout, "unbinding existing nf_queue handler for AF_INET (if any)\n");
+		if (nfq_unbind_pf(h, AF_INET) < 0) {
+			fprintf(stderr, "error during nfq_unbind_pf()\n");
+			exit(1);
+		}
 	}
 
 	fprintf(stdout, "binding nfnetlink_queue as nf_queue handler for AF_INET\n");
 	if (nfq_bind_pf(h, AF_INET) < 0) {
 		fprintf(stderr, "error during nfq_bind_pf()\n");
-		exit(1);
+		if (queue_num == 0)
+			exit(1);
+		// other instances: the handler has already been bound by the first instance
 	}
 
-	fprintf(stdout, "binding this socket to queue '0'\n");
-	qh = nfq_create_queue(h,  0, &cb, NULL);
+	fprintf(stdout, "binding this socket to queue '%u'\n", queue_num);
+	qh = nfq_create_queue(h, queue_num, &cb, NULL);
 	if (!qh) {
 		fprintf(stderr, "error during nfq_create_queue()\n");
 		exit(1);
 	}
+	queue_handle = qh;
+	library_handle = h;
 
 	fprintf(stdout, "setting copy_packet mode\n");
 	if (nfq_set_mode(qh, NFQNL_COPY_PACKET, 0xffff) < 0) {
 		fprintf(stderr, "can't set packet_copy mode\n");
 		exit(1);
 	}
+}
+
+/* Applies the queue-settings negotiated within the welcome-messages and handles packages until the connection fails. */
+void startNfqueueCallbacks()
+{
+	struct nfq_handle *h = library_handle;
+	struct nfq_q_handle *qh = queue_handle;
+	int fd;
+	int rv;
+	char buf[4096] __attribute__ ((aligned));
+
+	if (queue_maxlen > 0) {
+		fprintf(stdout, "setting queue maxlen to %u\n", queue_maxlen);
+		if (nfq_set_queue_maxlen(qh, queue_maxlen) < 0)
+			fprintf(stderr, "can't set queue maxlen\n");
+	}
+
+	if (queue_fail_open) {
+		fprintf(stdout, "setting queue fail-open\n");
+		if (nfq_set_queue_flags(qh, NFQA_CFG_F_FAIL_OPEN, NFQA_CFG_F_FAIL_OPEN) < 0)
+			fprintf(stderr, "can't set queue fail-open (requires kernel 3.6 or newer)\n"); // not fatal: the queue stays fail-closed
+	}
 
 	fd = nfq_fd(h);
 
+	startConntrackEvents();
+
+	// Waiting for packages (nfqueue), server-responses and conntrack-events at the same time
+	struct pollfd fds[3];
+	fds[0].fd = fd;
+	fds[0].events = POLLIN;
+	fds[1].fd = sockfd;
+	fds[1].events = POLLIN;
+	fds[2].fd = conntrack_handle != NULL ? nfnl_fd(conntrack_handle) : -1; // negative fds are ignored by poll
+	fds[2].events = POLLIN;
+	fds[2].revents = 0;
+
 	for (;;) {
+		// the timeout lets the queue-stats be checked even if no package arrives
+		if (poll(fds, 3, QUEUE_STATS_INTERVAL_SECONDS * 1000) < 0) {
+			if (errno == EINTR)
+				continue;
+			fprintf(stderr, "poll failed");
+			break;
+		}
+
+		checkQueueStats();
+
+		if (fds[1].revents & (POLLIN | POLLHUP | POLLERR))
+			receiveServerResponses();
+
+		if (fds[2].revents & POLLIN) {
+			int ctLength = nfnl_recv(conntrack_handle, (unsigned char *) buf, sizeof(buf));
+			if (ctLength > 0)
+				nfnl_handle_packet(conntrack_handle, buf, ctLength);
+			else if (ctLength < 0 && errno == ENOBUFS)
+				fprintf(stdout, "losing conntrack events!\n");
+		}
+
+		if (!(fds[0].revents & POLLIN))
+			continue;
+
 		if ((rv = recv(fd, buf, sizeof(buf), 0)) >= 0) {
 			fprintf(stdout, "pkt received\n");
 			nfq_handle_packet(h, buf, rv);
@@ -811,14 +1504,17 @@ void startNfqueueCallbacks()
 		 * this situation.
 		 */
 		if (rv < 0 && errno == ENOBUFS) {
+			// the packages are still queued within the kernel - but without verdict until the queue is full (see 'queue_fail_open')
 			fprintf(stdout, "losing packets!\n");
+			stats_receive_overruns++;
+			packets_lost = true;
 			continue;
 		}
 		fprintf(stderr,"recv failed");
 		break;
 	}
 
-	fprintf(stdout, "unbinding from queue 0\n");
+	fprintf(stdout, "unbinding from queue %u\n", queue_num);
 	nfq_destroy_queue(qh);
 
 #ifdef INSANE
@@ -828,6 +1524,9 @@ void startNfqueueCallbacks()
 	nfq_unbind_pf(h, AF_INET);
 #endif
 
+	if (conntrack_handle != NULL)
+		nfnl_close(conntrack_handle);
+
 	fprintf(stdout, "closing library handle\n");
 	nfq_close(h);
 
@@ -841,15 +1540,27 @@ void startNfqueueCallbacks()
 
 int main(int argc, char **argv)
 {
-	if (argc < 3) {
-       fprintf(stderr,"usage %s <hostname> <port>\n", argv[0]);
+	bool useUnixSocket = argc >= 2 && argv[1][0] == '@';
+	int queueArgIndex = useUnixSocket ? 2 : 3;
+
+	if (argc < queueArgIndex || argc > queueArgIndex + 1) {
+       fprintf(stderr,"usage %s <hostname> <port> [queue-num]\n", argv[0]);
+       fprintf(stderr,"      %s @<unix-socket-name> [queue-num]\n", argv[0]);
        exit(0);
     }
 
+	if (argc > queueArgIndex)
+		queue_num = (u_int16_t) atoi(argv[queueArgIndex]);
+
     fprintf(stdout, "Netfilter-Bridge: application started...\n");
     fprintf(stdout, "Netfilter-Bridge: version 1.1\n");
 
-    connectToServer(argv[1], argv[2]);
+	bindNfqueue();
+
+    if (useUnixSocket)
+        connectToUnixServer(argv[1] + 1);
+    else
+        connectToServer(argv[1], argv[2]);
 
 	startNfqueueCallbacks();
 	closeConnection();